@@ -0,0 +1,64 @@
+package net.willware.eurydice.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Bond;
+import net.willware.eurydice.core.BondInference;
+
+/**
+ * Time to infer the bonds of a structure from scratch. This calls {@link BondInference}
+ * directly, since {@link net.willware.eurydice.core.Structure#inferBonds()} remembers its
+ * answer until the structure changes.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class BondInferenceBenchmark {
+
+    /** The kind of structure. */
+    @Param({SyntheticStructures.DIAMOND, SyntheticStructures.ALKANE, SyntheticStructures.WATER})
+    public String structure;
+
+    /** Roughly how many atoms. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int atoms;
+
+    /** The atoms of the structure. */
+    private Atom[] atomArray;
+
+    /**
+     * Build the structure.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        atomArray = SyntheticStructures.build(structure, atoms).getAtomArray();
+    }
+
+    /**
+     * Infer bonds.
+     *
+     * @return the bonds, so that the work can't be optimized away
+     */
+    @Benchmark
+    public List<Bond> inferBonds() {
+        return BondInference.inferBonds(atomArray);
+    }
+}
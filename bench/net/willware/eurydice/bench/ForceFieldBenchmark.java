@@ -0,0 +1,79 @@
+package net.willware.eurydice.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.forcefields.mm2.MM2;
+
+/**
+ * Time to compute MM2 forces on a structure, once the energy terms are set up. Comparing
+ * thread counts, for instance with "-p threads=1,2,4,8 -p atoms=1000,10000", shows where
+ * parallel force computation starts to pay off on a given machine.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class ForceFieldBenchmark {
+
+    /** The kind of structure. */
+    @Param({SyntheticStructures.DIAMOND, SyntheticStructures.ALKANE, SyntheticStructures.WATER})
+    public String structure;
+
+    /** Roughly how many atoms. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int atoms;
+
+    /** The number of threads computing forces. */
+    @Param({"1", "2", "4"})
+    public int threads;
+
+    /** The force field. */
+    private MM2 mm2;
+
+    /**
+     * Build the structure and its force field.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        StructureMutableImpl s = SyntheticStructures.build(structure, atoms);
+        mm2 = new MM2();
+        mm2.setStructure(s);
+        mm2.setThreads(threads);
+        s.setForceField(mm2);
+        // the first call enumerates the energy terms
+        mm2.computeForces();
+    }
+
+    /**
+     * Stop the force field's worker threads.
+     */
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        mm2.close();
+    }
+
+    /**
+     * Compute forces.
+     */
+    @Benchmark
+    public void computeForces() {
+        mm2.computeForces();
+    }
+}
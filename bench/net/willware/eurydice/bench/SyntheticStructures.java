@@ -0,0 +1,160 @@
+package net.willware.eurydice.bench;
+
+import java.util.Random;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * Synthetic structures of any size for benchmarks: a block of diamond, a bundle of alkane
+ * chains, or a box of water. Each is built to roughly the requested number of atoms, with
+ * realistic bond lengths and angles so that bond inference and force fields do the same
+ * work they would on real structures. The same arguments always give the same structure.
+ */
+public class SyntheticStructures {
+
+    /** The kinds of structure that can be built, as used in benchmark parameters. */
+    public static final String DIAMOND = "diamond", ALKANE = "alkane", WATER = "water";
+
+    /** The edge of the diamond unit cell, in angstroms. */
+    private static final double DIAMOND_CELL = 3.567;
+
+    /** The positions of the eight carbons in a diamond unit cell, in quarters of a cell. */
+    private static final int[][] DIAMOND_BASIS = {
+        {0, 0, 0}, {0, 2, 2}, {2, 0, 2}, {2, 2, 0},
+        {1, 1, 1}, {1, 3, 3}, {3, 1, 3}, {3, 3, 1}
+    };
+
+    /** The number of carbons in each alkane chain. */
+    private static final int CHAIN_LENGTH = 10;
+
+    /** The distance between neighboring alkane chains, in angstroms. */
+    private static final double CHAIN_SPACING = 4.5;
+
+    /** The C-C and C-H bond lengths, in angstroms. */
+    private static final double CC = 1.54, CH = 1.09;
+
+    /** Half the tetrahedral angle. */
+    private static final double HALF_TETRAHEDRAL = Math.toRadians(109.47 / 2);
+
+    /** The distance between neighboring water molecules, giving about 1 g/cc. */
+    private static final double WATER_SPACING = 3.1;
+
+    /** The O-H bond length, in angstroms, and half the H-O-H angle. */
+    private static final double OH = 0.9572, HALF_HOH = Math.toRadians(104.52 / 2);
+
+    /**
+     * Build a structure of one of the kinds listed above.
+     *
+     * @param kind {@link #DIAMOND}, {@link #ALKANE} or {@link #WATER}
+     * @param numAtoms roughly how many atoms the structure should have
+     * @return the structure
+     */
+    public static StructureMutableImpl build(String kind, int numAtoms) {
+        if (DIAMOND.equals(kind))
+            return diamond(numAtoms);
+        if (ALKANE.equals(kind))
+            return alkanes(numAtoms);
+        if (WATER.equals(kind))
+            return water(numAtoms);
+        throw new IllegalArgumentException("unknown structure " + kind);
+    }
+
+    /**
+     * A cube of diamond lattice, with no hydrogens on the surface.
+     *
+     * @param numAtoms roughly how many atoms
+     * @return the structure
+     */
+    public static StructureMutableImpl diamond(int numAtoms) {
+        int n = side(numAtoms / (double) DIAMOND_BASIS.length);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                for (int k = 0; k < n; k++)
+                    for (int[] b : DIAMOND_BASIS)
+                        add(s, "C", new Vector(DIAMOND_CELL * (i + 0.25 * b[0]),
+                                               DIAMOND_CELL * (j + 0.25 * b[1]),
+                                               DIAMOND_CELL * (k + 0.25 * b[2])));
+        return s;
+    }
+
+    /**
+     * A square bundle of parallel all-trans decane molecules.
+     *
+     * @param numAtoms roughly how many atoms
+     * @return the structure
+     */
+    public static StructureMutableImpl alkanes(int numAtoms) {
+        int atomsPerChain = 3 * CHAIN_LENGTH + 2;
+        int n = (int) Math.max(1, Math.round(Math.sqrt(numAtoms / (double) atomsPerChain)));
+        // the carbon backbone zigzags in the xy plane, and hydrogens stick out above and
+        // below it, pointing away from the neighboring carbons
+        double dx = CC * Math.sin(HALF_TETRAHEDRAL), dy = CC * Math.cos(HALF_TETRAHEDRAL);
+        double hy = CH * Math.cos(HALF_TETRAHEDRAL), hz = CH * Math.sin(HALF_TETRAHEDRAL);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int a = 0; a < n; a++)
+            for (int b = 0; b < n; b++) {
+                Vector origin = new Vector(0.0, CHAIN_SPACING * a, CHAIN_SPACING * b);
+                for (int i = 0; i < CHAIN_LENGTH; i++) {
+                    double up = (i % 2 == 0) ? 0.0 : 1.0;
+                    double away = (i % 2 == 0) ? -1.0 : 1.0;
+                    Vector c = origin.add(new Vector(dx * i, dy * up, 0.0));
+                    add(s, "C", c);
+                    add(s, "H", c.add(new Vector(0.0, away * hy, hz)));
+                    add(s, "H", c.add(new Vector(0.0, away * hy, -hz)));
+                    if (i == 0)
+                        add(s, "H", c.add(new Vector(-dx, -dy, 0.0).scale(CH / CC)));
+                    if (i == CHAIN_LENGTH - 1)
+                        add(s, "H", c.add(new Vector(dx, away * dy, 0.0).scale(CH / CC)));
+                }
+            }
+        return s;
+    }
+
+    /**
+     * A cube of water molecules on a lattice, randomly oriented.
+     *
+     * @param numAtoms roughly how many atoms
+     * @return the structure
+     */
+    public static StructureMutableImpl water(int numAtoms) {
+        int n = side(numAtoms / 3.0);
+        Random r = new Random(numAtoms);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                for (int k = 0; k < n; k++) {
+                    Vector o = new Vector(WATER_SPACING * i, WATER_SPACING * j,
+                                          WATER_SPACING * k);
+                    // a random unit vector bisecting the H-O-H angle, and a random unit
+                    // vector perpendicular to it
+                    Vector u = randomUnitVector(r);
+                    Vector v = u.crossProduct(randomUnitVector(r));
+                    v = v.scale(1.0 / v.length());
+                    Vector along = u.scale(OH * Math.cos(HALF_HOH));
+                    Vector across = v.scale(OH * Math.sin(HALF_HOH));
+                    add(s, "O", o);
+                    add(s, "H", o.add(along).add(across));
+                    add(s, "H", o.add(along).subtract(across));
+                }
+        return s;
+    }
+
+    private static int side(double cube) {
+        return (int) Math.max(1, Math.round(Math.cbrt(cube)));
+    }
+
+    private static Vector randomUnitVector(Random r) {
+        Vector v = new Vector(r.nextGaussian(), r.nextGaussian(), r.nextGaussian());
+        return v.scale(1.0 / v.length());
+    }
+
+    private static void add(StructureMutableImpl s, String symbol, Vector position) {
+        Atom a = ElementFactory.getInstance().get(symbol);
+        a.setPosition(position);
+        s.addAtom(a);
+    }
+}
@@ -0,0 +1,73 @@
+package net.willware.eurydice.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.core.StructureArrayImpl;
+import net.willware.eurydice.core.StructureMutableImpl;
+
+/**
+ * Time for one Verlet integration step, not counting the force computation, with atoms
+ * stored as objects or as arrays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgs = {"-Xmx4g"})
+public class VerletBenchmark {
+
+    /** The kind of structure. */
+    @Param({SyntheticStructures.DIAMOND, SyntheticStructures.ALKANE, SyntheticStructures.WATER})
+    public String structure;
+
+    /** Roughly how many atoms. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int atoms;
+
+    /** How the atoms are stored: "objects" or "arrays". */
+    @Param({"objects", "arrays"})
+    public String storage;
+
+    /** The structure. */
+    private Structure struc;
+
+    /**
+     * Build the structure and get it ready to integrate.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        StructureMutableImpl s = SyntheticStructures.build(structure, atoms);
+        if ("arrays".equals(storage)) {
+            StructureArrayImpl arrays = new StructureArrayImpl(s.size());
+            for (Atom a : s.getAtomArray())
+                arrays.addAtom(a);
+            s = arrays;
+        }
+        s.verletPrep();
+        struc = s;
+    }
+
+    /**
+     * Take a step.
+     */
+    @Benchmark
+    public void verletStep() {
+        struc.verletStep(1.0e-15);
+    }
+}
@@ -0,0 +1,123 @@
+package net.willware.eurydice.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import net.willware.eurydice.view.DisplayList;
+import net.willware.eurydice.view.DisplayListEntry;
+
+/**
+ * Time to depth sort a display list, as done before every frame is drawn, both as an
+ * array of entry objects and as a {@link DisplayList} of primitive arrays.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class ZSortBenchmark {
+
+    /**
+     * A display list entry that is only a depth.
+     */
+    private static class Entry extends DisplayListEntry {
+
+        /** The depth. */
+        private final double z;
+
+        Entry(double z) {
+            this.z = z;
+        }
+
+        /* (non-Javadoc)
+         * @see net.willware.eurydice.view.DisplayListEntry#zvalue()
+         */
+        public double zvalue() {
+            return z;
+        }
+
+        /* (non-Javadoc)
+         * @see net.willware.eurydice.view.DisplayListEntry#quickDraw()
+         */
+        public void quickDraw() { }
+
+        /* (non-Javadoc)
+         * @see net.willware.eurydice.view.DisplayListEntry#draw()
+         */
+        public void draw() { }
+    }
+
+    /** The number of entries, one per atom. */
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int atoms;
+
+    /** The entries in their original order. */
+    private DisplayListEntry[] original;
+
+    /** The entries being sorted. */
+    private DisplayListEntry[] dlist;
+
+    /** The same depths in a display list. */
+    private DisplayList displayList;
+
+    /**
+     * Make entries at random depths.
+     */
+    @Setup(Level.Trial)
+    public void setUp() {
+        Random r = new Random(atoms);
+        original = new DisplayListEntry[atoms];
+        displayList = new DisplayList(atoms);
+        for (int i = 0; i < atoms; i++) {
+            original[i] = new Entry(r.nextDouble());
+            displayList.add(0, i, 0.0, 0.0, original[i].zvalue(), 1.0);
+        }
+        dlist = new DisplayListEntry[atoms];
+    }
+
+    /**
+     * Put the entries back in their original order, since sorting a sorted list is a
+     * different benchmark.
+     */
+    @Setup(Level.Invocation)
+    public void shuffle() {
+        System.arraycopy(original, 0, dlist, 0, atoms);
+    }
+
+    /**
+     * Sort.
+     *
+     * @return the sorted list, so that the work can't be optimized away
+     */
+    @Benchmark
+    public DisplayListEntry[] zsort() {
+        DisplayListEntry.zsort(dlist);
+        return dlist;
+    }
+
+    /**
+     * Radix sort the display list, which leaves the entries where they are, so needs no
+     * shuffling.
+     *
+     * @return the sorted list, so that the work can't be optimized away
+     */
+    @Benchmark
+    public DisplayList radixSort() {
+        displayList.zsort();
+        return displayList;
+    }
+}
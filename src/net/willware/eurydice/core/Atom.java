@@ -180,6 +180,35 @@ public abstract class Atom {
      */
     public abstract Vector getPosition();
 
+    /**
+     * Gets the x coordinate of this atom. Subclasses that keep their coordinates as
+     * numbers should override this, and the y and z getters, so that loops reading only
+     * coordinates don't make a vector per atom.
+     *
+     * @return the x coordinate
+     */
+    public double getX() {
+        return getPosition().getX();
+    }
+
+    /**
+     * Gets the y coordinate of this atom.
+     *
+     * @return the y coordinate
+     */
+    public double getY() {
+        return getPosition().getY();
+    }
+
+    /**
+     * Gets the z coordinate of this atom.
+     *
+     * @return the z coordinate
+     */
+    public double getZ() {
+        return getPosition().getZ();
+    }
+
     /**
      * Sets the previous position of this atom, used in Verlet integration.
      *
@@ -213,6 +242,18 @@ public abstract class Atom {
      */
     public abstract void addForce(Vector dforce);
 
+    /**
+     * Adds an increment to this atom's force vector, given as components. Subclasses
+     * should override this to avoid allocating a vector.
+     *
+     * @param dx the x component of the increment
+     * @param dy the y component of the increment
+     * @param dz the z component of the increment
+     */
+    public void addForce(double dx, double dy, double dz) {
+        addForce(new Vector(dx, dy, dz));
+    }
+
     /**
      * Gets the force vector acting on this atom.
      *
@@ -220,6 +261,29 @@ public abstract class Atom {
      */
     public abstract Vector getForce();
 
+    /**
+     * Take one step of Verlet integration: move this atom according to its current and
+     * previous positions and the force acting on it, remember the old position as the
+     * previous position, and zero the force. If there is no previous position yet, the
+     * atom is taken to be at rest.
+     * <p>
+     * Subclasses that own their vectors should override this to do the arithmetic in
+     * place, since this default allocates several temporary vectors.
+     *
+     * @param dt the time step
+     */
+    public void verletStep(double dt) {
+        Vector pos = getPosition();
+        Vector previous = getPreviousPosition();
+        if (previous == null)
+            previous = pos;
+        Vector accel = getForce().scale(1.0 / getMass());
+        Vector newPos = pos.scale(2.0).subtract(previous).add(accel.scale(dt * dt));
+        setPreviousPosition(pos);
+        setPosition(newPos);
+        zeroForce();
+    }
+
     public interface Factory {
         public Atom newInstance();
     }
@@ -0,0 +1,128 @@
+package net.willware.eurydice.core;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Atoms sorted into cubic cells by position, kept up to date as atoms are added and
+ * removed one at a time, so the atoms near a point can be found without looking at all
+ * the others. {@link net.willware.eurydice.math.CellGrid} does the same job for a fixed
+ * set of points.
+ * <p>
+ * Atoms are filed by where they were when they were added. Searches reach a little
+ * further than asked, by a slack distance, so atoms that have moved less than that since
+ * are still found.
+ */
+class AtomCells {
+
+    /** The edge length of a cell, in angstroms. */
+    private final double cellSize;
+
+    /** How far atoms may have moved since they were filed, in angstroms. */
+    private final double slack;
+
+    /** The atoms in each cell, by packed cell coordinates. */
+    private final Map<Long,List<Atom>> cells = new HashMap<Long,List<Atom>>();
+
+    /** The largest covalent radius of any atom filed so far. */
+    private double maxRadius;
+
+    /**
+     * Constructor, filing some atoms in cells as big as the longest bond between them.
+     *
+     * @param atoms the atoms
+     * @param slack how far atoms may move after they are filed
+     */
+    AtomCells(Atom[] atoms, double slack) {
+        double r = 0.0;
+        for (Atom a : atoms)
+            r = Math.max(r, a.getCovalentRadius());
+        this.slack = slack;
+        cellSize = 2 * r + BondInference.TOLERANCE + slack;
+        for (Atom a : atoms)
+            add(a);
+    }
+
+    /**
+     * Gets the largest covalent radius of any atom filed.
+     *
+     * @return the radius
+     */
+    double getMaxRadius() {
+        return maxRadius;
+    }
+
+    /**
+     * File an atom by its position.
+     *
+     * @param a the atom
+     */
+    void add(Atom a) {
+        Long key = key(cell(a.getX()), cell(a.getY()), cell(a.getZ()));
+        List<Atom> cell = cells.get(key);
+        if (cell == null) {
+            cell = new ArrayList<Atom>(4);
+            cells.put(key, cell);
+        }
+        cell.add(a);
+        maxRadius = Math.max(maxRadius, a.getCovalentRadius());
+    }
+
+    /**
+     * Remove an atom, looking for it in the cell of its present position.
+     *
+     * @param a the atom
+     * @return false if it has moved out of the cell it was filed in, and wasn't removed
+     */
+    boolean remove(Atom a) {
+        Long key = key(cell(a.getX()), cell(a.getY()), cell(a.getZ()));
+        List<Atom> cell = cells.get(key);
+        if (cell == null)
+            return false;
+        for (int k = 0; k < cell.size(); k++) {
+            if (cell.get(k) == a) {
+                cell.set(k, cell.get(cell.size() - 1));
+                cell.remove(cell.size() - 1);
+                if (cell.isEmpty())
+                    cells.remove(key);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Find the atoms that may be within some distance of a point, and some that aren't.
+     *
+     * @param x the X coordinate of the point
+     * @param y the Y coordinate of the point
+     * @param z the Z coordinate of the point
+     * @param range the distance
+     * @param found a list to add the atoms to
+     */
+    void findNear(double x, double y, double z, double range, List<Atom> found) {
+        int k = (int) Math.ceil((range + slack) / cellSize);
+        int cx = cell(x), cy = cell(y), cz = cell(z);
+        for (int i = cx - k; i <= cx + k; i++)
+            for (int j = cy - k; j <= cy + k; j++)
+                for (int l = cz - k; l <= cz + k; l++) {
+                    List<Atom> cell = cells.get(key(i, j, l));
+                    if (cell != null)
+                        found.addAll(cell);
+                }
+    }
+
+    private int cell(double v) {
+        return (int) Math.floor(v / cellSize);
+    }
+
+    /**
+     * Pack cell coordinates into one number. Coordinates more than about two million cells
+     * apart can share a key, which only means a search looks at a few more atoms.
+     */
+    private static Long key(int cx, int cy, int cz) {
+        return ((cx & 0x1fffffL) << 42) | ((cy & 0x1fffffL) << 21) | (cz & 0x1fffffL);
+    }
+}
@@ -180,12 +180,13 @@ public class AtomMutableImpl extends AtomMutable {
     }
 
     /**
-     * Sets the position vector of this atom.
+     * Sets the position vector of this atom. The vector is copied, since
+     * {@link #verletStep(double)} updates the atom's own vectors in place.
      *
      * @param position the new position
      */
     public void setPosition(Vector position) {
-        this.position = position;
+        this.position = copy(position);
     }
 
     /**
@@ -207,12 +208,13 @@ public class AtomMutableImpl extends AtomMutable {
     }
 
     /**
-     * Sets the previous position of this atom, used in Verlet integration.
+     * Sets the previous position of this atom, used in Verlet integration. The vector is
+     * copied, as in {@link #setPosition(Vector)}.
      *
-     * @param previousPosition the new previous position
+     * @param previousPosition the new previous position, or null
      */
     public void setPreviousPosition(Vector previousPosition) {
-        this.previousPosition = previousPosition;
+        this.previousPosition = (previousPosition == null) ? null : copy(previousPosition);
     }
 
     /**
@@ -225,12 +227,21 @@ public class AtomMutableImpl extends AtomMutable {
     }
 
     /**
-     * Sets the force vector acting on this atom.
+     * Sets the force vector acting on this atom. The vector is copied, since forces are
+     * added up in the atom's own vector.
      *
      * @param force the new force
      */
     public void setForce(Vector force) {
-        this.force = force;
+        this.force = copy(force);
+    }
+
+    /**
+     * Make a vector of this atom's own, so updating it in place can't change a vector
+     * that a caller still holds.
+     */
+    private static Vector copy(Vector v) {
+        return new Vector(v.getX(), v.getY(), v.getZ());
     }
 
     /**
@@ -252,7 +263,22 @@ public class AtomMutableImpl extends AtomMutable {
      * @param dforce the dforce
      */
     public void addForce(Vector dforce) {
-        force = force.add(dforce);
+        force.setX(force.getX() + dforce.getX());
+        force.setY(force.getY() + dforce.getY());
+        force.setZ(force.getZ() + dforce.getZ());
+    }
+
+    /**
+     * Adds an increment to this atom's force vector, given as components.
+     *
+     * @param dx the x component of the increment
+     * @param dy the y component of the increment
+     * @param dz the z component of the increment
+     */
+    public void addForce(double dx, double dy, double dz) {
+        force.setX(force.getX() + dx);
+        force.setY(force.getY() + dy);
+        force.setZ(force.getZ() + dz);
     }
 
     /**
@@ -264,6 +290,28 @@ public class AtomMutableImpl extends AtomMutable {
         return force;
     }
 
+    /**
+     * Take one step of Verlet integration without allocating anything. The new position
+     * is computed into the previous position vector, and then the two vectors trade
+     * places, so a position vector fetched before the step still holds the old position
+     * afterwards, until the following step reuses it. Only the atom's own vectors are
+     * updated: those passed to the setters are copied.
+     *
+     * @param dt the time step
+     */
+    public void verletStep(double dt) {
+        if (previousPosition == null || previousPosition == position)
+            previousPosition = new Vector(position.getX(), position.getY(), position.getZ());
+        double k = dt * dt / getMass();
+        previousPosition.setX(2.0 * position.getX() - previousPosition.getX() + k * force.getX());
+        previousPosition.setY(2.0 * position.getY() - previousPosition.getY() + k * force.getY());
+        previousPosition.setZ(2.0 * position.getZ() - previousPosition.getZ() + k * force.getZ());
+        Vector temp = position;
+        position = previousPosition;
+        previousPosition = temp;
+        zeroForce();
+    }
+
     /**
      * Gets the 64-bit id for this atom, unique within its structure.
      *
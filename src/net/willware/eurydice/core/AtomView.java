@@ -0,0 +1,289 @@
+package net.willware.eurydice.core;
+
+import java.util.List;
+
+/**
+ * An atom that is a view of one index of a structure keeping its atoms' fields in storage
+ * of its own, such as {@link StructureArrayImpl} and {@link StructureOffHeapImpl}.
+ * Element properties come from a prototype atom for the atom's element, and are shared by
+ * all atoms of that element, so they can't be changed through a view.
+ * <p>
+ * When its atom is removed from the structure a view is detached. It keeps its unique ID,
+ * but anything else asked of it throws an {@link IllegalStateException}.
+ * <p>
+ * A structure keeps the views of the atoms it has been asked for by index or ID, and keeps
+ * their indices up to date. Iterating over atoms that haven't been asked for makes views
+ * that the structure doesn't keep; such a view remembers its atom's unique ID, and finds
+ * the atom again by ID if any atom has been removed since it last looked. Two views of
+ * the same atom are equal, whether or not the structure keeps them.
+ */
+abstract class AtomView extends AtomMutable {
+
+    /** The atom's index, or -1 if it has been removed from the structure. */
+    int index;
+
+    /** The unique ID of a detached view's atom. */
+    private UniqueId detachedId;
+
+    /**
+     * For a view the structure doesn't keep, the structure's count of removals when
+     * {@link #index} was last checked; -1 for a view the structure keeps up to date.
+     */
+    private long checked = -1;
+
+    /** For a view the structure doesn't keep, the number of its atom's unique ID. */
+    int idNumber;
+
+    /**
+     * Constructor, for a view the structure keeps.
+     *
+     * @param index the atom's index
+     */
+    AtomView(int index) {
+        this.index = index;
+    }
+
+    /**
+     * Constructor, for a view the structure doesn't keep.
+     *
+     * @param index the atom's index
+     * @param idNumber the number of the atom's unique ID
+     * @param removals the number of atoms removed from the structure so far
+     */
+    AtomView(int index, int idNumber, long removals) {
+        this.index = index;
+        this.idNumber = idNumber;
+        checked = removals;
+    }
+
+    /**
+     * Gets the structure this is a view into.
+     *
+     * @return the structure
+     */
+    abstract Structure owner();
+
+    /**
+     * Gets the prototype for the atom's element.
+     *
+     * @return the prototype
+     */
+    abstract Atom proto();
+
+    /**
+     * Gets the unique ID stored for the atom at an index.
+     *
+     * @param i the index
+     * @return the unique ID
+     */
+    abstract UniqueId uniqueId(int i);
+
+    /**
+     * Gets the number of the unique ID stored for the atom at an index.
+     *
+     * @param i the index
+     * @return the number
+     */
+    abstract int idNumber(int i);
+
+    /**
+     * Gets the number of atoms removed from the structure so far.
+     *
+     * @return the count of removals
+     */
+    abstract long removals();
+
+    /**
+     * Finds the index of an atom by the number of its unique ID.
+     *
+     * @param idNumber the number
+     * @return the index, or -1 if no atom has that ID
+     */
+    abstract int find(int idNumber);
+
+    /**
+     * Gets the atom's index, or -1 if it has been removed. A view the structure doesn't
+     * keep looks for its atom again if any atom has been removed since it last looked.
+     *
+     * @return the index, or -1
+     */
+    int currentIndex() {
+        if (checked >= 0 && index >= 0) {
+            long removals = removals();
+            if (removals != checked) {
+                checked = removals;
+                index = find(idNumber);
+                if (index < 0)
+                    detachedId = UniqueIdSettableImpl.withValue(idNumber);
+            }
+        }
+        return index;
+    }
+
+    /**
+     * Gets the atom's index, checking that it is still in the structure.
+     *
+     * @return the index
+     * @throws IllegalStateException if the atom has been removed
+     */
+    int index() {
+        if (currentIndex() < 0)
+            throw new IllegalStateException("atom " + detachedId
+                                            + " has been removed from its structure");
+        return index;
+    }
+
+    /**
+     * Detach this view, when its atom is removed from the structure.
+     */
+    void detach() {
+        detachedId = uniqueId(index);
+        index = -1;
+    }
+
+    /**
+     * Find the prototype for an atom's element, adding the atom as the prototype if its
+     * element hasn't been seen before.
+     *
+     * @param elements the prototypes found so far
+     * @param a the atom
+     * @return the index of the prototype
+     */
+    static int elementCode(List<Atom> elements, Atom a) {
+        if (a instanceof AtomView)
+            a = ((AtomView) a).proto();
+        String symbol = a.getSymbol();
+        for (int i = 0; i < elements.size(); i++) {
+            Atom proto = elements.get(i);
+            if (symbol == null ? proto.getSymbol() == null : symbol.equals(proto.getSymbol()))
+                return i;
+        }
+        elements.add(a);
+        return elements.size() - 1;
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#toString()
+     */
+    public String toString() {
+        if (currentIndex() < 0)
+            return "<removed " + detachedId + ">";
+        return "<" + getSymbol() + " " + getUniqueId() + " " + getHybridizationString() + ">";
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Atom#getUniqueId()
+     */
+    public UniqueId getUniqueId() {
+        return (currentIndex() < 0) ? detachedId : uniqueId(index);
+    }
+
+    /**
+     * Views are equal if they are views of the same atom of the same structure.
+     *
+     * @param obj the other object
+     * @return true if it is a view of the same atom
+     */
+    public boolean equals(Object obj) {
+        if (obj == this)
+            return true;
+        if (!(obj instanceof AtomView))
+            return false;
+        AtomView v = (AtomView) obj;
+        return v.owner() == owner() && v.currentIdNumber() == currentIdNumber();
+    }
+
+    /* (non-Javadoc)
+     * @see java.lang.Object#hashCode()
+     */
+    public int hashCode() {
+        return currentIdNumber();
+    }
+
+    private int currentIdNumber() {
+        int i = currentIndex();
+        return (i < 0) ? detachedId.toInteger() : idNumber(i);
+    }
+
+    public String getName() {
+        return proto().getName();
+    }
+
+    public String getSymbol() {
+        return proto().getSymbol();
+    }
+
+    public int getAtomicNumber() {
+        return proto().getAtomicNumber();
+    }
+
+    public Color getColor() {
+        return proto().getColor();
+    }
+
+    public double getCovalentRadius() {
+        return proto().getCovalentRadius();
+    }
+
+    public double getVdwEnergy() {
+        return proto().getVdwEnergy();
+    }
+
+    public double getVdwRadius() {
+        return proto().getVdwRadius();
+    }
+
+    public int getCorrectNumBonds() {
+        return proto().getCorrectNumBonds();
+    }
+
+    public void setName(String name) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setSymbol(String symbol) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setAtomicNumber(int an) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setColor(Color color) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setCovalentRadius(double r) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setVdwEnergy(double e) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setVdwRadius(double r) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void setCorrectNumBonds(int nb) {
+        throw new UnsupportedOperationException("element properties are shared");
+    }
+
+    public void rehybridize(List<Bond> bonds) {
+        setHybridization(NONE);
+    }
+
+    public String getHybridizationString() {
+        switch (getHybridization()) {
+        default:
+        case SP3:
+            return "SP3";
+        case SP2:
+            return "SP2";
+        case SP:
+            return "SP";
+        case NONE:
+            return "NONE";
+        }
+    }
+}
@@ -0,0 +1,133 @@
+package net.willware.eurydice.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import net.willware.eurydice.math.CellGrid;
+
+/**
+ * Bond perception: figure out which atoms are bonded to which, given only their types
+ * and positions. Two atoms are bonded if they are closer than the sum of their covalent
+ * radii plus a small tolerance.
+ * <p>
+ * Atoms are sorted into a {@link CellGrid} whose cells are as big as the longest possible
+ * bond, so potential bond partners need only be sought in neighboring cells, and the
+ * whole job is O(N) instead of comparing every pair of atoms.
+ */
+public class BondInference {
+
+    /** How much longer than the sum of covalent radii a bond may be, in angstroms. */
+    public static final double TOLERANCE = 0.5;
+
+    /**
+     * Infer bonds for an array of atoms, and rehybridize each atom according to the
+     * bonds it ends up with.
+     *
+     * @param atoms the atoms
+     * @return a list of the inferred bonds, each with the lower-indexed atom first
+     */
+    public static List<Bond> inferBonds(final Atom[] atoms) {
+        final int n = atoms.length;
+        final List<Bond> bondList = new ArrayList<Bond>();
+        if (n == 0)
+            return bondList;
+        double[] x = new double[n], y = new double[n], z = new double[n];
+        final double[] radius = new double[n];
+        double maxRadius = 0.0;
+        for (int i = 0; i < n; i++) {
+            x[i] = atoms[i].getX();
+            y[i] = atoms[i].getY();
+            z[i] = atoms[i].getZ();
+            radius[i] = atoms[i].getCovalentRadius();
+            maxRadius = (maxRadius > radius[i]) ? maxRadius : radius[i];
+        }
+        final int[] numBonds = new int[n];
+        // the atom indices of each bond, for grouping bonds by atom afterwards
+        final int[][] ends = new int[][] { new int[n], new int[n] };
+        double longestBond = 2 * maxRadius + TOLERANCE;
+        CellGrid grid = new CellGrid(longestBond);
+        grid.bin(x, y, z, n);
+        grid.processPairs(x, y, z, longestBond, new CellGrid.PairProcessor() {
+            public void process(int i, int j, double r2) {
+                double d = radius[i] + radius[j] + TOLERANCE;
+                if (r2 < d * d) {
+                    BondMutable bond = (BondMutable) Bond.newInstance();
+                    bond.setFirstAtom(atoms[i]);
+                    bond.setSecondAtom(atoms[j]);
+                    // TODO figure out correct bond order
+                    int k = bondList.size();
+                    if (k == ends[0].length) {
+                        ends[0] = Arrays.copyOf(ends[0], 2 * k);
+                        ends[1] = Arrays.copyOf(ends[1], 2 * k);
+                    }
+                    ends[0][k] = i;
+                    ends[1][k] = j;
+                    bondList.add(bond);
+                    numBonds[i]++;
+                    numBonds[j]++;
+                }
+            }
+        });
+        rehybridize(atoms, bondList, ends[0], ends[1], numBonds);
+        return bondList;
+    }
+
+    /**
+     * Find the bonds between one atom and the others filed in some cells, by the same rule
+     * as {@link #inferBonds(Atom[])}. This is for keeping a list of bonds up to date as
+     * atoms are added one at a time. Only nearby cells are searched, so it takes time
+     * proportional to the number of atoms near the one added.
+     *
+     * @param a the atom
+     * @param cells the other atoms, which may include <code>a</code>
+     * @return the bonds, each with the other atom first
+     */
+    static List<Bond> bondsTo(Atom a, AtomCells cells) {
+        List<Bond> bondList = new ArrayList<Bond>();
+        double x = a.getX(), y = a.getY(), z = a.getZ();
+        double radius = a.getCovalentRadius();
+        List<Atom> near = new ArrayList<Atom>();
+        cells.findNear(x, y, z, radius + cells.getMaxRadius() + TOLERANCE, near);
+        for (Atom other : near) {
+            if (other == a)
+                continue;
+            double d = radius + other.getCovalentRadius() + TOLERANCE;
+            double dx = x - other.getX(), dy = y - other.getY(), dz = z - other.getZ();
+            if (dx * dx + dy * dy + dz * dz < d * d) {
+                BondMutable bond = (BondMutable) Bond.newInstance();
+                bond.setFirstAtom(other);
+                bond.setSecondAtom(a);
+                bondList.add(bond);
+            }
+        }
+        return bondList;
+    }
+
+    /**
+     * Rehybridize every atom once, handing each one only its own bonds. The bonds are
+     * grouped by atom with a counting sort, so this is O(N + B).
+     */
+    private static void rehybridize(Atom[] atoms, List<Bond> bondList,
+                                    int[] first, int[] second, int[] numBonds) {
+        final int n = atoms.length;
+        int[] offset = new int[n + 1];
+        for (int i = 0; i < n; i++)
+            offset[i + 1] = offset[i] + numBonds[i];
+        Bond[] byAtom = new Bond[offset[n]];
+        int[] fill = new int[n];
+        for (int k = 0; k < bondList.size(); k++) {
+            int i = first[k];
+            int j = second[k];
+            byAtom[offset[i] + fill[i]++] = bondList.get(k);
+            byAtom[offset[j] + fill[j]++] = bondList.get(k);
+        }
+        List<Bond> myBonds = new ArrayList<Bond>();
+        for (int i = 0; i < n; i++) {
+            myBonds.clear();
+            for (int k = offset[i]; k < offset[i + 1]; k++)
+                myBonds.add(byAtom[k]);
+            atoms[i].rehybridize(myBonds);
+        }
+    }
+}
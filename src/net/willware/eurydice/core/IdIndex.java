@@ -0,0 +1,134 @@
+package net.willware.eurydice.core;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+
+/**
+ * An open-addressed hash map from unique ID numbers to atom indices, so that looking up an
+ * atom by ID needs no boxed Integers. The table can be kept in direct memory, off the heap,
+ * for structures too big for a heap-sized table.
+ */
+class IdIndex {
+
+    /** Marks an unused slot. Unique ID numbers are never negative. */
+    private static final int EMPTY = -1;
+
+    /** Is the table kept off the heap? */
+    private final boolean direct;
+
+    /** The keys and values, whose capacities are always a power of two. */
+    private IntBuffer keys, values;
+
+    /** The number of slots. */
+    private int capacity;
+
+    /** The number of entries. */
+    private int size;
+
+    /**
+     * Constructor, for a table on the heap.
+     */
+    IdIndex() {
+        this(false);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param direct if true, keep the table in direct memory
+     */
+    IdIndex(boolean direct) {
+        this.direct = direct;
+        allocate(16);
+    }
+
+    private void allocate(int slots) {
+        capacity = slots;
+        if (direct) {
+            keys = ByteBuffer.allocateDirect(4 * slots).order(ByteOrder.nativeOrder())
+                   .asIntBuffer();
+            values = ByteBuffer.allocateDirect(4 * slots).order(ByteOrder.nativeOrder())
+                     .asIntBuffer();
+        } else {
+            keys = IntBuffer.allocate(slots);
+            values = IntBuffer.allocate(slots);
+        }
+        for (int i = 0; i < slots; i++)
+            keys.put(i, EMPTY);
+    }
+
+    private int slot(int key) {
+        int h = key * 0x9E3779B9;
+        return (h ^ (h >>> 16)) & (capacity - 1);
+    }
+
+    /**
+     * Gets the index for an ID, or -1 if it isn't there.
+     */
+    int get(int key) {
+        int mask = capacity - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            int k = keys.get(i);
+            if (k == key)
+                return values.get(i);
+            if (k == EMPTY)
+                return -1;
+        }
+    }
+
+    void put(int key, int value) {
+        if (2 * (size + 1) > capacity)
+            grow();
+        int mask = capacity - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            int k = keys.get(i);
+            if (k == key) {
+                values.put(i, value);
+                return;
+            }
+            if (k == EMPTY) {
+                keys.put(i, key);
+                values.put(i, value);
+                size++;
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove an ID, shifting later entries of the same probe run back so that
+     * lookups never stop early at the hole.
+     */
+    void remove(int key) {
+        int mask = capacity - 1;
+        int i = slot(key);
+        while (keys.get(i) != key) {
+            if (keys.get(i) == EMPTY)
+                return;
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; keys.get(j) != EMPTY; j = (j + 1) & mask) {
+            int home = slot(keys.get(j));
+            // entry j may fill the hole at i unless its home lies cyclically in (i, j]
+            boolean stays = (i <= j) ? (i < home && home <= j) : (i < home || home <= j);
+            if (!stays) {
+                keys.put(i, keys.get(j));
+                values.put(i, values.get(j));
+                i = j;
+            }
+        }
+        keys.put(i, EMPTY);
+        size--;
+    }
+
+    private void grow() {
+        IntBuffer oldKeys = keys, oldValues = values;
+        int oldCapacity = capacity;
+        allocate(2 * oldCapacity);
+        size = 0;
+        for (int i = 0; i < oldCapacity; i++)
+            if (oldKeys.get(i) != EMPTY)
+                put(oldKeys.get(i), oldValues.get(i));
+    }
+}
@@ -0,0 +1,301 @@
+package net.willware.eurydice.core;
+
+import java.util.Arrays;
+import java.util.List;
+
+import net.willware.eurydice.math.Vector;
+
+/**
+ * The positions of the atoms of a structure at one moment, copied into a primitive array
+ * so that another thread (a renderer, or something writing a trajectory file) can read
+ * them while the structure goes on moving. Snapshots are handed out by
+ * {@link Structure#getSnapshot()}, and a snapshot doesn't change until the thread that
+ * got it asks for another one.
+ * <p>
+ * Atoms are numbered in the order the structure iterates over them at the time of the
+ * snapshot. A snapshot holds the unique ID number of each atom, and an atom with the
+ * atom's element properties (name, color, radii), but not the atom itself: for a
+ * structure that keeps its atoms as views that would mean a view of every atom. Other
+ * threads should read elements and IDs from the snapshot, and positions too; the atom
+ * itself is looked up in the structure when asked for.
+ * <p>
+ * If the structure's bonds had been inferred, a snapshot also has them, as pairs of atom
+ * numbers, so a renderer can draw a whole frame without touching the structure. They are
+ * only copied again when the structure's bonds change.
+ */
+public class PositionSnapshot {
+
+    /** The structure the snapshot is of. */
+    private Structure structure;
+
+    /** The unique ID numbers of the atoms. */
+    private int[] ids = new int[0];
+
+    /** Atoms giving the element properties of each atom, perhaps the atoms themselves. */
+    private Atom[] elements = new Atom[0];
+
+    /** The x, y and z of each atom. */
+    private double[] xyz = new double[0];
+
+    /** The number of atoms. */
+    private int size;
+
+    /** The frame number, counting up from one as snapshots are published; zero if none yet. */
+    private volatile long frame;
+
+    /** The structure's modification count when the snapshot was taken. */
+    private long modificationCount;
+
+    /** The numbers of the two atoms of each bond. */
+    private int[] bondAtoms = new int[0];
+
+    /** The order of each bond. */
+    private int[] bondOrders = new int[0];
+
+    /** The number of bonds. */
+    private int numBonds;
+
+    /** The bond list the bonds were copied from, or null if there were none. */
+    private List<Bond> bondsFrom;
+
+    /** The structure's modification count when the bonds were copied. */
+    private long bondsVersion = -1;
+
+    /**
+     * Gets the frame number. Each snapshot published by a structure has a higher frame
+     * number than the one before.
+     *
+     * @return the frame number
+     */
+    public long getFrame() {
+        return frame;
+    }
+
+    /**
+     * Gets the modification count of the structure when the snapshot was taken. Two
+     * snapshots with the same count have the same atoms in the same order.
+     *
+     * @return the modification count
+     * @see Structure#getModificationCount()
+     */
+    public long getModificationCount() {
+        return modificationCount;
+    }
+
+    /**
+     * Gets the number of atoms.
+     *
+     * @return the number of atoms
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Gets an atom, by looking it up in the structure. This should be called from the
+     * thread that moves the structure, or while it is still, since the lookup may make a
+     * view of the atom.
+     *
+     * @param i the atom number
+     * @return the atom, or null if it has been removed from the structure
+     */
+    public Atom getAtom(int i) {
+        return structure.get(getUniqueId(i));
+    }
+
+    /**
+     * Gets the unique ID of an atom.
+     *
+     * @param i the atom number
+     * @return the unique ID
+     */
+    public UniqueId getUniqueId(int i) {
+        return UniqueIdSettableImpl.withValue(ids[i]);
+    }
+
+    /**
+     * Gets an atom of the same element as an atom, for its name, symbol, color and radii,
+     * which can be read from any thread. Only those properties should be read from it.
+     *
+     * @param i the atom number
+     * @return an atom of the same element, which may be the atom itself
+     */
+    public Atom getElement(int i) {
+        return elements[i];
+    }
+
+    /**
+     * Gets the x coordinate of an atom.
+     *
+     * @param i the atom number
+     * @return the x coordinate
+     */
+    public double getX(int i) {
+        return xyz[3 * i];
+    }
+
+    /**
+     * Gets the y coordinate of an atom.
+     *
+     * @param i the atom number
+     * @return the y coordinate
+     */
+    public double getY(int i) {
+        return xyz[3 * i + 1];
+    }
+
+    /**
+     * Gets the z coordinate of an atom.
+     *
+     * @param i the atom number
+     * @return the z coordinate
+     */
+    public double getZ(int i) {
+        return xyz[3 * i + 2];
+    }
+
+    /**
+     * Gets the position of an atom as a new vector.
+     *
+     * @param i the atom number
+     * @return the position
+     */
+    public Vector getPosition(int i) {
+        return new Vector(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]);
+    }
+
+    /**
+     * Gets the number of bonds.
+     *
+     * @return the number of bonds, zero if the structure's bonds hadn't been inferred
+     */
+    public int numBonds() {
+        return numBonds;
+    }
+
+    /**
+     * Gets the number of the first atom of a bond.
+     *
+     * @param k the bond number
+     * @return the atom number
+     */
+    public int getBondFirst(int k) {
+        return bondAtoms[2 * k];
+    }
+
+    /**
+     * Gets the number of the second atom of a bond.
+     *
+     * @param k the bond number
+     * @return the atom number
+     */
+    public int getBondSecond(int k) {
+        return bondAtoms[2 * k + 1];
+    }
+
+    /**
+     * Gets the order of a bond.
+     *
+     * @param k the bond number
+     * @return the bond order
+     */
+    public int getBondOrder(int k) {
+        return bondOrders[k];
+    }
+
+    /**
+     * Get ready to be filled with a given number of atoms. The arrays only grow, so a
+     * structure of steady size is copied without allocating anything.
+     *
+     * @param n the number of atoms
+     */
+    void resize(int n) {
+        if (elements.length < n) {
+            ids = new int[n];
+            elements = new Atom[n];
+            xyz = new double[3 * n];
+        } else if (n < size) {
+            // don't hang on to atoms that may have left the structure
+            Arrays.fill(elements, n, size, null);
+        }
+        size = n;
+    }
+
+    /**
+     * Record the position of an atom.
+     *
+     * @param i the atom number
+     * @param idNumber the number of the atom's unique ID
+     * @param element an atom of the same element, or the atom itself
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     */
+    void set(int i, int idNumber, Atom element, double x, double y, double z) {
+        ids[i] = idNumber;
+        elements[i] = element;
+        xyz[3 * i] = x;
+        xyz[3 * i + 1] = y;
+        xyz[3 * i + 2] = z;
+    }
+
+    /**
+     * Sets the frame number.
+     *
+     * @param frame the frame number
+     */
+    void setFrame(long frame) {
+        this.frame = frame;
+    }
+
+    /**
+     * Copy a structure's bonds, after the atoms have been copied, unless they are the
+     * same bonds as were copied last time.
+     *
+     * @param bonds the bonds, or null if none have been inferred
+     * @param version the modification count of the structure
+     */
+    void setBonds(List<Bond> bonds, long version) {
+        if (bonds == bondsFrom && version == bondsVersion)
+            return;
+        bondsFrom = bonds;
+        bondsVersion = version;
+        numBonds = 0;
+        if (bonds == null)
+            return;
+        if (bondOrders.length < bonds.size()) {
+            bondAtoms = new int[2 * bonds.size()];
+            bondOrders = new int[bonds.size()];
+        }
+        IdIndex number = new IdIndex();
+        for (int i = 0; i < size; i++)
+            number.put(ids[i], i);
+        for (Bond b : bonds) {
+            int i = number.get(b.getFirstAtom().getUniqueId().toInteger());
+            int j = number.get(b.getSecondAtom().getUniqueId().toInteger());
+            if (i < 0 || j < 0)
+                continue;
+            bondAtoms[2 * numBonds] = i;
+            bondAtoms[2 * numBonds + 1] = j;
+            bondOrders[numBonds++] = b.getOrder();
+        }
+    }
+
+    /**
+     * Sets the structure the snapshot is of.
+     *
+     * @param structure the structure
+     */
+    void setStructure(Structure structure) {
+        this.structure = structure;
+    }
+
+    /**
+     * Sets the modification count of the structure.
+     *
+     * @param modificationCount the modification count
+     */
+    void setModificationCount(long modificationCount) {
+        this.modificationCount = modificationCount;
+    }
+}
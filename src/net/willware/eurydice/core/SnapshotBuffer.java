@@ -0,0 +1,71 @@
+package net.willware.eurydice.core;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Passes {@link PositionSnapshot}s from the thread moving a structure to one thread
+ * reading it, without locks. There are three snapshots: the writer fills the one it owns
+ * and swaps it for the one in the middle, and the reader swaps the one it owns for the
+ * one in the middle whenever the middle one is newer. Each swap is a single atomic
+ * exchange, so neither thread ever waits for the other, the reader's snapshot never
+ * changes under it, and once the arrays are big enough nothing is allocated.
+ */
+class SnapshotBuffer {
+
+    /** The snapshot being filled, owned by the writer. */
+    private PositionSnapshot back = new PositionSnapshot();
+
+    /** The most recently published snapshot, or the one the reader last gave back. */
+    private final AtomicReference<PositionSnapshot> middle =
+        new AtomicReference<PositionSnapshot>(new PositionSnapshot());
+
+    /** The snapshot being read, owned by the reader. */
+    private PositionSnapshot front = new PositionSnapshot();
+
+    /** The number of the last frame published. */
+    private long frames = 0;
+
+    /** Has the reader asked for a snapshot yet? */
+    private volatile boolean watched = false;
+
+    /**
+     * Gets the snapshot for the writer to fill. Only the writer may call this.
+     *
+     * @return the snapshot
+     */
+    PositionSnapshot getBack() {
+        return back;
+    }
+
+    /**
+     * Publish the snapshot the writer has filled, and take an old one to fill next time.
+     * Only the writer may call this.
+     */
+    void publish() {
+        back.setFrame(++frames);
+        back = middle.getAndSet(back);
+    }
+
+    /**
+     * Gets the most recently published snapshot. Only the reader may call this, and the
+     * snapshot it returned last time may be reused once it is called again.
+     *
+     * @return the snapshot, or null if none has been published
+     */
+    PositionSnapshot getFront() {
+        watched = true;
+        // if the writer publishes in between, the exchange just gets an even newer frame
+        if (middle.get().getFrame() > front.getFrame())
+            front = middle.getAndSet(front);
+        return (front.getFrame() == 0) ? null : front;
+    }
+
+    /**
+     * Has a reader asked for snapshots? Until one has, there's no need to publish any.
+     *
+     * @return true if snapshots are wanted
+     */
+    boolean isWatched() {
+        return watched;
+    }
+}
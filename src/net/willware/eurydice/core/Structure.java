@@ -4,6 +4,7 @@ import java.util.Iterator;
 import java.util.List;
 
 import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
 
 /**
  * A structure is composed of a collection of atoms and jigs, and can also contain
@@ -13,6 +14,9 @@ import net.willware.eurydice.math.Region;
  */
 public abstract class Structure {
 
+    /** Snapshots of atom positions, passed from the thread moving atoms to a reader. */
+    private final SnapshotBuffer snapshots = new SnapshotBuffer();
+
     /**
      * The AtomProcessor interface is a convenient way to perform a batch operation on all
      * atoms in the structure. Gee, there should be one with a filter operation too.
@@ -56,6 +60,15 @@ public abstract class Structure {
      */
     public abstract long indexOf(Atom a);
 
+    /**
+     * Gets the modification count, which goes up whenever atoms are added or removed, so
+     * that anything numbering atoms by their place in the structure can tell when its
+     * numbering no longer holds.
+     *
+     * @return the modification count
+     */
+    public abstract long getModificationCount();
+
     /**
      * Structures can have jigs (see {@link Jig}).
      *
@@ -147,7 +160,7 @@ public abstract class Structure {
 
     /**
      * Infer the bonds for this structure, based on positions and types of atoms.
-     * Scalability concern, this won't work for really big structures.
+     * Each atom is also rehybridized according to its inferred bonds.
      *
      * @return a list of the bonds connecting the atoms in this structure
      */
@@ -202,6 +215,69 @@ public abstract class Structure {
      */
     public abstract String serialize();
 
+    /**
+     * Copy the current atom positions, and the bonds if they have changed, into a
+     * snapshot and publish it for {@link #getSnapshot()}. This must only be called by the
+     * thread that moves the atoms; {@link #verletStep(double)} calls it after every step
+     * once anyone has asked for a snapshot. It takes no locks and, once the snapshot
+     * arrays are big enough, allocates nothing while the bonds stay the same.
+     */
+    public void publishSnapshot() {
+        PositionSnapshot s = snapshots.getBack();
+        copyPositions(s);
+        copyBonds(s);
+        s.setStructure(this);
+        s.setModificationCount(getModificationCount());
+        snapshots.publish();
+    }
+
+    /**
+     * Publish a snapshot if anyone has asked for one. Implementations of
+     * {@link #verletStep(double)} call this at the end of each step.
+     */
+    protected void publishSnapshotIfWatched() {
+        if (snapshots.isWatched())
+            publishSnapshot();
+    }
+
+    /**
+     * Gets the most recently published snapshot of the atom positions. A renderer or
+     * exporter can read it in its own thread while another thread goes on integrating:
+     * the snapshot doesn't change until this method is called again, and getting it
+     * takes no locks. Only one thread should read snapshots from a structure.
+     *
+     * @return the latest snapshot, or null if none has been published yet
+     */
+    public PositionSnapshot getSnapshot() {
+        return snapshots.getFront();
+    }
+
+    /**
+     * Copy the atoms' IDs and positions into a snapshot. Subclasses that can do this
+     * without iterators or copies of positions should override it.
+     *
+     * @param s the snapshot to fill
+     */
+    protected void copyPositions(PositionSnapshot s) {
+        s.resize(size());
+        int i = 0;
+        Iterator<Atom> iter = getIterator();
+        while (iter.hasNext()) {
+            Atom a = iter.next();
+            Vector p = a.getPosition();
+            s.set(i++, a.getUniqueId().toInteger(), a, p.getX(), p.getY(), p.getZ());
+        }
+    }
+
+    /**
+     * Copy the bonds into a snapshot, once the atoms have been copied. Structures that
+     * keep their bonds should override this; by default a snapshot has no bonds.
+     *
+     * @param s the snapshot to fill
+     */
+    protected void copyBonds(PositionSnapshot s) {
+    }
+
     public interface Factory {
         public Structure newInstance();
     }
@@ -0,0 +1,611 @@
+package net.willware.eurydice.core;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * A {@link Structure} that keeps its atoms in parallel primitive arrays rather than as
+ * one {@link AtomMutableImpl} object per atom. Positions, previous positions, forces,
+ * masses and element codes are indexed by a dense atom index running from 0 to
+ * {@link #size()} - 1, so the integrator walks contiguous memory, and unique IDs are
+ * kept as plain numbers. Measured on a 64-bit JVM with compressed references, a million
+ * atoms take about 119 bytes each, against about 305 as separate atom objects with their
+ * vectors. Most of what is left is the eleven doubles per atom (position, previous
+ * position, force, mass and fractional charge) that integration needs.
+ * <p>
+ * The per-element properties (name, symbol, color, radii and so on) are shared: the
+ * first atom of each element added to the structure serves as its prototype.
+ * <p>
+ * For compatibility with the rest of the code, the atoms handed out by {@link #get(int)},
+ * {@link #getIterator()} and friends are lightweight views into the arrays. The views of
+ * atoms asked for by {@link #get(int)}, {@link #get(UniqueId)} or {@link #getAtomArray()}
+ * are kept, one per atom, so they can be compared with ==; iterating over atoms that
+ * haven't been asked for makes views that aren't kept, which are equal to, but not the
+ * same as, the kept ones. Snapshots hold no views at all. Note that an atom passed to
+ * {@link #addAtom(Atom)} is copied into the arrays, and changes to it afterwards are not
+ * seen by the structure; use the view instead. Likewise {@link Atom#getPosition()} on a
+ * view returns a copy, so modify positions with {@link Atom#setPosition(Vector)}, and
+ * read them in loops with {@link Atom#getX()} and friends, or {@link #getX(int)} and
+ * friends, which make no vectors.
+ * <p>
+ * Removing an atom moves the last atom into its slot, so indices are dense but not
+ * stable across removals.
+ * <p>
+ * To make this the default structure, call
+ * <code>Structure.setFactory(new StructureArrayImpl.Factory())</code>.
+ */
+public class StructureArrayImpl extends StructureMutableImpl {
+
+    /**
+     * Makes new instances of {@link StructureArrayImpl}, for {@link Structure#setFactory}.
+     */
+    public static class Factory implements Structure.Factory {
+        public Structure newInstance() {
+            return new StructureArrayImpl();
+        }
+    }
+
+    /** The number of atoms. */
+    private int n;
+
+    /** Positions. */
+    private double[] x, y, z;
+
+    /** Previous positions, used in Verlet integration. */
+    private double[] px, py, pz;
+
+    /** Whether each atom has a previous position yet. */
+    private boolean[] hasPrevious;
+
+    /** Forces. */
+    private double[] fx, fy, fz;
+
+    /** Masses. */
+    private double[] mass;
+
+    /** Fractional charges. */
+    private double[] fractionalCharge;
+
+    /** Indices into the element prototype list. */
+    private int[] element;
+
+    /** Ionic charges. */
+    private int[] charge;
+
+    /** Hybridizations. */
+    private byte[] hybridization;
+
+    /** The numbers of the unique IDs. */
+    private int[] ids;
+
+    /** The views, created the first time each atom is asked for. */
+    private View[] views;
+
+    /** The number of atoms removed so far, so views made for iteration can tell. */
+    private long removals;
+
+    /** One prototype atom per element, supplying the shared element properties. */
+    private List<Atom> elements;
+
+    /** Maps unique IDs to atom indices. */
+    private IdIndex idIndex;
+
+    /**
+     * Constructor.
+     */
+    public StructureArrayImpl() {
+        this(16);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of atoms to make room for initially
+     */
+    public StructureArrayImpl(int capacity) {
+        capacity = (capacity < 1) ? 1 : capacity;
+        x = new double[capacity];
+        y = new double[capacity];
+        z = new double[capacity];
+        px = new double[capacity];
+        py = new double[capacity];
+        pz = new double[capacity];
+        hasPrevious = new boolean[capacity];
+        fx = new double[capacity];
+        fy = new double[capacity];
+        fz = new double[capacity];
+        mass = new double[capacity];
+        fractionalCharge = new double[capacity];
+        element = new int[capacity];
+        charge = new int[capacity];
+        hybridization = new byte[capacity];
+        ids = new int[capacity];
+        views = new View[capacity];
+        elements = new ArrayList<Atom>();
+        idIndex = new IdIndex();
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= x.length)
+            return;
+        capacity = Math.max(capacity, 2 * x.length);
+        x = Arrays.copyOf(x, capacity);
+        y = Arrays.copyOf(y, capacity);
+        z = Arrays.copyOf(z, capacity);
+        px = Arrays.copyOf(px, capacity);
+        py = Arrays.copyOf(py, capacity);
+        pz = Arrays.copyOf(pz, capacity);
+        hasPrevious = Arrays.copyOf(hasPrevious, capacity);
+        fx = Arrays.copyOf(fx, capacity);
+        fy = Arrays.copyOf(fy, capacity);
+        fz = Arrays.copyOf(fz, capacity);
+        mass = Arrays.copyOf(mass, capacity);
+        fractionalCharge = Arrays.copyOf(fractionalCharge, capacity);
+        element = Arrays.copyOf(element, capacity);
+        charge = Arrays.copyOf(charge, capacity);
+        hybridization = Arrays.copyOf(hybridization, capacity);
+        ids = Arrays.copyOf(ids, capacity);
+        views = Arrays.copyOf(views, capacity);
+    }
+
+    private View view(int i) {
+        View v = views[i];
+        if (v == null) {
+            v = new View(i);
+            views[i] = v;
+        }
+        return v;
+    }
+
+    /**
+     * Gets the view of an atom if it has been asked for, or else a view that isn't kept,
+     * so iterating over the atoms doesn't make a view of each to keep.
+     */
+    private View iterated(int i) {
+        View v = views[i];
+        return (v != null) ? v : new View(i, ids[i], removals);
+    }
+
+    /**
+     * Adds an atom to this structure by copying it into the arrays.
+     *
+     * @param a the atom to be added
+     */
+    public void addAtom(Atom a) {
+        UniqueId id = a.getUniqueId();
+        if (id == null)
+            id = UniqueId.newInstance();
+        addAtom(a, id);
+    }
+
+    /**
+     * Adds an atom to this structure by copying it into the arrays, with a particular
+     * unique ID.
+     *
+     * @param a the atom to be added
+     * @param id the unique ID for this atom
+     */
+    public void addAtom(Atom a, UniqueId id) {
+        if (idIndex.get(id.toInteger()) >= 0)
+            throw new RuntimeException("duplicate atom ID?");
+        if (a.getUniqueId() == null && a instanceof AtomMutable)
+            ((AtomMutable) a).setUniqueId(id);
+        ensureCapacity(n + 1);
+        int i = n++;
+        Vector p = a.getPosition();
+        x[i] = p.getX();
+        y[i] = p.getY();
+        z[i] = p.getZ();
+        Vector prev = a.getPreviousPosition();
+        hasPrevious[i] = (prev != null);
+        if (prev != null) {
+            px[i] = prev.getX();
+            py[i] = prev.getY();
+            pz[i] = prev.getZ();
+        }
+        Vector f = a.getForce();
+        fx[i] = (f == null) ? 0.0 : f.getX();
+        fy[i] = (f == null) ? 0.0 : f.getY();
+        fz[i] = (f == null) ? 0.0 : f.getZ();
+        mass[i] = a.getMass();
+        fractionalCharge[i] = a.getFractionalCharge();
+        element[i] = AtomView.elementCode(elements, a);
+        charge[i] = a.getCharge();
+        hybridization[i] = (byte) a.getHybridization();
+        ids[i] = id.toInteger();
+        views[i] = null;
+        idIndex.put(id.toInteger(), i);
+        // the atom is only looked at once there are bonds to keep up to date, so don't
+        // make a view of every atom loaded
+        announceAdded(bondsInferred() ? view(i) : null);
+    }
+
+    /**
+     * Removes an atom from this structure. The last atom takes its index.
+     *
+     * @param a the atom to be removed
+     */
+    public void removeAtom(Atom a) {
+        int i = idIndex.get(a.getUniqueId().toInteger());
+        if (i < 0)
+            return;
+        announceRemoved(bondsInferred() ? view(i) : null);
+        removals++;
+        idIndex.remove(ids[i]);
+        if (views[i] != null)
+            views[i].detach();
+        int last = --n;
+        if (i != last) {
+            x[i] = x[last];
+            y[i] = y[last];
+            z[i] = z[last];
+            px[i] = px[last];
+            py[i] = py[last];
+            pz[i] = pz[last];
+            hasPrevious[i] = hasPrevious[last];
+            fx[i] = fx[last];
+            fy[i] = fy[last];
+            fz[i] = fz[last];
+            mass[i] = mass[last];
+            fractionalCharge[i] = fractionalCharge[last];
+            element[i] = element[last];
+            charge[i] = charge[last];
+            hybridization[i] = hybridization[last];
+            ids[i] = ids[last];
+            views[i] = views[last];
+            if (views[i] != null)
+                views[i].index = i;
+            idIndex.put(ids[i], i);
+        }
+        views[last] = null;
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#size()
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Gets the atom at a dense index.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the atom
+     */
+    public Atom get(int index) {
+        if (index < 0 || index >= n)
+            return null;
+        return view(index);
+    }
+
+    /**
+     * Gets the x coordinate of an atom, without making a view of it.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the x coordinate
+     */
+    public double getX(int index) {
+        return x[index];
+    }
+
+    /**
+     * Gets the y coordinate of an atom, without making a view of it.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the y coordinate
+     */
+    public double getY(int index) {
+        return y[index];
+    }
+
+    /**
+     * Gets the z coordinate of an atom, without making a view of it.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the z coordinate
+     */
+    public double getZ(int index) {
+        return z[index];
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#get(net.willware.eurydice.core.UniqueId)
+     */
+    public Atom get(UniqueId id) {
+        int i = idIndex.get(id.toInteger());
+        return (i < 0) ? null : view(i);
+    }
+
+    /**
+     * Gets the dense index of an atom, -1 if it is not in this structure.
+     *
+     * @param a the atom
+     * @return the index, or -1
+     */
+    public long indexOf(Atom a) {
+        if (a instanceof View && ((View) a).owner() == this)
+            return ((View) a).currentIndex();
+        UniqueId id = a.getUniqueId();
+        return (id == null) ? -1 : idIndex.get(id.toInteger());
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#getAtomArray()
+     */
+    public Atom[] getAtomArray() {
+        Atom[] array = new Atom[n];
+        for (int i = 0; i < n; i++)
+            array[i] = view(i);
+        return array;
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#getIterator()
+     */
+    public Iterator<Atom> getIterator() {
+        return new Iterator<Atom>() {
+            private int i = 0;
+            public boolean hasNext() {
+                return i < n;
+            }
+            public Atom next() {
+                if (i >= n)
+                    throw new NoSuchElementException();
+                return iterated(i++);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#process(net.willware.eurydice.core.Structure.AtomProcessor)
+     */
+    public void process(AtomProcessor p) {
+        for (int i = 0; i < n; i++)
+            p.process(iterated(i));
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#getBoundingBox()
+     */
+    public Region getBoundingBox() {
+        double xmin = 1.0e20;
+        double ymin = 1.0e20;
+        double zmin = 1.0e20;
+        double xmax = -1.0e20;
+        double ymax = -1.0e20;
+        double zmax = -1.0e20;
+        for (int i = 0; i < n; i++) {
+            xmin = (xmin < x[i]) ? xmin : x[i];
+            ymin = (ymin < y[i]) ? ymin : y[i];
+            zmin = (zmin < z[i]) ? zmin : z[i];
+            xmax = (xmax > x[i]) ? xmax : x[i];
+            ymax = (ymax > y[i]) ? ymax : y[i];
+            zmax = (zmax > z[i]) ? zmax : z[i];
+        }
+        return new Region(xmin, ymin, zmin, xmax, ymax, zmax);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#verletPrep()
+     */
+    public void verletPrep() {
+        System.arraycopy(x, 0, px, 0, n);
+        System.arraycopy(y, 0, py, 0, n);
+        System.arraycopy(z, 0, pz, 0, n);
+        Arrays.fill(hasPrevious, 0, n, true);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#verletStep(double)
+     */
+    public void verletStep(double dt) {
+        // Do not compute forces here! This is ONLY integrating
+        // equations of motion.
+        double dt2 = dt * dt;
+        for (int i = 0; i < n; i++) {
+            double k = dt2 / mass[i];
+            double oldX = x[i], oldY = y[i], oldZ = z[i];
+            if (hasPrevious[i]) {
+                x[i] = 2.0 * oldX - px[i] + k * fx[i];
+                y[i] = 2.0 * oldY - py[i] + k * fy[i];
+                z[i] = 2.0 * oldZ - pz[i] + k * fz[i];
+            } else {
+                x[i] = oldX + k * fx[i];
+                y[i] = oldY + k * fy[i];
+                z[i] = oldZ + k * fz[i];
+                hasPrevious[i] = true;
+            }
+            px[i] = oldX;
+            py[i] = oldY;
+            pz[i] = oldZ;
+            fx[i] = 0.0;
+            fy[i] = 0.0;
+            fz[i] = 0.0;
+        }
+        publishSnapshotIfWatched();
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#copyPositions(net.willware.eurydice.core.PositionSnapshot)
+     */
+    protected void copyPositions(PositionSnapshot s) {
+        s.resize(n);
+        for (int i = 0; i < n; i++)
+            s.set(i, ids[i], elements.get(element[i]), x[i], y[i], z[i]);
+    }
+
+    /**
+     * A view of one atom in the arrays.
+     */
+    private class View extends AtomView {
+
+        /** The unique ID, made when first asked for. */
+        private UniqueId id;
+
+        View(int index) {
+            super(index);
+        }
+
+        View(int index, int idNumber, long removals) {
+            super(index, idNumber, removals);
+        }
+
+        StructureArrayImpl owner() {
+            return StructureArrayImpl.this;
+        }
+
+        int idNumber(int i) {
+            return ids[i];
+        }
+
+        long removals() {
+            return removals;
+        }
+
+        int find(int idNumber) {
+            return idIndex.get(idNumber);
+        }
+
+        Atom proto() {
+            return elements.get(element[index()]);
+        }
+
+        UniqueId uniqueId(int i) {
+            if (id == null)
+                id = UniqueIdSettableImpl.withValue(ids[i]);
+            return id;
+        }
+
+        public void setUniqueId(UniqueId id) {
+            int i = index();
+            idIndex.remove(ids[i]);
+            ids[i] = id.toInteger();
+            this.id = id;
+            idNumber = id.toInteger();
+            idIndex.put(id.toInteger(), i);
+        }
+
+        public double getMass() {
+            return mass[index()];
+        }
+
+        public void setMass(double m) {
+            mass[index()] = m;
+        }
+
+        public void setCharge(int c) {
+            charge[index()] = c;
+        }
+
+        public int getCharge() {
+            return charge[index()];
+        }
+
+        public void setFractionalCharge(double fc) {
+            fractionalCharge[index()] = fc;
+        }
+
+        public double getFractionalCharge() {
+            return fractionalCharge[index()];
+        }
+
+        public void setHybridization(int h) {
+            hybridization[index()] = (byte) h;
+        }
+
+        public int getHybridization() {
+            return hybridization[index()];
+        }
+
+        public void setPosition(Vector p) {
+            int i = index();
+            x[i] = p.getX();
+            y[i] = p.getY();
+            z[i] = p.getZ();
+        }
+
+        public void move(Vector delta) {
+            int i = index();
+            x[i] += delta.getX();
+            y[i] += delta.getY();
+            z[i] += delta.getZ();
+        }
+
+        public Vector getPosition() {
+            int i = index();
+            return new Vector(x[i], y[i], z[i]);
+        }
+
+        public double getX() {
+            return x[index()];
+        }
+
+        public double getY() {
+            return y[index()];
+        }
+
+        public double getZ() {
+            return z[index()];
+        }
+
+        public void setPreviousPosition(Vector p) {
+            int i = index();
+            hasPrevious[i] = (p != null);
+            if (p != null) {
+                px[i] = p.getX();
+                py[i] = p.getY();
+                pz[i] = p.getZ();
+            }
+        }
+
+        public Vector getPreviousPosition() {
+            int i = index();
+            if (!hasPrevious[i])
+                return null;
+            return new Vector(px[i], py[i], pz[i]);
+        }
+
+        public void setForce(Vector f) {
+            int i = index();
+            fx[i] = f.getX();
+            fy[i] = f.getY();
+            fz[i] = f.getZ();
+        }
+
+        public void zeroForce() {
+            int i = index();
+            fx[i] = 0.0;
+            fy[i] = 0.0;
+            fz[i] = 0.0;
+        }
+
+        public void addForce(Vector df) {
+            int i = index();
+            fx[i] += df.getX();
+            fy[i] += df.getY();
+            fz[i] += df.getZ();
+        }
+
+        public void addForce(double dx, double dy, double dz) {
+            int i = index();
+            fx[i] += dx;
+            fy[i] += dy;
+            fz[i] += dz;
+        }
+
+        public Vector getForce() {
+            int i = index();
+            return new Vector(fx[i], fy[i], fz[i]);
+        }
+    }
+}
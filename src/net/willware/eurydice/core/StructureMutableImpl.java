@@ -41,9 +41,29 @@ public class StructureMutableImpl extends StructureMutable {
     /** a list of substructures, allowing structures to be hierarchical. */
     private List<Substructure> substructures;
 
+    /**
+     * How far an atom may move before bonds are perceived again, in angstroms. This is
+     * small compared to {@link BondInference#TOLERANCE}, so bonds don't come and go
+     * without being noticed, but big enough that vibrating atoms don't trigger it.
+     */
+    public static final double DRIFT_TOLERANCE = 0.25;
+
     /** The previous bond list, used to memoize inferBonds. */
     private List<Bond> previousBondList = null;
 
+    /** Counts changes to the atoms or bonds, so cached topologies can tell they're stale. */
+    private long modCount = 0;
+
+    /** The bonds indexed by atom, built from {@link #previousBondList} when needed. */
+    private Topology topology = null;
+
+    /**
+     * The atoms sorted into cells, for finding the bonds of atoms added after bonds have
+     * been inferred. Built when first needed, and dropped whenever all the bonds are
+     * perceived again.
+     */
+    private AtomCells cells = null;
+
     /**
      * Constructor.
      *
@@ -77,11 +97,13 @@ public class StructureMutableImpl extends StructureMutable {
     }
 
     /**
-     * Sets the force field.
+     * Sets the force field, closing the one it replaces.
      *
      * @param ff the new force field
      */
     public void setForceField(ForceField ff) {
+        if (forceField != null && forceField != ff)
+            forceField.close();
         forceField = ff;
     }
 
@@ -105,28 +127,18 @@ public class StructureMutableImpl extends StructureMutable {
      * @see net.willware.eurydice.core.Structure#toJson()
      */
     public String toJson() {
-        long numAtoms = 0;
         StringBuilder sb = new StringBuilder();
         Iterator<Atom> iter = getIterator();
-        sb.append("{");
-        sb.append("\"numAtoms\":" + numAtoms);
-        while (iter.hasNext()) {
+        sb.append("{\"numAtoms\":").append(size());
+        for (int i = 0; iter.hasNext(); i++) {
             Atom a = iter.next();
             Vector p = a.getPosition();
-            sb.append(",");
-            sb.append("\"atom" + numAtoms + "\":{");
-            sb.append("\"symbol\":");
-            sb.append("\"" + a.getSymbol() + "\"");
-            sb.append(",\"uniqueid\":");
-            sb.append(a.getUniqueId());
-            sb.append(",\"position\":{\"x\":");
-            sb.append(p.getX());
-            sb.append(",\"y\":");
-            sb.append(p.getY());
-            sb.append(",\"z\":");
-            sb.append(p.getZ());
-            sb.append("}}");
-            numAtoms++;
+            sb.append(",\"atom").append(i).append("\":{\"symbol\":\"").append(a.getSymbol())
+              .append("\",\"uniqueid\":").append(a.getUniqueId())
+              .append(",\"position\":{\"x\":").append(p.getX())
+              .append(",\"y\":").append(p.getY())
+              .append(",\"z\":").append(p.getZ())
+              .append("}}");
         }
         sb.append("}");
         return sb.toString();
@@ -168,8 +180,7 @@ public class StructureMutableImpl extends StructureMutable {
     public void verletPrep() {
         process(new AtomProcessor() {
             public void process(Atom a) {
-                Vector pos = a.getPosition();
-                a.setPreviousPosition(pos);
+                a.setPreviousPosition(a.getPosition());
             }
         });
     }
@@ -178,32 +189,45 @@ public class StructureMutableImpl extends StructureMutable {
      * @see net.willware.eurydice.core.Structure#getAtomList()
      */
     public Atom[] getAtomArray() {
-        Atom[] array = new Atom[atomList.size()];
-        for (int i = 0; i < atomList.size(); i++)
-            array[i] = atomList.get(i);
+        Atom[] array = new Atom[atomIds.size()];
+        for (int i = 0; i < array.length; i++)
+            array[i] = atomList.get(atomIds.get(i));
         return array;
     }
 
     /* (non-Javadoc)
      * @see net.willware.eurydice.core.Structure#verletStep(double)
      */
-    public void verletStep(final double dt) {
+    public void verletStep(double dt) {
         // Do not compute forces here! This is ONLY integrating
-        // equations of motion.
-        process(new AtomProcessor() {
-            public void process(Atom a) {
-                Vector pos = a.getPosition();
-                Vector previous = a.getPreviousPosition();
-                if (previous == null)
-                    previous = pos;
-                Vector accel = a.getForce().scale(1.0 / a.getMass());
-                Vector newPos = pos.scale(2.0)
-                                .subtract(previous).add(accel.scale(dt * dt));
-                a.setPreviousPosition(pos);
-                a.setPosition(newPos);
-                a.zeroForce();
-            }
-        });
+        // equations of motion. Walk the ID list by index rather than
+        // with an iterator, so that a step allocates nothing.
+        for (int i = 0; i < atomIds.size(); i++)
+            atomList.get(atomIds.get(i)).verletStep(dt);
+        publishSnapshotIfWatched();
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#copyPositions(net.willware.eurydice.core.PositionSnapshot)
+     */
+    protected void copyPositions(PositionSnapshot s) {
+        final int n = atomIds.size();
+        s.resize(n);
+        for (int i = 0; i < n; i++) {
+            int id = atomIds.get(i);
+            Atom a = atomList.get(id);
+            s.set(i, id, a, a.getX(), a.getY(), a.getZ());
+        }
+    }
+
+    /**
+     * Copy the bonds into a snapshot, if they have been inferred. They are only copied
+     * when they have changed since the snapshot's were copied.
+     *
+     * @param s the snapshot to fill
+     */
+    protected void copyBonds(PositionSnapshot s) {
+        s.setBonds(previousBondList, modCount);
     }
 
     /* (non-Javadoc)
@@ -298,75 +322,87 @@ public class StructureMutableImpl extends StructureMutable {
     }
 
     /**
-     * This will do for small structures, but may become painful
-     * for big ones, as it is O(N^2). If performance suffers, it
-     * can be improved by sorting atoms into spatial partitions
-     * (an O(N) operation) and then searching for potential bond
-     * mates only in nearby partitions (also O(N)).
+     * Infer bonds with {@link BondInference}, which sorts atoms into spatial cells and
+     * looks for bond partners only in nearby cells, so this is O(N). The bonds are
+     * remembered, and kept up to date as atoms are added and removed. They are perceived
+     * again only if some atom has moved more than {@link #DRIFT_TOLERANCE} since its bonds
+     * were perceived, and if that changes any bonds, the force field is told.
      *
      * @return the list of bonds inferred from atom types and positions
      */
     public List<Bond> inferBonds() {
-        if (previousBondList != null)
+        if (previousBondList == null) {
+            Atom[] atoms = getAtomArray();
+            previousBondList = BondInference.inferBonds(atoms);
+            topology = new Topology(atoms, previousBondList, modCount, null);
+            cells = null;
             return previousBondList;
-        int i, j;
-        final int n = atomIds.size();
-        List<Bond> bondList = new ArrayList<Bond>();
-        for (i = 0; i < n - 1; i++) {
-            Atom a1 = get(atomIds.get(i));
-            for (j = i + 1; j < n; j++) {
-                Atom a2 = get(atomIds.get(j));
-                if (a1.getPosition().subtract(a2.getPosition()).length() <
-                        (a1.getCovalentRadius() + a2.getCovalentRadius() + 0.5)) {
-                    BondMutable bond = (BondMutable) Bond.newInstance();
-                    bond.setFirstAtom(a1);
-                    bond.setSecondAtom(a2);
-                    // TODO figure out correct bond order
-                    bondList.add(bond);
-                    a1.rehybridize(bondList);
-                    a2.rehybridize(bondList);
-                }
+        }
+        Topology t = getTopology();
+        if (t.hasDrifted(DRIFT_TOLERANCE)) {
+            Atom[] atoms = getAtomArray();
+            List<Bond> bonds = BondInference.inferBonds(atoms);
+            cells = null;
+            if (t.sameBonds(bonds)) {
+                // keep the bonds everyone already has, but start measuring drift afresh
+                topology = new Topology(atoms, previousBondList, modCount, null);
+            } else {
+                modCount++;
+                previousBondList = bonds;
+                topology = new Topology(atoms, bonds, modCount, null);
+                ForceField ff = getForceField();
+                if (ff != null)
+                    ff.structureChanged();
             }
         }
-        previousBondList = bondList;
-        return bondList;
+        return previousBondList;
     }
 
-    /* (non-Javadoc)
-     * @see net.willware.eurydice.core.Structure#processBondChains(net.willware.eurydice.core.BondChainProcessor)
+    /**
+     * Gets the bonds of this structure indexed by atom, inferring them if need be. Atoms
+     * added and removed one at a time are patched into the index as they come and go, so
+     * it is rebuilt only if it somehow falls behind the structure.
+     *
+     * @return the topology
      */
-    public void processBondChains(BondChainProcessor proc) {
-        inferBonds();
-        for (Atom a : atomList.values())
-            processBondChainHelper(a, proc, 3);
+    public Topology getTopology() {
+        if (previousBondList == null)
+            inferBonds();
+        if (topology.getVersion() != modCount)
+            topology = new Topology(getAtomArray(), previousBondList, modCount, topology);
+        return topology;
     }
 
-    private void processBondChainHelper(final Atom a, final BondChainProcessor proc, int n) {
-        if (n == 0)
-            return;
-        BondChainProcessor proc2 = new BondChainProcessor() {
-            public void process2(Atom w, Atom x) {
-                proc.process3(a, w, x);
-            }
-            public void process3(Atom w, Atom x, Atom y) {
-                proc.process4(a, w, x, y);
-            }
-            public void process4(Atom w, Atom x, Atom y, Atom z) {
-                // do nothing
-            }
-            public boolean alreadyHave(Atom w) {
-                return proc.alreadyHave(w) || (w == a);
-            }
-        };
-        for (Bond b: previousBondList) {
-            if (b.contains(a)) {
-                Atom x = b.otherAtom(a);
-                if (!proc2.alreadyHave(x)) {
-                    proc.process2(a, x);
-                    processBondChainHelper(x, proc2, n - 1);
-                }
-            }
-        }
+    /**
+     * Have bonds been inferred? Until they have, {@link #announceAdded(Atom)} and
+     * {@link #announceRemoved(Atom)} have no bonds to keep up to date, and don't look at
+     * the atom.
+     *
+     * @return true if bonds have been inferred
+     */
+    protected boolean bondsInferred() {
+        return previousBondList != null;
+    }
+
+    /**
+     * Gets the modification count, which goes up whenever atoms are added or removed, or
+     * bonds change.
+     *
+     * @return the modification count
+     * @see net.willware.eurydice.core.Structure#getModificationCount()
+     */
+    public long getModificationCount() {
+        return modCount;
+    }
+
+    /**
+     * Find chains of bonded atoms by walking the {@link Topology}, which takes time
+     * proportional to the number of chains and allocates nothing per chain.
+     *
+     * @param proc the processor for the chains
+     */
+    public void processBondChains(BondChainProcessor proc) {
+        getTopology().processChains(proc);
     }
 
     /**
@@ -385,7 +421,7 @@ public class StructureMutableImpl extends StructureMutable {
     	}
     	atomIds.add(id.toInteger());
         atomList.put(id.toInteger(), a);
-        announceChange();
+        announceAdded(a);
     }
 
     /**
@@ -398,7 +434,7 @@ public class StructureMutableImpl extends StructureMutable {
         ((AtomMutable)a).setUniqueId(id);
     	atomIds.add(id.toInteger());
         atomList.put(id.toInteger(), a);
-        announceChange();
+        announceAdded(a);
     }
 
     /**
@@ -407,15 +443,86 @@ public class StructureMutableImpl extends StructureMutable {
      * @param a the atom to be removed
      */
     public void removeAtom(Atom a) {
-    	atomIds.remove(a.getUniqueId().toInteger());
-        atomList.remove(a);
-        announceChange();
+        Integer id = a.getUniqueId().toInteger();
+        a = atomList.get(id);
+        if (a == null)
+            return;
+        announceRemoved(a);
+    	atomIds.remove(id);
+        atomList.remove(id);
+    }
+
+    /**
+     * Once bonds have been inferred, keep them up to date as an atom is added, by finding
+     * just the new atom's bonds and patching them into the topology, and tell the force
+     * field which bonds were added. Until then, the force field is only told that the
+     * structure changed.
+     *
+     * @param a the atom that was added
+     */
+    protected void announceAdded(Atom a) {
+        modCount++;
+        if (previousBondList == null) {
+            announceChange();
+            return;
+        }
+        if (cells == null)
+            cells = new AtomCells(getAtomArray(), DRIFT_TOLERANCE);
+        else
+            cells.add(a);
+        List<Bond> bonds = BondInference.bondsTo(a, cells);
+        if (topology != null && topology.getVersion() == modCount - 1)
+            topology.addAtom(a, bonds, modCount);
+        else
+            previousBondList.addAll(bonds);
+        ForceField ff = getForceField();
+        if (ff != null)
+            ff.atomAdded(a, bonds);
+    }
+
+    /**
+     * Once bonds have been inferred, keep them up to date as an atom is removed, taking
+     * its bonds out of the topology, and tell the force field which bonds are going. This
+     * must be called while the atom is still in the structure.
+     *
+     * @param a the atom being removed
+     */
+    protected void announceRemoved(Atom a) {
+        modCount++;
+        if (previousBondList == null) {
+            announceChange();
+            return;
+        }
+        if (cells != null && !cells.remove(a))
+            cells = null;
+        List<Bond> bonds;
+        if (topology != null && topology.getVersion() == modCount - 1) {
+            bonds = topology.removeAtom(a, modCount);
+        } else {
+            bonds = new ArrayList<Bond>();
+            int kept = 0;
+            for (int i = 0; i < previousBondList.size(); i++) {
+                Bond b = previousBondList.get(i);
+                if (b.contains(a))
+                    bonds.add(b);
+                else
+                    previousBondList.set(kept++, b);
+            }
+            previousBondList.subList(kept, previousBondList.size()).clear();
+        }
+        ForceField ff = getForceField();
+        if (ff != null)
+            ff.atomRemoved(a, bonds);
     }
 
     /**
-     * Announce change.
+     * Forget the bonds and tell the force field that anything might have changed.
      */
-    private void announceChange() {
+    protected void announceChange() {
+        modCount++;
+        previousBondList = null;
+        topology = null;
+        cells = null;
         ForceField ff = getForceField();
         if (ff != null)
             ff.structureChanged();
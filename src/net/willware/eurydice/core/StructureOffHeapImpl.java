@@ -0,0 +1,705 @@
+package net.willware.eurydice.core;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.List;
+import java.util.NoSuchElementException;
+
+import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * A {@link Structure} that keeps its atoms off the Java heap, as packed records in direct
+ * buffers or in a memory-mapped file, so that structures of tens or hundreds of millions
+ * of atoms can be iterated, integrated and queried by region without a heap big enough to
+ * hold them, and without the garbage collector having to trace them. Each record holds an
+ * atom's element code, unique ID number, hybridization, charges, mass, position, previous
+ * position and force, {@link #RECORD_SIZE} bytes in all.
+ * <p>
+ * Records are kept in segments of {@link #SEGMENT_ATOMS} atoms, each a buffer of its own,
+ * so the structure grows a segment at a time without copying, and is not limited by the 2
+ * GB that one buffer can hold. Backed by a file, the segments are mapped from the file
+ * one after another and paged in and out by the operating system, so a structure can be
+ * bigger than memory as well as the heap.
+ * <p>
+ * As in {@link StructureArrayImpl}, the per-element properties are shared by way of a
+ * prototype atom per element, and the atoms handed out by {@link #get(int)},
+ * {@link #getIterator()} and friends are views of the records. A view is only kept once
+ * its atom is asked for by index or ID, and there is at most one kept view per atom, so
+ * those can be compared with ==. Iterating over atoms that haven't been asked for makes
+ * views that aren't kept, which are equal to, but not the same as, the kept ones.
+ * {@link #verletStep(double)}, {@link #getBoundingBox()}, {@link #getX(int)}, snapshots
+ * and so on work on the records directly, and {@link #sublist(Region)} makes views only
+ * of the atoms inside the region. Views of all the atoms, and the bonds between them,
+ * are as big as any other structure's atoms, so bond inference and force fields are
+ * only practical for pieces of a structure of this size.
+ * <p>
+ * Removing an atom moves the last atom into its slot, so indices are dense but not
+ * stable across removals.
+ */
+public class StructureOffHeapImpl extends StructureMutableImpl {
+
+    /**
+     * Makes new instances of {@link StructureOffHeapImpl}, for {@link Structure#setFactory}.
+     */
+    public static class Factory implements Structure.Factory {
+        public Structure newInstance() {
+            return new StructureOffHeapImpl();
+        }
+    }
+
+    /** Offsets of the fields of a record. */
+    private static final int ELEMENT = 0, ID = 4, HYBRIDIZATION = 8, HAS_PREVIOUS = 9,
+        CHARGE = 10, MASS = 16, FRACTIONAL_CHARGE = 24, X = 32, Y = 40, Z = 48, PX = 56,
+        PY = 64, PZ = 72, FX = 80, FY = 88, FZ = 96;
+
+    /** The size of an atom's record, in bytes. */
+    public static final int RECORD_SIZE = 104;
+
+    /** The base two log of the number of atoms in a segment. */
+    private static final int SEGMENT_SHIFT = 16;
+
+    /** The number of atoms in a segment. */
+    public static final int SEGMENT_ATOMS = 1 << SEGMENT_SHIFT;
+
+    /** Masks an atom index down to its place in its segment. */
+    private static final int SEGMENT_MASK = SEGMENT_ATOMS - 1;
+
+    /** The number of atoms. */
+    private int n;
+
+    /** The segments of records. */
+    private ByteBuffer[] segments = new ByteBuffer[0];
+
+    /** The number of segments given memory so far, the rest of {@link #segments} null. */
+    private int numSegments;
+
+    /** The views of each segment, made the first time an atom in it is asked for. */
+    private View[][] views = new View[0][];
+
+    /** The number of atoms removed so far, so views made for iteration can tell. */
+    private long removals;
+
+    /** The file the records are mapped from, or null if they're in direct buffers. */
+    private final RandomAccessFile file;
+
+    /** One prototype atom per element, supplying the shared element properties. */
+    private List<Atom> elements = new ArrayList<Atom>();
+
+    /** Maps unique IDs to atom indices, also kept off the heap. */
+    private IdIndex idIndex = new IdIndex(true);
+
+    /**
+     * Constructor, for a structure in direct buffers.
+     */
+    public StructureOffHeapImpl() {
+        file = null;
+    }
+
+    /**
+     * Constructor, for a structure whose records are mapped from a file. The file is
+     * scratch space: whatever is in it is thrown away.
+     *
+     * @param filename the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public StructureOffHeapImpl(String filename) throws IOException {
+        file = new RandomAccessFile(filename, "rw");
+        file.setLength(0);
+    }
+
+    /**
+     * Close the file the records are mapped from, if there is one. The mappings stay good
+     * until they are garbage collected, but the structure shouldn't be grown any more.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void close() throws IOException {
+        if (file != null)
+            file.close();
+    }
+
+    private void ensureCapacity(int capacity) {
+        int needed = (capacity + SEGMENT_ATOMS - 1) >>> SEGMENT_SHIFT;
+        if (needed <= numSegments)
+            return;
+        if (needed > segments.length) {
+            segments = Arrays.copyOf(segments, Math.max(needed, 2 * segments.length));
+            views = Arrays.copyOf(views, segments.length);
+        }
+        // only the segments needed get memory; the rest of the array is room to grow
+        long size = (long) SEGMENT_ATOMS * RECORD_SIZE;
+        for (int k = numSegments; k < needed; k++) {
+            if (file == null) {
+                segments[k] = ByteBuffer.allocateDirect((int) size);
+            } else {
+                try {
+                    segments[k] = file.getChannel().map(FileChannel.MapMode.READ_WRITE,
+                                                        k * size, size);
+                } catch (IOException e) {
+                    throw new RuntimeException("can't map segment " + k, e);
+                }
+            }
+            segments[k].order(ByteOrder.nativeOrder());
+        }
+        numSegments = needed;
+    }
+
+    /**
+     * Gets the number of segments that have been given memory, whether direct buffers or
+     * mappings of the file.
+     *
+     * @return the number of segments
+     */
+    public int getNumSegments() {
+        return numSegments;
+    }
+
+    private static int offset(int i) {
+        return (i & SEGMENT_MASK) * RECORD_SIZE;
+    }
+
+    private double getDouble(int i, int field) {
+        return segments[i >>> SEGMENT_SHIFT].getDouble(offset(i) + field);
+    }
+
+    private void putDouble(int i, int field, double value) {
+        segments[i >>> SEGMENT_SHIFT].putDouble(offset(i) + field, value);
+    }
+
+    private void addDouble(int i, int field, double value) {
+        ByteBuffer b = segments[i >>> SEGMENT_SHIFT];
+        int off = offset(i) + field;
+        b.putDouble(off, b.getDouble(off) + value);
+    }
+
+    private int getInt(int i, int field) {
+        return segments[i >>> SEGMENT_SHIFT].getInt(offset(i) + field);
+    }
+
+    private void putInt(int i, int field, int value) {
+        segments[i >>> SEGMENT_SHIFT].putInt(offset(i) + field, value);
+    }
+
+    private byte getByte(int i, int field) {
+        return segments[i >>> SEGMENT_SHIFT].get(offset(i) + field);
+    }
+
+    private void putByte(int i, int field, int value) {
+        segments[i >>> SEGMENT_SHIFT].put(offset(i) + field, (byte) value);
+    }
+
+    /**
+     * Gets the x coordinate of an atom, without making a view of it.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the x coordinate
+     */
+    public double getX(int index) {
+        return getDouble(index, X);
+    }
+
+    /**
+     * Gets the y coordinate of an atom, without making a view of it.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the y coordinate
+     */
+    public double getY(int index) {
+        return getDouble(index, Y);
+    }
+
+    /**
+     * Gets the z coordinate of an atom, without making a view of it.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the z coordinate
+     */
+    public double getZ(int index) {
+        return getDouble(index, Z);
+    }
+
+    private View view(int i) {
+        View[] segment = views[i >>> SEGMENT_SHIFT];
+        if (segment == null) {
+            segment = new View[SEGMENT_ATOMS];
+            views[i >>> SEGMENT_SHIFT] = segment;
+        }
+        View v = segment[i & SEGMENT_MASK];
+        if (v == null) {
+            v = new View(i);
+            segment[i & SEGMENT_MASK] = v;
+        }
+        return v;
+    }
+
+    private void setView(int i, View v) {
+        View[] segment = views[i >>> SEGMENT_SHIFT];
+        if (segment == null) {
+            if (v == null)
+                return;
+            segment = new View[SEGMENT_ATOMS];
+            views[i >>> SEGMENT_SHIFT] = segment;
+        }
+        segment[i & SEGMENT_MASK] = v;
+    }
+
+    private View existingView(int i) {
+        View[] segment = views[i >>> SEGMENT_SHIFT];
+        return (segment == null) ? null : segment[i & SEGMENT_MASK];
+    }
+
+    /**
+     * Gets the view of an atom if it has been asked for, or else a view that isn't kept,
+     * so iterating over the atoms doesn't make a view of each to keep.
+     */
+    private View iterated(int i) {
+        View v = existingView(i);
+        return (v != null) ? v : new View(i, getInt(i, ID), removals);
+    }
+
+    /**
+     * Adds an atom to this structure by copying it into a record.
+     *
+     * @param a the atom to be added
+     */
+    public void addAtom(Atom a) {
+        UniqueId id = a.getUniqueId();
+        if (id == null)
+            id = UniqueId.newInstance();
+        addAtom(a, id);
+    }
+
+    /**
+     * Adds an atom to this structure by copying it into a record, with a particular
+     * unique ID.
+     *
+     * @param a the atom to be added
+     * @param id the unique ID for this atom
+     */
+    public void addAtom(Atom a, UniqueId id) {
+        if (idIndex.get(id.toInteger()) >= 0)
+            throw new RuntimeException("duplicate atom ID?");
+        if (a.getUniqueId() == null && a instanceof AtomMutable)
+            ((AtomMutable) a).setUniqueId(id);
+        ensureCapacity(n + 1);
+        int i = n++;
+        Vector p = a.getPosition();
+        putDouble(i, X, p.getX());
+        putDouble(i, Y, p.getY());
+        putDouble(i, Z, p.getZ());
+        Vector prev = a.getPreviousPosition();
+        putByte(i, HAS_PREVIOUS, (prev != null) ? 1 : 0);
+        if (prev != null) {
+            putDouble(i, PX, prev.getX());
+            putDouble(i, PY, prev.getY());
+            putDouble(i, PZ, prev.getZ());
+        }
+        Vector f = a.getForce();
+        putDouble(i, FX, (f == null) ? 0.0 : f.getX());
+        putDouble(i, FY, (f == null) ? 0.0 : f.getY());
+        putDouble(i, FZ, (f == null) ? 0.0 : f.getZ());
+        putDouble(i, MASS, a.getMass());
+        putDouble(i, FRACTIONAL_CHARGE, a.getFractionalCharge());
+        putInt(i, ELEMENT, AtomView.elementCode(elements, a));
+        segments[i >>> SEGMENT_SHIFT].putShort(offset(i) + CHARGE, (short) a.getCharge());
+        putByte(i, HYBRIDIZATION, a.getHybridization());
+        putInt(i, ID, id.toInteger());
+        setView(i, null);
+        idIndex.put(id.toInteger(), i);
+        // the atom is only looked at once there are bonds to keep up to date, so don't
+        // make a view of every atom loaded
+        announceAdded(bondsInferred() ? view(i) : null);
+    }
+
+    /**
+     * Removes an atom from this structure. The last atom takes its index.
+     *
+     * @param a the atom to be removed
+     */
+    public void removeAtom(Atom a) {
+        int i = idIndex.get(a.getUniqueId().toInteger());
+        if (i < 0)
+            return;
+        announceRemoved(bondsInferred() ? view(i) : null);
+        removals++;
+        idIndex.remove(getInt(i, ID));
+        View removed = existingView(i);
+        if (removed != null)
+            removed.detach();
+        int last = --n;
+        if (i != last) {
+            ByteBuffer from = segments[last >>> SEGMENT_SHIFT];
+            ByteBuffer to = segments[i >>> SEGMENT_SHIFT];
+            for (int k = 0; k < RECORD_SIZE; k += 8)
+                to.putLong(offset(i) + k, from.getLong(offset(last) + k));
+            View v = existingView(last);
+            setView(i, v);
+            if (v != null)
+                v.index = i;
+            idIndex.put(getInt(i, ID), i);
+        }
+        setView(last, null);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#size()
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Gets the atom at a dense index.
+     *
+     * @param index the index, from 0 to size() - 1
+     * @return the atom
+     */
+    public Atom get(int index) {
+        if (index < 0 || index >= n)
+            return null;
+        return view(index);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#get(net.willware.eurydice.core.UniqueId)
+     */
+    public Atom get(UniqueId id) {
+        int i = idIndex.get(id.toInteger());
+        return (i < 0) ? null : view(i);
+    }
+
+    /**
+     * Gets the dense index of an atom, -1 if it is not in this structure.
+     *
+     * @param a the atom
+     * @return the index, or -1
+     */
+    public long indexOf(Atom a) {
+        if (a instanceof View && ((View) a).owner() == this)
+            return ((View) a).currentIndex();
+        UniqueId id = a.getUniqueId();
+        return (id == null) ? -1 : idIndex.get(id.toInteger());
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#getAtomArray()
+     */
+    public Atom[] getAtomArray() {
+        Atom[] array = new Atom[n];
+        for (int i = 0; i < n; i++)
+            array[i] = view(i);
+        return array;
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#getIterator()
+     */
+    public Iterator<Atom> getIterator() {
+        return new Iterator<Atom>() {
+            private int i = 0;
+            public boolean hasNext() {
+                return i < n;
+            }
+            public Atom next() {
+                if (i >= n)
+                    throw new NoSuchElementException();
+                return iterated(i++);
+            }
+            public void remove() {
+                throw new UnsupportedOperationException();
+            }
+        };
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#process(net.willware.eurydice.core.Structure.AtomProcessor)
+     */
+    public void process(AtomProcessor p) {
+        for (int i = 0; i < n; i++)
+            p.process(iterated(i));
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#getBoundingBox()
+     */
+    public Region getBoundingBox() {
+        double xmin = 1.0e20;
+        double ymin = 1.0e20;
+        double zmin = 1.0e20;
+        double xmax = -1.0e20;
+        double ymax = -1.0e20;
+        double zmax = -1.0e20;
+        for (int i = 0; i < n; i++) {
+            ByteBuffer b = segments[i >>> SEGMENT_SHIFT];
+            int off = offset(i);
+            double x = b.getDouble(off + X), y = b.getDouble(off + Y), z = b.getDouble(off + Z);
+            xmin = (xmin < x) ? xmin : x;
+            ymin = (ymin < y) ? ymin : y;
+            zmin = (zmin < z) ? zmin : z;
+            xmax = (xmax > x) ? xmax : x;
+            ymax = (ymax > y) ? ymax : y;
+            zmax = (zmax > z) ? zmax : z;
+        }
+        return new Region(xmin, ymin, zmin, xmax, ymax, zmax);
+    }
+
+    /**
+     * Gets the atoms strictly inside a region, as a structure of views of them, so
+     * changes to their positions are changes to this structure. Only the atoms inside are
+     * made into views; the rest are checked straight from their records.
+     *
+     * @param r the region
+     * @return a structure of the atoms inside the region
+     */
+    public Structure sublist(Region r) {
+        Vector lo = r.getMinCorner(), hi = r.getMaxCorner();
+        double x0 = lo.getX(), y0 = lo.getY(), z0 = lo.getZ();
+        double x1 = hi.getX(), y1 = hi.getY(), z1 = hi.getZ();
+        StructureMutableImpl inside = new StructureMutableImpl();
+        for (int i = 0; i < n; i++) {
+            ByteBuffer b = segments[i >>> SEGMENT_SHIFT];
+            int off = offset(i);
+            double x = b.getDouble(off + X), y = b.getDouble(off + Y), z = b.getDouble(off + Z);
+            if (x0 < x && x < x1 && y0 < y && y < y1 && z0 < z && z < z1)
+                inside.addAtom(view(i));
+        }
+        return inside;
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#verletPrep()
+     */
+    public void verletPrep() {
+        for (int i = 0; i < n; i++) {
+            ByteBuffer b = segments[i >>> SEGMENT_SHIFT];
+            int off = offset(i);
+            b.putDouble(off + PX, b.getDouble(off + X));
+            b.putDouble(off + PY, b.getDouble(off + Y));
+            b.putDouble(off + PZ, b.getDouble(off + Z));
+            b.put(off + HAS_PREVIOUS, (byte) 1);
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#verletStep(double)
+     */
+    public void verletStep(double dt) {
+        // Do not compute forces here! This is ONLY integrating
+        // equations of motion.
+        double dt2 = dt * dt;
+        for (int k = 0; k << SEGMENT_SHIFT < n; k++) {
+            ByteBuffer b = segments[k];
+            int count = Math.min(SEGMENT_ATOMS, n - (k << SEGMENT_SHIFT));
+            for (int off = 0; off < count * RECORD_SIZE; off += RECORD_SIZE) {
+                double m = dt2 / b.getDouble(off + MASS);
+                double oldX = b.getDouble(off + X);
+                double oldY = b.getDouble(off + Y);
+                double oldZ = b.getDouble(off + Z);
+                if (b.get(off + HAS_PREVIOUS) != 0) {
+                    b.putDouble(off + X, 2.0 * oldX - b.getDouble(off + PX)
+                                + m * b.getDouble(off + FX));
+                    b.putDouble(off + Y, 2.0 * oldY - b.getDouble(off + PY)
+                                + m * b.getDouble(off + FY));
+                    b.putDouble(off + Z, 2.0 * oldZ - b.getDouble(off + PZ)
+                                + m * b.getDouble(off + FZ));
+                } else {
+                    b.putDouble(off + X, oldX + m * b.getDouble(off + FX));
+                    b.putDouble(off + Y, oldY + m * b.getDouble(off + FY));
+                    b.putDouble(off + Z, oldZ + m * b.getDouble(off + FZ));
+                    b.put(off + HAS_PREVIOUS, (byte) 1);
+                }
+                b.putDouble(off + PX, oldX);
+                b.putDouble(off + PY, oldY);
+                b.putDouble(off + PZ, oldZ);
+                b.putDouble(off + FX, 0.0);
+                b.putDouble(off + FY, 0.0);
+                b.putDouble(off + FZ, 0.0);
+            }
+        }
+        publishSnapshotIfWatched();
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.core.Structure#copyPositions(net.willware.eurydice.core.PositionSnapshot)
+     */
+    protected void copyPositions(PositionSnapshot s) {
+        s.resize(n);
+        for (int i = 0; i < n; i++)
+            s.set(i, getInt(i, ID), elements.get(getInt(i, ELEMENT)), getDouble(i, X),
+                  getDouble(i, Y), getDouble(i, Z));
+    }
+
+    /**
+     * A view of one atom's record.
+     */
+    private class View extends AtomView {
+
+        /** The atom's unique ID, made from the number in its record when first asked for. */
+        private UniqueId id;
+
+        View(int index) {
+            super(index);
+        }
+
+        View(int index, int idNumber, long removals) {
+            super(index, idNumber, removals);
+        }
+
+        StructureOffHeapImpl owner() {
+            return StructureOffHeapImpl.this;
+        }
+
+        int idNumber(int i) {
+            return getInt(i, ID);
+        }
+
+        long removals() {
+            return removals;
+        }
+
+        int find(int idNumber) {
+            return idIndex.get(idNumber);
+        }
+
+        Atom proto() {
+            return elements.get(getInt(index(), ELEMENT));
+        }
+
+        UniqueId uniqueId(int i) {
+            if (id == null)
+                id = UniqueIdSettableImpl.withValue(getInt(i, ID));
+            return id;
+        }
+
+        public void setUniqueId(UniqueId id) {
+            int i = index();
+            idIndex.remove(getInt(i, ID));
+            putInt(i, ID, id.toInteger());
+            this.id = id;
+            idNumber = id.toInteger();
+            idIndex.put(id.toInteger(), i);
+        }
+
+        public double getMass() {
+            return getDouble(index(), MASS);
+        }
+
+        public void setMass(double m) {
+            putDouble(index(), MASS, m);
+        }
+
+        public void setCharge(int c) {
+            int i = index();
+            segments[i >>> SEGMENT_SHIFT].putShort(offset(i) + CHARGE, (short) c);
+        }
+
+        public int getCharge() {
+            int i = index();
+            return segments[i >>> SEGMENT_SHIFT].getShort(offset(i) + CHARGE);
+        }
+
+        public void setFractionalCharge(double fc) {
+            putDouble(index(), FRACTIONAL_CHARGE, fc);
+        }
+
+        public double getFractionalCharge() {
+            return getDouble(index(), FRACTIONAL_CHARGE);
+        }
+
+        public void setHybridization(int h) {
+            putByte(index(), HYBRIDIZATION, h);
+        }
+
+        public int getHybridization() {
+            return getByte(index(), HYBRIDIZATION);
+        }
+
+        public void setPosition(Vector p) {
+            int i = index();
+            putDouble(i, X, p.getX());
+            putDouble(i, Y, p.getY());
+            putDouble(i, Z, p.getZ());
+        }
+
+        public void move(Vector delta) {
+            int i = index();
+            addDouble(i, X, delta.getX());
+            addDouble(i, Y, delta.getY());
+            addDouble(i, Z, delta.getZ());
+        }
+
+        public Vector getPosition() {
+            int i = index();
+            return new Vector(getDouble(i, X), getDouble(i, Y), getDouble(i, Z));
+        }
+
+        public double getX() {
+            return getDouble(index(), X);
+        }
+
+        public double getY() {
+            return getDouble(index(), Y);
+        }
+
+        public double getZ() {
+            return getDouble(index(), Z);
+        }
+
+        public void setPreviousPosition(Vector p) {
+            int i = index();
+            putByte(i, HAS_PREVIOUS, (p != null) ? 1 : 0);
+            if (p != null) {
+                putDouble(i, PX, p.getX());
+                putDouble(i, PY, p.getY());
+                putDouble(i, PZ, p.getZ());
+            }
+        }
+
+        public Vector getPreviousPosition() {
+            int i = index();
+            if (getByte(i, HAS_PREVIOUS) == 0)
+                return null;
+            return new Vector(getDouble(i, PX), getDouble(i, PY), getDouble(i, PZ));
+        }
+
+        public void setForce(Vector f) {
+            int i = index();
+            putDouble(i, FX, f.getX());
+            putDouble(i, FY, f.getY());
+            putDouble(i, FZ, f.getZ());
+        }
+
+        public void zeroForce() {
+            int i = index();
+            putDouble(i, FX, 0.0);
+            putDouble(i, FY, 0.0);
+            putDouble(i, FZ, 0.0);
+        }
+
+        public void addForce(Vector df) {
+            int i = index();
+            addDouble(i, FX, df.getX());
+            addDouble(i, FY, df.getY());
+            addDouble(i, FZ, df.getZ());
+        }
+
+        public void addForce(double dx, double dy, double dz) {
+            int i = index();
+            addDouble(i, FX, dx);
+            addDouble(i, FY, dy);
+            addDouble(i, FZ, dz);
+        }
+
+        public Vector getForce() {
+            int i = index();
+            return new Vector(getDouble(i, FX), getDouble(i, FY), getDouble(i, FZ));
+        }
+    }
+}
@@ -0,0 +1,471 @@
+package net.willware.eurydice.core;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * The bonds of a structure, indexed for quick answers to "what is this atom bonded to?".
+ * Each atom has a block of consecutive entries in a single array of atom numbers, listing
+ * its neighbors, so walking the bonds of an atom touches a few consecutive ints instead of
+ * scanning the whole bond list. Atoms are found by number through an open-addressed table
+ * of their unique ID numbers, so no boxed numbers are made.
+ * <p>
+ * Atoms are first numbered by their position in the structure's atom array. When the
+ * structure gains or loses one atom, the topology is patched rather than built again, in
+ * time that depends only on how many bonds the atom has: an added atom is numbered last,
+ * and a removed atom's number goes to the last atom, as it does in the array-backed
+ * structures. Blocks have room to spare, and a block that fills up is moved to the end of
+ * the arrays with twice the room; the arrays are compacted once half their entries are
+ * left behind like that. Patching changes the bond list in place, and may change the
+ * order of the bonds.
+ * <p>
+ * A topology records the modification count of the structure it describes, so the
+ * structure can tell when it is out of date, and the positions of the atoms when their
+ * bonds were perceived, so the structure can tell when atoms have moved far enough that
+ * the bonds should be perceived again.
+ */
+public class Topology {
+
+    /** The atoms, by number; only the first {@link #n} are used. */
+    private Atom[] atoms;
+
+    /** The number of atoms. */
+    private int n;
+
+    /** The bonds. */
+    private final List<Bond> bonds;
+
+    /** Maps the unique ID number of each atom to the atom's number. */
+    private final IdIndex atomIndex;
+
+    /** Where each atom's block starts in {@link #neighbors}. */
+    private int[] start;
+
+    /** How many neighbors each atom has, at the start of its block. */
+    private int[] count;
+
+    /** How many entries each atom's block has room for. */
+    private int[] room;
+
+    /** The numbers of the atoms bonded to each atom, block by block. */
+    private int[] neighbors;
+
+    /** The position in the bond list of the bond to each neighbor in {@link #neighbors}. */
+    private int[] neighborBonds;
+
+    /** How many entries of {@link #neighbors} are taken up by blocks, used or not. */
+    private int end;
+
+    /** How many of those belong to blocks that have been moved or removed. */
+    private int wasted;
+
+    /** The x, y and z of each atom when its bonds were perceived. */
+    private double[] reference;
+
+    /** The modification count of the structure this describes. */
+    private long version;
+
+    /**
+     * Constructor.
+     *
+     * @param atoms the atoms of the structure, in the order of its atom array
+     * @param bonds the bonds of the structure
+     * @param version the modification count of the structure
+     * @param previous an earlier topology of the same structure, from which reference
+     *        positions are kept for atoms whose bonds haven't been perceived again since,
+     *        or null if every atom's bonds have just been perceived
+     */
+    public Topology(Atom[] atoms, List<Bond> bonds, long version, Topology previous) {
+        n = atoms.length;
+        this.atoms = atoms;
+        this.bonds = bonds;
+        this.version = version;
+        atomIndex = new IdIndex();
+        for (int i = 0; i < n; i++)
+            atomIndex.put(atoms[i].getUniqueId().toInteger(), i);
+        int numBonds = bonds.size();
+        int[] first = new int[numBonds], second = new int[numBonds];
+        start = new int[n];
+        count = new int[n];
+        room = new int[n];
+        for (int k = 0; k < numBonds; k++) {
+            Bond b = bonds.get(k);
+            first[k] = indexOf(b.getFirstAtom());
+            second[k] = indexOf(b.getSecondAtom());
+            room[first[k]]++;
+            room[second[k]]++;
+        }
+        for (int i = 1; i < n; i++)
+            start[i] = start[i - 1] + room[i - 1];
+        end = 2 * numBonds;
+        neighbors = new int[end];
+        neighborBonds = new int[end];
+        for (int k = 0; k < numBonds; k++) {
+            int i = first[k], j = second[k];
+            neighbors[start[i] + count[i]] = j;
+            neighborBonds[start[i] + count[i]++] = k;
+            neighbors[start[j] + count[j]] = i;
+            neighborBonds[start[j] + count[j]++] = k;
+        }
+        reference = new double[3 * n];
+        for (int i = 0; i < n; i++) {
+            int old = (previous == null) ? -1 : previous.indexOf(atoms[i]);
+            if (old >= 0) {
+                reference[3 * i] = previous.reference[3 * old];
+                reference[3 * i + 1] = previous.reference[3 * old + 1];
+                reference[3 * i + 2] = previous.reference[3 * old + 2];
+            } else {
+                reference[3 * i] = atoms[i].getX();
+                reference[3 * i + 1] = atoms[i].getY();
+                reference[3 * i + 2] = atoms[i].getZ();
+            }
+        }
+    }
+
+    /**
+     * Add an atom and its bonds, numbering the atom last and appending the bonds to the
+     * bond list. The atom's bonds are taken to have just been perceived.
+     *
+     * @param a the atom
+     * @param newBonds the atom's bonds, each to an atom already in this topology
+     * @param version the modification count of the structure with the atom added
+     */
+    void addAtom(Atom a, List<Bond> newBonds, long version) {
+        if (n == atoms.length) {
+            int size = Math.max(16, 2 * n);
+            Atom[] bigger = new Atom[size];
+            System.arraycopy(atoms, 0, bigger, 0, n);
+            atoms = bigger;
+            start = copyOf(start, size);
+            count = copyOf(count, size);
+            room = copyOf(room, size);
+            double[] ref = new double[3 * size];
+            System.arraycopy(reference, 0, ref, 0, 3 * n);
+            reference = ref;
+        }
+        int i = n++;
+        atoms[i] = a;
+        atomIndex.put(a.getUniqueId().toInteger(), i);
+        start[i] = end;
+        count[i] = 0;
+        room[i] = 0;
+        reference[3 * i] = a.getX();
+        reference[3 * i + 1] = a.getY();
+        reference[3 * i + 2] = a.getZ();
+        for (Bond b : newBonds) {
+            int k = bonds.size();
+            bonds.add(b);
+            int j = indexOf(b.otherAtom(a));
+            addEntry(i, j, k);
+            addEntry(j, i, k);
+        }
+        this.version = version;
+    }
+
+    /**
+     * Remove an atom and its bonds. The last atom takes the removed atom's number, and the
+     * last bonds in the bond list fill the places of the removed bonds.
+     *
+     * @param a the atom
+     * @param version the modification count of the structure with the atom removed
+     * @return the bonds that were removed
+     */
+    List<Bond> removeAtom(Atom a, long version) {
+        List<Bond> removed = new ArrayList<Bond>();
+        int i = indexOf(a);
+        this.version = version;
+        if (i < 0)
+            return removed;
+        while (count[i] > 0) {
+            int p = start[i] + --count[i];
+            int k = neighborBonds[p];
+            removed.add(bonds.get(k));
+            removeEntry(neighbors[p], k);
+            removeBond(k);
+        }
+        atomIndex.remove(a.getUniqueId().toInteger());
+        wasted += room[i];
+        int last = --n;
+        if (i != last) {
+            atoms[i] = atoms[last];
+            start[i] = start[last];
+            count[i] = count[last];
+            room[i] = room[last];
+            reference[3 * i] = reference[3 * last];
+            reference[3 * i + 1] = reference[3 * last + 1];
+            reference[3 * i + 2] = reference[3 * last + 2];
+            atomIndex.put(atoms[i].getUniqueId().toInteger(), i);
+            for (int p = start[i]; p < start[i] + count[i]; p++) {
+                int j = neighbors[p];
+                for (int q = start[j]; q < start[j] + count[j]; q++)
+                    if (neighbors[q] == last)
+                        neighbors[q] = i;
+            }
+        }
+        atoms[last] = null;
+        if (wasted > end / 2)
+            compact();
+        return removed;
+    }
+
+    /**
+     * Add a neighbor to an atom's block, moving the block to the end if it is full.
+     */
+    private void addEntry(int i, int j, int k) {
+        if (count[i] == room[i]) {
+            int more = Math.max(4, room[i]);
+            if (start[i] + room[i] != end) {
+                reserve(end + room[i] + more);
+                System.arraycopy(neighbors, start[i], neighbors, end, count[i]);
+                System.arraycopy(neighborBonds, start[i], neighborBonds, end, count[i]);
+                wasted += room[i];
+                start[i] = end;
+                end += room[i];
+            }
+            reserve(end + more);
+            end += more;
+            room[i] += more;
+        }
+        neighbors[start[i] + count[i]] = j;
+        neighborBonds[start[i] + count[i]++] = k;
+    }
+
+    /**
+     * Remove the entry for a bond from an atom's block, moving the block's last entry into
+     * its place.
+     */
+    private void removeEntry(int i, int k) {
+        int last = start[i] + --count[i];
+        for (int p = start[i]; p <= last; p++) {
+            if (neighborBonds[p] == k) {
+                neighbors[p] = neighbors[last];
+                neighborBonds[p] = neighborBonds[last];
+                return;
+            }
+        }
+    }
+
+    /**
+     * Remove a bond from the bond list, moving the last bond into its place. Entries for
+     * the bond must already have been removed.
+     */
+    private void removeBond(int k) {
+        int last = bonds.size() - 1;
+        if (k != last) {
+            Bond b = bonds.get(last);
+            bonds.set(k, b);
+            renumberBond(indexOf(b.getFirstAtom()), last, k);
+            renumberBond(indexOf(b.getSecondAtom()), last, k);
+        }
+        bonds.remove(last);
+    }
+
+    private void renumberBond(int i, int from, int to) {
+        for (int p = start[i]; p < start[i] + count[i]; p++)
+            if (neighborBonds[p] == from)
+                neighborBonds[p] = to;
+    }
+
+    /**
+     * Make sure the neighbor arrays have room for some number of entries.
+     */
+    private void reserve(int size) {
+        if (size > neighbors.length) {
+            size = Math.max(size, 2 * neighbors.length);
+            neighbors = copyOf(neighbors, size);
+            neighborBonds = copyOf(neighborBonds, size);
+        }
+    }
+
+    /**
+     * Move the blocks together, leaving out the entries that no block uses.
+     */
+    private void compact() {
+        int[] nb = new int[end - wasted], nbb = new int[end - wasted];
+        int e = 0;
+        for (int i = 0; i < n; i++) {
+            System.arraycopy(neighbors, start[i], nb, e, count[i]);
+            System.arraycopy(neighborBonds, start[i], nbb, e, count[i]);
+            start[i] = e;
+            e += room[i];
+        }
+        neighbors = nb;
+        neighborBonds = nbb;
+        end = e;
+        wasted = 0;
+    }
+
+    private static int[] copyOf(int[] a, int size) {
+        int[] b = new int[size];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, size));
+        return b;
+    }
+
+    /**
+     * Gets the modification count of the structure this topology describes.
+     *
+     * @return the version
+     */
+    public long getVersion() {
+        return version;
+    }
+
+    /**
+     * Gets the bonds.
+     *
+     * @return the bond list
+     */
+    public List<Bond> getBonds() {
+        return bonds;
+    }
+
+    /**
+     * Gets the number of atoms.
+     *
+     * @return the number of atoms
+     */
+    public int size() {
+        return n;
+    }
+
+    /**
+     * Gets an atom by number.
+     *
+     * @param i the atom number
+     * @return the atom
+     */
+    public Atom getAtom(int i) {
+        return atoms[i];
+    }
+
+    /**
+     * Gets the number of an atom.
+     *
+     * @param a the atom
+     * @return its number, or -1 if it isn't in this topology
+     */
+    public int indexOf(Atom a) {
+        UniqueId id = a.getUniqueId();
+        int i = (id == null) ? -1 : atomIndex.get(id.toInteger());
+        return (i >= 0 && (atoms[i] == a || atoms[i].equals(a))) ? i : -1;
+    }
+
+    /**
+     * Gets the number of atoms bonded to an atom.
+     *
+     * @param i the atom number
+     * @return the number of bonds
+     */
+    public int numNeighbors(int i) {
+        return count[i];
+    }
+
+    /**
+     * Gets one of the atoms bonded to an atom.
+     *
+     * @param i the atom number
+     * @param k which neighbor, from zero up to {@link #numNeighbors(int)}
+     * @return the number of the neighbor
+     */
+    public int getNeighbor(int i, int k) {
+        return neighbors[start[i] + k];
+    }
+
+    /**
+     * Gets the bond between an atom and one of its neighbors.
+     *
+     * @param i the atom number
+     * @param k which neighbor, from zero up to {@link #numNeighbors(int)}
+     * @return the bond
+     */
+    public Bond getNeighborBond(int i, int k) {
+        return bonds.get(neighborBonds[start[i] + k]);
+    }
+
+    /**
+     * Hand every chain of two, three and four bonded atoms to a processor, in both
+     * directions, starting from each atom in turn.
+     *
+     * @param proc the processor
+     */
+    public void processChains(BondChainProcessor proc) {
+        for (int i = 0; i < n; i++)
+            processChains(i, proc);
+    }
+
+    /**
+     * Hand every chain of two, three and four bonded atoms that starts with a given atom
+     * to a processor: first each bond of the atom, then each chain of three that begins
+     * with that bond, and so on. A chain never visits an atom twice, nor any atom the
+     * processor says it {@link BondChainProcessor#alreadyHave already has}. The chains are
+     * found by nested loops over the neighbor arrays, so nothing is allocated.
+     *
+     * @param i the number of the first atom
+     * @param proc the processor
+     */
+    public void processChains(int i, BondChainProcessor proc) {
+        Atom a = atoms[i];
+        for (int p = start[i]; p < start[i] + count[i]; p++) {
+            int j = neighbors[p];
+            Atom x = atoms[j];
+            if (j == i || proc.alreadyHave(x))
+                continue;
+            proc.process2(a, x);
+            for (int q = start[j]; q < start[j] + count[j]; q++) {
+                int k = neighbors[q];
+                Atom y = atoms[k];
+                if (k == i || k == j || proc.alreadyHave(y))
+                    continue;
+                proc.process3(a, x, y);
+                for (int r = start[k]; r < start[k] + count[k]; r++) {
+                    int l = neighbors[r];
+                    Atom z = atoms[l];
+                    if (l == i || l == j || l == k || proc.alreadyHave(z))
+                        continue;
+                    proc.process4(a, x, y, z);
+                }
+            }
+        }
+    }
+
+    /**
+     * Has any atom moved further than some distance since its bonds were perceived?
+     *
+     * @param tolerance the distance
+     * @return true if some atom has moved further
+     */
+    public boolean hasDrifted(double tolerance) {
+        double t2 = tolerance * tolerance;
+        for (int i = 0; i < n; i++) {
+            double dx = atoms[i].getX() - reference[3 * i];
+            double dy = atoms[i].getY() - reference[3 * i + 1];
+            double dz = atoms[i].getZ() - reference[3 * i + 2];
+            if (dx * dx + dy * dy + dz * dz > t2)
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Does a list of bonds join the same pairs of atoms as this topology?
+     *
+     * @param other the bonds
+     * @return true if the bonds are the same
+     */
+    public boolean sameBonds(List<Bond> other) {
+        if (other.size() != bonds.size())
+            return false;
+        for (Bond b : other) {
+            int i = indexOf(b.getFirstAtom());
+            int j = indexOf(b.getSecondAtom());
+            if (i < 0 || j < 0)
+                return false;
+            boolean found = false;
+            for (int k = start[i]; k < start[i] + count[i] && !found; k++)
+                found = (neighbors[k] == j);
+            if (!found)
+                return false;
+        }
+        return true;
+    }
+}
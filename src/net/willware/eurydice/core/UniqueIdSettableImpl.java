@@ -29,6 +29,28 @@ public class UniqueIdSettableImpl extends UniqueIdSettable {
         myvalue = counter++;
     }
 
+    /**
+     * Instantiates a unique id with a value that was handed out before, leaving the
+     * counter alone.
+     *
+     * @param value the value
+     * @param existing ignored, to tell this constructor apart
+     */
+    private UniqueIdSettableImpl(int value, boolean existing) {
+        myvalue = value;
+    }
+
+    /**
+     * Gets a unique id equal to one handed out before, for structures that keep only the
+     * numbers of their atoms' IDs.
+     *
+     * @param value the value of the unique id
+     * @return the unique id
+     */
+    static UniqueIdSettableImpl withValue(int value) {
+        return new UniqueIdSettableImpl(value, true);
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
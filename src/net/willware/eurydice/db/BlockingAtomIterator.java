@@ -0,0 +1,149 @@
+package net.willware.eurydice.db;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import net.willware.eurydice.core.Atom;
+
+/**
+ * An iterator over atoms produced by a background thread, typically as they come out of a
+ * database. The two threads are connected by a bounded FIFO, so the producer can run ahead
+ * of the consumer by at most the capacity of the FIFO, and memory use stays constant no
+ * matter how many atoms go through. {@link #hasNext()} and {@link #next()} may block
+ * while waiting for the producer.
+ * <p>
+ * If the producer fails, the exception is rethrown to the consumer, wrapped in a
+ * RuntimeException, once the atoms produced before the failure have been consumed. A
+ * consumer that stops early should call {@link #close()} so the producer can quit.
+ */
+public class BlockingAtomIterator implements Iterator<Atom> {
+
+    /**
+     * Produces atoms in the background thread.
+     */
+    public interface Producer {
+
+        /**
+         * Produce atoms by handing them to {@link BlockingAtomIterator#put(Atom)}, stopping
+         * early if that returns false.
+         *
+         * @param sink the iterator to which atoms are handed
+         * @throws Exception if anything goes wrong
+         */
+        public void produce(BlockingAtomIterator sink) throws Exception;
+    }
+
+    /** Marks the end of the atoms in the FIFO. */
+    private static final Object END = new Object();
+
+    /** How long the producer waits on a full FIFO before checking whether it's closed. */
+    private static final long POLL_MILLISECONDS = 100;
+
+    /** The FIFO holding atoms, then {@link #END}. */
+    private final BlockingQueue<Object> fifo;
+
+    /** Set when the consumer no longer wants atoms. */
+    private volatile boolean closed;
+
+    /** Whatever went wrong in the producer, or null. */
+    private volatile Throwable failure;
+
+    /** The next item taken from the FIFO but not yet returned by {@link #next()}. */
+    private Object nextItem;
+
+    /**
+     * Constructor, which starts the producer thread.
+     *
+     * @param capacity the most atoms that can wait in the FIFO
+     * @param producer the producer of atoms
+     */
+    public BlockingAtomIterator(int capacity, final Producer producer) {
+        fifo = new ArrayBlockingQueue<Object>(capacity);
+        Thread thread = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    producer.produce(BlockingAtomIterator.this);
+                } catch (Throwable t) {
+                    failure = t;
+                } finally {
+                    offer(END);
+                }
+            }
+        }, "atom producer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private boolean offer(Object item) {
+        try {
+            while (!closed)
+                if (fifo.offer(item, POLL_MILLISECONDS, TimeUnit.MILLISECONDS))
+                    return true;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return false;
+    }
+
+    /**
+     * Hand an atom to the consumer, waiting if the FIFO is full. Called by the producer.
+     *
+     * @param a the atom
+     * @return false if the consumer has closed this iterator and wants no more atoms
+     */
+    public boolean put(Atom a) {
+        return offer(a);
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#hasNext()
+     */
+    public boolean hasNext() {
+        if (closed)
+            return false;
+        if (nextItem == null) {
+            try {
+                nextItem = fifo.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException(e);
+            }
+        }
+        if (nextItem == END) {
+            if (failure != null)
+                throw new RuntimeException(failure);
+            return false;
+        }
+        return true;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#next()
+     */
+    public Atom next() {
+        if (!hasNext())
+            throw new NoSuchElementException();
+        Atom a = (Atom) nextItem;
+        nextItem = null;
+        return a;
+    }
+
+    /* (non-Javadoc)
+     * @see java.util.Iterator#remove()
+     */
+    public void remove() {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Stop iterating early, letting the producer quit and discarding any atoms waiting in
+     * the FIFO.
+     */
+    public void close() {
+        closed = true;
+        fifo.clear();
+    }
+}
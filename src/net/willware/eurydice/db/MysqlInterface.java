@@ -2,8 +2,10 @@ package net.willware.eurydice.db;
 
 import java.sql.ResultSet;
 import java.util.Iterator;
+import java.util.LinkedList;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.PreparedStatement;
 import java.sql.SQLException;
 import java.sql.Statement;
 
@@ -15,7 +17,7 @@ import net.willware.eurydice.core.JigMutableImpl;
 import net.willware.eurydice.core.StructureMutableImpl;
 import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.core.UniqueId;
-import net.willware.eurydice.core.UniqueIdSettableImpl;
+import net.willware.eurydice.core.UniqueIdSettable;
 import net.willware.eurydice.elements.ElementFactory;
 import net.willware.eurydice.library.StructureLibrary;
 import net.willware.eurydice.math.Region;
@@ -33,6 +35,24 @@ public class MysqlInterface implements StructureDatabase {
     /** The connect string. */
     private String connectString;
 
+    /** How many rows to send to the database at a time when storing a structure. */
+    private static final int BATCH_SIZE = 1000;
+
+    /** How many rows to ask the database for at a time when iterating over atoms. */
+    private static final int FETCH_SIZE = 1000;
+
+    /** How many atoms may wait to be consumed when iterating over atoms. */
+    private static final int QUEUE_SIZE = 4096;
+
+    /** The most ranges of tile keys to query when iterating over atoms in a region. */
+    private static final int MAX_TILE_RANGES = 64;
+
+    /** The most idle connections to keep open for reuse. */
+    private static final int MAX_IDLE_CONNECTIONS = 4;
+
+    /** Open connections not currently in use, kept rather than reconnecting for every query. */
+    private final LinkedList<Connection> idleConnections = new LinkedList<Connection>();
+
     /**
      * Constructor.
      *
@@ -42,7 +62,10 @@ public class MysqlInterface implements StructureDatabase {
      * @param name the name
      */
     public MysqlInterface(String host, String user, String pw, String name) {
-        connectString = "jdbc:mysql://" + host + "/" + name + "?user=" + user + "&password=" + pw;
+        // have the driver turn batches of inserts into multi-row inserts, and honor the
+        // fetch size for queries instead of reading whole result sets into memory
+        this("jdbc:mysql://" + host + "/" + name + "?user=" + user + "&password=" + pw +
+             "&rewriteBatchedStatements=true&useCursorFetch=true");
         if (driver == null) {
             try {
                 // The newInstance() call is a work around for some broken Java implementations
@@ -55,6 +78,75 @@ public class MysqlInterface implements StructureDatabase {
         }
     }
 
+    /**
+     * Constructor for any JDBC database with the same tables, for instance an embedded
+     * database for testing. The JDBC driver must already be registered.
+     *
+     * @param connectString the JDBC URL
+     */
+    public MysqlInterface(String connectString) {
+        this.connectString = connectString;
+    }
+
+    /**
+     * Get a connection, reusing an idle one if there is one.
+     *
+     * @return the connection
+     * @throws SQLException if a new connection can't be opened
+     */
+    private Connection getConnection() throws SQLException {
+        synchronized (idleConnections) {
+            while (!idleConnections.isEmpty()) {
+                Connection conn = idleConnections.removeFirst();
+                if (!conn.isClosed())
+                    return conn;
+            }
+        }
+        return DriverManager.getConnection(connectString);
+    }
+
+    /**
+     * Return a connection for reuse, or close it if enough are already idle.
+     *
+     * @param conn the connection
+     */
+    private void releaseConnection(Connection conn) {
+        try {
+            if (conn.isClosed())
+                return;
+            if (!conn.getAutoCommit()) {
+                conn.rollback();
+                conn.setAutoCommit(true);
+            }
+            synchronized (idleConnections) {
+                if (idleConnections.size() < MAX_IDLE_CONNECTIONS) {
+                    idleConnections.add(conn);
+                    return;
+                }
+            }
+            conn.close();
+        } catch (SQLException sqlEx) {
+            try {
+                conn.close();
+            } catch (SQLException ignored) { }
+        }
+    }
+
+    /**
+     * Close any idle connections. Connections are opened again as needed, so this object
+     * can still be used afterwards.
+     */
+    public void close() {
+        synchronized (idleConnections) {
+            for (Connection conn : idleConnections) {
+                try {
+                    conn.close();
+                } catch (SQLException sqlEx) { }
+            }
+            idleConnections.clear();
+        }
+    }
+
     /**
      * A convenient way to build closures to handle results from
      * SQL queries and updates.
@@ -81,7 +173,7 @@ public class MysqlInterface implements StructureDatabase {
         Statement stmt = null;
         ResultSet rs = null;
         try {
-            conn = DriverManager.getConnection(connectString);
+            conn = getConnection();
             stmt = conn.createStatement();
             if (stmt.execute(queryString)) {
                 rs = stmt.getResultSet();
@@ -123,9 +215,7 @@ public class MysqlInterface implements StructureDatabase {
                 stmt = null;
             }
             if (conn != null) {
-                try {
-                    conn.close();
-                } catch (SQLException sqlEx) { }
+                releaseConnection(conn);
                 conn = null;
             }
         }
@@ -152,21 +242,33 @@ public class MysqlInterface implements StructureDatabase {
          * @see net.willware.eurydice.db.MysqlInterface.ResultSetHandler#handleResult(java.sql.ResultSet)
          */
         public void handleResult(ResultSet rs) throws SQLException {
-            Atom a = ElementFactory.getInstance().get(rs.getString("element"));
-            String hyb = rs.getString("hybridization");
-            if      ("NONE".equals(hyb)) a.setHybridization(Atom.NONE);
-            else if ("SP".equals(hyb))   a.setHybridization(Atom.SP);
-            else if ("SP2".equals(hyb))  a.setHybridization(Atom.SP2);
-            else                         a.setHybridization(Atom.SP3);
-            a.setPosition(new Vector(rs.getDouble("x"),
-                                     rs.getDouble("y"),
-                                     rs.getDouble("z")));
-            // TODO: fix dependency injection here
-            ((AtomMutable)a).setUniqueId(new UniqueIdSettableImpl((int) rs.getLong("id")));
-            struc.addAtom(a);
+            struc.addAtom(atomFromRow(rs));
         }
     }
 
+    /**
+     * Make an atom from the current row of a query on the atoms table.
+     *
+     * @param rs the result set
+     * @return the atom
+     * @throws SQLException if anything goes wrong
+     */
+    private static Atom atomFromRow(ResultSet rs) throws SQLException {
+        Atom a = ElementFactory.getInstance().get(rs.getString("element"));
+        String hyb = rs.getString("hybridization");
+        if      ("NONE".equals(hyb)) a.setHybridization(Atom.NONE);
+        else if ("SP".equals(hyb))   a.setHybridization(Atom.SP);
+        else if ("SP2".equals(hyb))  a.setHybridization(Atom.SP2);
+        else                         a.setHybridization(Atom.SP3);
+        a.setPosition(new Vector(rs.getDouble("x"),
+                                 rs.getDouble("y"),
+                                 rs.getDouble("z")));
+        UniqueIdSettable id = (UniqueIdSettable) UniqueId.newInstance();
+        id.setNumericValue((int) rs.getLong("id"));
+        ((AtomMutable)a).setUniqueId(id);
+        return a;
+    }
+
     /**
      * AddJigHandler handles the addition of jigs to a structure as they are read out of the database.
      */
@@ -244,68 +346,216 @@ public class MysqlInterface implements StructureDatabase {
      */
     @Override
     public Structure fetchByRegion(UniqueId id, Region r) {
-        Vector vmin = r.getMinCorner();
-        Vector vmax = r.getMaxCorner();
         StructureMutableImpl struc = new StructureMutableImpl();
         struc.setParentUniqueId(id);
+        Iterator<Atom> atoms = iterateByRegion(id, r);
+        while (atoms.hasNext())
+            struc.addAtom(atoms.next());
         StructureIdFetchHandler fetcher = new StructureIdFetchHandler();
-        sqlQuery("SELECT * FROM structures WHERE uid=" + id.toInteger(), fetcher, false);
-        long strucId = fetcher.getId();
-        sqlQuery("SELECT * FROM atoms WHERE structureId=" + strucId +
-                 " AND x >= " + vmin.getX() + " AND x < " + vmax.getX() +
-                 " AND y >= " + vmin.getY() + " AND y < " + vmax.getY() +
-                 " AND z >= " + vmin.getZ() + " AND z < " + vmax.getZ(),
-                 new AddAtomHandler(struc), false);
-        sqlQuery("SELECT * FROM jigs WHERE structureId=" + strucId,
+        sqlQuery("SELECT * FROM structures WHERE uid=\"" + id.toInteger() + "\"", fetcher, false);
+        sqlQuery("SELECT * FROM jigs WHERE structureId=" + fetcher.getId(),
                  new AddJigHandler(struc), false);
         return struc;
     }
 
-    /* (non-Javadoc)
-     * @see net.willware.eurydice.db.StructureDatabase#store(net.willware.eurydice.core.Structure)
+    /**
+     * Iterate over the atoms within a region. A background thread runs the queries and
+     * reads the results a block of rows at a time, handing atoms to the returned
+     * {@link BlockingAtomIterator} through a bounded FIFO, so the whole region never
+     * needs to be in memory at once. The region is turned into ranges of {@link TileKey}s,
+     * and each range is one scan of the index on the tile column, so only the tiles
+     * overlapping the region are read.
+     *
+     * @param id a unique ID for the structure being fetched
+     * @param r the region within which atoms are being fetched
+     * @return an iterator over the atoms, which can be closed early
+     */
+    @Override
+    public BlockingAtomIterator iterateByRegion(final UniqueId id, Region r) {
+        final Vector vmin = r.getMinCorner();
+        final Vector vmax = r.getMaxCorner();
+        final long[] tiles = TileKey.ranges(r, MAX_TILE_RANGES);
+        return new BlockingAtomIterator(QUEUE_SIZE, new BlockingAtomIterator.Producer() {
+            public void produce(BlockingAtomIterator sink) throws Exception {
+                Connection conn = getConnection();
+                PreparedStatement select = null;
+                ResultSet rs = null;
+                try {
+                    // some drivers only stream results inside a transaction
+                    conn.setAutoCommit(false);
+                    long strucId = findStructure(conn, "" + id.toInteger());
+                    if (strucId < 0)
+                        return;
+                    select = conn.prepareStatement(
+                        "SELECT * FROM atoms WHERE structureId=? AND tile >= ? AND tile <= ?" +
+                        " AND x >= ? AND x < ? AND y >= ? AND y < ? AND z >= ? AND z < ?",
+                        ResultSet.TYPE_FORWARD_ONLY, ResultSet.CONCUR_READ_ONLY);
+                    select.setFetchSize(FETCH_SIZE);
+                    select.setLong(1, strucId);
+                    select.setDouble(4, vmin.getX());
+                    select.setDouble(5, vmax.getX());
+                    select.setDouble(6, vmin.getY());
+                    select.setDouble(7, vmax.getY());
+                    select.setDouble(8, vmin.getZ());
+                    select.setDouble(9, vmax.getZ());
+                    for (int i = 0; i < tiles.length; i += 2) {
+                        select.setLong(2, tiles[i]);
+                        select.setLong(3, tiles[i + 1]);
+                        rs = select.executeQuery();
+                        while (rs.next())
+                            if (!sink.put(atomFromRow(rs)))
+                                return;
+                        rs.close();
+                        rs = null;
+                    }
+                } finally {
+                    if (rs != null)
+                        rs.close();
+                    if (select != null)
+                        select.close();
+                    releaseConnection(conn);
+                }
+            }
+        });
+    }
+
+    /**
+     * Store a structure in a single transaction. Atoms and jigs are written with batched
+     * prepared statements, replacing any earlier versions with the same IDs, so storing a
+     * big structure takes a few round trips per thousand atoms rather than two per atom.
+     * If anything goes wrong, nothing is stored.
+     *
+     * @param s the structure to be stored
+     * @return true if the structure was stored
      */
     @Override
     public boolean store(Structure s) {
-        // create this structure if it doesn't already exist, ignore error if it does
-        UniqueId pid = s.getParentUniqueId();
-        String idString = "\"" + s.getUniqueId().toInteger() + "\"";
-        String metadataString = "\"" + s.getMetadata() + "\"";
-        if (pid != null) {
-            String parentIdString = "\"" + pid + "\"";
-            sqlQuery("INSERT INTO structures (id,parentId,metadata) VALUES (" +
-                     idString + "," + parentIdString + "," + metadataString + ")",
-                     null, true);
-        } else {
-            sqlQuery("INSERT INTO structures (id,metadata) VALUES (" +
-                     idString + "," + metadataString + ")", null, true);
+        Connection conn = null;
+        try {
+            conn = getConnection();
+            conn.setAutoCommit(false);
+            long strucId = findOrCreateStructure(conn, s);
+            storeAtoms(conn, strucId, s);
+            storeJigs(conn, strucId, s);
+            conn.commit();
+            return true;
+        } catch (SQLException ex) {
+            System.out.println("SQLException: " + ex.getMessage());
+            System.out.println("SQLState: " + ex.getSQLState());
+            System.out.println("VendorError: " + ex.getErrorCode());
+            return false;
+        } finally {
+            // rolls back anything uncommitted
+            if (conn != null)
+                releaseConnection(conn);
         }
-        // get the mysql-assigned ID (distinct from user-assigned unique ID) for the structure
-        StructureIdFetchHandler fetcher = new StructureIdFetchHandler();
-        sqlQuery("SELECT * FROM structures WHERE uid=" + idString, fetcher, false);
-        long strucId = fetcher.getId();
-        // store atoms, deleting any previous versions of them first
-        Iterator<Atom> atomiter = s.getIterator();
-        while (atomiter.hasNext()) {
-            Atom a = atomiter.next();
-            sqlQuery("DELETE FROM atoms WHERE structureId=" + strucId +
-                     " AND id=" + a.getUniqueId(), null, false);
-            Vector p = a.getPosition();
-            sqlQuery("INSERT INTO atoms (id,structureId,element,hybridization,x,y,z) VALUES (" +
-                     a.getUniqueId() + "," + strucId + ",\"" + a.getSymbol() + "\"," +
-                     "\"" + a.getHybridizationString() + "\"," +
-                     p.getX() + "," + p.getY() + "," + p.getZ() + ")", null, false);
+    }
+
+    /**
+     * Get the database-assigned ID (distinct from the user-assigned unique ID) for a
+     * structure, creating a row for the structure if there isn't one yet.
+     */
+    private long findOrCreateStructure(Connection conn, Structure s) throws SQLException {
+        String uid = "" + s.getUniqueId().toInteger();
+        long strucId = findStructure(conn, uid);
+        if (strucId >= 0)
+            return strucId;
+        PreparedStatement insert = conn.prepareStatement(
+            "INSERT INTO structures (uid,parentId,metadata) VALUES (?,?,?)");
+        try {
+            UniqueId pid = s.getParentUniqueId();
+            insert.setString(1, uid);
+            insert.setString(2, (pid == null) ? null : pid.toString());
+            insert.setString(3, "" + s.getMetadata());
+            insert.executeUpdate();
+        } finally {
+            insert.close();
+        }
+        return findStructure(conn, uid);
+    }
+
+    private long findStructure(Connection conn, String uid) throws SQLException {
+        PreparedStatement select = conn.prepareStatement("SELECT id FROM structures WHERE uid=?");
+        try {
+            select.setString(1, uid);
+            ResultSet rs = select.executeQuery();
+            try {
+                return rs.next() ? rs.getLong(1) : -1;
+            } finally {
+                rs.close();
+            }
+        } finally {
+            select.close();
         }
-        // delete any jigs with the same IDs of these jigs, then store jigs
+    }
+
+    private void storeAtoms(Connection conn, long strucId, Structure s) throws SQLException {
+        PreparedStatement delete = conn.prepareStatement(
+            "DELETE FROM atoms WHERE structureId=? AND id=?");
+        PreparedStatement insert = conn.prepareStatement(
+            "INSERT INTO atoms (id,structureId,element,hybridization,x,y,z,tile) " +
+            "VALUES (?,?,?,?,?,?,?,?)");
+        try {
+            int pending = 0;
+            Iterator<Atom> atomiter = s.getIterator();
+            while (atomiter.hasNext()) {
+                Atom a = atomiter.next();
+                int id = a.getUniqueId().toInteger();
+                delete.setLong(1, strucId);
+                delete.setInt(2, id);
+                delete.addBatch();
+                Vector p = a.getPosition();
+                insert.setInt(1, id);
+                insert.setLong(2, strucId);
+                insert.setString(3, a.getSymbol());
+                insert.setString(4, a.getHybridizationString());
+                insert.setDouble(5, p.getX());
+                insert.setDouble(6, p.getY());
+                insert.setDouble(7, p.getZ());
+                insert.setLong(8, TileKey.key(p));
+                insert.addBatch();
+                if (++pending == BATCH_SIZE) {
+                    delete.executeBatch();
+                    insert.executeBatch();
+                    pending = 0;
+                }
+            }
+            if (pending > 0) {
+                delete.executeBatch();
+                insert.executeBatch();
+            }
+        } finally {
+            delete.close();
+            insert.close();
+        }
+    }
+
+    private void storeJigs(Connection conn, long strucId, Structure s) throws SQLException {
         int numJigs = s.numJigs();
-        for (int i = 0; i < numJigs; i++) {
-            Jig j = s.getJig(i);
-            sqlQuery("DELETE FROM jigs WHERE structureId=" + strucId +
-                     " AND id=" + i, null, false);
-            sqlQuery("INSERT INTO jigs (id,structureId,jigtype,properties) VALUES (" +
-                     i + "," + strucId + ",\"" + j.getClass() + "\"," +
-                     "\"" + j.getProperties() + "\")", null, false);
+        if (numJigs == 0)
+            return;
+        PreparedStatement delete = conn.prepareStatement(
+            "DELETE FROM jigs WHERE structureId=? AND id=?");
+        PreparedStatement insert = conn.prepareStatement(
+            "INSERT INTO jigs (id,structureId,jigtype,properties) VALUES (?,?,?,?)");
+        try {
+            for (int i = 0; i < numJigs; i++) {
+                Jig j = s.getJig(i);
+                delete.setLong(1, strucId);
+                delete.setInt(2, i);
+                delete.addBatch();
+                insert.setInt(1, i);
+                insert.setLong(2, strucId);
+                insert.setString(3, "" + j.getClass());
+                insert.setString(4, "" + j.getProperties());
+                insert.addBatch();
+            }
+            delete.executeBatch();
+            insert.executeBatch();
+        } finally {
+            delete.close();
+            insert.close();
         }
-        return true;
     }
 
     /**
@@ -1,5 +1,8 @@
 package net.willware.eurydice.db;
 
+import java.util.Iterator;
+
+import net.willware.eurydice.core.Atom;
 import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.core.UniqueId;
 import net.willware.eurydice.math.Region;
@@ -38,4 +41,15 @@ public interface StructureDatabase {
      * @return          the portion of the structure bounded by the region, or null if not found
      */
     public Structure fetchByRegion(UniqueId id, Region r);
+
+    /**
+     * Iterate over the atoms of a structure within a rectangular region of 3-space, without
+     * first gathering them all into memory. This allows processing structures too big to
+     * fit in memory. The iterator's methods may block while atoms are fetched.
+     *
+     * @param id        a unique ID for the structure being fetched
+     * @param r         the {@link Region} within which atoms are being fetched
+     * @return          an iterator over the atoms within the region
+     */
+    public Iterator<Atom> iterateByRegion(UniqueId id, Region r);
 }
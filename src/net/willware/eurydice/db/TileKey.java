@@ -0,0 +1,189 @@
+package net.willware.eurydice.db;
+
+import java.util.Arrays;
+
+import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * Tile keys for the cubical tiling of 3-space used to find atoms by region in the database.
+ * Space is cut into cubes {@link #TILE_SIZE} angstroms on a side, and each cube gets a
+ * 64-bit key made by interleaving the bits of its integer coordinates (a Morton or Z-order
+ * code). Tiles that are close in space tend to have close keys, and every aligned block of
+ * 2<sup>n</sup> tiles on a side covers one contiguous run of keys, so a region can be
+ * turned into a short list of key ranges, each of which is a single index range scan.
+ */
+public class TileKey {
+
+    /** The length of a side of a tile, in angstroms. */
+    public static final double TILE_SIZE = 10.0;
+
+    /** The number of bits in each tile coordinate. */
+    private static final int BITS = 21;
+
+    /** Added to tile coordinates so that negative positions get non-negative coordinates. */
+    private static final int OFFSET = 1 << (BITS - 1);
+
+    /** The largest tile coordinate. Positions beyond it share the tiles at the edge. */
+    private static final int MAX_COORDINATE = (1 << BITS) - 1;
+
+    /** Regions are not divided finer than this many blocks of tiles on a side. */
+    private static final int BLOCKS_PER_SIDE = 16;
+
+    /**
+     * Gets the tile coordinate for a position along one axis.
+     *
+     * @param x the position, in angstroms
+     * @return the tile coordinate
+     */
+    public static int coordinate(double x) {
+        double t = Math.floor(x / TILE_SIZE) + OFFSET;
+        if (t < 0)
+            return 0;
+        if (t > MAX_COORDINATE)
+            return MAX_COORDINATE;
+        return (int) t;
+    }
+
+    /**
+     * Gets the key for a tile, given its coordinates.
+     *
+     * @param i the x tile coordinate
+     * @param j the y tile coordinate
+     * @param k the z tile coordinate
+     * @return the key
+     */
+    public static long key(int i, int j, int k) {
+        return spread(i) | (spread(j) << 1) | (spread(k) << 2);
+    }
+
+    /**
+     * Gets the key for the tile containing a position.
+     *
+     * @param p the position
+     * @return the key
+     */
+    public static long key(Vector p) {
+        return key(coordinate(p.getX()), coordinate(p.getY()), coordinate(p.getZ()));
+    }
+
+    /**
+     * Spread the bits of a tile coordinate out so that two zeroes follow each bit.
+     */
+    private static long spread(int i) {
+        long x = i & MAX_COORDINATE;
+        x = (x | (x << 32)) & 0x001f00000000ffffL;
+        x = (x | (x << 16)) & 0x001f0000ff0000ffL;
+        x = (x | (x << 8))  & 0x100f00f00f00f00fL;
+        x = (x | (x << 4))  & 0x10c30c30c30c30c3L;
+        x = (x | (x << 2))  & 0x1249249249249249L;
+        return x;
+    }
+
+    /**
+     * Find ranges of keys covering every tile that overlaps a region. The ranges may
+     * include some tiles outside the region, so atoms found with them still need to be
+     * checked against the region, but no tile overlapping the region is left out.
+     *
+     * @param r the region
+     * @param maxRanges the most ranges to return; neighboring ranges are merged as needed
+     * @return the first and last keys of each range, in increasing order
+     */
+    public static long[] ranges(Region r, int maxRanges) {
+        Vector vmin = r.getMinCorner();
+        Vector vmax = r.getMaxCorner();
+        int[] box = {
+            coordinate(vmin.getX()), coordinate(vmin.getY()), coordinate(vmin.getZ()),
+            coordinate(vmax.getX()), coordinate(vmax.getY()), coordinate(vmax.getZ())
+        };
+        // Don't look at individual tiles along the edges of a big region. Tiles in blocks
+        // straddling the edge get fetched and filtered out, but the number of ranges stays
+        // bounded no matter how big the region is.
+        int extent = Math.max(box[3] - box[0], Math.max(box[4] - box[1], box[5] - box[2])) + 1;
+        int minLevel = 0;
+        while ((extent >> minLevel) > BLOCKS_PER_SIDE)
+            minLevel++;
+        RangeList list = new RangeList();
+        collect(0, 0, 0, BITS, minLevel, box, list);
+        return list.coarsen(maxRanges);
+    }
+
+    /**
+     * Add the key ranges for a block of tiles 2<sup>level</sup> on a side, recursing into
+     * its eight sub-blocks in key order if it is only partly inside the box.
+     */
+    private static void collect(int i0, int j0, int k0, int level, int minLevel, int[] box,
+                                RangeList list) {
+        int last = (1 << level) - 1;
+        if (i0 > box[3] || i0 + last < box[0] ||
+                j0 > box[4] || j0 + last < box[1] ||
+                k0 > box[5] || k0 + last < box[2])
+            return;
+        boolean inside = i0 >= box[0] && i0 + last <= box[3] &&
+                         j0 >= box[1] && j0 + last <= box[4] &&
+                         k0 >= box[2] && k0 + last <= box[5];
+        if (inside || level <= minLevel) {
+            long first = key(i0, j0, k0);
+            list.add(first, first + (1L << (3 * level)) - 1);
+            return;
+        }
+        int half = 1 << (level - 1);
+        for (int c = 0; c < 8; c++)
+            collect(i0 + (c & 1) * half, j0 + ((c >> 1) & 1) * half, k0 + ((c >> 2) & 1) * half,
+                    level - 1, minLevel, box, list);
+    }
+
+    /**
+     * A growing list of key ranges, added in increasing order.
+     */
+    private static class RangeList {
+
+        /** The first and last keys of each range. */
+        private long[] keys = new long[16];
+
+        /** The number of ranges. */
+        private int size = 0;
+
+        /**
+         * Add a range, merging it with the previous one if they touch.
+         */
+        void add(long first, long last) {
+            if (size > 0 && keys[2 * size - 1] + 1 == first) {
+                keys[2 * size - 1] = last;
+                return;
+            }
+            if (2 * size == keys.length)
+                keys = Arrays.copyOf(keys, 2 * keys.length);
+            keys[2 * size] = first;
+            keys[2 * size + 1] = last;
+            size++;
+        }
+
+        /**
+         * Merge ranges across the smallest gaps until there are no more than a given number.
+         */
+        long[] coarsen(int maxRanges) {
+            if (size <= maxRanges)
+                return Arrays.copyOf(keys, 2 * size);
+            long[] gaps = new long[size - 1];
+            for (int i = 0; i < gaps.length; i++)
+                gaps[i] = keys[2 * i + 2] - keys[2 * i + 1];
+            long[] sorted = gaps.clone();
+            Arrays.sort(sorted);
+            // keep only the widest gaps
+            long threshold = sorted[gaps.length - maxRanges];
+            long[] result = new long[2 * maxRanges];
+            int n = 0;
+            result[0] = keys[0];
+            for (int i = 0; i < gaps.length; i++) {
+                if (gaps[i] > threshold) {
+                    result[2 * n + 1] = keys[2 * i + 1];
+                    n++;
+                    result[2 * n] = keys[2 * i + 2];
+                }
+            }
+            result[2 * n + 1] = keys[2 * size - 1];
+            return Arrays.copyOf(result, 2 * n + 2);
+        }
+    }
+}
@@ -18,7 +18,10 @@ create table `atoms` (
   `x` double NOT NULL,
   `y` double NOT NULL,
   `z` double NOT NULL,
-  UNIQUE(`id`, `structureId`)
+  -- see TileKey, for finding atoms by region
+  `tile` bigint NOT NULL,
+  UNIQUE(`id`, `structureId`),
+  INDEX(`structureId`, `tile`)
 );
 
 create table `jigs` (
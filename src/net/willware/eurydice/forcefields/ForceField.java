@@ -1,5 +1,9 @@
 package net.willware.eurydice.forcefields;
 
+import java.util.List;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Bond;
 import net.willware.eurydice.core.JigMutableImpl;
 
 /**
@@ -13,4 +17,37 @@ public abstract class ForceField extends JigMutableImpl {
      * force field of changes in the structure.
      */
     public abstract void structureChanged();
+
+    /**
+     * Notify the force field that one atom has been added to the structure. A force field
+     * that can update its bookkeeping for just the neighborhood of the atom should override
+     * this; by default the whole structure is treated as changed.
+     *
+     * @param a the atom
+     * @param bonds the bonds between the atom and the rest of the structure
+     */
+    public void atomAdded(Atom a, List<Bond> bonds) {
+        structureChanged();
+    }
+
+    /**
+     * Notify the force field that one atom is being removed from the structure. This is
+     * called while the atom is still in the structure, so its properties can be read. A
+     * force field that can update its bookkeeping for just the neighborhood of the atom
+     * should override this; by default the whole structure is treated as changed.
+     *
+     * @param a the atom
+     * @param bonds the bonds between the atom and the rest of the structure
+     */
+    public void atomRemoved(Atom a, List<Bond> bonds) {
+        structureChanged();
+    }
+
+    /**
+     * Release anything the force field holds outside the heap, such as worker threads. A
+     * structure does this when its force field is replaced. The force field can still be
+     * used afterwards, and takes up what it needs again.
+     */
+    public void close() {
+    }
 }
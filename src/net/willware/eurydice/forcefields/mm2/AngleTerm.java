@@ -6,7 +6,6 @@
 package net.willware.eurydice.forcefields.mm2;
 
 import net.willware.eurydice.core.Atom;
-import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.math.Vector;
 
 // TODO: Auto-generated Javadoc
@@ -37,31 +36,16 @@ public class AngleTerm extends TermImpl {
      * @param a3 the third atom in a chain
      */
     public AngleTerm(Atom a1, Atom a2, Atom a3) {
-        int i;
-        boolean found;
         myAtoms = new Atom[3];
         myAtoms[0] = a1;
         myAtoms[1] = a2;
         myAtoms[2] = a3;
-        for (i = 0, found = false;
-                i < angleCoeffs.length && !found; i++)
-            if ((a1.getAtomicNumber() == angleCoeffs[i][0]
-                    && a1.getHybridization() == angleCoeffs[i][1]
-                    && a2.getAtomicNumber() == angleCoeffs[i][2]
-                    && a2.getHybridization() == angleCoeffs[i][3]
-                    && a3.getAtomicNumber() == angleCoeffs[i][4]
-                    && a3.getHybridization() == angleCoeffs[i][5])
-                    || (a1.getAtomicNumber() == angleCoeffs[i][4]
-                        && a1.getHybridization() == angleCoeffs[i][5]
-                        && a2.getAtomicNumber() == angleCoeffs[i][2]
-                        && a2.getHybridization() == angleCoeffs[i][3]
-                        && a3.getAtomicNumber() == angleCoeffs[i][0]
-                        && a3.getHybridization() == angleCoeffs[i][1])) {
-                found = true;
-                kth = angleCoeffs[i][6];
-                th0 = angleCoeffs[i][7] * radiansPerDegree;
-            }
-        if (!found) {
+        int found = AtomType.lookup(angleIndex, a1, a2, a3);
+        if (found >= 0) {
+            int i = found >> 1;
+            kth = angleCoeffs[i][6];
+            th0 = angleCoeffs[i][7] * radiansPerDegree;
+        } else {
             kth = 0.3;
             th0 = 120.0 * radiansPerDegree;
         }
@@ -77,9 +61,9 @@ public class AngleTerm extends TermImpl {
     }
 
     /* (non-Javadoc)
-     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.core.Structure)
+     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.forcefields.mm2.ForceBuffer)
      */
-    public void computeForces(Structure struc) {
+    public void computeForces(ForceBuffer forces) {
         if (kth == 0.0)
             return;
         // compute forces on each atom, add it to the atom's force vector
@@ -103,9 +87,9 @@ public class AngleTerm extends TermImpl {
          * half-baked tenor of Nanocad's MM2 implementation. It cannot scale to big
          * structures where a 32-bit index would be insufficient.
          */
-        myAtoms[0].addForce(f0);
-        myAtoms[1].addForce(f0.add(f2).negate());
-        myAtoms[2].addForce(f2);
+        addForce(0, f0, forces);
+        addForce(1, f0.add(f2).negate(), forces);
+        addForce(2, f2, forces);
     }
 
     /** Table of coefficients for various triplets of atom types. */
@@ -181,4 +165,7 @@ public class AngleTerm extends TermImpl {
         {C, Atom.SP3, O, Atom.SP2, C, Atom.SP2, 0.770, 113.600},
         {C, Atom.SP2, O, Atom.SP2, C, Atom.SP2, 0.870, 113.950}
     };
+
+    /** The row of {@link #angleCoeffs} for each chain of three atom types, built once from the table. */
+    private final static int[] angleIndex = AtomType.buildIndex(angleCoeffs, 3);
 }
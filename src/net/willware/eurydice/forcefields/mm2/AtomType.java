@@ -0,0 +1,141 @@
+package net.willware.eurydice.forcefields.mm2;
+
+import java.util.Arrays;
+
+import net.willware.eurydice.core.Atom;
+
+/**
+ * MM2 atom types. The parameter tables for lengths, angles, torsions and dipoles are keyed
+ * by element and hybridization, and only a handful of combinations ever appear, so each
+ * combination gets a small integer code. A table row for a chain of atoms can then be
+ * found by indexing an array with the atoms' codes, instead of scanning the whole table
+ * and comparing element and hybridization in both directions.
+ */
+public class AtomType {
+
+    /** The element and hybridization of each atom type, in order of code. */
+    private static final int[][] types = {
+        {Term.H, Atom.NONE},
+        {Term.C, Atom.SP3},
+        {Term.C, Atom.SP2},
+        {Term.C, Atom.SP},
+        {Term.N, Atom.SP3},
+        {Term.N, Atom.SP2},
+        {Term.N, Atom.SP},
+        {Term.O, Atom.SP3},
+        {Term.O, Atom.SP2}
+    };
+
+    /** The number of atom types. */
+    public static final int NUM_TYPES = types.length;
+
+    /** Atom type codes indexed by atomic number and hybridization, -1 for no type. */
+    private static final int[][] codes;
+
+    static {
+        int maxAtomicNumber = 0;
+        for (int[] t : types)
+            maxAtomicNumber = Math.max(maxAtomicNumber, t[0]);
+        codes = new int[maxAtomicNumber + 1][Atom.SP3 + 1];
+        for (int[] row : codes)
+            Arrays.fill(row, -1);
+        for (int i = 0; i < types.length; i++)
+            codes[types[i][0]][types[i][1]] = i;
+    }
+
+    /**
+     * Gets the atom type code for an element and hybridization.
+     *
+     * @param atomicNumber the atomic number
+     * @param hybridization the hybridization
+     * @return the code, or -1 if MM2 has no parameters for this kind of atom
+     */
+    public static int code(int atomicNumber, int hybridization) {
+        if (atomicNumber < 0 || atomicNumber >= codes.length ||
+                hybridization < 0 || hybridization > Atom.SP3)
+            return -1;
+        return codes[atomicNumber][hybridization];
+    }
+
+    /**
+     * Gets the atom type code for an atom.
+     *
+     * @param a the atom
+     * @return the code, or -1 if MM2 has no parameters for this kind of atom
+     */
+    public static int code(Atom a) {
+        return code(a.getAtomicNumber(), a.getHybridization());
+    }
+
+    /**
+     * Build an index for a parameter table whose rows begin with the atomic number and
+     * hybridization of each atom in a chain. A chain matches a row read either forwards or
+     * backwards, and the first matching row wins, just as if the table were searched from
+     * the top. Each entry of the index is twice the row number, plus one if the chain
+     * matched the row backwards, or -1 if no row matches.
+     *
+     * @param table the parameter table
+     * @param chainLength the number of atoms in the chain, 2 to 4
+     * @return the index, to be used with one of the <code>lookup</code> methods
+     */
+    public static int[] buildIndex(double[][] table, int chainLength) {
+        int size = 1;
+        for (int k = 0; k < chainLength; k++)
+            size *= NUM_TYPES;
+        int[] index = new int[size];
+        Arrays.fill(index, -1);
+        for (int i = 0; i < table.length; i++) {
+            int forward = 0, backward = 0;
+            for (int k = 0; k < chainLength; k++) {
+                int c = code((int) table[i][2 * k], (int) table[i][2 * k + 1]);
+                if (c < 0)
+                    throw new IllegalStateException("no atom type for row " + i);
+                forward = forward * NUM_TYPES + c;
+            }
+            for (int k = chainLength - 1; k >= 0; k--)
+                backward = backward * NUM_TYPES +
+                           code((int) table[i][2 * k], (int) table[i][2 * k + 1]);
+            if (index[forward] < 0)
+                index[forward] = 2 * i;
+            if (index[backward] < 0)
+                index[backward] = 2 * i + 1;
+        }
+        return index;
+    }
+
+    /**
+     * Look up a pair of atoms in an index made by {@link #buildIndex}.
+     *
+     * @return the index entry, or -1 if there is no matching row
+     */
+    public static int lookup(int[] index, Atom a1, Atom a2) {
+        int c1 = code(a1), c2 = code(a2);
+        if (c1 < 0 || c2 < 0)
+            return -1;
+        return index[c1 * NUM_TYPES + c2];
+    }
+
+    /**
+     * Look up a chain of three atoms in an index made by {@link #buildIndex}.
+     *
+     * @return the index entry, or -1 if there is no matching row
+     */
+    public static int lookup(int[] index, Atom a1, Atom a2, Atom a3) {
+        int c1 = code(a1), c2 = code(a2), c3 = code(a3);
+        if (c1 < 0 || c2 < 0 || c3 < 0)
+            return -1;
+        return index[(c1 * NUM_TYPES + c2) * NUM_TYPES + c3];
+    }
+
+    /**
+     * Look up a chain of four atoms in an index made by {@link #buildIndex}.
+     *
+     * @return the index entry, or -1 if there is no matching row
+     */
+    public static int lookup(int[] index, Atom a1, Atom a2, Atom a3, Atom a4) {
+        int c1 = code(a1), c2 = code(a2), c3 = code(a3), c4 = code(a4);
+        if (c1 < 0 || c2 < 0 || c3 < 0 || c4 < 0)
+            return -1;
+        return index[((c1 * NUM_TYPES + c2) * NUM_TYPES + c3) * NUM_TYPES + c4];
+    }
+}
@@ -0,0 +1,148 @@
+package net.willware.eurydice.forcefields.mm2;
+
+import java.util.Arrays;
+
+/**
+ * A set of unordered pairs of atom IDs, used to remember which pairs of atoms are too
+ * closely bonded to feel non-bonded forces. Each pair is packed into a single long and
+ * kept in an open-addressed hash table, so adding and looking up a pair take constant
+ * time and allocate nothing.
+ */
+public class ExclusionSet {
+
+    /** Marks an unused slot. No real key can have this value since IDs are non-negative. */
+    private static final long EMPTY = -1L;
+
+    /** The hash table, whose length is always a power of two. */
+    private long[] keys;
+
+    /** The number of pairs in the set. */
+    private int size;
+
+    /**
+     * Constructor.
+     */
+    public ExclusionSet() {
+        keys = new long[64];
+        Arrays.fill(keys, EMPTY);
+    }
+
+    /**
+     * Pack two atom IDs into a key, smaller one first, so that (a, b) and (b, a) are the
+     * same pair.
+     */
+    private static long key(int id1, int id2) {
+        if (id1 > id2) {
+            int temp = id1;
+            id1 = id2;
+            id2 = temp;
+        }
+        return ((long) id1 << 32) | (id2 & 0xffffffffL);
+    }
+
+    private int slot(long key) {
+        long h = key * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32)) & (keys.length - 1);
+    }
+
+    /**
+     * Add a pair to the set.
+     *
+     * @param id1 the ID of one atom
+     * @param id2 the ID of the other atom
+     * @return true if the pair was not already in the set
+     */
+    public boolean add(int id1, int id2) {
+        if (2 * (size + 1) > keys.length)
+            grow();
+        return insert(key(id1, id2));
+    }
+
+    private boolean insert(long key) {
+        int mask = keys.length - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return false;
+            if (keys[i] == EMPTY) {
+                keys[i] = key;
+                size++;
+                return true;
+            }
+        }
+    }
+
+    private void grow() {
+        long[] old = keys;
+        keys = new long[2 * old.length];
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+        for (long k : old)
+            if (k != EMPTY)
+                insert(k);
+    }
+
+    /**
+     * Is a pair in the set?
+     *
+     * @param id1 the ID of one atom
+     * @param id2 the ID of the other atom
+     * @return true if the pair is in the set
+     */
+    public boolean contains(int id1, int id2) {
+        long key = key(id1, id2);
+        int mask = keys.length - 1;
+        for (int i = slot(key); ; i = (i + 1) & mask) {
+            if (keys[i] == key)
+                return true;
+            if (keys[i] == EMPTY)
+                return false;
+        }
+    }
+
+    /**
+     * Remove a pair from the set. The pairs after it in the same run of occupied slots
+     * are shifted back, so lookups never need to skip over removed slots.
+     *
+     * @param id1 the ID of one atom
+     * @param id2 the ID of the other atom
+     * @return true if the pair was in the set
+     */
+    public boolean remove(int id1, int id2) {
+        long key = key(id1, id2);
+        int mask = keys.length - 1;
+        int i = slot(key);
+        while (keys[i] != key) {
+            if (keys[i] == EMPTY)
+                return false;
+            i = (i + 1) & mask;
+        }
+        for (int j = (i + 1) & mask; keys[j] != EMPTY; j = (j + 1) & mask) {
+            // a pair may move into the hole if its home slot isn't between the hole and it
+            int home = slot(keys[j]);
+            if (((j - home) & mask) >= ((j - i) & mask)) {
+                keys[i] = keys[j];
+                i = j;
+            }
+        }
+        keys[i] = EMPTY;
+        size--;
+        return true;
+    }
+
+    /**
+     * Remove all pairs from the set.
+     */
+    public void clear() {
+        Arrays.fill(keys, EMPTY);
+        size = 0;
+    }
+
+    /**
+     * Gets the number of pairs in the set.
+     *
+     * @return the number of pairs
+     */
+    public int size() {
+        return size;
+    }
+}
@@ -0,0 +1,85 @@
+package net.willware.eurydice.forcefields.mm2;
+
+import java.util.Arrays;
+
+import net.willware.eurydice.math.Vector;
+
+/**
+ * A private place for one thread to accumulate forces while several threads compute
+ * forces at once. Forces are kept in a primitive array indexed by the atom's position in
+ * the structure's atom array, and added into the atoms themselves afterwards, so threads
+ * never write to the same atom at the same time.
+ */
+public class ForceBuffer {
+
+    /** The x, y and z force components of each atom, one after another. */
+    private double[] f = new double[0];
+
+    /**
+     * Zero the buffer and make sure it has room for some number of atoms.
+     *
+     * @param numAtoms the number of atoms
+     */
+    public void clear(int numAtoms) {
+        if (f.length < 3 * numAtoms)
+            f = new double[3 * numAtoms];
+        else
+            Arrays.fill(f, 0, 3 * numAtoms, 0.0);
+    }
+
+    /**
+     * Add a force to an atom.
+     *
+     * @param index the atom's index in the atom array
+     * @param force the force to add
+     */
+    public void add(int index, Vector force) {
+        f[3 * index] += force.getX();
+        f[3 * index + 1] += force.getY();
+        f[3 * index + 2] += force.getZ();
+    }
+
+    /**
+     * Add a force to an atom, given as components.
+     *
+     * @param index the atom's index in the atom array
+     * @param fx the x component of the force
+     * @param fy the y component of the force
+     * @param fz the z component of the force
+     */
+    public void add(int index, double fx, double fy, double fz) {
+        f[3 * index] += fx;
+        f[3 * index + 1] += fy;
+        f[3 * index + 2] += fz;
+    }
+
+    /**
+     * Gets the x component of an atom's accumulated force.
+     *
+     * @param index the atom's index in the atom array
+     * @return the x component
+     */
+    public double getX(int index) {
+        return f[3 * index];
+    }
+
+    /**
+     * Gets the y component of an atom's accumulated force.
+     *
+     * @param index the atom's index in the atom array
+     * @return the y component
+     */
+    public double getY(int index) {
+        return f[3 * index + 1];
+    }
+
+    /**
+     * Gets the z component of an atom's accumulated force.
+     *
+     * @param index the atom's index in the atom array
+     * @return the z component
+     */
+    public double getZ(int index) {
+        return f[3 * index + 2];
+    }
+}
@@ -8,7 +8,6 @@ package net.willware.eurydice.forcefields.mm2;
 import java.lang.Math;
 
 import net.willware.eurydice.core.Atom;
-import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.math.*;
 
 /**
@@ -34,26 +33,15 @@ public class LengthTerm extends TermImpl {
      * @param a2 the second atom
      */
     public LengthTerm(Atom a1, Atom a2) {
-        int i;
-        boolean found;
         myAtoms = new Atom[2];
         myAtoms[0] = a1;
         myAtoms[1] = a2;
-        for (i = 0, found = false;
-                i < lengthCoeffs.length && !found; i++)
-            if ((a1.getAtomicNumber() == lengthCoeffs[i][0]
-                    && a1.getHybridization() == lengthCoeffs[i][1]
-                    && a2.getAtomicNumber() == lengthCoeffs[i][2]
-                    && a2.getHybridization() == lengthCoeffs[i][3])
-                    || (a1.getAtomicNumber() == lengthCoeffs[i][2]
-                        && a1.getHybridization() == lengthCoeffs[i][3]
-                        && a2.getAtomicNumber() == lengthCoeffs[i][0]
-                        && a2.getHybridization() == lengthCoeffs[i][1])) {
-                found = true;
-                ks = lengthCoeffs[i][4];
-                r0 = lengthCoeffs[i][5];
-            }
-        if (!found) {
+        int found = AtomType.lookup(lengthIndex, a1, a2);
+        if (found >= 0) {
+            int i = found >> 1;
+            ks = lengthCoeffs[i][4];
+            r0 = lengthCoeffs[i][5];
+        } else {
             // something innocuous
             ks = 2.0;
             r0 = 1.2;
@@ -126,13 +114,15 @@ public class LengthTerm extends TermImpl {
         0.5 * rthresh * rthresh * (1 - kcubic * rthresh);
     */
     /* (non-Javadoc)
-     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.core.Structure)
+     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.forcefields.mm2.ForceBuffer)
      */
-    public void computeForces(Structure struc) {
+    public void computeForces(ForceBuffer forces) {
         // compute forces on each atom, add it to the atom's force vector
         double m;
-        Vector diff = myAtoms[0].getPosition().subtract(myAtoms[1].getPosition());
-        double r = diff.length();
+        double dx = myAtoms[0].getX() - myAtoms[1].getX();
+        double dy = myAtoms[0].getY() - myAtoms[1].getY();
+        double dz = myAtoms[0].getZ() - myAtoms[1].getZ();
+        double r = Math.sqrt(dx * dx + dy * dy + dz * dz);
         double rdiff = (r - r0); // , expr;
         if (rdiff < rthresh)
             m = ks * rdiff * (1 - 1.5 * kcubic * rdiff);
@@ -141,14 +131,13 @@ public class LengthTerm extends TermImpl {
         // at this point, m is du/dr
         m /= r;
         // m > 0 attract, m < 0 repel
-        Vector f = diff.scale(m);
         /**
          * NOTE that these indices are INTS, not LONGS, reflecting the limited and
          * half-baked tenor of Nanocad's MM2 implementation. It cannot scale to big
          * structures where a 32-bit index would be insufficient.
          */
-        myAtoms[0].addForce(f.negate());
-        myAtoms[1].addForce(f);
+        addForce(0, -m * dx, -m * dy, -m * dz, forces);
+        addForce(1, m * dx, m * dy, m * dz, forces);
     }
 
     // Coefficient data
@@ -179,4 +168,7 @@ public class LengthTerm extends TermImpl {
         {N, Atom.SP3, N, Atom.SP3, 5.600, 1.381},
         {N, Atom.SP3, H, Atom.NONE, 6.100, 1.045}
     };
+
+    /** The row of {@link #lengthCoeffs} for each pair of atom types, built once from the table. */
+    private final static int[] lengthIndex = AtomType.buildIndex(lengthCoeffs, 2);
 }
@@ -5,13 +5,11 @@
 
 package net.willware.eurydice.forcefields.mm2;
 
-import java.util.ArrayList;
 import java.util.List;
 
 import net.willware.eurydice.core.Atom;
 import net.willware.eurydice.core.Bond;
 import net.willware.eurydice.core.Structure;
-import net.willware.eurydice.math.Vector;
 
 /**
  * An energy term involving long-range electrostatic and Van der Waals interactions.
@@ -26,49 +24,96 @@ public class LongRangeForces {
     /** The bonds. */
     List<Bond> bonds;
 
+    /** Pairs of atoms close enough to interact, rebuilt only when atoms move far enough. */
+    private NeighborList neighbors;
+
+    /** The atoms of the structure, indexed the same way as the neighbor list. */
+    private Atom[] atoms;
+
     public LongRangeForces(Structure struc) {
         this.struc = struc;
+        neighbors = new NeighborList(MM2.DEFAULT_CUTOFF, MM2.DEFAULT_SKIN);
     }
 
-    private class AtomPair {
-        private Atom a1;
-        private Atom a2;
-        public AtomPair(Atom a1, Atom a2) {
-            if (a1.getUniqueId().compareTo(a2.getUniqueId()) >= 0) {
-                Atom temp = a2;
-                a2 = a1;
-                a1 = temp;
-            }
-            this.a1 = a1;
-            this.a2 = a2;
-        }
-        public String toString() {
-            return "<Pair " + a1 + " " + a2 + ">";
-        }
-        public boolean equals(Object obj) {
-            try {
-                AtomPair pair2 = (AtomPair) obj;
-                return (a1.getUniqueId().equals(pair2.a1.getUniqueId()) &&
-                        a2.getUniqueId().equals(pair2.a2.getUniqueId()));
-            } catch (Exception e) {
-                return false;
-            }
-        }
+    /**
+     * Set the cutoff distance beyond which non-bonded forces are ignored, and the skin
+     * distance that determines how often the neighbor list must be rebuilt.
+     *
+     * @param cutoff the cutoff distance in angstroms
+     * @param skin the skin distance in angstroms
+     */
+    public void setCutoff(double cutoff, double skin) {
+        neighbors.setCutoff(cutoff, skin);
+    }
+
+    /**
+     * Gets the neighbor list.
+     *
+     * @return the neighbor list
+     */
+    public NeighborList getNeighborList() {
+        return neighbors;
     }
 
-    private ArrayList<AtomPair> exclusions = new ArrayList<AtomPair>();
+    /**
+     * Forget all the exclusions and the atom list, because the topology of the structure
+     * has changed.
+     */
+    public void clear() {
+        exclusions.clear();
+        atoms = null;
+        neighbors.invalidate();
+    }
+
+    /**
+     * Forget the atom list, because atoms have been added or removed, but keep the
+     * exclusions, which are kept up to date piecemeal.
+     */
+    public void atomsChanged() {
+        atoms = null;
+        neighbors.invalidate();
+    }
 
+    /** Leaves bonded pairs out of the neighbor list. */
+    private NeighborList.PairFilter exclusionFilter = new NeighborList.PairFilter() {
+        public boolean accept(Atom a1, Atom a2) {
+            return !hasExclusion(a1, a2);
+        }
+    };
+
+    /** Pairs of atoms that are bonded, or bonded to a common atom. */
+    private ExclusionSet exclusions = new ExclusionSet();
+
+    /**
+     * Exclude a pair of atoms from non-bonded forces, because they are bonded to each other
+     * or to a common atom, so bonded terms already account for their interaction.
+     *
+     * @param a1 the first atom
+     * @param a2 the second atom
+     */
     public void addExclusion(Atom a1, Atom a2) {
-        AtomPair pair = new AtomPair(a1, a2);
-        // if (DEBUG) System.out.println("add " + pair);
-        if (!exclusions.contains(pair))
-            exclusions.add(pair);
+        exclusions.add(a1.getUniqueId().toInteger(), a2.getUniqueId().toInteger());
+    }
+
+    /**
+     * Stop excluding a pair of atoms from non-bonded forces.
+     *
+     * @param a1 the first atom
+     * @param a2 the second atom
+     */
+    public void removeExclusion(Atom a1, Atom a2) {
+        exclusions.remove(a1.getUniqueId().toInteger(), a2.getUniqueId().toInteger());
     }
 
+    /**
+     * Is this pair of atoms excluded from non-bonded forces?
+     *
+     * @param a1 the first atom
+     * @param a2 the second atom
+     * @return true if the pair is excluded
+     */
     public boolean hasExclusion(Atom a1, Atom a2) {
-        AtomPair pair = new AtomPair(a1, a2);
-        // if (DEBUG) System.out.println("check " + pair);
-        return exclusions.contains(pair);
+        return exclusions.contains(a1.getUniqueId().toInteger(), a2.getUniqueId().toInteger());
     }
 
     // TODO figure out correct constant for dipole charge assignments
@@ -79,57 +124,89 @@ public class LongRangeForces {
      * on each atom.
      */
     private void hackCharges() {
-        int i, j, k;
-        final int n = (int) struc.size();
-        boolean found;
-        Atom a1, a2;
-
-        for (j = 0; j < n; j++) {
-            a1 = struc.get(j);
-            for (k = j + 1; k < n; k++) {
-                a2 = struc.get(k);
-                for (i = 0, found = false;
-                        i < dipoleMoments.length && !found;
-                        i++) {
-                    if (a1.getAtomicNumber() == dipoleMoments[i][0] &&
-                            a1.getHybridization() == dipoleMoments[i][1] &&
-                            a2.getAtomicNumber() == dipoleMoments[i][2] &&
-                            a2.getHybridization() == dipoleMoments[i][3]) {
-                        double diffCharge = dontKnowCorrectUnits * dipoleMoments[i][4];
-                        found = true;
-                        a1.setFractionalCharge(a1.getFractionalCharge() + diffCharge);
-                        a2.setFractionalCharge(a2.getFractionalCharge() - diffCharge);
-                    } else if (a1.getAtomicNumber() == dipoleMoments[i][2] &&
-                               a1.getHybridization() == dipoleMoments[i][3] &&
-                               a2.getAtomicNumber() == dipoleMoments[i][0] &&
-                               a2.getHybridization() == dipoleMoments[i][1]) {
-                        double diffCharge = dontKnowCorrectUnits * dipoleMoments[i][4];
-                        found = true;
-                        a1.setFractionalCharge(a1.getFractionalCharge() - diffCharge);
-                        a2.setFractionalCharge(a2.getFractionalCharge() + diffCharge);
-                    }
-                }
+        Atom[] atoms = getAtoms();
+        final int n = atoms.length;
+        int[] codes = new int[n];
+        for (int j = 0; j < n; j++)
+            codes[j] = AtomType.code(atoms[j]);
+        for (int j = 0; j < n; j++) {
+            if (codes[j] < 0)
+                continue;
+            Atom a1 = atoms[j];
+            for (int k = j + 1; k < n; k++) {
+                if (codes[k] < 0)
+                    continue;
+                int found = dipoleIndex[codes[j] * AtomType.NUM_TYPES + codes[k]];
+                if (found < 0)
+                    continue;
+                Atom a2 = atoms[k];
+                double diffCharge = dontKnowCorrectUnits * dipoleMoments[found >> 1][4];
+                // the row matched the atoms in reverse order
+                if ((found & 1) != 0)
+                    diffCharge = -diffCharge;
+                a1.setFractionalCharge(a1.getFractionalCharge() + diffCharge);
+                a2.setFractionalCharge(a2.getFractionalCharge() - diffCharge);
             }
         }
     }
 
     private static final boolean DEBUG = false;
 
+    /**
+     * Gets the atoms of the structure, in the order used by the neighbor list and by
+     * {@link ForceBuffer}s.
+     *
+     * @return the atom array
+     */
+    public Atom[] getAtoms() {
+        if (atoms == null)
+            atoms = struc.getAtomArray();
+        return atoms;
+    }
+
+    /**
+     * Bring the neighbor list up to date, which must be done before computing forces for
+     * any range of pairs.
+     *
+     * @return the number of pairs in the neighbor list
+     */
+    public int updateNeighbors() {
+        neighbors.update(getAtoms(), exclusionFilter);
+        return neighbors.size();
+    }
+
     /* (non-Javadoc)
      * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.core.Structure)
      */
     public void computeForces() {
-        int i, j, n = (int) struc.size();
-        for (i = 0; i < n - 1; i++) {
-            Atom a1 = struc.get(i);
-            for (j = i + 1; j < n; j++) {
-                Atom a2 = struc.get(j);
-                if (!hasExclusion(a1, a2)) {
-                    if (DEBUG)
-                        System.out.println(a1 + " " + a2);
-                    else
-                        computeForces(a1, a2);
-                }
+        computeForces(null, 0, updateNeighbors());
+    }
+
+    /**
+     * Compute non-bonded forces for a range of pairs in the neighbor list. Different ranges
+     * may be done by different threads at once, as long as each has its own buffer.
+     *
+     * @param forces the buffer, or null to add forces directly to the atoms
+     * @param from the index of the first pair
+     * @param to one more than the index of the last pair
+     */
+    public void computeForces(ForceBuffer forces, int from, int to) {
+        double cutoff = neighbors.getCutoff();
+        double cutoff2 = cutoff * cutoff;
+        for (int k = from; k < to; k++) {
+            int i1 = neighbors.getFirst(k);
+            int i2 = neighbors.getSecond(k);
+            Atom a1 = atoms[i1];
+            Atom a2 = atoms[i2];
+            double dx = a1.getX() - a2.getX();
+            double dy = a1.getY() - a2.getY();
+            double dz = a1.getZ() - a2.getZ();
+            double r2 = dx * dx + dy * dy + dz * dz;
+            if (r2 < cutoff2) {
+                if (DEBUG)
+                    System.out.println(a1 + " " + a2);
+                else
+                    computeForces(a1, a2, i1, i2, dx, dy, dz, Math.sqrt(r2), forces);
             }
         }
     }
@@ -148,15 +225,21 @@ public class LongRangeForces {
      *
      * @param a1 the first atom
      * @param a2 the second atom
-     * @param struc the structure the atoms belong to
+     * @param i1 the index of the first atom
+     * @param i2 the index of the second atom
+     * @param dx the x component of the first atom's position less the second's
+     * @param dy the y component of the difference
+     * @param dz the z component of the difference
+     * @param r the distance between the atoms
+     * @param forces the buffer, or null to add forces directly to the atoms
      */
-    private void computeForces(Atom a1, Atom a2) {
+    private void computeForces(Atom a1, Atom a2, int i1, int i2,
+                               double dx, double dy, double dz, double r,
+                               ForceBuffer forces) {
         double rvdw = a1.getVdwRadius() + a2.getVdwRadius();
         double evdw = (a1.getVdwEnergy() + a2.getVdwEnergy()) / 2;
         // let's ignore integer charge for the time being
         //double q1q2 = a1.fractionalCharge * a2.fractionalCharge;
-        Vector diff = a1.getPosition().subtract(a2.getPosition());
-        double r = diff.length();
         double m, r_1, r_2, r_6;
         // m = electricConstant * q1q2 / (r2 * r);
         r_1 = rvdw / r;
@@ -166,9 +249,14 @@ public class LongRangeForces {
         m = -0.012 * evdw * r_1 * r_6 * (r_6 - 1.0);
 
         // m > 0 attract, m < 0 repel
-        Vector f = diff.scale(m);
-        a1.addForce(f.negate());
-        a2.addForce(f);
+        double fx = m * dx, fy = m * dy, fz = m * dz;
+        if (forces == null) {
+            a1.addForce(-fx, -fy, -fz);
+            a2.addForce(fx, fy, fz);
+        } else {
+            forces.add(i1, -fx, -fy, -fz);
+            forces.add(i2, fx, fy, fz);
+        }
     }
 
     /* (non-Javadoc)
@@ -223,4 +311,7 @@ public class LongRangeForces {
         {Term.N, Atom.SP2, Term.N, Atom.SP2, 0.300 / 1.230},
         {Term.O, Atom.SP3, Term.C, Atom.SP3, -2.800 / 1.236}
     };
+
+    /** The row of {@link #dipoleMoments} for each pair of atom types, built once from the table. */
+    private final static int[] dipoleIndex = AtomType.buildIndex(dipoleMoments, 2);
 }
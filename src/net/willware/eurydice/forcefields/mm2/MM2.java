@@ -1,12 +1,24 @@
 package net.willware.eurydice.forcefields.mm2;
 
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import net.willware.eurydice.core.Atom;
 import net.willware.eurydice.core.Bond;
 import net.willware.eurydice.core.BondChainProcessor;
+import net.willware.eurydice.core.Properties;
 import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.core.UniqueId;
 import net.willware.eurydice.core.Structure.AtomProcessor;
@@ -19,6 +31,47 @@ import net.willware.eurydice.forcefields.ForceField;
  */
 public class MM2 extends ForceField {
 
+    /** The property giving the cutoff distance for non-bonded forces, in angstroms. */
+    public static final String CUTOFF = "cutoff";
+
+    /**
+     * The property giving the neighbor list skin distance, in angstroms. A bigger skin means
+     * fewer neighbor list rebuilds but more pairs to check on each step.
+     */
+    public static final String SKIN = "skin";
+
+    /** The default cutoff distance, where the Van der Waals force is well under 1% of its peak. */
+    public static final double DEFAULT_CUTOFF = 8.0;
+
+    /** The default skin distance. */
+    public static final double DEFAULT_SKIN = 1.0;
+
+    /**
+     * The property giving the number of threads used to compute forces. With one thread,
+     * the default, forces are computed in the calling thread exactly as they always were.
+     */
+    public static final String THREADS = "threads";
+
+    /**
+     * The property which, if "true", makes each thread work on a fixed share of the energy
+     * terms, so that forces come out bit-for-bit the same on every run with the same number
+     * of threads. Otherwise threads take work as they become free, which balances the load
+     * better but lets roundoff vary from run to run.
+     */
+    public static final String DETERMINISTIC = "deterministic";
+
+    /** How many terms or pairs a thread takes at a time when threads share work freely. */
+    private static final int CHUNK_SIZE = 256;
+
+    /** Worker threads shouldn't keep the program alive. */
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "MM2 forces");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
     /** A list of the energy terms used to compute forces on the atoms in {@link #struc}. */
     private List<Term> termList;
 
@@ -31,6 +84,37 @@ public class MM2 extends ForceField {
 
     private LongRangeForces longRange;
 
+    /** The bonds of each atom, kept up to date as atoms are added and removed. */
+    private Map<Atom,List<Bond>> bondsOf = new IdentityHashMap<Atom,List<Bond>>();
+
+    /** The terms involving each atom, so an atom's terms are found without a search. */
+    private Map<Atom,List<TermImpl>> termsOf = new IdentityHashMap<Atom,List<TermImpl>>();
+
+    /**
+     * How many terms in {@link #termList} have been removed since the list was last
+     * compacted. Removed terms are only marked, and left for {@link #computeForces()} to
+     * drop, so removing the terms of one atom doesn't take time in proportion to them all.
+     */
+    private int numRemoved;
+
+    /**
+     * Set when terms have been added or atoms have moved around in the atom array, so the
+     * terms' atom indices must be looked up again before computing forces in parallel.
+     */
+    private boolean needsIndexing;
+
+    /**
+     * Worker threads for computing forces in parallel, created when first needed and shut
+     * down by {@link #close()}.
+     */
+    private ExecutorService pool;
+
+    /** The number of threads in {@link #pool}. */
+    private int poolSize;
+
+    /** One force buffer per thread. */
+    private ForceBuffer[] buffers = new ForceBuffer[0];
+
     /**
      * Constructor.
      */
@@ -39,6 +123,90 @@ public class MM2 extends ForceField {
         termList = new ArrayList<Term>();
         longRange = new LongRangeForces(struc);
         hasTopologyChanged = true;
+        setProperties(new Properties());
+    }
+
+    /**
+     * Gets the cutoff distance for non-bonded forces.
+     *
+     * @return the cutoff in angstroms
+     */
+    public double getCutoff() {
+        return getDoubleProperty(CUTOFF, DEFAULT_CUTOFF);
+    }
+
+    /**
+     * Sets the cutoff distance for non-bonded forces.
+     *
+     * @param cutoff the cutoff in angstroms
+     */
+    public void setCutoff(double cutoff) {
+        setProperty(CUTOFF, Double.toString(cutoff));
+    }
+
+    /**
+     * Gets the neighbor list skin distance.
+     *
+     * @return the skin in angstroms
+     */
+    public double getSkin() {
+        return getDoubleProperty(SKIN, DEFAULT_SKIN);
+    }
+
+    /**
+     * Sets the neighbor list skin distance.
+     *
+     * @param skin the skin in angstroms
+     */
+    public void setSkin(double skin) {
+        setProperty(SKIN, Double.toString(skin));
+    }
+
+    /**
+     * Gets the number of threads used to compute forces.
+     *
+     * @return the number of threads
+     */
+    public int getThreads() {
+        String value = getProperties().getProperty(THREADS);
+        if (value == null || value.isEmpty())
+            return 1;
+        return Integer.parseInt(value);
+    }
+
+    /**
+     * Sets the number of threads used to compute forces.
+     *
+     * @param threads the number of threads
+     */
+    public void setThreads(int threads) {
+        setProperty(THREADS, Integer.toString(threads));
+    }
+
+    /**
+     * Are parallel force computations reproducible from run to run?
+     *
+     * @return true if they are
+     */
+    public boolean isDeterministic() {
+        return "true".equals(getProperties().getProperty(DETERMINISTIC));
+    }
+
+    /**
+     * Choose whether parallel force computations are reproducible from run to run.
+     *
+     * @param deterministic true to make them reproducible
+     */
+    public void setDeterministic(boolean deterministic) {
+        setProperty(DETERMINISTIC, Boolean.toString(deterministic));
+    }
+
+    private double getDoubleProperty(String key, double defaultValue) {
+        Properties p = getProperties();
+        String value = (p == null) ? null : p.getProperty(key);
+        if (value == null || value.isEmpty())
+            return defaultValue;
+        return Double.parseDouble(value);
     }
 
     /* (non-Javadoc)
@@ -48,6 +216,67 @@ public class MM2 extends ForceField {
         hasTopologyChanged = true;
     }
 
+    /**
+     * Update the energy terms and exclusions for the neighborhood of a new atom: its own
+     * terms, and those of the atoms bonded to it, whose hybridizations may have changed.
+     * Terms elsewhere in the structure are left alone.
+     *
+     * @param a the atom
+     * @param bonds the bonds between the atom and the rest of the structure
+     */
+    @Override
+    public void atomAdded(Atom a, List<Bond> bonds) {
+        if (hasTopologyChanged)
+            return;
+        Set<Atom> changed = newAtomSet();
+        changed.add(a);
+        for (Bond b : bonds)
+            changed.add(b.otherAtom(a));
+        removeTerms(changed);
+        for (Bond b : bonds) {
+            bondsOf(a).add(b);
+            bondsOf(b.otherAtom(a)).add(b);
+        }
+        addTerms(changed);
+    }
+
+    /**
+     * Update the energy terms and exclusions for the neighborhood of an atom being removed:
+     * its own terms go, as do any exclusions that depended on it, and the terms of the atoms
+     * bonded to it are rebuilt. Terms elsewhere in the structure are left alone.
+     *
+     * @param a the atom
+     * @param bonds the bonds between the atom and the rest of the structure
+     */
+    @Override
+    public void atomRemoved(Atom a, List<Bond> bonds) {
+        if (hasTopologyChanged)
+            return;
+        Set<Atom> changed = newAtomSet();
+        changed.add(a);
+        List<Bond> myBonds = bondsOf(a);
+        for (Bond b : myBonds)
+            changed.add(b.otherAtom(a));
+        removeTerms(changed);
+        // forget exclusions between this atom and anything within two bonds, and between
+        // pairs of its neighbors; any still bonded some other way are added back below
+        for (Bond b1 : myBonds) {
+            Atom x = b1.otherAtom(a);
+            longRange.removeExclusion(a, x);
+            for (Bond b2 : bondsOf(x))
+                if (b2.otherAtom(x) != a)
+                    longRange.removeExclusion(a, b2.otherAtom(x));
+            for (Bond b2 : myBonds)
+                if (b2 != b1)
+                    longRange.removeExclusion(x, b2.otherAtom(a));
+        }
+        for (Bond b : myBonds)
+            bondsOf(b.otherAtom(a)).remove(b);
+        bondsOf.remove(a);
+        changed.remove(a);
+        addTerms(changed);
+    }
+
     /* (non-Javadoc)
      * @see net.willware.eurydice.core.IJig#atomIndices()
      */
@@ -63,53 +292,322 @@ public class MM2 extends ForceField {
      * @see net.willware.eurydice.core.IJig#computeForces(net.willware.eurydice.core.Structure)
      */
     public void computeForces() {
+        // bonds are perceived again if atoms have drifted far, which may change the topology
+        getStructure().inferBonds();
         if (hasTopologyChanged) {
             hasTopologyChanged = false;
             enumerateTerms();
         }
+        if (numRemoved > 0)
+            dropRemovedTerms();
         getStructure().process(new AtomProcessor() {
             public void process(Atom a) {
                 a.zeroForce();
             }
         });
+        longRange.setCutoff(getCutoff(), getSkin());
+        int numThreads = getThreads();
+        if (numThreads > 1) {
+            computeForcesInParallel(numThreads, isDeterministic());
+            return;
+        }
         for (int i = 0; i < termList.size(); i++)
             termList.get(i).computeForces(getStructure());
         longRange.computeForces();
     }
 
+    /**
+     * Compute forces with several threads. The energy terms and the non-bonded pairs are
+     * treated as one long list of work, which is divided among the threads. Each thread
+     * adds forces into its own {@link ForceBuffer}, and then the buffers are summed into
+     * the atoms, again in parallel with each thread taking a share of the atoms. The
+     * buffers are always summed in the same order, so with fixed shares of the work the
+     * results are reproducible.
+     */
+    private void computeForcesInParallel(int numThreads, final boolean deterministic) {
+        if (needsIndexing)
+            indexTerms();
+        final Atom[] atoms = longRange.getAtoms();
+        final int numAtoms = atoms.length;
+        final int numWork = termList.size() + longRange.updateNeighbors();
+        if (buffers.length != numThreads) {
+            buffers = new ForceBuffer[numThreads];
+            for (int t = 0; t < numThreads; t++)
+                buffers[t] = new ForceBuffer();
+        }
+        final AtomicInteger nextChunk = new AtomicInteger();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int t = 0; t < numThreads; t++) {
+            final ForceBuffer forces = buffers[t];
+            final int from = (int) ((long) numWork * t / numThreads);
+            final int to = (int) ((long) numWork * (t + 1) / numThreads);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    forces.clear(numAtoms);
+                    if (deterministic) {
+                        computeForces(forces, from, to);
+                    } else {
+                        int start;
+                        while ((start = nextChunk.getAndAdd(CHUNK_SIZE)) < numWork)
+                            computeForces(forces, start, Math.min(start + CHUNK_SIZE, numWork));
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, numThreads);
+        tasks.clear();
+        for (int t = 0; t < numThreads; t++) {
+            final int from = (int) ((long) numAtoms * t / numThreads);
+            final int to = (int) ((long) numAtoms * (t + 1) / numThreads);
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    for (int i = from; i < to; i++) {
+                        double fx = 0.0, fy = 0.0, fz = 0.0;
+                        for (ForceBuffer b : buffers) {
+                            fx += b.getX(i);
+                            fy += b.getY(i);
+                            fz += b.getZ(i);
+                        }
+                        atoms[i].addForce(fx, fy, fz);
+                    }
+                    return null;
+                }
+            });
+        }
+        runAll(tasks, numThreads);
+    }
+
+    /**
+     * Compute forces for a range of the combined list of energy terms followed by
+     * non-bonded pairs.
+     */
+    private void computeForces(ForceBuffer forces, int from, int to) {
+        int numTerms = termList.size();
+        for (int k = from; k < to && k < numTerms; k++)
+            termList.get(k).computeForces(forces);
+        if (to > numTerms)
+            longRange.computeForces(forces, Math.max(from, numTerms) - numTerms, to - numTerms);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.forcefields.ForceField#close()
+     */
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+            poolSize = 0;
+        }
+    }
+
+    /**
+     * Run tasks on the worker threads and wait for all of them to finish.
+     */
+    private void runAll(List<Callable<Object>> tasks, int numThreads) {
+        if (pool == null || poolSize != numThreads) {
+            if (pool != null)
+                pool.shutdown();
+            pool = Executors.newFixedThreadPool(numThreads, daemonThreads);
+            poolSize = numThreads;
+        }
+        try {
+            for (Future<Object> f : pool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
     /**
      * Enumerate energy terms by finding chains of molecular bonds in the topology of the structure.
      */
     private void enumerateTerms() {
-        int i;
-        List<Bond> bondlist = getStructure().inferBonds();
-        for (i = 0; i < getStructure().size(); i++)
-            getStructure().get(i).rehybridize(bondlist);
+        final List<Bond> bondlist = getStructure().inferBonds();
+        getStructure().process(new AtomProcessor() {
+            public void process(Atom a) {
+                a.rehybridize(bondlist);
+            }
+        });
         termList = new ArrayList<Term>();
-        getStructure().processBondChains(new BondChainProcessor() {
-            public void process2(Atom a1, Atom a2) {
-                if (a1.getUniqueId().compareTo(a2.getUniqueId()) < 0) {
-                    termList.add(new LengthTerm(a1, a2));
-                    // termList.add(new LongRangeTerm(a1, a2));
-                    longRange.addExclusion(a1, a2);
-                }
+        termsOf.clear();
+        numRemoved = 0;
+        longRange.clear();
+        bondsOf.clear();
+        for (Bond b : bondlist) {
+            bondsOf(b.getFirstAtom()).add(b);
+            bondsOf(b.getSecondAtom()).add(b);
+        }
+        getStructure().processBondChains(termMaker);
+    }
+
+    /** Makes the energy terms and exclusions for each chain of bonded atoms. */
+    private final BondChainProcessor termMaker = new BondChainProcessor() {
+        public void process2(Atom a1, Atom a2) {
+            if (a1.getUniqueId().compareTo(a2.getUniqueId()) < 0) {
+                addTerm(new LengthTerm(a1, a2));
+                // termList.add(new LongRangeTerm(a1, a2));
+                longRange.addExclusion(a1, a2);
+            }
+        }
+        public void process3(Atom a1, Atom a2, Atom a3) {
+            if (a1.getUniqueId().compareTo(a2.getUniqueId()) < 0) {
+                addTerm(new AngleTerm(a1, a2, a3));
+                longRange.addExclusion(a1, a3);
+            }
+        }
+        public void process4(Atom a1, Atom a2, Atom a3, Atom a4) {
+            if (a1.getUniqueId().compareTo(a2.getUniqueId()) < 0)
+                addTerm(new TorsionTerm(a1, a2, a3, a4));
+        }
+    };
+
+    private void addTerm(TermImpl term) {
+        termList.add(term);
+        for (Atom a : term.myAtoms) {
+            List<TermImpl> terms = termsOf.get(a);
+            if (terms == null) {
+                terms = new ArrayList<TermImpl>();
+                termsOf.put(a, terms);
             }
-            public void process3(Atom a1, Atom a2, Atom a3) {
-                if (a1.getUniqueId().compareTo(a2.getUniqueId()) < 0) {
-                    termList.add(new AngleTerm(a1, a2, a3));
-                    longRange.addExclusion(a1, a3);
+            terms.add(term);
+        }
+        needsIndexing = true;
+    }
+
+    /**
+     * Look up the atom indices of all the terms, which are needed to compute forces into
+     * {@link ForceBuffer}s.
+     */
+    private void indexTerms() {
+        Atom[] atoms = longRange.getAtoms();
+        Map<Atom,Integer> atomIndex = new IdentityHashMap<Atom,Integer>();
+        for (int i = 0; i < atoms.length; i++)
+            atomIndex.put(atoms[i], i);
+        for (Term t : termList)
+            ((TermImpl) t).indexAtoms(atomIndex);
+        needsIndexing = false;
+    }
+
+    private List<Bond> bondsOf(Atom a) {
+        List<Bond> bonds = bondsOf.get(a);
+        if (bonds == null) {
+            bonds = new ArrayList<Bond>(4);
+            bondsOf.put(a, bonds);
+        }
+        return bonds;
+    }
+
+    private static Set<Atom> newAtomSet() {
+        return Collections.newSetFromMap(new IdentityHashMap<Atom,Boolean>());
+    }
+
+    /**
+     * Remove every energy term involving any of a set of atoms. The terms are found
+     * through {@link #termsOf} and marked as removed, and taken out of the term lists of
+     * their other atoms; they stay in {@link #termList} until {@link #dropRemovedTerms()}.
+     */
+    private void removeTerms(Set<Atom> atoms) {
+        for (Atom a : atoms) {
+            List<TermImpl> terms = termsOf.remove(a);
+            if (terms == null)
+                continue;
+            for (TermImpl t : terms) {
+                t.removed = true;
+                numRemoved++;
+                for (Atom b : t.myAtoms) {
+                    List<TermImpl> others = (b == a) ? null : termsOf.get(b);
+                    if (others != null)
+                        others.remove(t);
                 }
             }
-            public void process4(Atom a1, Atom a2, Atom a3, Atom a4) {
-                if (a1.getUniqueId().compareTo(a2.getUniqueId()) < 0)
-                    termList.add(new TorsionTerm(a1, a2, a3, a4));
+        }
+        needsIndexing = true;
+    }
+
+    /**
+     * Drop the terms marked as removed from {@link #termList}.
+     */
+    private void dropRemovedTerms() {
+        int kept = 0;
+        for (int i = 0; i < termList.size(); i++) {
+            Term t = termList.get(i);
+            if (!((TermImpl) t).removed)
+                termList.set(kept++, t);
+        }
+        termList.subList(kept, termList.size()).clear();
+        numRemoved = 0;
+    }
+
+    /**
+     * Rehybridize a set of atoms, then add energy terms and exclusions for every chain of
+     * bonded atoms that includes any of them. Those chains are found by walking along
+     * bonds from each atom within three bonds of the set, so the work depends only on the
+     * size of the neighborhood.
+     */
+    private void addTerms(Set<Atom> changed) {
+        for (Atom a : changed)
+            a.rehybridize(bondsOf(a));
+        Set<Atom> starts = newAtomSet();
+        starts.addAll(changed);
+        List<Atom> frontier = new ArrayList<Atom>(changed);
+        for (int depth = 0; depth < 3; depth++) {
+            List<Atom> next = new ArrayList<Atom>();
+            for (Atom a : frontier)
+                for (Bond b : bondsOf(a))
+                    if (starts.add(b.otherAtom(a)))
+                        next.add(b.otherAtom(a));
+            frontier = next;
+        }
+        Atom[] chain = new Atom[4];
+        for (Atom a : starts) {
+            chain[0] = a;
+            walkChains(chain, 1, changed);
+        }
+        longRange.atomsChanged();
+    }
+
+    /**
+     * Extend a chain of bonded atoms in every possible way, handing each chain of two to
+     * four atoms that includes a changed atom to {@link #termMaker}. Every chain is walked
+     * in both directions, just as {@link Structure#processBondChains} does.
+     */
+    private void walkChains(Atom[] chain, int length, Set<Atom> changed) {
+        if (length >= 2) {
+            boolean involved = false;
+            for (int i = 0; i < length && !involved; i++)
+                involved = changed.contains(chain[i]);
+            if (involved) {
+                if (length == 2)
+                    termMaker.process2(chain[0], chain[1]);
+                else if (length == 3)
+                    termMaker.process3(chain[0], chain[1], chain[2]);
+                else
+                    termMaker.process4(chain[0], chain[1], chain[2], chain[3]);
             }
-        });
+            if (length == 4)
+                return;
+        }
+        Atom end = chain[length - 1];
+        for (Bond b : bondsOf(end)) {
+            Atom next = b.otherAtom(end);
+            boolean already = false;
+            for (int i = 0; i < length && !already; i++)
+                already = (chain[i] == next);
+            if (!already) {
+                chain[length] = next;
+                walkChains(chain, length + 1, changed);
+            }
+        }
     }
 
     @Override
     public void setStructure(Structure struc) {
-        // TODO Auto-generated method stub
-
+        super.setStructure(struc);
+        longRange = new LongRangeForces(struc);
+        hasTopologyChanged = true;
     }
 }
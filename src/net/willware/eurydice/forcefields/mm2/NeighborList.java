@@ -0,0 +1,221 @@
+package net.willware.eurydice.forcefields.mm2;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.math.CellGrid;
+
+/**
+ * A Verlet neighbor list for the non-bonded forces. Rather than visit every pair of
+ * atoms on every step, we keep a list of the pairs lying within the cutoff distance plus
+ * a "skin" distance, built in O(n) time with a {@link CellGrid}. The list stays good
+ * until some atom has moved more than half the skin since it was built, because until
+ * then no pair outside the list can have come within the cutoff.
+ * <p>
+ * Atoms are referred to by their index into the array passed to {@link #update}.
+ */
+public class NeighborList {
+
+    /**
+     * Decides which pairs of atoms belong in the list at all, for instance leaving out
+     * pairs that are bonded to each other.
+     */
+    public interface PairFilter {
+
+        /**
+         * Should this pair of atoms be in the neighbor list?
+         *
+         * @param a1 the first atom
+         * @param a2 the second atom
+         * @return true if the pair should be included
+         */
+        public boolean accept(Atom a1, Atom a2);
+    }
+
+    /** The distance beyond which non-bonded forces are ignored, in angstroms. */
+    private double cutoff;
+
+    /** The extra distance beyond the cutoff included in the list, in angstroms. */
+    private double skin;
+
+    /** The atoms the list was built for. */
+    private Atom[] atoms;
+
+    /** Atom positions at the time the list was built. */
+    private double[] x = new double[0], y = new double[0], z = new double[0];
+
+    /** The first and second atom index of each pair. */
+    private int[] first = new int[16], second = new int[16];
+
+    /** The number of pairs in the list. */
+    private int numPairs;
+
+    /** Spatial binning used to build the list. */
+    private CellGrid grid;
+
+    /** False if the list must be rebuilt before it can be used again. */
+    private boolean valid;
+
+    /** How many times the list has been built, handy for tuning the skin. */
+    private int numBuilds;
+
+    /**
+     * Constructor.
+     *
+     * @param cutoff the cutoff distance in angstroms
+     * @param skin the skin distance in angstroms
+     */
+    public NeighborList(double cutoff, double skin) {
+        setCutoff(cutoff, skin);
+    }
+
+    /**
+     * Change the cutoff and skin distances. The list is rebuilt on the next
+     * {@link #update} if either one actually changed.
+     *
+     * @param cutoff the cutoff distance in angstroms
+     * @param skin the skin distance in angstroms
+     */
+    public void setCutoff(double cutoff, double skin) {
+        if (cutoff <= 0.0 || skin < 0.0)
+            throw new IllegalArgumentException("bad cutoff " + cutoff + " or skin " + skin);
+        if (cutoff != this.cutoff || skin != this.skin) {
+            this.cutoff = cutoff;
+            this.skin = skin;
+            grid = new CellGrid(cutoff + skin);
+            valid = false;
+        }
+    }
+
+    /**
+     * Gets the cutoff distance.
+     *
+     * @return the cutoff in angstroms
+     */
+    public double getCutoff() {
+        return cutoff;
+    }
+
+    /**
+     * Gets the skin distance.
+     *
+     * @return the skin in angstroms
+     */
+    public double getSkin() {
+        return skin;
+    }
+
+    /**
+     * Force a rebuild on the next {@link #update}, for instance because atoms were added or
+     * removed, or the filter would now give different answers.
+     */
+    public void invalidate() {
+        valid = false;
+    }
+
+    /**
+     * Bring the list up to date for the current atom positions, rebuilding it only if
+     * necessary.
+     *
+     * @param atoms the atoms, which must be the same array each time unless the list has
+     * been invalidated
+     * @param filter decides which pairs belong in the list
+     * @return true if the list was rebuilt
+     */
+    public boolean update(Atom[] atoms, PairFilter filter) {
+        if (valid && atoms == this.atoms && !movedTooFar())
+            return false;
+        build(atoms, filter);
+        return true;
+    }
+
+    /**
+     * Has any atom moved more than half the skin since the list was built?
+     */
+    private boolean movedTooFar() {
+        double limit = 0.25 * skin * skin;
+        for (int i = 0; i < atoms.length; i++) {
+            double dx = atoms[i].getX() - x[i];
+            double dy = atoms[i].getY() - y[i];
+            double dz = atoms[i].getZ() - z[i];
+            if (dx * dx + dy * dy + dz * dz > limit)
+                return true;
+        }
+        return false;
+    }
+
+    private void build(final Atom[] atoms, final PairFilter filter) {
+        final int n = atoms.length;
+        this.atoms = atoms;
+        if (x.length < n) {
+            x = new double[n];
+            y = new double[n];
+            z = new double[n];
+        }
+        for (int i = 0; i < n; i++) {
+            x[i] = atoms[i].getX();
+            y[i] = atoms[i].getY();
+            z[i] = atoms[i].getZ();
+        }
+        numPairs = 0;
+        grid.bin(x, y, z, n);
+        grid.processPairs(x, y, z, cutoff + skin, new CellGrid.PairProcessor() {
+            public void process(int i, int j, double r2) {
+                if (filter == null || filter.accept(atoms[i], atoms[j]))
+                    addPair(i, j);
+            }
+        });
+        numBuilds++;
+        valid = true;
+    }
+
+    private void addPair(int i, int j) {
+        if (numPairs == first.length) {
+            int[] f = new int[2 * numPairs];
+            int[] s = new int[2 * numPairs];
+            System.arraycopy(first, 0, f, 0, numPairs);
+            System.arraycopy(second, 0, s, 0, numPairs);
+            first = f;
+            second = s;
+        }
+        first[numPairs] = i;
+        second[numPairs] = j;
+        numPairs++;
+    }
+
+    /**
+     * Gets the number of pairs in the list.
+     *
+     * @return the number of pairs
+     */
+    public int size() {
+        return numPairs;
+    }
+
+    /**
+     * Gets the index of the first atom in a pair.
+     *
+     * @param k the index of the pair
+     * @return the index of the first atom
+     */
+    public int getFirst(int k) {
+        return first[k];
+    }
+
+    /**
+     * Gets the index of the second atom in a pair.
+     *
+     * @param k the index of the pair
+     * @return the index of the second atom
+     */
+    public int getSecond(int k) {
+        return second[k];
+    }
+
+    /**
+     * Gets the number of times the list has been built.
+     *
+     * @return the number of builds
+     */
+    public int getNumBuilds() {
+        return numBuilds;
+    }
+}
@@ -25,4 +25,12 @@ public interface Term {
      * @param struc the structure containing the atoms
      */
     public void computeForces(Structure struc);
+
+    /**
+     * Compute the internal forces, adding them into a buffer instead of into the atoms, so
+     * that several threads can compute forces at once.
+     *
+     * @param forces the buffer, or null to add forces directly to the atoms
+     */
+    public void computeForces(ForceBuffer forces);
 }
@@ -5,7 +5,11 @@
 
 package net.willware.eurydice.forcefields.mm2;
 
+import java.util.Map;
+
 import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.math.Vector;
 
 /**
  * A partial implementation of the Term interface. Specific energy terms complete the
@@ -16,6 +20,62 @@ public abstract class TermImpl implements Term {
     /** An array of atoms participating in this energy term. */
     Atom[] myAtoms;
 
+    /** The index of each of {@link #myAtoms} in the structure's atom array. */
+    int[] myIndices;
+
+    /** Set when this term has been removed, until it is dropped from the term list. */
+    boolean removed;
+
+    /**
+     * Look up the indices of this term's atoms, which are needed to compute forces into
+     * a {@link ForceBuffer}.
+     *
+     * @param atomIndex maps atoms to their indices in the structure's atom array
+     */
+    void indexAtoms(Map<Atom,Integer> atomIndex) {
+        myIndices = new int[myAtoms.length];
+        for (int i = 0; i < myAtoms.length; i++)
+            myIndices[i] = atomIndex.get(myAtoms[i]);
+    }
+
+    /**
+     * Add a force to one of this term's atoms, or to its entry in a force buffer.
+     *
+     * @param k which of this term's atoms
+     * @param f the force
+     * @param forces the buffer, or null to add the force to the atom itself
+     */
+    protected void addForce(int k, Vector f, ForceBuffer forces) {
+        if (forces == null)
+            myAtoms[k].addForce(f);
+        else
+            forces.add(myIndices[k], f);
+    }
+
+    /**
+     * Add a force, given as components, to one of this term's atoms, or to its entry in
+     * a force buffer.
+     *
+     * @param k which of this term's atoms
+     * @param fx the x component of the force
+     * @param fy the y component of the force
+     * @param fz the z component of the force
+     * @param forces the buffer, or null to add the force to the atom itself
+     */
+    protected void addForce(int k, double fx, double fy, double fz, ForceBuffer forces) {
+        if (forces == null)
+            myAtoms[k].addForce(fx, fy, fz);
+        else
+            forces.add(myIndices[k], fx, fy, fz);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.core.Structure)
+     */
+    public void computeForces(Structure struc) {
+        computeForces((ForceBuffer) null);
+    }
+
     /* (non-Javadoc)
      * @see java.lang.Object#toString()
      */
@@ -7,7 +7,6 @@ package net.willware.eurydice.forcefields.mm2;
 
 import java.lang.Math;
 import net.willware.eurydice.core.Atom;
-import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.math.Vector;
 
 /**
@@ -33,39 +32,19 @@ public class TorsionTerm extends TermImpl {
      * @param a4 the fourth atom
      */
     public TorsionTerm(Atom a1, Atom a2, Atom a3, Atom a4) {
-        int i;
-        boolean found;
         myAtoms = new Atom[4];
         myAtoms[0] = a1;
         myAtoms[1] = a2;
         myAtoms[2] = a3;
         myAtoms[3] = a4;
-        for (i = 0, found = false;
-                i < torsionCoeffs.length && !found; i++)
-            if ((a1.getAtomicNumber() == torsionCoeffs[i][0]
-                    && a1.getHybridization() == torsionCoeffs[i][1]
-                    && a2.getAtomicNumber() == torsionCoeffs[i][2]
-                    && a2.getHybridization() == torsionCoeffs[i][3]
-                    && a3.getAtomicNumber() == torsionCoeffs[i][4]
-                    && a3.getHybridization() == torsionCoeffs[i][5]
-                    && a4.getAtomicNumber() == torsionCoeffs[i][6]
-                    && a4.getHybridization() == torsionCoeffs[i][7])
-                    || (a1.getAtomicNumber() == torsionCoeffs[i][6]
-                        && a1.getHybridization() == torsionCoeffs[i][7]
-                        && a2.getAtomicNumber() == torsionCoeffs[i][4]
-                        && a2.getHybridization() == torsionCoeffs[i][5]
-                        && a3.getAtomicNumber() == torsionCoeffs[i][2]
-                        && a3.getHybridization() == torsionCoeffs[i][3]
-                        && a4.getAtomicNumber() == torsionCoeffs[i][0]
-                        && a4.getHybridization() ==
-                        torsionCoeffs[i][1])) {
-                found = true;
-                // convert table numbers from maJ to aJ (10^-18 joules)
-                v1 = 0.001 * torsionCoeffs[i][8];
-                v2 = 0.001 * torsionCoeffs[i][9];
-                v3 = 0.001 * torsionCoeffs[i][10];
-            }
-        if (!found)
+        int found = AtomType.lookup(torsionIndex, a1, a2, a3, a4);
+        if (found >= 0) {
+            int i = found >> 1;
+            // convert table numbers from maJ to aJ (10^-18 joules)
+            v1 = 0.001 * torsionCoeffs[i][8];
+            v2 = 0.001 * torsionCoeffs[i][9];
+            v3 = 0.001 * torsionCoeffs[i][10];
+        } else
             v1 = v2 = v3 = 0.0;
     }
 
@@ -85,9 +64,9 @@ public class TorsionTerm extends TermImpl {
     // correct torsion code from the NAMD program and translate it from C++
     // to Java.
     /* (non-Javadoc)
-     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.core.Structure)
+     * @see net.willware.eurydice.forcefields.mm2.Term#computeForces(net.willware.eurydice.forcefields.mm2.ForceBuffer)
      */
-    public void computeForces(Structure struc) {
+    public void computeForces(ForceBuffer forces) {
         double rA, rB, rC;    //  Length of vectors A, B, and C
         double phi;    //  angle between the plans
         double cos_phi;    //  cos(phi)
@@ -240,10 +219,10 @@ public class TorsionTerm extends TermImpl {
                  * half-baked tenor of Nanocad's MM2 implementation. It cannot scale to big
                  * structures where a 32-bit index would be insufficient.
                  */
-                myAtoms[0].addForce(f1);
-                myAtoms[1].addForce(f2.subtract(f1));
-                myAtoms[2].addForce(f3.subtract(f2));
-                myAtoms[3].addForce(f3.negate());
+                addForce(0, f1, forces);
+                addForce(1, f2.subtract(f1), forces);
+                addForce(2, f3.subtract(f2), forces);
+                addForce(3, f3.negate(), forces);
             }
         }
     }
@@ -653,4 +632,7 @@ public class TorsionTerm extends TermImpl {
             C, Atom.SP3, N, Atom.SP3, N, Atom.SP3, C, Atom.SP3, 0.900, -6.800, 0.210
         },
     };
+
+    /** The row of {@link #torsionCoeffs} for each chain of four atom types, built once from the table. */
+    private final static int[] torsionIndex = AtomType.buildIndex(torsionCoeffs, 4);
 }
@@ -0,0 +1,220 @@
+package net.willware.eurydice.math;
+
+/**
+ * A uniform grid of cubical cells, used to find all pairs of points lying within some
+ * distance of one another in O(n) time. Points are binned into cells whose edge is at
+ * least as long as the search distance, so that any pair of points within that distance
+ * must lie in the same cell or in adjacent cells. Each cell is a linked list threaded
+ * through an int array, so binning allocates nothing once the arrays are big enough.
+ * <p>
+ * Points are given as three parallel coordinate arrays, and identified by their index
+ * into those arrays.
+ */
+public class CellGrid {
+
+    /**
+     * Receives pairs of points found by {@link CellGrid#processPairs}.
+     */
+    public interface PairProcessor {
+
+        /**
+         * Process a pair of points lying within the search distance of each other.
+         *
+         * @param i the index of the first point, always less than j
+         * @param j the index of the second point
+         * @param r2 the square of the distance between the two points
+         */
+        public void process(int i, int j, double r2);
+    }
+
+    /**
+     * The offsets to the thirteen neighboring cells that come "after" a given cell. Visiting
+     * only these (plus the cell itself) finds every adjacent pair of cells exactly once.
+     */
+    private static final int[][] halfShell = {
+        {1, 0, 0}, {-1, 1, 0}, {0, 1, 0}, {1, 1, 0},
+        {-1, -1, 1}, {0, -1, 1}, {1, -1, 1},
+        {-1, 0, 1}, {0, 0, 1}, {1, 0, 1},
+        {-1, 1, 1}, {0, 1, 1}, {1, 1, 1}
+    };
+
+    /** The minimum edge length of a cell, in angstroms. */
+    private double minCellSize;
+
+    /** The actual edge length of a cell, which may be larger for sparse structures. */
+    private double cellSize;
+
+    /** The min corner of the grid. */
+    private double x0, y0, z0;
+
+    /** The number of cells along each axis. */
+    private int nx, ny, nz;
+
+    /** The first point in each cell, or -1 for an empty cell. */
+    private int[] head = new int[0];
+
+    /** The next point in the same cell as each point, or -1 at the end of a cell. */
+    private int[] next = new int[0];
+
+    /**
+     * Constructor.
+     *
+     * @param minCellSize the smallest allowed cell edge, which must be at least as large as
+     * any distance that will be passed to {@link #processPairs}
+     */
+    public CellGrid(double minCellSize) {
+        this.minCellSize = minCellSize;
+    }
+
+    /**
+     * Gets the cell edge length actually in use, which is never less than the one given
+     * to the constructor.
+     *
+     * @return the cell size in angstroms
+     */
+    public double getCellSize() {
+        return cellSize;
+    }
+
+    /**
+     * Sort a set of points into cells.
+     *
+     * @param x the X coordinates of the points
+     * @param y the Y coordinates of the points
+     * @param z the Z coordinates of the points
+     * @param n the number of points
+     */
+    public void bin(double[] x, double[] y, double[] z, int n) {
+        double xmin = 1.0e20, ymin = 1.0e20, zmin = 1.0e20;
+        double xmax = -1.0e20, ymax = -1.0e20, zmax = -1.0e20;
+        for (int i = 0; i < n; i++) {
+            xmin = (xmin < x[i]) ? xmin : x[i];
+            ymin = (ymin < y[i]) ? ymin : y[i];
+            zmin = (zmin < z[i]) ? zmin : z[i];
+            xmax = (xmax > x[i]) ? xmax : x[i];
+            ymax = (ymax > y[i]) ? ymax : y[i];
+            zmax = (zmax > z[i]) ? zmax : z[i];
+        }
+        if (n == 0)
+            xmin = ymin = zmin = xmax = ymax = zmax = 0.0;
+        x0 = xmin;
+        y0 = ymin;
+        z0 = zmin;
+        // A sparse structure in a big bounding box could ask for far more cells than
+        // points, so grow the cells until there are at most a few cells per point.
+        long maxCells = 8L * n + 64;
+        cellSize = minCellSize;
+        while (true) {
+            nx = 1 + (int) ((xmax - xmin) / cellSize);
+            ny = 1 + (int) ((ymax - ymin) / cellSize);
+            nz = 1 + (int) ((zmax - zmin) / cellSize);
+            if ((long) nx * ny * nz <= maxCells)
+                break;
+            cellSize *= 1.26;   // about the cube root of 2
+        }
+        int numCells = nx * ny * nz;
+        if (head.length < numCells)
+            head = new int[numCells];
+        for (int c = 0; c < numCells; c++)
+            head[c] = -1;
+        if (next.length < n)
+            next = new int[n];
+        // insert in reverse so each cell lists its points in ascending order
+        for (int i = n - 1; i >= 0; i--) {
+            int c = cellIndex(cellCoord(x[i], x0, nx), cellCoord(y[i], y0, ny),
+                              cellCoord(z[i], z0, nz));
+            next[i] = head[c];
+            head[c] = i;
+        }
+    }
+
+    private int cellCoord(double v, double origin, int ncells) {
+        int k = (int) ((v - origin) / cellSize);
+        return (k < ncells) ? k : ncells - 1;
+    }
+
+    private int cellIndex(int cx, int cy, int cz) {
+        return (cz * ny + cy) * nx + cx;
+    }
+
+    /**
+     * Gets the first point binned into the same cell as a given location, for walking a
+     * cell with {@link #nextInCell}.
+     *
+     * @param cx the X index of the cell
+     * @param cy the Y index of the cell
+     * @param cz the Z index of the cell
+     * @return the first point in that cell, or -1 if the cell is empty or off the grid
+     */
+    public int firstInCell(int cx, int cy, int cz) {
+        if (cx < 0 || cy < 0 || cz < 0 || cx >= nx || cy >= ny || cz >= nz)
+            return -1;
+        return head[cellIndex(cx, cy, cz)];
+    }
+
+    /**
+     * Gets the point following a given point in the same cell.
+     *
+     * @param i a point index
+     * @return the next point in the same cell, or -1 at the end of the cell
+     */
+    public int nextInCell(int i) {
+        return next[i];
+    }
+
+    /**
+     * Find every pair of binned points closer together than some distance, and hand each
+     * pair to a processor. Each pair is reported exactly once, with the lower index first.
+     * The coordinate arrays must be the same ones most recently passed to {@link #bin}.
+     *
+     * @param x the X coordinates of the points
+     * @param y the Y coordinates of the points
+     * @param z the Z coordinates of the points
+     * @param range the search distance, no larger than the cell size
+     * @param proc the processor to receive the pairs
+     */
+    public void processPairs(double[] x, double[] y, double[] z, double range,
+                             PairProcessor proc) {
+        if (range > cellSize)
+            throw new IllegalArgumentException("search range " + range +
+                                               " exceeds cell size " + cellSize);
+        double range2 = range * range;
+        for (int cz = 0; cz < nz; cz++) {
+            for (int cy = 0; cy < ny; cy++) {
+                for (int cx = 0; cx < nx; cx++) {
+                    int first = head[cellIndex(cx, cy, cz)];
+                    if (first < 0)
+                        continue;
+                    // pairs within this cell
+                    for (int i = first; i >= 0; i = next[i])
+                        for (int j = next[i]; j >= 0; j = next[j])
+                            report(x, y, z, i, j, range2, proc);
+                    // pairs between this cell and its forward neighbors
+                    for (int k = 0; k < halfShell.length; k++) {
+                        int other = firstInCell(cx + halfShell[k][0], cy + halfShell[k][1],
+                                                cz + halfShell[k][2]);
+                        if (other < 0)
+                            continue;
+                        for (int i = first; i >= 0; i = next[i])
+                            for (int j = other; j >= 0; j = next[j])
+                                report(x, y, z, i, j, range2, proc);
+                    }
+                }
+            }
+        }
+    }
+
+    private static void report(double[] x, double[] y, double[] z, int i, int j,
+                               double range2, PairProcessor proc) {
+        double dx = x[i] - x[j];
+        double dy = y[i] - y[j];
+        double dz = z[i] - z[j];
+        double r2 = dx * dx + dy * dy + dz * dz;
+        if (r2 < range2) {
+            if (i < j)
+                proc.process(i, j, r2);
+            else
+                proc.process(j, i, r2);
+        }
+    }
+}
@@ -231,6 +231,22 @@ public class Quaternion {
         return multiplyVector(v).multiply(inverse()).imaginaryPart;
     }
 
+    /**
+     * The 3x3 matrix that rotates vectors as {@link #rotate(Vector)} does, so that rotating
+     * many vectors the same way costs nine multiplications each. Like {@link #rotate(Vector)},
+     * this scales out the length of the quaternion.
+     *
+     * @return the rotation matrix
+     */
+    public Matrix toMatrix() {
+        double w = realPart, x = imaginaryPart.getX();
+        double y = imaginaryPart.getY(), z = imaginaryPart.getZ();
+        double s = 2.0 / absoluteValueSquared();
+        return new Matrix(1 - s * (y * y + z * z), s * (x * y - w * z), s * (x * z + w * y),
+                          s * (x * y + w * z), 1 - s * (x * x + z * z), s * (y * z - w * x),
+                          s * (x * z - w * y), s * (y * z + w * x), 1 - s * (x * x + y * y));
+    }
+
     /**
      * A normalized version of this quaternion; do the scaling operation only if necessary.
      *
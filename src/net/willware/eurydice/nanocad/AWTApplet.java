@@ -104,6 +104,7 @@ public class AWTApplet extends JApplet implements MouseListener, MouseMotionList
     public void paint(Graphics g) {
         gr = g;
         AWTEngine ae = new AWTEngine(g);
+        ae.setViewport(0, 0, getWidth(), getHeight());
         clearScreen();
         if (isDrawingQuick)
             ae.quickDraw(struc);
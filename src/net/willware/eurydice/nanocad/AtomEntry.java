@@ -42,9 +42,7 @@ public class AtomEntry extends DisplayListEntry {
         atom = a;
         engine = e;
         screencoords = screenspace.xyzToScreen(a.getPosition());
-        radius = screenspace.getPerspective().apply(AtomEntry.radiusRatio * a.getCovalentRadius()
-                 * screenspace.getZoomFactor(), screencoords.getZ());
-        screencoords = screencoords.subtract(new Vector(radius, radius, 0.0));
+        radius = AtomEntry.radiusRatio * a.getCovalentRadius() * screenspace.scaleNear(a.getPosition());
         //bogus = a.currentNumBonds() != a.correctNumBonds();
         bogus = false;   // currentNumBonds not implemented at the moment
     }
@@ -61,19 +59,46 @@ public class AtomEntry extends DisplayListEntry {
      * @see net.willware.eurydice.view.Entry#quickpaint()
      */
     public void quickDraw() {
-        engine.drawCircle(screencoords.getX(), screencoords.getY(), 2 * radius);
+        quickDraw(engine, screencoords.getX(), screencoords.getY(), radius);
     }
 
     /* (non-Javadoc)
      * @see net.willware.eurydice.view.Entry#paint()
      */
     public void draw() {
-        engine.setCurrentColor(atom.getColor());
-        engine.fillCircle(screencoords.getX(), screencoords.getY(), 2 * radius);
+        draw(engine, atom.getColor(), bogus, screencoords.getX(), screencoords.getY(), radius);
+    }
+
+    /*package*/ /**
+     * Draw an atom as an outline.
+     *
+     * @param engine the engine
+     * @param x the x screen coordinate of the center
+     * @param y the y screen coordinate of the center
+     * @param radius the radius in pixels
+     */
+    static void quickDraw(DrawingEngineImpl engine, double x, double y, double radius) {
+        engine.drawCircle(x - radius, y - radius, 2 * radius);
+    }
+
+    /*package*/ /**
+     * Draw an atom as a filled circle with an outline.
+     *
+     * @param engine the engine
+     * @param color the color of the atom
+     * @param bogus true if the atom has the wrong number of bonds
+     * @param x the x screen coordinate of the center
+     * @param y the y screen coordinate of the center
+     * @param radius the radius in pixels
+     */
+    static void draw(DrawingEngineImpl engine, Color color, boolean bogus,
+                     double x, double y, double radius) {
+        engine.setCurrentColor(color);
+        engine.fillCircle(x - radius, y - radius, 2 * radius);
         if (bogus)
             engine.setCurrentColor(Color.getColor("orange"));
         else
             engine.setCurrentColor(Color.getColor("black"));
-        engine.drawCircle(screencoords.getX(), screencoords.getY(), 2 * radius);
+        engine.drawCircle(x - radius, y - radius, 2 * radius);
     }
 }
@@ -17,11 +17,9 @@ public class BondEntry extends DisplayListEntry {
 
     /** The r2. */
     private double r1, r2;      // radius in pixels for each atom
-    // x3 is a vector that is perpendicular on screen to the direction of
-    // the bond, used to space out multiple bonds, so we can have two parallel
-    // lines for a double bond, three for a triple bond
-    /** The perpendicular gap. */
-    private Vector perpendicularGap;
+
+    /** The screenspace, for spacing out the lines of double and triple bonds. */
+    private ScreenSpace screenspace;
 
     /** The my bond. */
     private Bond myBond;
@@ -43,26 +41,38 @@ public class BondEntry extends DisplayListEntry {
     public BondEntry(ScreenSpace screenspace, Bond b, DrawingEngineImpl e, Structure struc) {
         myBond = b;
         engine = e;
+        this.screenspace = screenspace;
 
         Vector pos1 = myBond.getFirstAtom().getPosition();
         x1 = screenspace.xyzToScreen(pos1);
-        r1 = AtomEntry.radiusRatio * myBond.getFirstAtom().getCovalentRadius() * screenspace.getZoomFactor();
-        r1 = screenspace.getPerspective().apply(r1, x1.getZ());
+        r1 = AtomEntry.radiusRatio * myBond.getFirstAtom().getCovalentRadius() * screenspace.scaleNear(pos1);
 
-        x2 = screenspace.xyzToScreen(myBond.getSecondAtom().getPosition());
-        r2 = AtomEntry.radiusRatio * myBond.getSecondAtom().getCovalentRadius() * screenspace.getZoomFactor();
-        r1 = screenspace.getPerspective().apply(r1, x2.getZ());
+        Vector pos2 = myBond.getSecondAtom().getPosition();
+        x2 = screenspace.xyzToScreen(pos2);
+        r2 = AtomEntry.radiusRatio * myBond.getSecondAtom().getCovalentRadius() * screenspace.scaleNear(pos2);
+    }
 
+    /*package*/ /**
+     * Compute a vector that is perpendicular on screen to a bond, and as long as the gap
+     * between the lines of a double or triple bond.
+     *
+     * @param screenspace the screenspace
+     * @param x1 the x screen coordinate of one end
+     * @param y1 the y screen coordinate of one end
+     * @param x2 the x screen coordinate of the other end
+     * @param y2 the y screen coordinate of the other end
+     * @return the gap in screen coordinates
+     */
+    static Vector perpendicularGap(ScreenSpace screenspace, double x1, double y1,
+                                   double x2, double y2) {
         // compute a perpendicular vector in screen space
-        Vector perpendicular = new Vector(x1.getY() - x2.getY(),
-                                          x2.getX() - x1.getX(),
-                                          0.0);
+        Vector perpendicular = new Vector(y1 - y2, x2 - x1, 0.0);
         // move it to atom space
-        perpendicularGap = screenspace.screenToXyz(perpendicular);
+        Vector perpendicularGap = screenspace.screenToXyz(perpendicular);
         // adjust the length
         perpendicularGap = perpendicularGap.scale(gap / perpendicularGap.length());
         // move it back to screen space
-        perpendicularGap = screenspace.xyzToScreen(perpendicularGap);
+        return screenspace.xyzToScreen(perpendicularGap);
     }
 
     /* (non-Javadoc)
@@ -76,52 +86,74 @@ public class BondEntry extends DisplayListEntry {
      * @see net.willware.eurydice.view.Entry#quickpaint()
      */
     public void quickDraw() {
-        Color black = Color.getColor("black");
-        Color gray = Color.getColor("gray50");
-        Color c1 = myBond.getFirstAtom().getColor();
-        Color c2 = myBond.getSecondAtom().getColor();
-        // Gray isn't quite dark enough to look good in a wireframe
-        if (c1.equals(gray))
-            c1 = black;
-        if (c2.equals(gray))
-            c2 = black;
-        drawBondLine(engine, c1, c2, x1, x2);
+        quickDraw(engine, myBond.getFirstAtom().getColor(), myBond.getSecondAtom().getColor(),
+                  x1.getX(), x1.getY(), x2.getX(), x2.getY());
     }
 
     /* (non-Javadoc)
      * @see net.willware.eurydice.view.Entry#paint()
      */
     public void draw() {
-        Vector xdiff = x1.subtract(x2);
-        double len = xdiff.length();
-        Vector v1 = x1.subtract(xdiff.scale(r1 / len));
-        Vector v2 = x2.add(xdiff.scale(r2 / len));
+        draw(engine, screenspace, myBond.getOrder(), x1.getX(), x1.getY(), x1.getZ(), r1,
+             x2.getX(), x2.getY(), x2.getZ(), r2);
+    }
+
+    /*package*/ /**
+     * Draw a bond as one, two or three lines, between the edges of the atoms' circles.
+     *
+     * @param engine the engine
+     * @param screenspace the screenspace
+     * @param order the order of the bond
+     * @param x1 the x screen coordinate of the first atom
+     * @param y1 the y screen coordinate of the first atom
+     * @param z1 the z screen coordinate of the first atom
+     * @param r1 the radius of the first atom in pixels
+     * @param x2 the x screen coordinate of the second atom
+     * @param y2 the y screen coordinate of the second atom
+     * @param z2 the z screen coordinate of the second atom
+     * @param r2 the radius of the second atom in pixels
+     */
+    static void draw(DrawingEngineImpl engine, ScreenSpace screenspace, int order,
+                     double x1, double y1, double z1, double r1,
+                     double x2, double y2, double z2, double r2) {
+        double dx = x1 - x2, dy = y1 - y2, dz = z1 - z2;
+        double len = Math.sqrt(dx * dx + dy * dy + dz * dz);
+        double v1x = x1 - dx * r1 / len, v1y = y1 - dy * r1 / len;
+        double v2x = x2 + dx * r2 / len, v2y = y2 + dy * r2 / len;
         Color black = Color.getColor("black");
-        Vector perpGapHalf = null;
-        if (myBond.getOrder() > 1)
-            perpGapHalf = perpendicularGap.scale(0.5);
-        switch (myBond.getOrder()) {
-        default:
-        case 1:
-            drawBondLine(engine, black, black, v1, v2);
-            break;
-        case 2:
-            drawBondLine(engine, black, black,
-                         v1.add(perpGapHalf),
-                         v2.add(perpGapHalf));
-            drawBondLine(engine, black, black,
-                         v1.subtract(perpGapHalf),
-                         v2.subtract(perpGapHalf));
-            break;
-        case 3:
-            drawBondLine(engine, black, black,
-                         v1.add(perpGapHalf),
-                         v2.add(perpGapHalf));
-            drawBondLine(engine, black, black, v1, v2);
-            drawBondLine(engine, black, black,
-                         v1.subtract(perpGapHalf),
-                         v2.subtract(perpGapHalf));
+        if (order != 2 && order != 3) {
+            drawBondLine(engine, black, black, v1x, v1y, v2x, v2y);
+            return;
         }
+        Vector perpGapHalf = perpendicularGap(screenspace, x1, y1, x2, y2).scale(0.5);
+        double gx = perpGapHalf.getX(), gy = perpGapHalf.getY();
+        drawBondLine(engine, black, black, v1x + gx, v1y + gy, v2x + gx, v2y + gy);
+        if (order == 3)
+            drawBondLine(engine, black, black, v1x, v1y, v2x, v2y);
+        drawBondLine(engine, black, black, v1x - gx, v1y - gy, v2x - gx, v2y - gy);
+    }
+
+    /*package*/ /**
+     * Draw a bond as a line colored like the atom at each end.
+     *
+     * @param engine the engine
+     * @param c1 the color of the first atom
+     * @param c2 the color of the second atom
+     * @param x1 the x screen coordinate of the first atom
+     * @param y1 the y screen coordinate of the first atom
+     * @param x2 the x screen coordinate of the second atom
+     * @param y2 the y screen coordinate of the second atom
+     */
+    static void quickDraw(DrawingEngineImpl engine, Color c1, Color c2,
+                          double x1, double y1, double x2, double y2) {
+        Color black = Color.getColor("black");
+        Color gray = Color.getColor("gray50");
+        // Gray isn't quite dark enough to look good in a wireframe
+        if (c1.equals(gray))
+            c1 = black;
+        if (c2.equals(gray))
+            c2 = black;
+        drawBondLine(engine, c1, c2, x1, y1, x2, y2);
     }
 
     /*package*/ /**
@@ -135,12 +167,28 @@ public class BondEntry extends DisplayListEntry {
      */
     static void drawBondLine(DrawingEngineImpl engine, Color c1, Color c2,
                              Vector v1, Vector v2) {
+        drawBondLine(engine, c1, c2, v1.getX(), v1.getY(), v2.getX(), v2.getY());
+    }
+
+    /*package*/ /**
+     * Draw bond line.
+     *
+     * @param engine the engine
+     * @param c1 the c1
+     * @param c2 the c2
+     * @param x1 the x screen coordinate of one end
+     * @param y1 the y screen coordinate of one end
+     * @param x2 the x screen coordinate of the other end
+     * @param y2 the y screen coordinate of the other end
+     */
+    static void drawBondLine(DrawingEngineImpl engine, Color c1, Color c2,
+                             double x1, double y1, double x2, double y2) {
         Color oldcolor = engine.getCurrentColor();
-        Vector vmid = v1.add(v2).scale(0.5);
+        double xmid = 0.5 * (x1 + x2), ymid = 0.5 * (y1 + y2);
         engine.setCurrentColor(c1);
-        engine.drawLine(v1.getX(), v1.getY(), vmid.getX(), vmid.getY());
+        engine.drawLine(x1, y1, xmid, ymid);
         engine.setCurrentColor(c2);
-        engine.drawLine(vmid.getX(), vmid.getY(), v2.getX(), v2.getY());
+        engine.drawLine(xmid, ymid, x2, y2);
         engine.setCurrentColor(oldcolor);
     }
 }
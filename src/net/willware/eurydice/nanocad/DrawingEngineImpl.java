@@ -1,14 +1,18 @@
 package net.willware.eurydice.nanocad;
 
-import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import net.willware.eurydice.core.Atom;
 import net.willware.eurydice.core.Bond;
 import net.willware.eurydice.core.Color;
+import net.willware.eurydice.core.PositionSnapshot;
 import net.willware.eurydice.core.Structure;
 import net.willware.eurydice.forcefields.ForceField;
-import net.willware.eurydice.view.DisplayListEntry;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.view.DisplayList;
 import net.willware.eurydice.view.DrawingEngine;
 import net.willware.eurydice.view.ScreenSpace;
 
@@ -18,8 +22,100 @@ import net.willware.eurydice.view.ScreenSpace;
  */
 public abstract class DrawingEngineImpl implements DrawingEngine {
 
+    /** Kinds of entries in the display list. */
+    private static final int ATOM = 0, BOND = 1, FORCE = 2;
+
     /** The screenspace. */
     private ScreenSpace screenspace;
+
+    /** The display list, kept from frame to frame so its arrays are reused. */
+    private final DisplayList displayList = new DisplayList();
+
+    /** The atoms being drawn, which atom entries in the display list index. */
+    private Atom[] atoms = new Atom[0];
+
+    /** The number of atoms being drawn. */
+    private int numAtoms;
+
+    /** Whether the atoms gathered for this frame differ from the last frame's. */
+    private boolean atomsChanged;
+
+    /** The index of each atom being drawn, to find the ends of bonds. */
+    private final Map<Atom, Integer> atomIndex = new HashMap<Atom, Integer>();
+
+    /** The positions of the atoms being drawn, packed as x, y and z for each. */
+    private double[] positions = new double[0];
+
+    /** The numbers of the two atoms of each bond being drawn. */
+    private int[] bondEnds = new int[0];
+
+    /** The order of each bond being drawn. */
+    private int[] bondOrders = new int[0];
+
+    /** The number of bonds being drawn. */
+    private int numBonds;
+
+    /** The screen coordinates the positions project to, and the radii of the atoms. */
+    private double[] screenX = new double[0], screenY = new double[0], screenZ = new double[0],
+                     screenR = new double[0];
+
+    /** The screen coordinates of the ends of force arrows. */
+    private double[] endX = new double[0], endY = new double[0], endZ = new double[0];
+
+    /** The least x and y and greatest x and y of the part of the screen that is drawn. */
+    private double[] viewport = null;
+
+    /** Cells of atoms smaller on screen than this, in pixels, are drawn as dots. */
+    private double dotPixels = 1.0;
+
+    /** The octree over the atoms for level of detail, kept while they don't move. */
+    private LodOctree octree;
+
+    /** The radius of the biggest atom, in angstroms. */
+    private double maxRadius;
+
+    /** The atoms to be drawn in full by the level of detail renderer. */
+    private int[] selected = new int[0];
+
+    /** The number of atoms selected. */
+    private int numSelected;
+
+    /** Where each atom's projection is among the selected atoms', or -1 if not selected. */
+    private int[] slot = new int[0];
+
+    /** The positions of the selected atoms, packed as x, y and z for each. */
+    private double[] selectedPositions = new double[0];
+
+    /** An atom in each cell drawn as a dot, to color the dot. */
+    private int[] dotAtom = new int[0];
+
+    /** The center and size on screen of each dot. */
+    private double[] dotX = new double[0], dotY = new double[0], dotSize = new double[0];
+
+    /** The number of dots. */
+    private int numDots;
+
+    /** Collects what the octree selects. */
+    private final LodOctree.Selection selection = new LodOctree.Selection() {
+        public void atom(int i) {
+            selected[numSelected++] = i;
+        }
+
+        public void cell(int atom, double x, double y, double size) {
+            if (numDots == dotAtom.length) {
+                int capacity = Math.max(16, 2 * numDots);
+                dotAtom = Arrays.copyOf(dotAtom, capacity);
+                dotX = Arrays.copyOf(dotX, capacity);
+                dotY = Arrays.copyOf(dotY, capacity);
+                dotSize = Arrays.copyOf(dotSize, capacity);
+            }
+            dotAtom[numDots] = atom;
+            dotX[numDots] = x;
+            dotY[numDots] = y;
+            dotSize[numDots++] = size;
+        }
+    };
+
     /**
      * Set the current Color being used for drawing.
      * @param c the new Color value
@@ -60,19 +156,285 @@ public abstract class DrawingEngineImpl implements DrawingEngine {
      * @param struc a position list to be drawn
      */
     public void bubbleDraw(Structure struc) {
-        final int n = struc.size();
-        for (int i = 0; i < n; i++)
-            new AtomEntry(screenspace, struc.get(i), DrawingEngineImpl.this, struc).quickDraw();
+        selectAtoms(screenspace, struc);
+        for (int k = 0; k < numSelected; k++) {
+            double x = screenX[k], y = screenY[k], r = screenR[k];
+            if (onScreen(x - r, y - r, x + r, y + r))
+                AtomEntry.quickDraw(this, x, y, r);
+        }
+        drawDots();
     }
     /**
      * When an object (together with many others) is being rotated or moved, drawing needs to be quick,
      * maybe a wireframe, or if even that's too much, maybe a partial wireframe or a bounding box.
+     * Parts of the structure outside the viewport are skipped, and parts too small on screen to
+     * show their bonds are drawn as dots, so the time taken depends more on what can be seen than
+     * on the size of the structure.
      * @param struc a structure to be drawn
      */
     public void quickDraw(Structure struc) {
-        for (Bond b: struc.inferBonds()) {
-            new BondEntry(screenspace, b, this, struc).quickDraw();
+        List<Bond> bondList = struc.inferBonds();
+        selectAtoms(screenspace, struc);
+        for (int i = 0; i < bondList.size(); i++) {
+            Bond b = bondList.get(i);
+            Integer e1 = atomIndex.get(b.getFirstAtom()), e2 = atomIndex.get(b.getSecondAtom());
+            if (e1 == null || e2 == null)
+                continue;
+            int s1 = slot[e1], s2 = slot[e2];
+            if (s1 < 0 && s2 < 0)
+                continue;
+            // an end outside the selection is in a dot or off screen
+            double x1, y1, x2, y2;
+            if (s1 >= 0) {
+                x1 = screenX[s1];
+                y1 = screenY[s1];
+            } else {
+                Vector p = screenspace.xyzToScreen(atoms[e1].getPosition());
+                x1 = p.getX();
+                y1 = p.getY();
+            }
+            if (s2 >= 0) {
+                x2 = screenX[s2];
+                y2 = screenY[s2];
+            } else {
+                Vector p = screenspace.xyzToScreen(atoms[e2].getPosition());
+                x2 = p.getX();
+                y2 = p.getY();
+            }
+            if (onScreen(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2)))
+                BondEntry.quickDraw(this, atoms[e1].getColor(), atoms[e2].getColor(),
+                                    x1, y1, x2, y2);
+        }
+        drawDots();
+    }
+
+    /**
+     * Sets the part of the screen that is drawn, in the same coordinates atoms are drawn at.
+     * Atoms, bonds and forces wholly outside it aren't drawn, and {@link #quickDraw} and
+     * {@link #bubbleDraw} don't even look at the atoms of parts of a structure outside it.
+     * Until it is set, everything is drawn.
+     *
+     * @param x0 the least x
+     * @param y0 the least y
+     * @param x1 the greatest x
+     * @param y1 the greatest y
+     */
+    public void setViewport(double x0, double y0, double x1, double y1) {
+        viewport = new double[] { x0, y0, x1, y1 };
+    }
+
+    /**
+     * Gets the size on screen, in pixels, below which {@link #quickDraw} and
+     * {@link #bubbleDraw} draw a group of atoms as a single dot.
+     *
+     * @return the size in pixels
+     */
+    public double getDotPixels() {
+        return dotPixels;
+    }
+
+    /**
+     * Sets the size on screen, in pixels, below which {@link #quickDraw} and
+     * {@link #bubbleDraw} draw a group of atoms as a single dot. The default of one pixel
+     * loses nothing that could be seen; bigger sizes draw a big structure faster and more
+     * coarsely, as while it is being moved, and {@link #draw} always draws every atom.
+     *
+     * @param pixels the size in pixels, or zero to draw every atom
+     */
+    public void setDotPixels(double pixels) {
+        dotPixels = pixels;
+    }
+
+    /**
+     * Tell whether a box on screen overlaps the viewport.
+     *
+     * @param x0 the least x
+     * @param y0 the least y
+     * @param x1 the greatest x
+     * @param y1 the greatest y
+     * @return true if the box overlaps, or if there is no viewport
+     */
+    private boolean onScreen(double x0, double y0, double x1, double y1) {
+        return viewport == null
+               || (x1 >= viewport[0] && y1 >= viewport[1] && x0 <= viewport[2] && y0 <= viewport[3]);
+    }
+
+    /**
+     * Gather the atoms of a structure and their positions, so that atom i is atoms[i], and
+     * everything drawn this frame can refer to atoms by index. The atoms are kept until the
+     * next frame, so that the index of atoms and the octree need only be rebuilt when they
+     * change.
+     *
+     * @param struc the structure to be drawn
+     */
+    private void gatherAtoms(Structure struc) {
+        final int before = numAtoms;
+        numAtoms = 0;
+        atomsChanged = false;
+        struc.process(new Structure.AtomProcessor() {
+            public void process(Atom a) {
+                if (numAtoms == atoms.length)
+                    atoms = Arrays.copyOf(atoms, Math.max(16, 2 * numAtoms));
+                ensureProjectionCapacity(numAtoms + 1);
+                if (!a.equals(atoms[numAtoms])) {
+                    atoms[numAtoms] = a;
+                    atomsChanged = true;
+                }
+                positions[3 * numAtoms] = a.getX();
+                positions[3 * numAtoms + 1] = a.getY();
+                positions[3 * numAtoms + 2] = a.getZ();
+                numAtoms++;
+            }
+        });
+        if (numAtoms < before) {
+            Arrays.fill(atoms, numAtoms, before, null);
+            atomsChanged = true;
+        }
+        // the index is empty after drawing a snapshot, even if the atoms are the same
+        if (atomsChanged || atomIndex.isEmpty()) {
+            atomIndex.clear();
+            for (int e = 0; e < numAtoms; e++)
+                atomIndex.put(atoms[e], e);
+        }
+    }
+
+    /**
+     * Gather the atoms of a snapshot and their positions, as {@link #gatherAtoms(Structure)}
+     * does for a structure, and its bonds. The atoms are atoms of the right elements, which
+     * are all that drawing needs, so nothing is read from the structure itself.
+     *
+     * @param snap the snapshot to be drawn
+     */
+    private void gatherAtoms(PositionSnapshot snap) {
+        int before = numAtoms;
+        numAtoms = snap.size();
+        if (atoms.length < numAtoms)
+            atoms = new Atom[numAtoms];
+        ensureProjectionCapacity(numAtoms);
+        for (int e = 0; e < numAtoms; e++) {
+            atoms[e] = snap.getElement(e);
+            positions[3 * e] = snap.getX(e);
+            positions[3 * e + 1] = snap.getY(e);
+            positions[3 * e + 2] = snap.getZ(e);
+        }
+        if (numAtoms < before)
+            Arrays.fill(atoms, numAtoms, before, null);
+        // the elements can't stand for the structure's atoms in the index
+        atomsChanged = true;
+        atomIndex.clear();
+        numBonds = 0;
+        for (int k = 0; k < snap.numBonds(); k++)
+            addBond(snap.getBondFirst(k), snap.getBondSecond(k), snap.getBondOrder(k));
+    }
+
+    /**
+     * Add a bond to those being drawn.
+     *
+     * @param e1 the number of its first atom
+     * @param e2 the number of its second atom
+     * @param order the bond order
+     */
+    private void addBond(int e1, int e2, int order) {
+        if (numBonds == bondOrders.length) {
+            bondOrders = Arrays.copyOf(bondOrders, Math.max(16, 2 * numBonds));
+            bondEnds = Arrays.copyOf(bondEnds, 2 * bondOrders.length);
+        }
+        bondEnds[2 * numBonds] = e1;
+        bondEnds[2 * numBonds + 1] = e2;
+        bondOrders[numBonds++] = order;
+    }
+
+    /**
+     * Gather the atoms of a structure and project all of them into screen space, with their
+     * radii in pixels.
+     *
+     * @param screenspace the screenspace
+     * @param struc the structure to be drawn
+     */
+    private void projectAtoms(ScreenSpace screenspace, Structure struc) {
+        gatherAtoms(struc);
+        projectAtoms(screenspace);
+    }
+
+    /**
+     * Project all the gathered atoms into screen space, with their radii in pixels.
+     *
+     * @param screenspace the screenspace
+     */
+    private void projectAtoms(ScreenSpace screenspace) {
+        screenspace.xyzToScreen(positions, numAtoms, screenX, screenY, screenZ, screenR);
+        for (int e = 0; e < numAtoms; e++)
+            screenR[e] *= AtomEntry.radiusRatio * atoms[e].getCovalentRadius();
+    }
+
+    /**
+     * Gather the atoms of a structure and use the octree to pick out the ones to be drawn in
+     * full, which are projected into screen space so that selected atom k is at screenX[k]
+     * and so on, and the groups of atoms to be drawn as dots.
+     *
+     * @param screenspace the screenspace
+     * @param struc the structure to be drawn
+     */
+    private void selectAtoms(ScreenSpace screenspace, Structure struc) {
+        gatherAtoms(struc);
+        if (octree == null || atomsChanged || !octree.matches(positions, numAtoms)) {
+            octree = new LodOctree(positions, numAtoms);
+            double biggest = 0.0;
+            for (int e = 0; e < numAtoms; e++)
+                biggest = Math.max(biggest, atoms[e].getCovalentRadius());
+            maxRadius = AtomEntry.radiusRatio * biggest;
+        }
+        numSelected = 0;
+        numDots = 0;
+        octree.select(screenspace, maxRadius, viewport, dotPixels, selection);
+        Arrays.fill(slot, 0, numAtoms, -1);
+        for (int k = 0; k < numSelected; k++) {
+            int e = selected[k];
+            slot[e] = k;
+            System.arraycopy(positions, 3 * e, selectedPositions, 3 * k, 3);
         }
+        screenspace.xyzToScreen(selectedPositions, numSelected, screenX, screenY, screenZ,
+                                screenR);
+        for (int k = 0; k < numSelected; k++)
+            screenR[k] *= AtomEntry.radiusRatio * atoms[selected[k]].getCovalentRadius();
+    }
+
+    /**
+     * Draw the groups of atoms picked out by {@link #selectAtoms} as dots, each the color of
+     * one of its atoms.
+     */
+    private void drawDots() {
+        if (numDots == 0)
+            return;
+        Color oldcolor = getCurrentColor();
+        for (int k = 0; k < numDots; k++) {
+            double size = Math.max(1.0, dotSize[k]);
+            setCurrentColor(atoms[dotAtom[k]].getColor());
+            fillCircle(dotX[k] - 0.5 * size, dotY[k] - 0.5 * size, size);
+        }
+        setCurrentColor(oldcolor);
+    }
+
+    /**
+     * Make the arrays used for projecting atoms big enough.
+     *
+     * @param n the number of atoms to make room for
+     */
+    private void ensureProjectionCapacity(int n) {
+        if (n <= screenX.length)
+            return;
+        n = Math.max(16, Math.max(n, 2 * screenX.length));
+        positions = Arrays.copyOf(positions, 3 * n);
+        screenX = new double[n];
+        screenY = new double[n];
+        screenZ = new double[n];
+        screenR = new double[n];
+        endX = new double[n];
+        endY = new double[n];
+        endZ = new double[n];
+        selected = new int[n];
+        slot = new int[n];
+        selectedPositions = new double[3 * n];
     }
 
     /* (non-Javadoc)
@@ -89,53 +451,104 @@ public abstract class DrawingEngineImpl implements DrawingEngine {
         draw(screenspace, struc, 1.0, ff);
     }
 
+    /**
+     * Draw a snapshot of a structure, as {@link #draw(Structure)} draws the structure, with
+     * the bonds the snapshot has. Nothing is read from the structure, so one thread can
+     * draw a snapshot while another goes on moving the atoms.
+     *
+     * @param snap the snapshot
+     */
+    public void draw(PositionSnapshot snap) {
+        gatherAtoms(snap);
+        projectAtoms(screenspace);
+        draw(screenspace, 0.0, null);
+    }
+
     /**
      * When an object (together with many others) is done being rotated or moved, there is time to draw
-     * it in some more beautiful way, so call the {@link DisplayListEntry#draw} method instead of.
+     * it in some more beautiful way. The atoms, bonds and forces are put in a {@link DisplayList},
+     * which is kept from frame to frame, sorted by depth and drawn back to front. Each atom
+     * is projected once, and its bonds and force drawn from that projection. Whatever falls
+     * outside the viewport is left out, but every atom in it is drawn.
      *
      * @param screenspace the screenspace
      * @param struc the structure to be drawn
      * @param forceMultiplier a multiplier to scale force vectors (arbitrary, choose for esthetics)
      * @param ff the ff
-     * {@link DisplayListEntry#quickDraw}.
      */
     private void draw(final ScreenSpace screenspace, final Structure struc,
                       final double forceMultiplier, final ForceField ff) {
-        final List<DisplayListEntry> dlist = new ArrayList<DisplayListEntry>();
         final List<Bond> bondList = struc.inferBonds();
         if (ff != null) {
             ff.computeForces();
         }
-        struc.process(new Structure.AtomProcessor() {
-            public void process(Atom a) {
-                dlist.add(new AtomEntry(screenspace, a, DrawingEngineImpl.this, struc));
+        projectAtoms(screenspace, struc);
+        numBonds = 0;
+        for (int i = 0; i < bondList.size(); i++) {
+            Bond b = bondList.get(i);
+            Integer e1 = atomIndex.get(b.getFirstAtom()), e2 = atomIndex.get(b.getSecondAtom());
+            if (e1 != null && e2 != null)
+                addBond(e1, e2, b.getOrder());
+        }
+        draw(screenspace, forceMultiplier, ff);
+    }
+
+    /**
+     * Put the projected atoms, the bonds and the forces in the display list, and draw it.
+     *
+     * @param screenspace the screenspace
+     * @param forceMultiplier a multiplier to scale force vectors
+     * @param ff the force field whose forces are drawn, or null for none
+     */
+    private void draw(ScreenSpace screenspace, double forceMultiplier, ForceField ff) {
+        DisplayList dl = displayList;
+        dl.clear();
+        for (int e = 0; e < numAtoms; e++) {
+            double x = screenX[e], y = screenY[e], r = screenR[e];
+            if (onScreen(x - r, y - r, x + r, y + r))
+                dl.add(ATOM, e, x, y, screenZ[e], r);
+        }
+        // each bond once, between the projections of its atoms
+        for (int k = 0; k < numBonds; k++) {
+            int e1 = bondEnds[2 * k], e2 = bondEnds[2 * k + 1];
+            double x1 = screenX[e1], y1 = screenY[e1], x2 = screenX[e2], y2 = screenY[e2];
+            if (onScreen(Math.min(x1, x2), Math.min(y1, y2), Math.max(x1, x2), Math.max(y1, y2)))
+                dl.add(BOND, k, x1, y1, screenZ[e1], screenR[e1], x2, y2, screenZ[e2], screenR[e2]);
+        }
+        if (ff != null) {
+            // the far end of each force arrow
+            for (int e = 0; e < numAtoms; e++) {
+                Vector end = atoms[e].getPosition().add(atoms[e].getForce().scale(forceMultiplier));
+                positions[3 * e] = end.getX();
+                positions[3 * e + 1] = end.getY();
+                positions[3 * e + 2] = end.getZ();
             }
-        });
-        struc.process(new Structure.AtomProcessor() {
-            public void process(final Atom a1) {
-                for (Bond b: bondList) {
-                    Atom a2 = b.otherAtom(a1);
-                    if (a2 != null && a1.getPosition().getX() < a2.getPosition().getX()) {
-                        dlist.add(new BondEntry(screenspace, b, DrawingEngineImpl.this, struc));
-                    }
-                }
-                if (ff != null) {
-                    ForceEntry dlf = new ForceEntry(screenspace, a1.getPosition(),
-                                                    a1.getForce(), DrawingEngineImpl.this);
-                    dlf.setForceMultiplier(forceMultiplier);
-                    dlist.add(dlf);
-                }
+            screenspace.xyzToScreen(positions, numAtoms, endX, endY, endZ);
+            for (int e = 0; e < numAtoms; e++) {
+                double x1 = screenX[e], y1 = screenY[e], x2 = endX[e], y2 = endY[e];
+                if (onScreen(Math.min(x1, x2), Math.min(y1, y2),
+                             Math.max(x1, x2), Math.max(y1, y2)))
+                    dl.add(FORCE, e, x1, y1, screenZ[e], 0.0, x2, y2, endZ[e], 0.0);
             }
-        });
-        // A List was needed previously because the size was unknown. Now that it's known we
-        // move to an array.
-        int n = dlist.size();
-        DisplayListEntry[] dlst = new DisplayListEntry[n];
-        for (int i = 0; i < n; i++)
-            dlst[i] = dlist.get(i);
-        DisplayListEntry.zsort(dlst);
-        for (DisplayListEntry e : dlst)
-            e.draw();
+        }
+        dl.zsort();
+        for (int k = 0; k < dl.size(); k++) {
+            int e = dl.sorted(k);
+            switch (dl.getKind(e)) {
+            case ATOM:
+                AtomEntry.draw(this, atoms[dl.getItem(e)].getColor(), false,
+                               dl.getX1(e), dl.getY1(e), dl.getRadius1(e));
+                break;
+            case BOND:
+                BondEntry.draw(this, screenspace, bondOrders[dl.getItem(e)],
+                               dl.getX1(e), dl.getY1(e), dl.getZ1(e), dl.getRadius1(e),
+                               dl.getX2(e), dl.getY2(e), dl.getZ2(e), dl.getRadius2(e));
+                break;
+            case FORCE:
+                ForceEntry.quickDraw(this, dl.getX1(e), dl.getY1(e), dl.getX2(e), dl.getY2(e));
+                break;
+            }
+        }
     }
 
     /**
@@ -14,7 +14,7 @@ public class ForceEntry extends DisplayListEntry {
     private Vector begin, end, orig, f;
 
     /** The arrow head size. */
-    private double arrowHeadSize = 5;
+    private static final double arrowHeadSize = 5;
 
     /** The ort. */
     private ScreenSpace ort;
@@ -67,31 +67,38 @@ public class ForceEntry extends DisplayListEntry {
      * @see net.willware.eurydice.view.Entry#quickpaint()
      */
     public void quickDraw() {
+        quickDraw(engine, begin.getX(), begin.getY(), end.getX(), end.getY());
+    }
+
+    /*package*/ /**
+     * Draw a force as an arrow.
+     *
+     * @param engine the engine
+     * @param bx the x screen coordinate of the atom the force acts on
+     * @param by the y screen coordinate of the atom the force acts on
+     * @param ex the x screen coordinate of the tip of the arrow
+     * @param ey the y screen coordinate of the tip of the arrow
+     */
+    static void quickDraw(DrawingEngineImpl engine, double bx, double by, double ex, double ey) {
         if (force_color == null)
             force_color = Color.getColor("green");
-        BondEntry.drawBondLine(engine, force_color, ForceEntry.force_color, begin, end);
+        BondEntry.drawBondLine(engine, force_color, ForceEntry.force_color, bx, by, ex, ey);
         // u is perpendicular to the force vector in screen space
-        Vector u = new Vector(end.getY() - begin.getY(),
-                              begin.getX() - end.getX(),
-                              0.0);
+        double ux = ey - by, uy = bx - ex;
         // v is parallel to the force vector in screen space
-        Vector v = new Vector(end.getX() - begin.getX(),
-                              end.getY() - begin.getY(),
-                              0.0);
-        double m = u.length();
+        double vx = ex - bx, vy = ey - by;
+        double m = Math.sqrt(ux * ux + uy * uy);
         if (m > arrowHeadSize)
             m = ForceEntry.sqrtHalf * arrowHeadSize / m;
         else
             m = ForceEntry.sqrtHalf;
-        u = u.scale(m);
-        v = v.scale(m);
+        ux *= m;
+        uy *= m;
+        vx *= m;
+        vy *= m;
         engine.setCurrentColor(ForceEntry.force_color);
-        engine.drawLine(end.getX(), end.getY(),
-                        end.getX() + u.getX() - v.getX(),
-                        end.getY() + u.getY() - v.getY());
-        engine.drawLine(end.getX(), end.getY(),
-                        end.getX() - u.getX() - v.getX(),
-                        end.getY() - u.getY() - v.getY());
+        engine.drawLine(ex, ey, ex + ux - vx, ey + uy - vy);
+        engine.drawLine(ex, ey, ex - ux - vx, ey - uy - vy);
     }
 
     /* (non-Javadoc)
@@ -0,0 +1,285 @@
+package net.willware.eurydice.nanocad;
+
+import java.util.Arrays;
+
+import net.willware.eurydice.view.ScreenSpace;
+
+/**
+ * An octree over the positions of the atoms of a structure, for drawing big structures
+ * with level of detail. Unlike {@link net.willware.eurydice.math.Octree} it holds atom
+ * indices in flat arrays rather than atoms in lists, so that it can be built over a
+ * million atoms, and each cell knows the box its atoms' centers lie in.
+ * <p>
+ * {@link #select} walks the tree for a frame. Cells that fall outside the viewport are
+ * dropped without looking at their atoms, cells too small on screen to show any detail
+ * become a single dot, and only the atoms in the rest are drawn in full.
+ */
+class LodOctree {
+
+    /** Cells with no more atoms than this aren't divided. */
+    static final int LEAF_ATOMS = 8;
+
+    /** How deep cells are divided, however many atoms sit at one place. */
+    private static final int MAX_DEPTH = 24;
+
+    /**
+     * What {@link LodOctree#select} finds.
+     */
+    interface Selection {
+
+        /**
+         * An atom that should be drawn in full.
+         *
+         * @param i the index of the atom
+         */
+        void atom(int i);
+
+        /**
+         * A cell too small to draw its atoms, that should be drawn as a dot.
+         *
+         * @param atom the index of an atom in the cell, to color the dot
+         * @param x the x screen coordinate of the dot's center
+         * @param y the y screen coordinate of the dot's center
+         * @param size the size of the cell on screen, in pixels
+         */
+        void cell(int atom, double x, double y, double size);
+    }
+
+    /** The number of atoms. */
+    private final int n;
+
+    /** A copy of the positions the tree was built for, packed as x, y and z for each. */
+    private final double[] positions;
+
+    /** The atom indices, the atoms of each cell together. */
+    private final int[] atomOrder;
+
+    /** The number of cells. */
+    private int numCells = 0;
+
+    /** The box around the atoms' centers in each cell: least x, y, z, then greatest. */
+    private double[] bounds = new double[6 * 64];
+
+    /** Where each cell's atoms start in {@link #atomOrder}. */
+    private int[] first = new int[64];
+
+    /** The number of atoms in each cell. */
+    private int[] count = new int[64];
+
+    /** Each cell's first child, the rest following it, or -1 for a leaf. */
+    private int[] firstChild = new int[64];
+
+    /** The number of children of each cell. */
+    private int[] numChildren = new int[64];
+
+    /** The frontier of cells being looked at by {@link #select}, and the next one. */
+    private int[] frontier = new int[64], nextFrontier = new int[64];
+
+    /** The corners of the frontier's cells, and where they land on screen. */
+    private double[] corners = new double[0], cornerX, cornerY, cornerZ, cornerScale;
+
+    /**
+     * Build a tree over the positions of some atoms.
+     *
+     * @param xyz the positions, packed as x, y and z for each
+     * @param n the number of atoms
+     */
+    LodOctree(double[] xyz, int n) {
+        this.n = n;
+        positions = Arrays.copyOf(xyz, 3 * n);
+        atomOrder = new int[n];
+        for (int i = 0; i < n; i++)
+            atomOrder[i] = i;
+        if (n > 0) {
+            newCells(1);
+            build(0, 0, n, 0, new int[n], new byte[n]);
+        }
+    }
+
+    /**
+     * Tell whether the tree was built for these positions, so still holds for them.
+     *
+     * @param xyz the positions, packed as x, y and z for each
+     * @param n the number of atoms
+     * @return true if the atoms are where they were when the tree was built
+     */
+    boolean matches(double[] xyz, int n) {
+        if (n != this.n)
+            return false;
+        for (int j = 0; j < 3 * n; j++)
+            if (xyz[j] != positions[j])
+                return false;
+        return true;
+    }
+
+    /**
+     * Gets the number of cells.
+     *
+     * @return the number of cells
+     */
+    int getNumCells() {
+        return numCells;
+    }
+
+    /**
+     * Add cells to the end of the tree.
+     *
+     * @param k how many to add
+     * @return the first of them
+     */
+    private int newCells(int k) {
+        int c = numCells;
+        numCells += k;
+        if (numCells > first.length) {
+            int capacity = Math.max(numCells, 2 * first.length);
+            bounds = Arrays.copyOf(bounds, 6 * capacity);
+            first = Arrays.copyOf(first, capacity);
+            count = Arrays.copyOf(count, capacity);
+            firstChild = Arrays.copyOf(firstChild, capacity);
+            numChildren = Arrays.copyOf(numChildren, capacity);
+        }
+        return c;
+    }
+
+    /**
+     * Fill in a cell, and divide it among children if it holds too many atoms.
+     *
+     * @param c the cell
+     * @param lo where its atoms start in {@link #atomOrder}
+     * @param hi where they end
+     * @param depth how deep the cell is
+     * @param scratch room for sorting atom indices
+     * @param octants room for the octant of each atom
+     */
+    private void build(int c, int lo, int hi, int depth, int[] scratch, byte[] octants) {
+        double[] box = { Double.MAX_VALUE, Double.MAX_VALUE, Double.MAX_VALUE,
+                         -Double.MAX_VALUE, -Double.MAX_VALUE, -Double.MAX_VALUE };
+        for (int k = lo; k < hi; k++) {
+            int j = 3 * atomOrder[k];
+            for (int axis = 0; axis < 3; axis++) {
+                double v = positions[j + axis];
+                box[axis] = (v < box[axis]) ? v : box[axis];
+                box[axis + 3] = (v > box[axis + 3]) ? v : box[axis + 3];
+            }
+        }
+        System.arraycopy(box, 0, bounds, 6 * c, 6);
+        first[c] = lo;
+        count[c] = hi - lo;
+        firstChild[c] = -1;
+        numChildren[c] = 0;
+        if (hi - lo <= LEAF_ATOMS || depth == MAX_DEPTH)
+            return;
+        double cx = 0.5 * (box[0] + box[3]);
+        double cy = 0.5 * (box[1] + box[4]);
+        double cz = 0.5 * (box[2] + box[5]);
+        // sort the atoms by octant, counting first
+        int[] sizes = new int[8];
+        for (int k = lo; k < hi; k++) {
+            int j = 3 * atomOrder[k];
+            int octant = ((positions[j] > cx) ? 1 : 0) | ((positions[j + 1] > cy) ? 2 : 0)
+                         | ((positions[j + 2] > cz) ? 4 : 0);
+            octants[k] = (byte) octant;
+            sizes[octant]++;
+        }
+        int kids = 0;
+        int[] starts = new int[9];
+        starts[0] = lo;
+        for (int octant = 0; octant < 8; octant++) {
+            starts[octant + 1] = starts[octant] + sizes[octant];
+            kids += (sizes[octant] > 0) ? 1 : 0;
+        }
+        if (kids < 2)
+            return;     // all the atoms are at one place
+        int[] next = Arrays.copyOf(starts, 8);
+        for (int k = lo; k < hi; k++)
+            scratch[next[octants[k]]++] = atomOrder[k];
+        System.arraycopy(scratch, lo, atomOrder, lo, hi - lo);
+        int child = newCells(kids);
+        firstChild[c] = child;
+        numChildren[c] = kids;
+        for (int octant = 0; octant < 8; octant++)
+            if (sizes[octant] > 0)
+                build(child++, starts[octant], starts[octant + 1], depth + 1, scratch, octants);
+    }
+
+    /**
+     * Walk the tree for a frame, a level at a time, projecting the corners of every cell on
+     * the level together. A cell is dropped if its atoms can't reach the viewport; it's a dot
+     * if, with its atoms' radii, it is smaller on screen than the given size; and otherwise
+     * its children are looked at, or if it has none, its atoms are drawn. Cells that reach
+     * behind the eye are neither dropped nor made dots.
+     *
+     * @param screenspace the screenspace
+     * @param margin the radius of the biggest atom, in angstroms
+     * @param viewport the least x and y and greatest x and y of the part of the screen that
+     *     is drawn, or null to keep everything
+     * @param dotPixels cells smaller than this on screen, in pixels, are drawn as dots
+     * @param selection what to tell about the atoms and dots
+     */
+    void select(ScreenSpace screenspace, double margin, double[] viewport, double dotPixels,
+                Selection selection) {
+        if (numCells == 0)
+            return;
+        double behind = screenspace.getPerspective().getDistance() * screenspace.getZoomFactor();
+        int size = 1;
+        frontier[0] = 0;
+        while (size > 0) {
+            if (corners.length < 24 * size) {
+                corners = new double[24 * Math.max(size, 2 * corners.length / 24)];
+                int k = corners.length / 3;
+                cornerX = new double[k];
+                cornerY = new double[k];
+                cornerZ = new double[k];
+                cornerScale = new double[k];
+            }
+            for (int f = 0; f < size; f++) {
+                int b = 6 * frontier[f];
+                for (int corner = 0, j = 24 * f; corner < 8; corner++, j += 3) {
+                    corners[j] = bounds[b + ((corner & 1) == 0 ? 0 : 3)]
+                                 + ((corner & 1) == 0 ? -margin : margin);
+                    corners[j + 1] = bounds[b + ((corner & 2) == 0 ? 1 : 4)]
+                                     + ((corner & 2) == 0 ? -margin : margin);
+                    corners[j + 2] = bounds[b + ((corner & 4) == 0 ? 2 : 5)]
+                                     + ((corner & 4) == 0 ? -margin : margin);
+                }
+            }
+            screenspace.xyzToScreen(corners, 8 * size, cornerX, cornerY, cornerZ, cornerScale);
+            int nextSize = 0;
+            for (int f = 0; f < size; f++) {
+                int c = frontier[f];
+                double x0 = Double.MAX_VALUE, y0 = Double.MAX_VALUE;
+                double x1 = -Double.MAX_VALUE, y1 = -Double.MAX_VALUE;
+                boolean inFront = true;
+                for (int k = 8 * f; k < 8 * f + 8; k++) {
+                    x0 = (cornerX[k] < x0) ? cornerX[k] : x0;
+                    y0 = (cornerY[k] < y0) ? cornerY[k] : y0;
+                    x1 = (cornerX[k] > x1) ? cornerX[k] : x1;
+                    y1 = (cornerY[k] > y1) ? cornerY[k] : y1;
+                    inFront &= cornerZ[k] < behind && cornerScale[k] > 0.0;
+                }
+                double extent = Math.max(x1 - x0, y1 - y0);
+                if (inFront && viewport != null
+                        && (x1 < viewport[0] || y1 < viewport[1]
+                            || x0 > viewport[2] || y0 > viewport[3]))
+                    continue;
+                if (inFront && count[c] > 1 && extent < dotPixels) {
+                    selection.cell(atomOrder[first[c]], 0.5 * (x0 + x1), 0.5 * (y0 + y1), extent);
+                } else if (firstChild[c] < 0) {
+                    for (int k = first[c]; k < first[c] + count[c]; k++)
+                        selection.atom(atomOrder[k]);
+                } else {
+                    if (nextSize + numChildren[c] > nextFrontier.length)
+                        nextFrontier = Arrays.copyOf(nextFrontier,
+                                                     Math.max(nextSize + numChildren[c],
+                                                              2 * nextFrontier.length));
+                    for (int k = 0; k < numChildren[c]; k++)
+                        nextFrontier[nextSize++] = firstChild[c] + k;
+                }
+            }
+            int[] swap = frontier;
+            frontier = nextFrontier;
+            nextFrontier = swap;
+            size = nextSize;
+        }
+    }
+}
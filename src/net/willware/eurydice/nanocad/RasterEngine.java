@@ -0,0 +1,954 @@
+package net.willware.eurydice.nanocad;
+
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Bond;
+import net.willware.eurydice.core.Color;
+import net.willware.eurydice.core.Orientation;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.forcefields.ForceField;
+import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.serialization.TrajectoryFile;
+import net.willware.eurydice.view.DrawingEngine;
+import net.willware.eurydice.view.ScreenSpace;
+
+/**
+ * A drawing engine that needs no display, for rendering frames on machines without one,
+ * such as movies of trajectories on batch nodes. Atoms are rasterized as shaded spheres
+ * and bonds as cylinders into a framebuffer of RGB pixels with a z-buffer, so nothing
+ * needs sorting by depth, and frames can be written as PNG files.
+ * <p>
+ * The image is divided into square tiles. Each frame, every sphere and cylinder is listed
+ * under the tiles it covers, and then the tiles are rasterized by several threads at once,
+ * each taking the next tile when it finishes one. A tile's pixels belong to the thread
+ * drawing it, so the threads never touch the same memory, and the image comes out the same
+ * whatever the number of threads.
+ * <p>
+ * Screen coordinates are as for the other engines, but centered: the point in front of the
+ * eye is drawn in the middle of the image.
+ */
+public class RasterEngine implements DrawingEngine {
+
+    /** The radius of a bond's cylinder, in angstroms. */
+    private static final double BOND_RADIUS = 0.15;
+
+    /** The radius of a force arrow's line, in pixels. */
+    private static final double FORCE_RADIUS = 0.75;
+
+    /** How much light surfaces get however they face. */
+    private static final double AMBIENT = 0.3;
+
+    /** The direction light comes from, toward the upper left and the viewer. */
+    private static final double LIGHT_X = -0.4, LIGHT_Y = -0.5, LIGHT_Z = 0.768;
+
+    /** The default width and height of tiles, in pixels. */
+    public static final int DEFAULT_TILE_SIZE = 32;
+
+    /** Worker threads shouldn't keep the program alive. */
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "rasterizer");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /** The width and height of the image, in pixels. */
+    private final int width, height;
+
+    /** The pixels, 0xRRGGBB, row after row from the top. */
+    private final int[] pixels;
+
+    /** The depth of what is drawn at each pixel, bigger being closer. */
+    private final float[] depth;
+
+    /** The number of threads. */
+    private final int numThreads;
+
+    /** The worker threads, started when first needed. */
+    private ExecutorService pool;
+
+    /** The screenspace. */
+    private ScreenSpace screenspace = new ScreenSpace();
+
+    /** The background, 0xRRGGBB. */
+    private int background = 0xffffff;
+
+    /** The width and height of tiles, in pixels. */
+    private int tileSize = DEFAULT_TILE_SIZE;
+
+    /** The number of spheres this frame. */
+    private int numSpheres;
+
+    /** The center of each sphere on the image, its depth, and its radius in pixels. */
+    private double[] sphereX = new double[0], sphereY = new double[0],
+                     sphereZ = new double[0], sphereR = new double[0];
+
+    /** The color of each sphere, 0xRRGGBB. */
+    private int[] sphereColor = new int[0];
+
+    /** Whether spheres are shaded, or flat disks. */
+    private boolean shaded;
+
+    /** The number of cylinders this frame. */
+    private int numCylinders;
+
+    /** The ends of each cylinder on the image, with their depths. */
+    private double[] cylX1 = new double[0], cylY1 = new double[0], cylZ1 = new double[0],
+                     cylX2 = new double[0], cylY2 = new double[0], cylZ2 = new double[0];
+
+    /** The radius of each cylinder, in pixels. */
+    private double[] cylR = new double[0];
+
+    /** The color of each cylinder, 0xRRGGBB. */
+    private int[] cylColor = new int[0];
+
+    /** The shapes, nearest first, each packed with its depth as a sort key. */
+    private long[] order = new long[0];
+
+    /** Where each tile's list of shapes starts in {@link #binned}, and where the last ends. */
+    private int[] binStart = new int[0];
+
+    /** The shapes covering each tile: spheres by index, then cylinders after them. */
+    private int[] binned = new int[0];
+
+    /** Positions and their projections, reused from frame to frame. */
+    private double[] xyz = new double[0], sx = new double[0], sy = new double[0],
+                     sz = new double[0], scale = new double[0];
+
+    /** The atoms drawn last frame, kept to tell whether they have changed. */
+    private Atom[] atoms = new Atom[0];
+
+    /** The number of atoms. */
+    private int numAtoms;
+
+    /** Whether the atoms differ from last frame's. */
+    private boolean atomsChanged;
+
+    /** The structure whose atom array was last drawn with given positions. */
+    private Structure arrayFor;
+
+    /** The modification count of {@link #arrayFor} when its atom array was taken. */
+    private long arrayVersion;
+
+    /** Fills {@link #atoms} and {@link #xyz} from a structure. */
+    private final Structure.AtomProcessor gatherer = new Structure.AtomProcessor() {
+        public void process(Atom a) {
+            if (numAtoms == atoms.length)
+                atoms = Arrays.copyOf(atoms, Math.max(16, 2 * numAtoms));
+            if (3 * numAtoms == xyz.length)
+                xyz = Arrays.copyOf(xyz, Math.max(48, 2 * xyz.length));
+            if (!a.equals(atoms[numAtoms])) {
+                atoms[numAtoms] = a;
+                atomsChanged = true;
+            }
+            xyz[3 * numAtoms] = a.getX();
+            xyz[3 * numAtoms + 1] = a.getY();
+            xyz[3 * numAtoms + 2] = a.getZ();
+            numAtoms++;
+        }
+    };
+
+    /** The bonds to draw rather than inferring them, or null to infer them. */
+    private List<Bond> fixedBonds;
+
+    /** The bond list {@link #bondEnds} was found for, and its size and structure version. */
+    private List<Bond> endsFor;
+
+    /** The size of {@link #endsFor}, and the modification count of its structure. */
+    private long endsSize, endsVersion;
+
+    /** The atom indices of the ends of each bond, one after the other. */
+    private int[] bondEnds = new int[0];
+
+    /** The number of bonds in {@link #bondEnds}. */
+    private int numBonds;
+
+    /**
+     * Constructor, using one thread per processor.
+     *
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     */
+    public RasterEngine(int width, int height) {
+        this(width, height, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param width the width of the image in pixels
+     * @param height the height of the image in pixels
+     * @param numThreads the number of threads to rasterize with
+     */
+    public RasterEngine(int width, int height, int numThreads) {
+        if (width <= 0 || height <= 0)
+            throw new IllegalArgumentException("image size " + width + "x" + height);
+        this.width = width;
+        this.height = height;
+        this.numThreads = Math.max(1, numThreads);
+        pixels = new int[width * height];
+        depth = new float[width * height];
+        Arrays.fill(pixels, background);
+    }
+
+    /**
+     * Sets the screen space.
+     *
+     * @param ss the new screen space
+     */
+    public void setScreenSpace(ScreenSpace ss) {
+        screenspace = ss;
+    }
+
+    /**
+     * Gets the screen space.
+     *
+     * @return the screen space
+     */
+    public ScreenSpace getScreenSpace() {
+        return screenspace;
+    }
+
+    /**
+     * Set up the screenspace to show the whole of a structure, keeping its rotation: center
+     * the structure, and look at it from a few times its size away, zoomed to fill most of
+     * the image.
+     *
+     * @param struc the structure
+     */
+    public void showAll(Structure struc) {
+        Region box = struc.getBoundingBox();
+        double size = Math.max(box.getMaxDimension(), 1.0);
+        Orientation o = screenspace.getOrientation();
+        Vector center = o.getRotation().rotate(box.getCenter());
+        o.translate(center.add(o.getTranslation()).negate());
+        screenspace.getPerspective().setDistance(4.0 * size);
+        screenspace.setZoomFactor(0.8 * Math.min(width, height) / (Math.sqrt(3.0) * size));
+    }
+
+    /**
+     * Sets the bonds to draw, rather than inferring them each frame. A movie keeps the
+     * bonds of its first frame this way, so that they don't flicker as atoms move.
+     *
+     * @param bonds the bonds, or null to infer them
+     */
+    public void setBonds(List<Bond> bonds) {
+        fixedBonds = bonds;
+    }
+
+    /**
+     * Stop the worker threads. The engine can still draw afterwards, on new ones.
+     */
+    public void close() {
+        if (pool != null) {
+            pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * Sets the background color.
+     *
+     * @param c the color
+     */
+    public void setBackground(Color c) {
+        background = rgb(c);
+    }
+
+    /**
+     * Sets the width and height of the tiles the image is divided into for rasterizing.
+     * Smaller tiles share the work out more evenly, bigger ones list fewer shapes twice.
+     *
+     * @param pixels the width and height in pixels
+     */
+    public void setTileSize(int pixels) {
+        if (pixels <= 0)
+            throw new IllegalArgumentException("tile size " + pixels);
+        tileSize = pixels;
+    }
+
+    /**
+     * Gets the width of the image.
+     *
+     * @return the width in pixels
+     */
+    public int getWidth() {
+        return width;
+    }
+
+    /**
+     * Gets the height of the image.
+     *
+     * @return the height in pixels
+     */
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * Gets the framebuffer, which the next frame drawn will overwrite.
+     *
+     * @return the pixels, 0xRRGGBB, row after row from the top
+     */
+    public int[] getPixels() {
+        return pixels;
+    }
+
+    /**
+     * Gets the last frame drawn as an image.
+     *
+     * @return the image
+     */
+    public BufferedImage getImage() {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        image.getRaster().setDataElements(0, 0, width, height, pixels);
+        return image;
+    }
+
+    /**
+     * Write the last frame drawn as a PNG image.
+     *
+     * @param out the stream to write to, which is left open
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void writePng(OutputStream out) throws IOException {
+        if (!ImageIO.write(getImage(), "png", out))
+            throw new IOException("no PNG writer");
+    }
+
+    /**
+     * Write the last frame drawn to a PNG file.
+     *
+     * @param filename the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void writePng(String filename) throws IOException {
+        OutputStream out = new FileOutputStream(filename);
+        try {
+            writePng(out);
+        } finally {
+            out.close();
+        }
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.view.DrawingEngine#draw(net.willware.eurydice.core.Structure)
+     */
+    public void draw(Structure s) {
+        render(s, null, true, 0.0);
+    }
+
+    /**
+     * Draw a structure with its atoms at given positions rather than their own, such as a
+     * frame read from a trajectory, without moving the atoms.
+     *
+     * @param s the structure to be drawn
+     * @param positions the positions, x, y and z for each atom in the order of
+     *        {@link Structure#getAtomArray()}
+     */
+    public void draw(Structure s, double[] positions) {
+        render(s, positions, true, 0.0);
+    }
+
+    /**
+     * Draw a snapshot of a structure, with the bonds the snapshot has. Nothing is read
+     * from the structure, so one thread can draw frame after frame of a simulation while
+     * another goes on integrating.
+     *
+     * @param snap the snapshot
+     */
+    public void draw(PositionSnapshot snap) {
+        gatherAtoms(snap);
+        render(true, 0.0);
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.view.DrawingEngine#drawWithForces(net.willware.eurydice.core.Structure, net.willware.eurydice.forcefields.ForceField)
+     */
+    public void drawWithForces(Structure s, ForceField ff) {
+        ff.computeForces();
+        render(s, null, true, 1.0);
+    }
+
+    /**
+     * Draw the atoms as flat disks, with no bonds.
+     *
+     * @param s the structure to be drawn
+     * @see net.willware.eurydice.view.DrawingEngine#quickDraw(net.willware.eurydice.core.Structure)
+     */
+    public void quickDraw(Structure s) {
+        render(s, null, false, 0.0);
+    }
+
+    /**
+     * Rasterize a frame: project the atoms, make spheres and cylinders of them, list those
+     * under the tiles they cover, and rasterize the tiles.
+     *
+     * @param struc the structure to be drawn
+     * @param positions the atoms' positions, or null to use their own
+     * @param full true to shade the spheres and draw bonds
+     * @param forceMultiplier if not zero, draw forces, scaled by this
+     */
+    private void render(Structure struc, double[] positions, boolean full,
+                        double forceMultiplier) {
+        if (positions == null)
+            gatherAtoms(struc);
+        else
+            gatherAtoms(struc, positions);
+        if (full)
+            findBondEnds(struc, (fixedBonds != null) ? fixedBonds : struc.inferBonds());
+        render(full, forceMultiplier);
+    }
+
+    /**
+     * Rasterize the atoms gathered into {@link #atoms} and {@link #xyz}, and for a full
+     * frame the bonds in {@link #bondEnds}.
+     *
+     * @param full true to shade the spheres and draw bonds
+     * @param forceMultiplier if not zero, draw forces, scaled by this
+     */
+    private void render(boolean full, double forceMultiplier) {
+        int n = numAtoms;
+        if (sx.length < n) {
+            sx = new double[xyz.length / 3];
+            sy = new double[sx.length];
+            sz = new double[sx.length];
+            scale = new double[sx.length];
+        }
+        screenspace.xyzToScreen(xyz, n, sx, sy, sz, scale);
+        double cx = 0.5 * width, cy = 0.5 * height;
+        shaded = full;
+        numSpheres = 0;
+        numCylinders = 0;
+        for (int i = 0; i < n; i++)
+            addSphere(sx[i] + cx, sy[i] + cy, sz[i],
+                      AtomEntry.radiusRatio * atoms[i].getCovalentRadius() * scale[i],
+                      rgb(atoms[i].getColor()));
+        if (full) {
+            for (int k = 0; k < 2 * numBonds; k += 2) {
+                int i1 = bondEnds[k], i2 = bondEnds[k + 1];
+                addBond(i1, i2, cx, cy, rgb(atoms[i1].getColor()), rgb(atoms[i2].getColor()));
+            }
+        }
+        if (forceMultiplier != 0.0) {
+            for (int i = 0; i < n; i++) {
+                Vector end = atoms[i].getPosition().add(atoms[i].getForce().scale(forceMultiplier));
+                Vector e = screenspace.xyzToScreen(end);
+                addCylinder(sx[i] + cx, sy[i] + cy, sz[i], e.getX() + cx, e.getY() + cy, e.getZ(),
+                            FORCE_RADIUS, 0x000000);
+            }
+        }
+        bin();
+        rasterizeTiles();
+    }
+
+    /**
+     * Gather a structure's atoms into {@link #atoms} and their positions into {@link #xyz},
+     * noting whether the atoms are the same as last frame.
+     *
+     * @param struc the structure
+     */
+    private void gatherAtoms(Structure struc) {
+        arrayFor = null;
+        int before = numAtoms;
+        numAtoms = 0;
+        atomsChanged = false;
+        struc.process(gatherer);
+        if (numAtoms < before) {
+            Arrays.fill(atoms, numAtoms, before, null);
+            atomsChanged = true;
+        }
+    }
+
+    /**
+     * Gather a structure's atoms into {@link #atoms}, in the order of its atom array, and
+     * given positions into {@link #xyz}. The atom array is only asked for again when the
+     * structure has changed.
+     *
+     * @param struc the structure
+     * @param positions the positions
+     */
+    private void gatherAtoms(Structure struc, double[] positions) {
+        atomsChanged = false;
+        long version = struc.getModificationCount();
+        if (struc != arrayFor || version != arrayVersion) {
+            Atom[] array = struc.getAtomArray();
+            if (atoms.length < array.length)
+                atoms = new Atom[array.length];
+            for (int i = 0; i < array.length; i++) {
+                if (atoms[i] != array[i]) {
+                    atoms[i] = array[i];
+                    atomsChanged = true;
+                }
+            }
+            if (array.length < numAtoms) {
+                Arrays.fill(atoms, array.length, numAtoms, null);
+                atomsChanged = true;
+            }
+            numAtoms = array.length;
+            arrayFor = struc;
+            arrayVersion = version;
+        }
+        if (xyz.length < 3 * numAtoms)
+            xyz = new double[3 * numAtoms];
+        System.arraycopy(positions, 0, xyz, 0, 3 * numAtoms);
+    }
+
+    /**
+     * Gather the atoms of a snapshot into {@link #atoms}, as atoms of the right elements,
+     * their positions into {@link #xyz}, and its bonds into {@link #bondEnds}.
+     *
+     * @param snap the snapshot
+     */
+    private void gatherAtoms(PositionSnapshot snap) {
+        int n = snap.size();
+        if (atoms.length < n)
+            atoms = new Atom[n];
+        if (xyz.length < 3 * n)
+            xyz = new double[3 * n];
+        for (int i = 0; i < n; i++) {
+            atoms[i] = snap.getElement(i);
+            xyz[3 * i] = snap.getX(i);
+            xyz[3 * i + 1] = snap.getY(i);
+            xyz[3 * i + 2] = snap.getZ(i);
+        }
+        if (n < numAtoms)
+            Arrays.fill(atoms, n, numAtoms, null);
+        numAtoms = n;
+        // the elements stand in for atoms, so a structure drawn next starts afresh
+        atomsChanged = true;
+        arrayFor = null;
+        endsFor = null;
+        numBonds = snap.numBonds();
+        if (bondEnds.length < 2 * numBonds)
+            bondEnds = new int[2 * numBonds];
+        for (int k = 0; k < numBonds; k++) {
+            bondEnds[2 * k] = snap.getBondFirst(k);
+            bondEnds[2 * k + 1] = snap.getBondSecond(k);
+        }
+    }
+
+    /**
+     * Find the atom indices of the ends of the bonds, unless the atoms and bonds are the
+     * same as last frame, which they are from one frame of a movie to the next.
+     *
+     * @param struc the structure
+     * @param bonds its bonds
+     */
+    private void findBondEnds(Structure struc, List<Bond> bonds) {
+        long version = struc.getModificationCount();
+        if (!atomsChanged && bonds == endsFor && bonds.size() == endsSize
+                && version == endsVersion)
+            return;
+        endsFor = bonds;
+        endsSize = bonds.size();
+        endsVersion = version;
+        numBonds = 0;
+        if (bonds.isEmpty())
+            return;
+        if (bondEnds.length < 2 * bonds.size())
+            bondEnds = new int[2 * bonds.size()];
+        // bonds name atoms, so find their indices
+        Map<Atom, Integer> index = new HashMap<Atom, Integer>();
+        for (int i = 0; i < numAtoms; i++)
+            index.put(atoms[i], i);
+        for (Bond b : bonds) {
+            Integer i1 = index.get(b.getFirstAtom()), i2 = index.get(b.getSecondAtom());
+            if (i1 == null || i2 == null)
+                continue;
+            bondEnds[2 * numBonds] = i1;
+            bondEnds[2 * numBonds + 1] = i2;
+            numBonds++;
+        }
+    }
+
+    /**
+     * Add a bond as two cylinders, each half the color of the atom at its end.
+     */
+    private void addBond(int i1, int i2, double cx, double cy, int color1, int color2) {
+        double x1 = sx[i1] + cx, y1 = sy[i1] + cy, z1 = sz[i1];
+        double x2 = sx[i2] + cx, y2 = sy[i2] + cy, z2 = sz[i2];
+        double xm = 0.5 * (x1 + x2), ym = 0.5 * (y1 + y2), zm = 0.5 * (z1 + z2);
+        double r = BOND_RADIUS * 0.5 * (scale[i1] + scale[i2]);
+        addCylinder(x1, y1, z1, xm, ym, zm, r, color1);
+        addCylinder(xm, ym, zm, x2, y2, z2, r, color2);
+    }
+
+    /**
+     * Add a sphere to this frame.
+     */
+    private void addSphere(double x, double y, double z, double r, int color) {
+        if (numSpheres == sphereX.length) {
+            int capacity = Math.max(64, 2 * numSpheres);
+            sphereX = Arrays.copyOf(sphereX, capacity);
+            sphereY = Arrays.copyOf(sphereY, capacity);
+            sphereZ = Arrays.copyOf(sphereZ, capacity);
+            sphereR = Arrays.copyOf(sphereR, capacity);
+            sphereColor = Arrays.copyOf(sphereColor, capacity);
+        }
+        sphereX[numSpheres] = x;
+        sphereY[numSpheres] = y;
+        sphereZ[numSpheres] = z;
+        sphereR[numSpheres] = Math.abs(r);
+        sphereColor[numSpheres++] = color;
+    }
+
+    /**
+     * Add a cylinder to this frame.
+     */
+    private void addCylinder(double x1, double y1, double z1, double x2, double y2, double z2,
+                             double r, int color) {
+        if (numCylinders == cylX1.length) {
+            int capacity = Math.max(64, 2 * numCylinders);
+            cylX1 = Arrays.copyOf(cylX1, capacity);
+            cylY1 = Arrays.copyOf(cylY1, capacity);
+            cylZ1 = Arrays.copyOf(cylZ1, capacity);
+            cylX2 = Arrays.copyOf(cylX2, capacity);
+            cylY2 = Arrays.copyOf(cylY2, capacity);
+            cylZ2 = Arrays.copyOf(cylZ2, capacity);
+            cylR = Arrays.copyOf(cylR, capacity);
+            cylColor = Arrays.copyOf(cylColor, capacity);
+        }
+        int k = numCylinders++;
+        cylX1[k] = x1;
+        cylY1[k] = y1;
+        cylZ1[k] = z1;
+        cylX2[k] = x2;
+        cylY2[k] = y2;
+        cylZ2[k] = z2;
+        cylR[k] = Math.abs(r);
+        cylColor[k] = color;
+    }
+
+    /**
+     * Find the range of tiles a shape's box covers.
+     *
+     * @param range where to put the first and last tile column and row
+     * @return false if the box is off the image, or not a number
+     */
+    private boolean tileRange(double x0, double y0, double x1, double y1, int[] range) {
+        if (!(x1 >= 0 && y1 >= 0 && x0 < width && y0 < height))
+            return false;
+        int lastColumn = (width - 1) / tileSize, lastRow = (height - 1) / tileSize;
+        range[0] = Math.max(0, (int) Math.floor(x0) / tileSize);
+        range[1] = Math.max(0, (int) Math.floor(y0) / tileSize);
+        range[2] = Math.min(lastColumn, (int) Math.floor(x1) / tileSize);
+        range[3] = Math.min(lastRow, (int) Math.floor(y1) / tileSize);
+        return true;
+    }
+
+    /**
+     * Gets the box a shape covers on the image.
+     *
+     * @param shape a sphere index, or a cylinder's index plus the number of spheres
+     * @param box where to put the least x and y and greatest x and y
+     */
+    private void shapeBox(int shape, double[] box) {
+        if (shape < numSpheres) {
+            double r = sphereR[shape];
+            box[0] = sphereX[shape] - r;
+            box[1] = sphereY[shape] - r;
+            box[2] = sphereX[shape] + r;
+            box[3] = sphereY[shape] + r;
+        } else {
+            int k = shape - numSpheres;
+            double r = cylR[k];
+            box[0] = Math.min(cylX1[k], cylX2[k]) - r;
+            box[1] = Math.min(cylY1[k], cylY2[k]) - r;
+            box[2] = Math.max(cylX1[k], cylX2[k]) + r;
+            box[3] = Math.max(cylY1[k], cylY2[k]) + r;
+        }
+    }
+
+    /**
+     * Sort the shapes nearest first, by the depth of their nearest points, so that most of
+     * what is hidden fails the depth test before any work is done on it. Ties keep the order
+     * the shapes were added in.
+     *
+     * @return the number of shapes
+     */
+    private int sortShapes() {
+        int numShapes = numSpheres + numCylinders;
+        if (order.length < numShapes)
+            order = new long[Math.max(numShapes, 2 * order.length)];
+        for (int shape = 0; shape < numShapes; shape++) {
+            double nearest;
+            if (shape < numSpheres) {
+                nearest = sphereZ[shape] + sphereR[shape];
+            } else {
+                int k = shape - numSpheres;
+                nearest = Math.max(cylZ1[k], cylZ2[k]) + cylR[k];
+            }
+            // negated so that ascending order is nearest first, and made to sort as an int
+            int bits = Float.floatToIntBits((float) -nearest);
+            bits ^= (bits >> 31) & 0x7fffffff;
+            order[shape] = ((long) bits << 32) | shape;
+        }
+        Arrays.sort(order, 0, numShapes);
+        return numShapes;
+    }
+
+    /**
+     * List each shape under every tile its box covers, nearest first, by counting the shapes
+     * of each tile and then filling them in.
+     */
+    private void bin() {
+        int columns = (width + tileSize - 1) / tileSize;
+        int numTiles = columns * ((height + tileSize - 1) / tileSize);
+        if (binStart.length < numTiles + 1)
+            binStart = new int[numTiles + 1];
+        Arrays.fill(binStart, 0, numTiles + 1, 0);
+        int numShapes = sortShapes();
+        double[] box = new double[4];
+        int[] range = new int[4];
+        for (int shape = 0; shape < numShapes; shape++) {
+            shapeBox(shape, box);
+            if (!tileRange(box[0], box[1], box[2], box[3], range))
+                continue;
+            for (int row = range[1]; row <= range[3]; row++)
+                for (int column = range[0]; column <= range[2]; column++)
+                    binStart[row * columns + column + 1]++;
+        }
+        for (int t = 0; t < numTiles; t++)
+            binStart[t + 1] += binStart[t];
+        if (binned.length < binStart[numTiles])
+            binned = new int[Math.max(binStart[numTiles], 2 * binned.length)];
+        int[] next = Arrays.copyOf(binStart, numTiles);
+        for (int k = 0; k < numShapes; k++) {
+            int shape = (int) order[k];
+            shapeBox(shape, box);
+            if (!tileRange(box[0], box[1], box[2], box[3], range))
+                continue;
+            for (int row = range[1]; row <= range[3]; row++)
+                for (int column = range[0]; column <= range[2]; column++)
+                    binned[next[row * columns + column]++] = shape;
+        }
+    }
+
+    /**
+     * Rasterize every tile, on the worker threads if there is more than one.
+     */
+    private void rasterizeTiles() {
+        int columns = (width + tileSize - 1) / tileSize;
+        final int numTiles = columns * ((height + tileSize - 1) / tileSize);
+        if (numThreads == 1) {
+            for (int t = 0; t < numTiles; t++)
+                rasterizeTile(t);
+            return;
+        }
+        if (pool == null)
+            pool = Executors.newFixedThreadPool(numThreads, daemonThreads);
+        final AtomicInteger nextTile = new AtomicInteger();
+        List<Callable<Object>> tasks = new ArrayList<Callable<Object>>();
+        for (int k = 0; k < numThreads; k++) {
+            tasks.add(new Callable<Object>() {
+                public Object call() {
+                    int t;
+                    while ((t = nextTile.getAndIncrement()) < numTiles)
+                        rasterizeTile(t);
+                    return null;
+                }
+            });
+        }
+        try {
+            for (Future<Object> f : pool.invokeAll(tasks))
+                f.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException(e);
+        } catch (ExecutionException e) {
+            throw new RuntimeException(e.getCause());
+        }
+    }
+
+    /**
+     * Clear a tile and draw the shapes listed under it, keeping the nearest at each pixel.
+     *
+     * @param t the tile, counting across each row of tiles from the top left
+     */
+    private void rasterizeTile(int t) {
+        int columns = (width + tileSize - 1) / tileSize;
+        int x0 = (t % columns) * tileSize, y0 = (t / columns) * tileSize;
+        int x1 = Math.min(width, x0 + tileSize), y1 = Math.min(height, y0 + tileSize);
+        for (int y = y0; y < y1; y++) {
+            Arrays.fill(pixels, y * width + x0, y * width + x1, background);
+            Arrays.fill(depth, y * width + x0, y * width + x1, Float.NEGATIVE_INFINITY);
+        }
+        for (int k = binStart[t]; k < binStart[t + 1]; k++) {
+            int shape = binned[k];
+            if (shape < numSpheres)
+                rasterizeSphere(shape, x0, y0, x1, y1);
+            else
+                rasterizeCylinder(shape - numSpheres, x0, y0, x1, y1);
+        }
+    }
+
+    /**
+     * Draw the part of a sphere inside a tile. Pixels are sampled at their centers.
+     */
+    private void rasterizeSphere(int s, int x0, int y0, int x1, int y1) {
+        double cx = sphereX[s], cy = sphereY[s], cz = sphereZ[s], r = sphereR[s];
+        int color = sphereColor[s];
+        double rr = r * r;
+        float nearest = (float) (cz + r);
+        int ya = Math.max(y0, (int) Math.ceil(cy - r - 0.5));
+        int yb = Math.min(y1 - 1, (int) Math.floor(cy + r - 0.5));
+        for (int y = ya; y <= yb; y++) {
+            double dy = y + 0.5 - cy;
+            double halfWidth = Math.sqrt(Math.max(0.0, rr - dy * dy));
+            int xa = Math.max(x0, (int) Math.ceil(cx - halfWidth - 0.5));
+            int xb = Math.min(x1 - 1, (int) Math.floor(cx + halfWidth - 0.5));
+            int row = y * width;
+            for (int x = xa; x <= xb; x++) {
+                if (nearest <= depth[row + x])
+                    continue;
+                double dx = x + 0.5 - cx;
+                double h = rr - dx * dx - dy * dy;
+                if (h < 0.0)
+                    continue;
+                double nz = Math.sqrt(h);
+                float z = (float) (cz + nz);
+                if (z <= depth[row + x])
+                    continue;
+                depth[row + x] = z;
+                pixels[row + x] = shaded ? shade(color, dx / r, dy / r, nz / r) : color;
+            }
+        }
+    }
+
+    /**
+     * Draw the part of a cylinder inside a tile, with round ends. A pixel is in the cylinder
+     * if it is within the radius of the nearest point on its axis, and is shaded as if the
+     * cylinder's surface faced away from the axis there.
+     */
+    private void rasterizeCylinder(int c, int x0, int y0, int x1, int y1) {
+        double ax = cylX1[c], ay = cylY1[c], az = cylZ1[c];
+        double ex = cylX2[c] - ax, ey = cylY2[c] - ay, ez = cylZ2[c] - az;
+        double r = cylR[c], rr = r * r;
+        double lensq = ex * ex + ey * ey;
+        int color = cylColor[c];
+        float nearest = (float) (Math.max(az, az + ez) + r);
+        int xa = Math.max(x0, (int) Math.ceil(Math.min(ax, ax + ex) - r - 0.5));
+        int xb = Math.min(x1 - 1, (int) Math.floor(Math.max(ax, ax + ex) + r - 0.5));
+        int ya = Math.max(y0, (int) Math.ceil(Math.min(ay, ay + ey) - r - 0.5));
+        int yb = Math.min(y1 - 1, (int) Math.floor(Math.max(ay, ay + ey) + r - 0.5));
+        for (int y = ya; y <= yb; y++) {
+            int row = y * width;
+            for (int x = xa; x <= xb; x++) {
+                if (nearest <= depth[row + x])
+                    continue;
+                double px = x + 0.5 - ax, py = y + 0.5 - ay;
+                double u = (lensq > 0.0) ? (px * ex + py * ey) / lensq : 0.0;
+                u = (u < 0.0) ? 0.0 : ((u > 1.0) ? 1.0 : u);
+                double dx = px - u * ex, dy = py - u * ey;
+                double h = rr - dx * dx - dy * dy;
+                if (h < 0.0)
+                    continue;
+                double nz = Math.sqrt(h);
+                float z = (float) (az + u * ez + nz);
+                if (z <= depth[row + x])
+                    continue;
+                depth[row + x] = z;
+                pixels[row + x] = shaded ? shade(color, dx / r, dy / r, nz / r) : color;
+            }
+        }
+    }
+
+    /**
+     * Light a color on a surface facing some way.
+     *
+     * @param color the color, 0xRRGGBB
+     * @param nx the x of the unit normal
+     * @param ny the y of the unit normal, down the image
+     * @param nz the z of the unit normal, toward the viewer
+     * @return the lit color
+     */
+    private static int shade(int color, double nx, double ny, double nz) {
+        double diffuse = nx * LIGHT_X + ny * LIGHT_Y + nz * LIGHT_Z;
+        double light = AMBIENT + (1.0 - AMBIENT) * ((diffuse > 0.0) ? diffuse : 0.0);
+        int red = (int) (((color >> 16) & 0xff) * light);
+        int green = (int) (((color >> 8) & 0xff) * light);
+        int blue = (int) ((color & 0xff) * light);
+        return (red << 16) | (green << 8) | blue;
+    }
+
+    /**
+     * Pack a color as 0xRRGGBB.
+     */
+    private static int rgb(Color c) {
+        return (c.getRed() << 16) | (c.getGreen() << 8) | c.getBlue();
+    }
+
+    /**
+     * Render a trajectory as a movie, a PNG file per frame. Bonds are inferred for the first
+     * frame and kept for the rest. Frames are written by other threads while the next ones
+     * are drawn, since encoding a PNG takes longer than drawing it.
+     *
+     * @param args a trajectory file, a prefix for the PNG files, and optionally the width and
+     *     height of the images
+     * @throws Exception if reading or writing fails
+     */
+    public static void main(String[] args) throws Exception {
+        if (args.length != 2 && args.length != 4) {
+            System.err.println("usage: RasterEngine trajectory prefix [width height]");
+            System.exit(1);
+        }
+        int w = (args.length == 4) ? Integer.parseInt(args[2]) : 640;
+        int h = (args.length == 4) ? Integer.parseInt(args[3]) : 480;
+        TrajectoryFile.Reader reader = new TrajectoryFile().openReader(args[0]);
+        Structure struc = reader.getStructure(0);
+        RasterEngine engine = new RasterEngine(w, h);
+        engine.showAll(struc);
+        engine.setBonds(struc.inferBonds());
+        int numWriters = Runtime.getRuntime().availableProcessors();
+        ExecutorService writers = Executors.newFixedThreadPool(numWriters, daemonThreads);
+        List<Future<Object>> written = new ArrayList<Future<Object>>();
+        double[] frame = null;
+        long start = System.nanoTime();
+        for (long f = 0; f < reader.numFrames(); f++) {
+            frame = reader.readFrame(f, frame);
+            engine.draw(struc, frame);
+            final BufferedImage image = engine.getImage();
+            final String filename = String.format("%s%06d.png", args[1], f);
+            written.add(writers.submit(new Callable<Object>() {
+                public Object call() throws IOException {
+                    if (!ImageIO.write(image, "png", new File(filename)))
+                        throw new IOException("no PNG writer");
+                    return null;
+                }
+            }));
+            // don't let images pile up faster than they're written
+            if (written.size() > 2 * numWriters)
+                written.remove(0).get();
+        }
+        for (Future<Object> done : written)
+            done.get();
+        writers.shutdown();
+        engine.close();
+        reader.close();
+        double seconds = (System.nanoTime() - start) * 1.0e-9;
+        System.err.printf("%d frames in %.1f s%n", reader.numFrames(), seconds);
+    }
+}
@@ -0,0 +1,120 @@
+package net.willware.eurydice.serialization;
+
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.List;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.nanocad.NanocadStyleStructure;
+
+/**
+ * The atoms parsed from one piece of a file: an element symbol and a position for each,
+ * kept in arrays until they are all turned into atoms. Pieces of a file can be parsed into
+ * blocks by different threads, but atoms must be made in one thread, because unique IDs
+ * are handed out from a plain counter, so making atoms is left to {@link #addAll}.
+ */
+class AtomBlock {
+
+    /** The element symbol of each atom, or null for a record that isn't an atom. */
+    private String[] symbols = new String[1024];
+
+    /** A symbol to try if the first isn't a known element, or null. */
+    private String[] fallbacks = new String[1024];
+
+    /** The x, y and z of each atom. */
+    private double[] xyz = new double[3 * 1024];
+
+    /** The number of records. */
+    private int size = 0;
+
+    /** Was the end of the atoms reached in this block? */
+    private boolean ended = false;
+
+    /**
+     * Add an atom.
+     *
+     * @param symbol the element symbol, or null if the record was bad
+     * @param fallback a symbol to try if the first isn't known, or null
+     * @param x the x coordinate
+     * @param y the y coordinate
+     * @param z the z coordinate
+     */
+    void add(String symbol, String fallback, double x, double y, double z) {
+        if (size == symbols.length) {
+            symbols = Arrays.copyOf(symbols, 2 * size);
+            fallbacks = Arrays.copyOf(fallbacks, 2 * size);
+            xyz = Arrays.copyOf(xyz, 6 * size);
+        }
+        symbols[size] = symbol;
+        fallbacks[size] = fallback;
+        xyz[3 * size] = x;
+        xyz[3 * size + 1] = y;
+        xyz[3 * size + 2] = z;
+        size++;
+    }
+
+    /**
+     * Gets the number of records.
+     *
+     * @return the number of records
+     */
+    int size() {
+        return size;
+    }
+
+    /**
+     * Note that the atoms end in this block, so later blocks should be ignored.
+     */
+    void end() {
+        ended = true;
+    }
+
+    /**
+     * Do the atoms end in this block?
+     *
+     * @return true if they do
+     */
+    boolean isEnded() {
+        return ended;
+    }
+
+    /**
+     * Make the atoms of some blocks, in order, and add them to a structure. Blocks after
+     * one where the atoms ended are ignored.
+     *
+     * @param blocks the blocks
+     * @param struc the structure
+     * @param maxAtoms the most records to take
+     * @param strict if true, a record that is bad or names an unknown element is an error;
+     *        if false, it is skipped
+     * @return the number of records skipped
+     * @throws IOException if strict and a record is bad
+     */
+    static int addAll(List<AtomBlock> blocks, NanocadStyleStructure struc, long maxAtoms,
+                      boolean strict) throws IOException {
+        ElementFactory elements = ElementFactory.getInstance();
+        long taken = 0;
+        int skipped = 0;
+        for (AtomBlock b : blocks) {
+            for (int i = 0; i < b.size && taken < maxAtoms; i++, taken++) {
+                Atom a = (b.symbols[i] == null) ? null : elements.get(b.symbols[i]);
+                if (a == null && b.fallbacks[i] != null)
+                    a = elements.get(b.fallbacks[i]);
+                if (a == null) {
+                    if (strict)
+                        throw new IOException("bad atom record, or unknown element "
+                                              + b.symbols[i]);
+                    skipped++;
+                    continue;
+                }
+                a.setPosition(new Vector(b.xyz[3 * i], b.xyz[3 * i + 1], b.xyz[3 * i + 2]));
+                struc.addAtom(a);
+            }
+            if (b.ended || taken >= maxAtoms)
+                break;
+        }
+        return skipped;
+    }
+}
@@ -0,0 +1,465 @@
+package net.willware.eurydice.serialization;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Splits text into words, numbers and lines a buffer at a time, for reading big molecule
+ * files quickly. Bytes are read from a channel into a large buffer and scanned in place;
+ * numbers are parsed straight from the bytes without making strings, and short words such
+ * as element symbols come from a cache, so scanning a file allocates almost nothing.
+ * Text is taken to be ASCII.
+ * <p>
+ * This replaces the byte-at-a-time scanning in {@link Filetype}, which goes through a
+ * {@link java.io.PushbackInputStream} for every character.
+ */
+public class ByteScanner {
+
+    /** The size of the read buffer. */
+    private static final int BUFFER_SIZE = 1 << 20;
+
+    /** Words and numbers longer than this aren't expected, and may be cut short. */
+    private static final int MAX_TOKEN = 256;
+
+    /** The most significant digits a long holds with room to spare. */
+    private static final int MAX_DIGITS = 18;
+
+    /** Powers of ten that are exactly representable as doubles. */
+    private static final double[] POWERS_OF_TEN = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    /** Mantissas up to this are exactly representable as doubles. */
+    private static final long MAX_EXACT = 1L << 53;
+
+    /** The charset for turning bytes into strings. */
+    private static final Charset ISO_8859_1 = Charset.forName("ISO-8859-1");
+
+    /** The channel. */
+    private final ReadableByteChannel channel;
+
+    /** The buffer. */
+    private final ByteBuffer buffer;
+
+    /** The bytes of the buffer. */
+    private final byte[] bytes;
+
+    /** Where in the input the first byte of the buffer came from. */
+    private long offset = 0;
+
+    /** The next byte to scan. */
+    private int pos = 0;
+
+    /** The end of the bytes read so far. */
+    private int limit = 0;
+
+    /** Has the channel run out? */
+    private boolean eof = false;
+
+    /** The last line read by {@link #nextLine()}. */
+    private byte[] line = new byte[128];
+
+    /** The length of the last line. */
+    private int lineLength = 0;
+
+    /** The start and end of each field of the last line, found by {@link #splitLine()}. */
+    private int[] fields = new int[16];
+
+    /** Words of one or two characters, by their bytes. */
+    private final String[] shortWords = new String[1 << 14];
+
+    /**
+     * Constructor.
+     *
+     * @param ins the stream to read
+     */
+    public ByteScanner(InputStream ins) {
+        this(Channels.newChannel(ins));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param channel the channel to read
+     */
+    public ByteScanner(ReadableByteChannel channel) {
+        this.channel = channel;
+        bytes = new byte[BUFFER_SIZE];
+        buffer = ByteBuffer.wrap(bytes);
+    }
+
+    /**
+     * Make sure that at least some number of bytes are in the buffer, unless the channel
+     * runs out first, by moving what's left to the front and reading more.
+     *
+     * @return true if there is at least one byte to scan
+     */
+    private boolean ensure(int n) throws IOException {
+        if (limit - pos >= n || eof)
+            return pos < limit;
+        System.arraycopy(bytes, pos, bytes, 0, limit - pos);
+        offset += pos;
+        limit -= pos;
+        pos = 0;
+        buffer.clear();
+        buffer.position(limit);
+        while (limit < n && !eof) {
+            int got = channel.read(buffer);
+            if (got < 0)
+                eof = true;
+            else
+                limit += got;
+        }
+        // read whatever else is ready, up to a full buffer
+        while (!eof && buffer.hasRemaining()) {
+            int got = channel.read(buffer);
+            if (got <= 0) {
+                eof = (got < 0);
+                break;
+            }
+            limit += got;
+        }
+        return pos < limit;
+    }
+
+    /**
+     * Gets the number of bytes scanned so far, which is where the next byte to be scanned
+     * is in the input.
+     *
+     * @return the offset in the input
+     */
+    public long getOffset() {
+        return offset + pos;
+    }
+
+    /**
+     * Is a byte a blank?
+     */
+    private static boolean isBlank(byte b, boolean includeNewline) {
+        return b == ' ' || b == '\t' || b == '\r' || (includeNewline && b == '\n');
+    }
+
+    /**
+     * Skip blanks, including line breaks.
+     *
+     * @return false if the end of the input was reached
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public boolean skipBlanks() throws IOException {
+        while (true) {
+            while (pos < limit) {
+                if (!isBlank(bytes[pos], true))
+                    return true;
+                pos++;
+            }
+            if (!ensure(1))
+                return false;
+        }
+    }
+
+    /**
+     * Skip the rest of the current line, including the line break.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void skipLine() throws IOException {
+        while (true) {
+            while (pos < limit) {
+                if (bytes[pos++] == '\n')
+                    return;
+            }
+            if (!ensure(1))
+                return;
+        }
+    }
+
+    /**
+     * Find the end of the word starting at {@link #pos}, after making sure a whole word is
+     * in the buffer.
+     */
+    private int wordEnd() throws IOException {
+        ensure(MAX_TOKEN);
+        int end = pos, stop = Math.min(limit, pos + MAX_TOKEN);
+        while (end < stop && !isBlank(bytes[end], true))
+            end++;
+        return end;
+    }
+
+    /**
+     * Gets the next word, that is, the next run of characters that aren't blanks.
+     *
+     * @return the word, or null at the end of the input
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public String nextWord() throws IOException {
+        if (!skipBlanks())
+            return null;
+        int end = wordEnd();
+        String word = makeString(bytes, pos, end);
+        pos = end;
+        return word;
+    }
+
+    /**
+     * Gets the next word as a number. A word that isn't a number counts as zero.
+     *
+     * @return the number, or zero at the end of the input
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public double nextDouble() throws IOException {
+        if (!skipBlanks())
+            return 0.0;
+        int end = wordEnd();
+        double d = parseDouble(bytes, pos, end);
+        pos = end;
+        return d;
+    }
+
+    /**
+     * Gets the next word as an integer. A fractional part is dropped, and a word that isn't
+     * a number counts as zero.
+     *
+     * @return the integer, or zero at the end of the input
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public int nextInt() throws IOException {
+        return (int) nextDouble();
+    }
+
+    /**
+     * Read the next line, without its line break, for picking apart with
+     * {@link #getLine()}, {@link #lineDouble(int, int)} and {@link #lineWord(int, int)}.
+     *
+     * @return the length of the line, or -1 at the end of the input
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public int nextLine() throws IOException {
+        if (!ensure(1))
+            return lineLength = -1;
+        lineLength = 0;
+        while (true) {
+            int start = pos;
+            while (pos < limit && bytes[pos] != '\n')
+                pos++;
+            int n = pos - start;
+            if (lineLength + n > line.length) {
+                byte[] bigger = new byte[2 * (lineLength + n)];
+                System.arraycopy(line, 0, bigger, 0, lineLength);
+                line = bigger;
+            }
+            System.arraycopy(bytes, start, line, lineLength, n);
+            lineLength += n;
+            if (pos < limit) {
+                pos++;
+                break;
+            }
+            if (!ensure(1))
+                break;
+        }
+        if (lineLength > 0 && line[lineLength - 1] == '\r')
+            lineLength--;
+        return lineLength;
+    }
+
+    /**
+     * Gets the bytes of the last line read by {@link #nextLine()}. Only the first
+     * {@link #getLineLength()} of them belong to the line, and they are overwritten by the
+     * next line.
+     *
+     * @return the bytes of the line
+     */
+    public byte[] getLine() {
+        return line;
+    }
+
+    /**
+     * Gets the length of the last line read by {@link #nextLine()}.
+     *
+     * @return the length of the line
+     */
+    public int getLineLength() {
+        return lineLength;
+    }
+
+    /**
+     * Find the fields of the last line, that is, the runs of characters that aren't
+     * blanks, for {@link #fieldWord(int)} and {@link #fieldDouble(int)}.
+     *
+     * @return the number of fields
+     */
+    public int splitLine() {
+        int n = 0, i = 0;
+        while (true) {
+            while (i < lineLength && isBlank(line[i], false))
+                i++;
+            if (i == lineLength)
+                return n;
+            if (2 * n + 2 > fields.length)
+                fields = Arrays.copyOf(fields, 2 * fields.length);
+            fields[2 * n] = i;
+            while (i < lineLength && !isBlank(line[i], false))
+                i++;
+            fields[2 * n + 1] = i;
+            n++;
+        }
+    }
+
+    /**
+     * Gets a field of the last line, found by {@link #splitLine()}.
+     *
+     * @param k which field, from zero
+     * @return the field
+     */
+    public String fieldWord(int k) {
+        return makeString(line, fields[2 * k], fields[2 * k + 1]);
+    }
+
+    /**
+     * Gets a field of the last line, found by {@link #splitLine()}, as a number.
+     *
+     * @param k which field, from zero
+     * @return the number, or zero if the field isn't one
+     */
+    public double fieldDouble(int k) {
+        return parseDouble(line, fields[2 * k], fields[2 * k + 1]);
+    }
+
+    /**
+     * Does the last line start with some text?
+     *
+     * @param prefix the text
+     * @return true if it does
+     */
+    public boolean lineStartsWith(String prefix) {
+        if (lineLength < prefix.length())
+            return false;
+        for (int i = 0; i < prefix.length(); i++)
+            if (line[i] != prefix.charAt(i))
+                return false;
+        return true;
+    }
+
+    /**
+     * Parse a number from some columns of the last line, ignoring blanks around it, as in
+     * files with fixed columns such as PDB.
+     *
+     * @param start the first column, counting from zero
+     * @param end one past the last column; columns past the end of the line are ignored
+     * @return the number, or zero if the columns are blank or not a number
+     */
+    public double lineDouble(int start, int end) {
+        end = Math.max(start, Math.min(end, lineLength));
+        while (start < end && isBlank(line[start], false))
+            start++;
+        while (end > start && isBlank(line[end - 1], false))
+            end--;
+        return parseDouble(line, start, end);
+    }
+
+    /**
+     * Gets some columns of the last line as a word, with blanks around it removed.
+     *
+     * @param start the first column, counting from zero
+     * @param end one past the last column; columns past the end of the line are ignored
+     * @return the word, which is empty if the columns are blank
+     */
+    public String lineWord(int start, int end) {
+        end = Math.max(start, Math.min(end, lineLength));
+        while (start < end && isBlank(line[start], false))
+            start++;
+        while (end > start && isBlank(line[end - 1], false))
+            end--;
+        return makeString(line, start, end);
+    }
+
+    /**
+     * Make a string of some bytes, taking words of one or two characters from the cache.
+     */
+    private String makeString(byte[] b, int start, int end) {
+        int n = end - start;
+        if (n <= 2 && (n == 0 || (b[start] >= 0 && (n == 1 || b[start + 1] >= 0)))) {
+            int key = (n == 0) ? 0 : (n == 1) ? b[start] : (b[start] << 7) | b[start + 1];
+            String s = shortWords[key];
+            if (s == null || s.length() != n)
+                s = shortWords[key] = new String(b, start, n, ISO_8859_1);
+            return s;
+        }
+        return new String(b, start, n, ISO_8859_1);
+    }
+
+    /**
+     * Parse a decimal number from some bytes, such as "-12.5" or "6.02e23". Numbers of up
+     * to fifteen or so significant digits, which is nearly all of those in molecule files,
+     * are computed exactly with one multiplication or division; anything else, including
+     * malformed numbers, is handed to {@link Double#parseDouble(String)}.
+     *
+     * @param b the bytes
+     * @param start the first byte of the number
+     * @param end one past the last byte
+     * @return the number, or zero if the bytes are not a number
+     */
+    public static double parseDouble(byte[] b, int start, int end) {
+        int i = start;
+        boolean negative = false;
+        if (i < end && (b[i] == '-' || b[i] == '+'))
+            negative = (b[i++] == '-');
+        long mantissa = 0;
+        int digits = 0, exponent = 0;
+        boolean any = false;
+        for (; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+            any = true;
+            if (digits < MAX_DIGITS) {
+                mantissa = 10 * mantissa + (b[i] - '0');
+                if (mantissa != 0)
+                    digits++;
+            } else {
+                exponent++;
+            }
+        }
+        if (i < end && b[i] == '.') {
+            for (i++; i < end && b[i] >= '0' && b[i] <= '9'; i++) {
+                any = true;
+                if (digits < MAX_DIGITS) {
+                    mantissa = 10 * mantissa + (b[i] - '0');
+                    if (mantissa != 0)
+                        digits++;
+                    exponent--;
+                }
+            }
+        }
+        if (any && i < end && (b[i] == 'e' || b[i] == 'E')) {
+            int j = i + 1;
+            boolean negativeExponent = false;
+            if (j < end && (b[j] == '-' || b[j] == '+'))
+                negativeExponent = (b[j++] == '-');
+            int e = 0;
+            boolean anyExponent = false;
+            for (; j < end && b[j] >= '0' && b[j] <= '9'; j++) {
+                anyExponent = true;
+                if (e < 10000)
+                    e = 10 * e + (b[j] - '0');
+            }
+            if (anyExponent) {
+                exponent += negativeExponent ? -e : e;
+                i = j;
+            }
+        }
+        if (i == end && any && mantissa <= MAX_EXACT
+                && exponent >= -22 && exponent <= 22) {
+            double d = mantissa;
+            d = (exponent < 0) ? d / POWERS_OF_TEN[-exponent] : d * POWERS_OF_TEN[exponent];
+            return negative ? -d : d;
+        }
+        try {
+            return Double.parseDouble(new String(b, start, end - start, ISO_8859_1));
+        } catch (NumberFormatException e) {
+            return 0.0;
+        }
+    }
+}
@@ -1,5 +1,6 @@
 package net.willware.eurydice.serialization;
 
+import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PushbackInputStream;
@@ -90,14 +91,20 @@ public abstract class Filetype {
     }
 
     /**
-     * Load.
+     * Load a Structure from a file, given a filename. By default the file is read as a
+     * stream; formats that can do better with random access override this.
      *
      * @param filename the filename
      * @return the structure
      * @throws IOException Signals that an I/O exception has occurred.
      */
     public Structure load(String filename) throws IOException {
-        throw new RuntimeException("not implemented yet");
+        FileInputStream f = new FileInputStream(filename);
+        try {
+            return load(f);
+        } finally {
+            f.close();
+        }
     }
 
     /**
@@ -0,0 +1,441 @@
+package net.willware.eurydice.serialization;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.Arrays;
+import java.util.Iterator;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.core.UniqueId;
+
+/**
+ * Streams the atoms of a structure as JSON, for AJAX updates in the web app. Each frame is
+ * one JSON object on a line of its own, and is written straight into a reused byte buffer,
+ * numbers included, without building strings. Coordinates are written in a compact layout,
+ * one flat array of x, y and z for all the atoms:
+ * <pre>
+ *   {"frame":0,"numAtoms":3,"symbols":["O","H","H"],"ids":[7,8,9],
+ *    "xyz":[0,0,0.117,0,0.757,-0.469,0,-0.757,-0.469]}
+ * </pre>
+ * A full frame like this gives the elements and unique IDs of the atoms, and their
+ * positions. After it, delta frames give only the atoms that have moved more than some
+ * threshold since they were last sent, by their index in the full frame, so an update
+ * costs bandwidth in proportion to what has changed:
+ * <pre>
+ *   {"frame":1,"numAtoms":3,"delta":true,"indices":[2],"xyz":[0,-0.801,-0.44]}
+ * </pre>
+ * A delta is measured from where an atom was last sent rather than from the frame before,
+ * so an atom creeping along slowly is still sent once it has crept far enough. Indices
+ * only hold while the structure has the same atoms, so once atoms have been added or
+ * removed, as its modification count tells, a full frame is sent instead of a delta.
+ */
+public class JsonStream {
+
+    /** The number of decimal places coordinates are written with unless told otherwise. */
+    public static final int DEFAULT_DECIMALS = 4;
+
+    /** Writes are gathered into a buffer of this many bytes. */
+    private static final int BUFFER_SIZE = 64 << 10;
+
+    /** The most bytes one number or symbol can take, so there is always room for it. */
+    private static final int MAX_TOKEN = 32;
+
+    /** Coordinates that scale up to this or more are written in full rather than rounded. */
+    private static final double MAX_SCALED = 1.0e17;
+
+    /** The channel. */
+    private final WritableByteChannel channel;
+
+    /** The bytes waiting to be written. */
+    private final byte[] bytes = new byte[BUFFER_SIZE];
+
+    /** The buffer wrapping {@link #bytes}, for writing them to the channel. */
+    private final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+
+    /** The number of bytes waiting to be written. */
+    private int count = 0;
+
+    /** Digits of a number, written backwards. */
+    private final byte[] digits = new byte[20];
+
+    /** The number of decimal places for coordinates. */
+    private int decimals = DEFAULT_DECIMALS;
+
+    /** Ten to the number of decimal places. */
+    private double scale = Math.pow(10, DEFAULT_DECIMALS);
+
+    /** The coordinates of the frame being written. */
+    private double[] xyz = new double[0];
+
+    /** The coordinates each atom had when it was last sent. */
+    private double[] sent = new double[0];
+
+    /** Atoms of the elements of a full frame being written, for their symbols. */
+    private Atom[] elements = new Atom[0];
+
+    /** The unique IDs of the atoms of a full frame being written. */
+    private UniqueId[] ids = new UniqueId[0];
+
+    /** The number of atoms in the last full frame, or -1 if none has been written. */
+    private int numAtoms = -1;
+
+    /** The structure's modification count at the last full frame. */
+    private long modificationCount;
+
+    /** The number of frames written. */
+    private long frames = 0;
+
+    /**
+     * Constructor.
+     *
+     * @param os the stream to write to
+     */
+    public JsonStream(OutputStream os) {
+        this(Channels.newChannel(os));
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param channel the channel to write to
+     */
+    public JsonStream(WritableByteChannel channel) {
+        this.channel = channel;
+    }
+
+    /**
+     * Sets the number of decimal places coordinates are written with. Trailing zeros are
+     * left off.
+     *
+     * @param decimals the number of decimal places, from 0 to 9
+     */
+    public void setDecimals(int decimals) {
+        if (decimals < 0 || decimals > 9)
+            throw new IllegalArgumentException("decimals must be from 0 to 9");
+        this.decimals = decimals;
+        scale = Math.pow(10, decimals);
+    }
+
+    /**
+     * Gets the number of frames written.
+     *
+     * @return the number of frames
+     */
+    public long numFrames() {
+        return frames;
+    }
+
+    /**
+     * Write a full frame of a structure's atoms, numbered by the count of frames written
+     * before it. Atoms are taken in the order of the structure's iterator.
+     *
+     * @param struc the structure
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void writeFrame(Structure struc) throws IOException {
+        int n = copyPositions(struc, true);
+        writeFull(frames, n, struc.getModificationCount());
+    }
+
+    /**
+     * Write a full frame of a snapshot, numbered by the snapshot's frame number. This lets
+     * the web server send updates while another thread goes on integrating.
+     *
+     * @param s the snapshot
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void writeFrame(PositionSnapshot s) throws IOException {
+        int n = copyPositions(s, true);
+        writeFull(s.getFrame(), n, s.getModificationCount());
+    }
+
+    /**
+     * Write a delta frame of a structure's atoms, giving only those that have moved more
+     * than a threshold since they were last sent. If atoms have been added or removed since
+     * the last full frame, or there hasn't been one, a full frame is written instead.
+     *
+     * @param struc the structure
+     * @param threshold how far an atom must move to be sent, in angstroms
+     * @return the number of atoms sent
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public int writeDelta(Structure struc, double threshold) throws IOException {
+        if (numAtoms < 0 || struc.size() != numAtoms
+                || struc.getModificationCount() != modificationCount) {
+            writeFrame(struc);
+            return numAtoms;
+        }
+        copyPositions(struc, false);
+        return writeDelta(frames, threshold);
+    }
+
+    /**
+     * Write a delta frame of a snapshot, as {@link #writeDelta(Structure, double)} does.
+     *
+     * @param s the snapshot
+     * @param threshold how far an atom must move to be sent, in angstroms
+     * @return the number of atoms sent
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public int writeDelta(PositionSnapshot s, double threshold) throws IOException {
+        if (numAtoms < 0 || s.size() != numAtoms
+                || s.getModificationCount() != modificationCount) {
+            writeFrame(s);
+            return numAtoms;
+        }
+        copyPositions(s, false);
+        return writeDelta(s.getFrame(), threshold);
+    }
+
+    /**
+     * Write whatever is waiting in the buffer.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void flush() throws IOException {
+        buffer.clear();
+        buffer.limit(count);
+        while (buffer.hasRemaining())
+            channel.write(buffer);
+        count = 0;
+    }
+
+    /**
+     * Write whatever is waiting, and close the channel.
+     *
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    /**
+     * Copy the positions of a structure's atoms into {@link #xyz}, and for a full frame,
+     * the atoms into {@link #elements} and their IDs into {@link #ids}.
+     *
+     * @return the number of atoms
+     */
+    private int copyPositions(Structure struc, boolean full) {
+        int n = struc.size();
+        ensureCapacity(n, full);
+        Iterator<Atom> iter = struc.getIterator();
+        for (int i = 0; i < n; i++) {
+            Atom a = iter.next();
+            if (full) {
+                elements[i] = a;
+                ids[i] = a.getUniqueId();
+            }
+            xyz[3 * i] = a.getX();
+            xyz[3 * i + 1] = a.getY();
+            xyz[3 * i + 2] = a.getZ();
+        }
+        return n;
+    }
+
+    /**
+     * Copy the positions of a snapshot's atoms into {@link #xyz}, and for a full frame,
+     * their elements into {@link #elements} and their IDs into {@link #ids}.
+     *
+     * @return the number of atoms
+     */
+    private int copyPositions(PositionSnapshot s, boolean full) {
+        int n = s.size();
+        ensureCapacity(n, full);
+        for (int i = 0; i < n; i++) {
+            if (full) {
+                elements[i] = s.getElement(i);
+                ids[i] = s.getUniqueId(i);
+            }
+            xyz[3 * i] = s.getX(i);
+            xyz[3 * i + 1] = s.getY(i);
+            xyz[3 * i + 2] = s.getZ(i);
+        }
+        return n;
+    }
+
+    /**
+     * Make room for the coordinates of some number of atoms, and for a full frame, the
+     * atoms. Both only grow, so frames of a steady size allocate nothing.
+     */
+    private void ensureCapacity(int n, boolean full) {
+        if (xyz.length < 3 * n)
+            xyz = new double[3 * n];
+        if (full && elements.length < n) {
+            elements = new Atom[n];
+            ids = new UniqueId[n];
+        }
+    }
+
+    /**
+     * Write the atoms in {@link #elements} and {@link #ids} and the coordinates in
+     * {@link #xyz} as a full frame.
+     */
+    private void writeFull(long frame, int n, long modificationCount) throws IOException {
+        writeAscii("{\"frame\":");
+        writeLong(frame);
+        writeAscii(",\"numAtoms\":");
+        writeLong(n);
+        writeAscii(",\"symbols\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                writeByte(',');
+            writeByte('"');
+            writeAscii(elements[i].getSymbol());
+            writeByte('"');
+        }
+        writeAscii("],\"ids\":[");
+        for (int i = 0; i < n; i++) {
+            if (i > 0)
+                writeByte(',');
+            UniqueId id = ids[i];
+            try {
+                writeLong(id.toInteger());
+            } catch (ClassCastException e) {
+                writeByte('"');
+                writeAscii(id.toString());
+                writeByte('"');
+            }
+        }
+        writeAscii("],\"xyz\":[");
+        for (int k = 0; k < 3 * n; k++) {
+            if (k > 0)
+                writeByte(',');
+            writeFixed(xyz[k]);
+        }
+        writeAscii("]}\n");
+        if (sent.length < 3 * n)
+            sent = new double[3 * n];
+        System.arraycopy(xyz, 0, sent, 0, 3 * n);
+        // don't hang on to atoms that may leave the structure
+        Arrays.fill(elements, 0, n, null);
+        Arrays.fill(ids, 0, n, null);
+        numAtoms = n;
+        this.modificationCount = modificationCount;
+        frames++;
+    }
+
+    /**
+     * Write the atoms in {@link #xyz} that have moved far enough as a delta frame.
+     */
+    private int writeDelta(long frame, double threshold) throws IOException {
+        double t2 = threshold * threshold;
+        writeAscii("{\"frame\":");
+        writeLong(frame);
+        writeAscii(",\"numAtoms\":");
+        writeLong(numAtoms);
+        writeAscii(",\"delta\":true,\"indices\":[");
+        int moved = 0;
+        for (int i = 0; i < numAtoms; i++) {
+            double dx = xyz[3 * i] - sent[3 * i];
+            double dy = xyz[3 * i + 1] - sent[3 * i + 1];
+            double dz = xyz[3 * i + 2] - sent[3 * i + 2];
+            if (dx * dx + dy * dy + dz * dz > t2) {
+                if (moved > 0)
+                    writeByte(',');
+                writeLong(i);
+                // remember the sent atoms at the front of xyz, which is read no further back
+                sent[3 * i] = xyz[3 * moved] = xyz[3 * i];
+                sent[3 * i + 1] = xyz[3 * moved + 1] = xyz[3 * i + 1];
+                sent[3 * i + 2] = xyz[3 * moved + 2] = xyz[3 * i + 2];
+                moved++;
+            }
+        }
+        writeAscii("],\"xyz\":[");
+        for (int k = 0; k < 3 * moved; k++) {
+            if (k > 0)
+                writeByte(',');
+            writeFixed(xyz[k]);
+        }
+        writeAscii("]}\n");
+        frames++;
+        return moved;
+    }
+
+    /**
+     * Write a byte.
+     */
+    private void writeByte(int b) throws IOException {
+        if (count == bytes.length)
+            flush();
+        bytes[count++] = (byte) b;
+    }
+
+    /**
+     * Write a string of ASCII characters.
+     */
+    private void writeAscii(String s) throws IOException {
+        for (int i = 0; i < s.length(); i++)
+            writeByte(s.charAt(i));
+    }
+
+    /**
+     * Write an integer.
+     */
+    private void writeLong(long v) throws IOException {
+        if (count > bytes.length - MAX_TOKEN)
+            flush();
+        if (v < 0) {
+            if (v == Long.MIN_VALUE) {
+                writeAscii(Long.toString(v));
+                return;
+            }
+            bytes[count++] = '-';
+            v = -v;
+        }
+        int n = 0;
+        do {
+            digits[n++] = (byte) ('0' + v % 10);
+            v /= 10;
+        } while (v > 0);
+        while (n > 0)
+            bytes[count++] = digits[--n];
+    }
+
+    /**
+     * Write a coordinate rounded to {@link #decimals} places, without trailing zeros.
+     * Numbers JSON can't hold are written as null.
+     */
+    private void writeFixed(double v) throws IOException {
+        if (Double.isNaN(v) || Double.isInfinite(v)) {
+            writeAscii("null");
+            return;
+        }
+        if (Math.abs(v) * scale >= MAX_SCALED) {
+            writeAscii(Double.toString(v));
+            return;
+        }
+        long m = Math.round(Math.abs(v) * scale);
+        if (m == 0) {
+            writeByte('0');
+            return;
+        }
+        if (count > bytes.length - MAX_TOKEN)
+            flush();
+        if (v < 0)
+            bytes[count++] = '-';
+        int n = 0, d = decimals;
+        // the fraction, less its trailing zeros
+        while (d > 0 && m % 10 == 0) {
+            m /= 10;
+            d--;
+        }
+        for (; d > 0; d--) {
+            digits[n++] = (byte) ('0' + m % 10);
+            m /= 10;
+        }
+        if (n > 0)
+            digits[n++] = '.';
+        do {
+            digits[n++] = (byte) ('0' + m % 10);
+            m /= 10;
+        } while (m > 0);
+        while (n > 0)
+            bytes[count++] = digits[--n];
+    }
+}
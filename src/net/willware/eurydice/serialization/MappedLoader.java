@@ -0,0 +1,238 @@
+package net.willware.eurydice.serialization;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Parses the atom records of a big text file on all processors at once. The file is cut
+ * into pieces at line breaks, each piece is memory-mapped on its own, so files bigger than
+ * one mapping can hold are fine, and each piece is parsed a line at a time into an
+ * {@link AtomBlock} by its own task. Finding the line breaks to cut at is done by the
+ * tasks too, so the whole file is only read once, by the parsers.
+ */
+class MappedLoader {
+
+    /**
+     * Parses one line of a file into an atom record, if it is one.
+     */
+    interface LineParser {
+
+        /**
+         * Parse the scanner's current line.
+         *
+         * @param scanner the scanner, whose current line is the one to parse
+         * @param block the block to add an atom record to
+         * @return false if this line ends the atom records
+         */
+        boolean parseLine(ByteScanner scanner, AtomBlock block);
+    }
+
+    /** Pieces are no smaller than this, so small files are parsed as a single piece. */
+    private static final long MIN_PIECE = 4L << 20;
+
+    /** Pieces are no bigger than this, which also keeps each mapping well under 2 GB. */
+    private static final long MAX_PIECE = 256L << 20;
+
+    /** How much is read at a time when looking for a line break. */
+    private static final int PROBE_SIZE = 4096;
+
+    /** How often, in lines, a parser checks whether it has been cancelled. */
+    private static final int CANCEL_CHECK = 4096;
+
+    private static final ThreadFactory daemonThreads = new ThreadFactory() {
+        public Thread newThread(Runnable r) {
+            Thread t = new Thread(r, "file loader");
+            t.setDaemon(true);
+            return t;
+        }
+    };
+
+    /** The number of threads. */
+    private final int numThreads;
+
+    /**
+     * Constructor, using one thread per processor.
+     */
+    MappedLoader() {
+        this(Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param numThreads the number of threads
+     */
+    MappedLoader(int numThreads) {
+        this.numThreads = Math.max(1, numThreads);
+    }
+
+    /**
+     * Parse every line of something a scanner reads, in this thread, into a block. This
+     * is how a file that can't be mapped, such as a stream, is loaded.
+     *
+     * @param scanner the scanner
+     * @param parser the line parser
+     * @param maxAtoms stop after this many atom records
+     * @return the block
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    static AtomBlock parse(ByteScanner scanner, LineParser parser, long maxAtoms)
+        throws IOException {
+        AtomBlock block = new AtomBlock();
+        int lines = 0;
+        while (block.size() < maxAtoms && scanner.nextLine() >= 0) {
+            if (!parser.parseLine(scanner, block)) {
+                block.end();
+                break;
+            }
+            if (++lines % CANCEL_CHECK == 0 && Thread.currentThread().isInterrupted())
+                break;
+        }
+        return block;
+    }
+
+    /**
+     * Parse the lines of part of a file into blocks, a piece per task.
+     *
+     * @param filename the file
+     * @param start where the lines to parse begin
+     * @param maxAtoms once this many atom records have been parsed, the rest of the file
+     *        can be skipped
+     * @param parser the line parser, which must be safe to use from several threads
+     * @return the blocks, in the order of the file
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    List<AtomBlock> load(String filename, long start, long maxAtoms, final LineParser parser)
+        throws IOException {
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        ExecutorService pool = Executors.newFixedThreadPool(numThreads, daemonThreads);
+        try {
+            final FileChannel channel = file.getChannel();
+            long length = channel.size() - start;
+            long pieces = Math.max(1, Math.min(4 * numThreads, length / MIN_PIECE));
+            pieces = Math.max(pieces, (length + MAX_PIECE - 1) / MAX_PIECE);
+            final long[] cuts = new long[(int) pieces + 1];
+            for (int k = 0; k <= pieces; k++)
+                cuts[k] = start + length * k / pieces;
+            List<Future<AtomBlock>> futures = new ArrayList<Future<AtomBlock>>();
+            for (int k = 0; k < pieces; k++) {
+                final int piece = k;
+                futures.add(pool.submit(new Callable<AtomBlock>() {
+                    public AtomBlock call() throws IOException {
+                        // a piece holds the lines that start inside it
+                        long from = (piece == 0) ? cuts[0] : lineStart(channel, cuts[piece]);
+                        long to = (piece == cuts.length - 2)
+                                  ? cuts[piece + 1] : lineStart(channel, cuts[piece + 1]);
+                        if (from >= to)
+                            return new AtomBlock();
+                        ByteBuffer map = channel.map(FileChannel.MapMode.READ_ONLY,
+                                                     from, to - from);
+                        return parse(new ByteScanner(new BufferChannel(map)), parser,
+                                     Long.MAX_VALUE);
+                    }
+                }));
+            }
+            List<AtomBlock> blocks = new ArrayList<AtomBlock>();
+            long atoms = 0;
+            boolean done = false;
+            for (Future<AtomBlock> f : futures) {
+                if (done) {
+                    f.cancel(true);
+                    continue;
+                }
+                AtomBlock b = f.get();
+                blocks.add(b);
+                atoms += b.size();
+                done = (atoms >= maxAtoms || b.isEnded());
+            }
+            return blocks;
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("interrupted while loading " + filename);
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException)
+                throw (IOException) e.getCause();
+            throw new RuntimeException(e.getCause());
+        } finally {
+            pool.shutdownNow();
+            file.close();
+        }
+    }
+
+    /**
+     * Find where the first line starting at or after some point in a file begins.
+     *
+     * @return the start of the line, or the end of the file if there's none
+     */
+    private static long lineStart(FileChannel channel, long position) throws IOException {
+        ByteBuffer probe = ByteBuffer.allocate(PROBE_SIZE);
+        // if the byte before is a line break, the line starts right here
+        long p = position - 1;
+        while (true) {
+            probe.clear();
+            int n = channel.read(probe, p);
+            if (n <= 0)
+                return channel.size();
+            for (int i = 0; i < n; i++)
+                if (probe.get(i) == '\n')
+                    return p + i + 1;
+            p += n;
+        }
+    }
+
+    /**
+     * Reads a buffer as a channel, so that a {@link ByteScanner} can scan a mapped file.
+     */
+    private static class BufferChannel implements ReadableByteChannel {
+
+        /** The buffer. */
+        private final ByteBuffer source;
+
+        /**
+         * Constructor.
+         *
+         * @param source the buffer to read
+         */
+        BufferChannel(ByteBuffer source) {
+            this.source = source;
+        }
+
+        /* (non-Javadoc)
+         * @see java.nio.channels.ReadableByteChannel#read(java.nio.ByteBuffer)
+         */
+        public int read(ByteBuffer dst) {
+            if (!source.hasRemaining())
+                return -1;
+            int n = Math.min(dst.remaining(), source.remaining());
+            ByteBuffer slice = source.duplicate();
+            slice.limit(slice.position() + n);
+            dst.put(slice);
+            source.position(source.position() + n);
+            return n;
+        }
+
+        /* (non-Javadoc)
+         * @see java.nio.channels.Channel#isOpen()
+         */
+        public boolean isOpen() {
+            return true;
+        }
+
+        /* (non-Javadoc)
+         * @see java.nio.channels.Channel#close()
+         */
+        public void close() {
+        }
+    }
+}
@@ -1,32 +1,120 @@
 package net.willware.eurydice.serialization;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.util.Collections;
 import java.util.List;
+import java.util.logging.Logger;
 
 import net.willware.eurydice.core.Atom;
 import net.willware.eurydice.core.Bond;
 import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.nanocad.NanocadStyleStructure;
 
 /**
  * Serialization for the standard PDB file format.
  */
 public class PdbFile extends Filetype {
 
-    /*
-     * When I _do_ get around to implementing the load method, I can pull in things like this:
-     * http://www.pdb.org/pdb/download/downloadFile.do?fileFormat=pdb&compression=NO&structureId=2X72
-     * which is (I think) a rhodopsin molecule.
+    /** The logger. */
+    private static Logger logger = Logger.getLogger("eurydice");
+
+    /**
+     * Parses the ATOM and HETATM records of a PDB file, up to the end of the first model.
+     * The element comes from columns 77-78 if they're filled in. Otherwise it's worked out
+     * from the atom name in columns 13-16: by convention a name starting in column 13
+     * begins with a two-letter element, and a name starting in column 14 with a one-letter
+     * one, though a mixed-case name such as "Si" is taken as two letters either way, and a
+     * hydrogen name may be long enough to start in column 13, so for those the first letter
+     * alone is the fallback.
      */
+    private static final MappedLoader.LineParser atomLine = new MappedLoader.LineParser() {
+        public boolean parseLine(ByteScanner scanner, AtomBlock block) {
+            if (scanner.lineStartsWith("END"))
+                return false;
+            if (!scanner.lineStartsWith("ATOM  ") && !scanner.lineStartsWith("HETATM"))
+                return true;
+            String symbol = scanner.lineWord(76, 78), fallback = null;
+            if (symbol.length() == 0) {
+                byte[] line = scanner.getLine();
+                int start = 12, end = Math.min(16, scanner.getLineLength());
+                boolean twoLetter = (start < end) && line[start] != ' ' && !isDigit(line[start]);
+                while (start < end && (line[start] == ' ' || isDigit(line[start])))
+                    start++;
+                if (start >= end || !isLetter(line[start])) {
+                    symbol = null;
+                } else if (start + 1 < end && isLetter(line[start + 1])
+                           && (twoLetter || (line[start + 1] >= 'a' && line[start + 1] <= 'z'))) {
+                    symbol = scanner.lineWord(start, start + 2);
+                    // four-character hydrogen names such as HD21 start in column 13 too
+                    if (!twoLetter || line[start] == 'H')
+                        fallback = scanner.lineWord(start, start + 1);
+                } else {
+                    symbol = scanner.lineWord(start, start + 1);
+                }
+            }
+            block.add(symbol, fallback, scanner.lineDouble(30, 38),
+                      scanner.lineDouble(38, 46), scanner.lineDouble(46, 54));
+            return true;
+        }
+    };
 
     /**
-     * NOTE THAT THIS METHOD IS NOT YET IMPLEMENTED!.
+     * Load the atoms of a PDB file. Coordinates come from the fixed columns of the ATOM and
+     * HETATM records, read a buffer at a time by a {@link ByteScanner}. Only the first
+     * model is loaded. Atoms of elements that aren't known are left out, with a warning,
+     * and bonds are inferred rather than taken from CONECT records.
      *
      * @param ins an InputStream from which a serialization is obtained
      * @return the de-serialized structure
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Structure load(InputStream ins) throws IOException {
+        AtomBlock block = MappedLoader.parse(new ByteScanner(ins), atomLine, Long.MAX_VALUE);
+        return makeStructure(Collections.singletonList(block));
+    }
+
+    /**
+     * Load the atoms of a PDB file, as {@link #load(InputStream)} does, but with the file
+     * memory-mapped and parsed in pieces on all processors.
+     *
+     * @param filename the filename
+     * @return the de-serialized structure
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Structure load(String filename) throws IOException {
+        return makeStructure(new MappedLoader().load(filename, 0, Long.MAX_VALUE, atomLine));
+    }
+
+    /**
+     * Make the structure of the atoms parsed from a PDB file.
+     *
+     * @param blocks the parsed atoms
+     * @return the structure
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    private Structure makeStructure(List<AtomBlock> blocks) throws IOException {
+        NanocadStyleStructure struc = new NanocadStyleStructure();
+        int unknown = AtomBlock.addAll(blocks, struc, Long.MAX_VALUE, false);
+        if (unknown > 0)
+            logger.warning("left out " + unknown + " atoms of unknown elements");
+        struc.inferBonds();
+        return struc;
+    }
+
+    /**
+     * Is a byte a digit?
+     */
+    private static boolean isDigit(byte b) {
+        return b >= '0' && b <= '9';
+    }
+
+    /**
+     * Is a byte a letter?
      */
-    public Structure load(InputStream ins) {
-        throw new RuntimeException("not implemented yet");
+    private static boolean isLetter(byte b) {
+        return (b >= 'A' && b <= 'Z') || (b >= 'a' && b <= 'z');
     }
 
     /**
@@ -0,0 +1,590 @@
+package net.willware.eurydice.serialization;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.Iterator;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.nanocad.NanocadStyleStructure;
+
+/**
+ * A compact binary format for molecular dynamics trajectories. The header gives the
+ * element of each atom once, and then come the frames, each holding a step number and the
+ * coordinates of every atom, either as 32-bit floats or quantized to 16 bits per
+ * coordinate within the frame's bounding box. All frames in a file are the same size, so
+ * frame k is found by arithmetic and the frame index costs no space, and a file cut short
+ * by a crash is still readable up to its last whole frame.
+ * <p>
+ * The layout, all little-endian:
+ * <pre>
+ *   header:  "EURYTRAJ", int version, int encoding, int number of atoms,
+ *            int header size, then two ASCII bytes of element symbol per atom,
+ *            padded to a multiple of eight bytes
+ *   FLOAT32 frame:   long step, then float x, y, z for each atom
+ *   QUANTIZED frame: long step, float x, y, z of the min corner, float x, y, z of the
+ *                    scale, then unsigned short x, y, z for each atom
+ * </pre>
+ * Frames are written with a {@link Writer} through a {@link FileChannel}, several at a
+ * time, and read with a {@link Reader}, which memory-maps the file. {@link #load} gives
+ * the last frame as a structure, so a run can be picked up where it stopped.
+ */
+public class TrajectoryFile extends Filetype {
+
+    /** Coordinates as 32-bit floats, 12 bytes per atom. */
+    public static final int FLOAT32 = 0;
+
+    /**
+     * Coordinates as 16-bit fractions of the frame's bounding box, 6 bytes per atom. The
+     * error is at most 1/131070 of the width of the box on each axis.
+     */
+    public static final int QUANTIZED = 1;
+
+    /** The first eight bytes of every trajectory file. */
+    private static final byte[] MAGIC = { 'E', 'U', 'R', 'Y', 'T', 'R', 'A', 'J' };
+
+    /** The version of the format. */
+    private static final int VERSION = 1;
+
+    /** The size of the fixed part of the header. */
+    private static final int HEADER_FIXED = 24;
+
+    /** The largest quantized coordinate. */
+    private static final int QUANTUM_MAX = 0xffff;
+
+    /** Writes are gathered into a buffer of about this many bytes. */
+    private static final int WRITE_BUFFER_SIZE = 1 << 20;
+
+    /** Frames are mapped in chunks of about this many bytes. */
+    private static final long CHUNK_SIZE = 1L << 30;
+
+    /** The encoding for coordinates written by this instance. */
+    private final int encoding;
+
+    /**
+     * Constructor, for trajectories of 32-bit float coordinates.
+     */
+    public TrajectoryFile() {
+        this(FLOAT32);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param encoding {@link #FLOAT32} or {@link #QUANTIZED}
+     */
+    public TrajectoryFile(int encoding) {
+        if (encoding != FLOAT32 && encoding != QUANTIZED)
+            throw new IllegalArgumentException("unknown encoding " + encoding);
+        this.encoding = encoding;
+    }
+
+    /**
+     * Gets the size of the header for some number of atoms.
+     */
+    private static int headerSize(int numAtoms) {
+        return (HEADER_FIXED + 2 * numAtoms + 7) & ~7;
+    }
+
+    /**
+     * Gets the size of a frame.
+     */
+    private static int frameSize(int encoding, int numAtoms) {
+        if (encoding == FLOAT32)
+            return 8 + 12 * numAtoms;
+        return 8 + 24 + 6 * numAtoms;
+    }
+
+    /**
+     * Start writing a trajectory file. The structure supplies the elements of the atoms,
+     * and every frame written must have the same atoms in the same order.
+     *
+     * @param filename the file to write
+     * @param struc the structure
+     * @return a writer for the frames
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Writer openWriter(String filename, Structure struc) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(filename, "rw");
+        raf.setLength(0);
+        return new Writer(raf.getChannel(), encoding, struc);
+    }
+
+    /**
+     * Open a trajectory file for reading.
+     *
+     * @param filename the file to read
+     * @return the reader
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    public Reader openReader(String filename) throws IOException {
+        return new Reader(filename);
+    }
+
+    /**
+     * Write a trajectory of one frame, the structure as it is now.
+     *
+     * @param ps the PrintStream to which the structure should be serialized
+     * @param struc the structure to be serialized
+     * @throws IOException Signals that an I/O exception has occurred.
+     */
+    protected void dump(PrintStream ps, Structure struc) throws IOException {
+        Writer w = new Writer(Channels.newChannel(ps), encoding, struc);
+        w.writeFrame(struc);
+        w.flush();
+        ps.flush();
+    }
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.serialization.Filetype#dump(java.lang.String, net.willware.eurydice.core.Structure)
+     */
+    public void dump(String filename, Structure struc) throws IOException {
+        Writer w = openWriter(filename, struc);
+        w.writeFrame(struc);
+        w.close();
+    }
+
+    /**
+     * Load the last frame of a trajectory.
+     *
+     * @param ins the InputStream
+     * @return the structure in its last frame
+     * @throws IOException Signals that an I/O exception has occurred, or the trajectory
+     *         has no whole frames.
+     */
+    public Structure load(InputStream ins) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        byte[] b = new byte[65536];
+        int n;
+        while ((n = ins.read(b)) > 0)
+            bytes.write(b, 0, n);
+        return lastFrame(new Reader(ByteBuffer.wrap(bytes.toByteArray())));
+    }
+
+    /**
+     * Load the last frame of a trajectory file.
+     *
+     * @param filename the filename
+     * @return the structure in its last frame
+     * @throws IOException Signals that an I/O exception has occurred, or the trajectory
+     *         has no whole frames.
+     */
+    public Structure load(String filename) throws IOException {
+        Reader r = new Reader(filename);
+        try {
+            return lastFrame(r);
+        } finally {
+            r.close();
+        }
+    }
+
+    /**
+     * Gets the structure in the last frame of a trajectory. A file cut short by a crash
+     * before its first frame was written holds only a header, and has no last frame.
+     */
+    private Structure lastFrame(Reader r) throws IOException {
+        if (r.numFrames() == 0)
+            throw new IOException("trajectory has no frames");
+        return r.getStructure(r.numFrames() - 1);
+    }
+
+    /**
+     * Writes frames of a trajectory. Frames are gathered into a direct buffer and written
+     * to the channel a megabyte or so at a time.
+     */
+    public static class Writer {
+
+        /** The channel. */
+        private final WritableByteChannel channel;
+
+        /** The encoding. */
+        private final int encoding;
+
+        /** The number of atoms in every frame. */
+        private final int numAtoms;
+
+        /** The frames waiting to be written. */
+        private final ByteBuffer buffer;
+
+        /** The coordinates of the frame being written, for quantizing. */
+        private final double[] xyz;
+
+        /** The min corner of the frame being quantized. */
+        private final float[] min = new float[3];
+
+        /** The width of one quantum on each axis, for the frame being quantized. */
+        private final float[] scale = new float[3];
+
+        /** The number of frames written. */
+        private long frames = 0;
+
+        /**
+         * Constructor. Writes the header.
+         *
+         * @param channel the channel to write to
+         * @param encoding the encoding
+         * @param struc the structure, supplying the elements of the atoms
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        Writer(WritableByteChannel channel, int encoding, Structure struc) throws IOException {
+            this.channel = channel;
+            this.encoding = encoding;
+            numAtoms = struc.size();
+            int frameSize = frameSize(encoding, numAtoms);
+            int capacity = Math.max(frameSize, WRITE_BUFFER_SIZE / frameSize * frameSize);
+            buffer = ByteBuffer.allocateDirect(Math.max(capacity, headerSize(numAtoms)));
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            xyz = new double[3 * numAtoms];
+            buffer.put(MAGIC);
+            buffer.putInt(VERSION);
+            buffer.putInt(encoding);
+            buffer.putInt(numAtoms);
+            buffer.putInt(headerSize(numAtoms));
+            Iterator<Atom> iter = struc.getIterator();
+            for (int i = 0; i < numAtoms; i++) {
+                String symbol = iter.next().getSymbol();
+                buffer.put((byte) symbol.charAt(0));
+                buffer.put((byte) ((symbol.length() > 1) ? symbol.charAt(1) : ' '));
+            }
+            while (buffer.position() < headerSize(numAtoms))
+                buffer.put((byte) 0);
+            flush();
+        }
+
+        /**
+         * Gets the number of frames written.
+         *
+         * @return the number of frames
+         */
+        public long numFrames() {
+            return frames;
+        }
+
+        /**
+         * Write the positions of a structure's atoms as a frame, numbered by the count of
+         * frames written before it. Atoms are taken in the order of the structure's
+         * iterator.
+         *
+         * @param struc the structure
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public void writeFrame(Structure struc) throws IOException {
+            if (struc.size() != numAtoms)
+                throw new IOException("expected " + numAtoms + " atoms, got " + struc.size());
+            Iterator<Atom> iter = struc.getIterator();
+            for (int i = 0; i < numAtoms; i++) {
+                Atom a = iter.next();
+                xyz[3 * i] = a.getX();
+                xyz[3 * i + 1] = a.getY();
+                xyz[3 * i + 2] = a.getZ();
+            }
+            writeFrame(frames);
+        }
+
+        /**
+         * Write a snapshot as a frame, numbered by the snapshot's frame number. This lets a
+         * thread write the trajectory while another goes on integrating.
+         *
+         * @param s the snapshot
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public void writeFrame(PositionSnapshot s) throws IOException {
+            if (s.size() != numAtoms)
+                throw new IOException("expected " + numAtoms + " atoms, got " + s.size());
+            for (int i = 0; i < numAtoms; i++) {
+                xyz[3 * i] = s.getX(i);
+                xyz[3 * i + 1] = s.getY(i);
+                xyz[3 * i + 2] = s.getZ(i);
+            }
+            writeFrame(s.getFrame());
+        }
+
+        /**
+         * Encode the coordinates in {@link #xyz} as a frame.
+         */
+        private void writeFrame(long step) throws IOException {
+            if (buffer.remaining() < frameSize(encoding, numAtoms))
+                flush();
+            buffer.putLong(step);
+            if (encoding == FLOAT32) {
+                for (int k = 0; k < xyz.length; k++)
+                    buffer.putFloat((float) xyz[k]);
+            } else {
+                for (int c = 0; c < 3; c++) {
+                    double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+                    for (int k = c; k < xyz.length; k += 3) {
+                        lo = Math.min(lo, xyz[k]);
+                        hi = Math.max(hi, xyz[k]);
+                    }
+                    if (numAtoms == 0)
+                        lo = hi = 0.0;
+                    // quantize against the origin and scale as the reader will see them
+                    min[c] = (float) lo;
+                    scale[c] = (float) ((hi - min[c]) / QUANTUM_MAX);
+                    buffer.putFloat(min[c]);
+                }
+                for (int c = 0; c < 3; c++)
+                    buffer.putFloat(scale[c]);
+                for (int k = 0; k < xyz.length; k++) {
+                    int c = k % 3;
+                    long q = (scale[c] == 0.0f) ? 0 : Math.round((xyz[k] - min[c]) / scale[c]);
+                    buffer.putShort((short) Math.max(0, Math.min(QUANTUM_MAX, q)));
+                }
+            }
+            frames++;
+        }
+
+        /**
+         * Write any frames waiting in the buffer.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public void flush() throws IOException {
+            buffer.flip();
+            while (buffer.hasRemaining())
+                channel.write(buffer);
+            buffer.clear();
+        }
+
+        /**
+         * Write any frames waiting in the buffer, and close the channel.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public void close() throws IOException {
+            flush();
+            channel.close();
+        }
+    }
+
+    /**
+     * Reads frames of a trajectory, in any order. A file is memory-mapped in chunks of
+     * whole frames, so files bigger than one mapping can hold are fine, and reading a
+     * frame is a few hundred absolute gets from memory the operating system pages in.
+     */
+    public static class Reader {
+
+        /** The file, or null if reading from memory. */
+        private final RandomAccessFile file;
+
+        /** The encoding. */
+        private final int encoding;
+
+        /** The number of atoms in each frame. */
+        private final int numAtoms;
+
+        /** The element symbols. */
+        private final String[] symbols;
+
+        /** The size of each frame. */
+        private final int frameSize;
+
+        /** The number of whole frames. */
+        private final long numFrames;
+
+        /** The number of frames in each chunk. */
+        private final int framesPerChunk;
+
+        /** The mapped chunks, each mapped when first needed. */
+        private final ByteBuffer[] chunks;
+
+        /** Where the first frame starts. */
+        private final long start;
+
+        /**
+         * Constructor, for a file.
+         *
+         * @param filename the file to read
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        Reader(String filename) throws IOException {
+            this(new RandomAccessFile(new File(filename), "r"), null);
+        }
+
+        /**
+         * Constructor, for a trajectory in memory.
+         *
+         * @param bytes the whole trajectory
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        Reader(ByteBuffer bytes) throws IOException {
+            this(null, bytes);
+        }
+
+        /**
+         * Constructor. Exactly one of the arguments is null.
+         */
+        private Reader(RandomAccessFile file, ByteBuffer bytes) throws IOException {
+            this.file = file;
+            long length = (file != null) ? file.length() : bytes.limit();
+            ByteBuffer header;
+            if (file != null)
+                header = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0,
+                                               Math.min(length, HEADER_FIXED));
+            else
+                header = bytes.duplicate();
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            if (length < HEADER_FIXED)
+                throw new IOException("not a trajectory file");
+            for (int i = 0; i < MAGIC.length; i++)
+                if (header.get(i) != MAGIC[i])
+                    throw new IOException("not a trajectory file");
+            if (header.getInt(8) != VERSION)
+                throw new IOException("unknown trajectory version " + header.getInt(8));
+            encoding = header.getInt(12);
+            numAtoms = header.getInt(16);
+            start = header.getInt(20);
+            if ((encoding != FLOAT32 && encoding != QUANTIZED) || numAtoms < 0
+                    || start != headerSize(numAtoms) || start > length)
+                throw new IOException("bad trajectory header");
+            if (file != null)
+                header = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, start);
+            header.order(ByteOrder.LITTLE_ENDIAN);
+            symbols = new String[numAtoms];
+            for (int i = 0; i < numAtoms; i++) {
+                char c1 = (char) header.get(HEADER_FIXED + 2 * i);
+                char c2 = (char) header.get(HEADER_FIXED + 2 * i + 1);
+                symbols[i] = (c2 == ' ') ? String.valueOf(c1) : "" + c1 + c2;
+            }
+            frameSize = frameSize(encoding, numAtoms);
+            numFrames = (length - start) / frameSize;
+            if (file == null)
+                framesPerChunk = (int) Math.max(1, numFrames);
+            else
+                framesPerChunk = (int) Math.max(1, CHUNK_SIZE / frameSize);
+            chunks = new ByteBuffer[(int) ((numFrames + framesPerChunk - 1) / framesPerChunk)];
+            if (file == null && chunks.length > 0) {
+                ByteBuffer b = bytes.duplicate();
+                b.position((int) start);
+                chunks[0] = b.slice().order(ByteOrder.LITTLE_ENDIAN);
+            }
+        }
+
+        /**
+         * Gets the number of whole frames in the file.
+         *
+         * @return the number of frames
+         */
+        public long numFrames() {
+            return numFrames;
+        }
+
+        /**
+         * Gets the number of atoms in each frame.
+         *
+         * @return the number of atoms
+         */
+        public int numAtoms() {
+            return numAtoms;
+        }
+
+        /**
+         * Gets the element symbol of an atom.
+         *
+         * @param i the atom number
+         * @return the symbol
+         */
+        public String getSymbol(int i) {
+            return symbols[i];
+        }
+
+        /**
+         * Gets the buffer holding a frame, mapping its chunk if need be.
+         */
+        private synchronized ByteBuffer chunk(long frame) throws IOException {
+            if (frame < 0 || frame >= numFrames)
+                throw new IndexOutOfBoundsException("frame " + frame + " of " + numFrames);
+            int c = (int) (frame / framesPerChunk);
+            if (chunks[c] == null) {
+                long first = (long) c * framesPerChunk;
+                long count = Math.min(framesPerChunk, numFrames - first);
+                chunks[c] = file.getChannel().map(FileChannel.MapMode.READ_ONLY,
+                                                  start + first * frameSize, count * frameSize);
+                chunks[c].order(ByteOrder.LITTLE_ENDIAN);
+            }
+            return chunks[c];
+        }
+
+        /**
+         * Gets the step number recorded with a frame.
+         *
+         * @param frame the frame number, from zero
+         * @return the step number
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public long getStep(long frame) throws IOException {
+            ByteBuffer b = chunk(frame);
+            return b.getLong((int) (frame % framesPerChunk) * frameSize);
+        }
+
+        /**
+         * Read the coordinates of a frame.
+         *
+         * @param frame the frame number, from zero
+         * @param xyz an array to hold x, y and z for each atom, or null
+         * @return the array of coordinates
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public double[] readFrame(long frame, double[] xyz) throws IOException {
+            if (xyz == null || xyz.length < 3 * numAtoms)
+                xyz = new double[3 * numAtoms];
+            ByteBuffer b = chunk(frame);
+            int p = (int) (frame % framesPerChunk) * frameSize + 8;
+            if (encoding == FLOAT32) {
+                for (int k = 0; k < 3 * numAtoms; k++, p += 4)
+                    xyz[k] = b.getFloat(p);
+            } else {
+                double[] min = new double[3], scale = new double[3];
+                for (int c = 0; c < 3; c++) {
+                    min[c] = b.getFloat(p + 4 * c);
+                    scale[c] = b.getFloat(p + 12 + 4 * c);
+                }
+                p += 24;
+                for (int k = 0; k < 3 * numAtoms; k++, p += 2)
+                    xyz[k] = min[k % 3] + (b.getShort(p) & QUANTUM_MAX) * scale[k % 3];
+            }
+            return xyz;
+        }
+
+        /**
+         * Make a structure of the atoms in a frame, with bonds inferred.
+         *
+         * @param frame the frame number, from zero
+         * @return the structure
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public Structure getStructure(long frame) throws IOException {
+            double[] xyz = readFrame(frame, null);
+            NanocadStyleStructure struc = new NanocadStyleStructure();
+            for (int i = 0; i < numAtoms; i++) {
+                Atom a = ElementFactory.getInstance().get(symbols[i]);
+                a.setPosition(new Vector(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]));
+                struc.addAtom(a);
+            }
+            struc.inferBonds();
+            return struc;
+        }
+
+        /**
+         * Close the file. Mapped chunks stay readable until they are garbage collected.
+         *
+         * @throws IOException Signals that an I/O exception has occurred.
+         */
+        public void close() throws IOException {
+            if (file != null)
+                file.close();
+        }
+    }
+}
@@ -3,12 +3,12 @@ package net.willware.eurydice.serialization;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
-import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.util.Collections;
+import java.util.List;
 
 import net.willware.eurydice.core.Atom;
 import net.willware.eurydice.core.Structure;
-import net.willware.eurydice.elements.ElementFactory;
-import net.willware.eurydice.math.Vector;
 import net.willware.eurydice.nanocad.NanocadStyleStructure;
 
 /**
@@ -43,26 +43,79 @@ public class XyzFile extends Filetype {
         }
     }
 
-    /* (non-Javadoc)
-     * @see net.willware.eurydice.serialization.Filetype#load(java.io.InputStream)
+    /**
+     * Parses the atom lines of an XYZ file: a symbol and three coordinates. Blank lines
+     * are passed over, and a line with too few fields is a bad record.
+     */
+    private static final MappedLoader.LineParser atomLine = new MappedLoader.LineParser() {
+        public boolean parseLine(ByteScanner scanner, AtomBlock block) {
+            int n = scanner.splitLine();
+            if (n >= 4)
+                block.add(scanner.fieldWord(0), null, scanner.fieldDouble(1),
+                          scanner.fieldDouble(2), scanner.fieldDouble(3));
+            else if (n > 0)
+                block.add(null, null, 0.0, 0.0, 0.0);
+            return true;
+        }
+    };
+
+    /**
+     * Load a structure in XYZ format. The file is scanned a buffer at a time by a
+     * {@link ByteScanner}, which parses coordinates straight from the bytes.
+     *
+     * @param ins the InputStream
+     * @return the structure
+     * @throws IOException if the file is cut short or has a bad atom line
      */
     public Structure load(InputStream ins) throws IOException {
-        pbis = new PushbackInputStream(ins);
-        NanocadStyleStructure struc = new NanocadStyleStructure();
-        int numatoms = scanInt();
-        String symbol;
-        double x, y, z;
-        bagLine();
-        bagLine();
-        while (numatoms-- > 0) {
-            symbol = scanWord();
-            x = scanDouble();
-            y = scanDouble();
-            z = scanDouble();
-            Atom a = ElementFactory.getInstance().get(symbol);
-            a.setPosition(new Vector(x, y, z));
-            struc.addAtom(a);
+        ByteScanner scanner = new ByteScanner(ins);
+        int numatoms = scanner.nextInt();
+        scanner.skipLine();
+        scanner.skipLine();
+        AtomBlock block = MappedLoader.parse(scanner, atomLine, numatoms);
+        return makeStructure(Collections.singletonList(block), numatoms);
+    }
+
+    /**
+     * Load a structure from an XYZ file. After the header, the file is memory-mapped and
+     * its atom lines parsed in pieces on all processors, which for files of millions of
+     * atoms is several times faster than reading it as a stream. Only the first frame of
+     * a file of several is loaded, and pieces of the file past it are skipped.
+     *
+     * @param filename the filename
+     * @return the structure
+     * @throws IOException if the file is cut short or has a bad atom line
+     */
+    public Structure load(String filename) throws IOException {
+        int numatoms;
+        long headerEnd;
+        RandomAccessFile file = new RandomAccessFile(filename, "r");
+        try {
+            ByteScanner scanner = new ByteScanner(file.getChannel());
+            numatoms = scanner.nextInt();
+            scanner.skipLine();
+            scanner.skipLine();
+            headerEnd = scanner.getOffset();
+        } finally {
+            file.close();
         }
+        List<AtomBlock> blocks = new MappedLoader().load(filename, headerEnd, numatoms, atomLine);
+        return makeStructure(blocks, numatoms);
+    }
+
+    /**
+     * Make the structure of the atoms parsed from an XYZ file.
+     *
+     * @param blocks the parsed atoms
+     * @param numatoms the number of atoms the file's header gives
+     * @return the structure
+     * @throws IOException if there are too few atoms or a bad one
+     */
+    private Structure makeStructure(List<AtomBlock> blocks, int numatoms) throws IOException {
+        NanocadStyleStructure struc = new NanocadStyleStructure();
+        AtomBlock.addAll(blocks, struc, numatoms, true);
+        if (struc.size() < numatoms)
+            throw new IOException("XYZ file ends after " + struc.size() + " atoms");
         struc.inferBonds();
         return struc;
     }
@@ -0,0 +1,336 @@
+package net.willware.eurydice.tests;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Bond;
+import net.willware.eurydice.core.BondChainProcessor;
+import net.willware.eurydice.core.BondInference;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.core.Topology;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * JUnit tests for bond perception.
+ */
+public class BondInferenceTests extends TestCase {
+
+    private static final String[] elements = { "C", "H", "O", "N", "Si" };
+
+    /**
+     * Scatter a mix of atoms around a box, dense enough that lots of them bond.
+     */
+    private Atom[] randomAtoms(int n, double boxSize, Random r) {
+        Atom[] atoms = new Atom[n];
+        for (int i = 0; i < n; i++) {
+            atoms[i] = ElementFactory.getInstance().get(elements[r.nextInt(elements.length)]);
+            atoms[i].setPosition(new Vector(boxSize * r.nextDouble(),
+                                            boxSize * r.nextDouble(),
+                                            boxSize * r.nextDouble()));
+        }
+        return atoms;
+    }
+
+    private String pairName(Atom a1, Atom a2) {
+        int id1 = a1.getUniqueId().toInteger();
+        int id2 = a2.getUniqueId().toInteger();
+        return (id1 < id2) ? (id1 + "," + id2) : (id2 + "," + id1);
+    }
+
+    // @Test
+    /**
+     * The grid search should find exactly the bonds the O(N^2) search finds.
+     */
+    public void testMatchesBruteForce() {
+        Atom[] atoms = randomAtoms(1000, 15.0, new Random(4));
+        Set<String> expected = new HashSet<String>();
+        for (int i = 0; i < atoms.length; i++)
+            for (int j = i + 1; j < atoms.length; j++) {
+                double d = atoms[i].getCovalentRadius() + atoms[j].getCovalentRadius() +
+                           BondInference.TOLERANCE;
+                if (atoms[i].getPosition().subtract(atoms[j].getPosition()).length() < d)
+                    expected.add(pairName(atoms[i], atoms[j]));
+            }
+        List<Bond> bonds = BondInference.inferBonds(atoms);
+        Set<String> found = new HashSet<String>();
+        for (Bond b : bonds)
+            found.add(pairName(b.getFirstAtom(), b.getSecondAtom()));
+        assertEquals(expected.size(), bonds.size());
+        assertEquals(expected, found);
+    }
+
+    // @Test
+    /**
+     * Empty and single-atom structures have no bonds.
+     */
+    public void testDegenerateCases() {
+        assertTrue(BondInference.inferBonds(new Atom[0]).isEmpty());
+        assertTrue(BondInference.inferBonds(randomAtoms(1, 1.0, new Random(5))).isEmpty());
+    }
+
+    private Set<String> bondNames(List<Bond> bonds) {
+        Set<String> names = new HashSet<String>();
+        for (Bond b : bonds)
+            names.add(pairName(b.getFirstAtom(), b.getSecondAtom()));
+        return names;
+    }
+
+    // @Test
+    /**
+     * A structure's bonds should stay right as atoms are added and removed, and as they
+     * move, but should only be perceived again when atoms have moved far.
+     */
+    public void testBondCache() {
+        Random r = new Random(13);
+        StructureMutableImpl s = new StructureMutableImpl();
+        Atom[] atoms = randomAtoms(300, 12.0, r);
+        for (Atom a : atoms)
+            s.addAtom(a);
+        List<Bond> bonds = s.inferBonds();
+        long count = s.getModificationCount();
+
+        Atom extra = ElementFactory.getInstance().get("C");
+        extra.setPosition(atoms[0].getPosition().add(new Vector(1.0, 0.0, 0.0)));
+        s.addAtom(extra);
+        s.removeAtom(atoms[1]);
+        assertTrue(s.getModificationCount() > count);
+        assertEquals(bondNames(BondInference.inferBonds(s.getAtomArray())),
+                     bondNames(s.inferBonds()));
+
+        // small moves don't trigger perception
+        bonds = s.inferBonds();
+        count = s.getModificationCount();
+        for (Atom a : s.getAtomArray())
+            a.move(new Vector(0.05 * r.nextGaussian(), 0.0, 0.0));
+        assertSame(bonds, s.inferBonds());
+        assertEquals(count, s.getModificationCount());
+
+        // big moves do
+        for (Atom a : s.getAtomArray())
+            a.move(new Vector(r.nextGaussian(), r.nextGaussian(), r.nextGaussian()));
+        assertEquals(bondNames(BondInference.inferBonds(s.getAtomArray())),
+                     bondNames(s.inferBonds()));
+        assertTrue(s.getModificationCount() > count);
+    }
+
+    // @Test
+    /**
+     * Atoms added one at a time after bonds have been inferred, some where there were no
+     * atoms before and while the others move a little and some are removed, should get
+     * exactly the bonds a search of every atom would find for them.
+     */
+    public void testIncrementalBonds() {
+        Random r = new Random(16);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (Atom a : randomAtoms(300, 12.0, r))
+            s.addAtom(a);
+        List<Bond> bonds = s.inferBonds();
+        for (int round = 0; round < 5; round++) {
+            for (Atom a : s.getAtomArray())
+                a.move(new Vector(0.02 * (2 * r.nextDouble() - 1),
+                                  0.02 * (2 * r.nextDouble() - 1),
+                                  0.02 * (2 * r.nextDouble() - 1)));
+            for (Atom added : randomAtoms(40, 16.0, r)) {
+                added.move(new Vector(-2.0, -2.0, -2.0));
+                s.addAtom(added);
+                Set<String> expected = new HashSet<String>();
+                for (Atom other : s.getAtomArray()) {
+                    double d = added.getCovalentRadius() + other.getCovalentRadius() +
+                               BondInference.TOLERANCE;
+                    if (other != added &&
+                        added.getPosition().subtract(other.getPosition()).length() < d)
+                        expected.add(pairName(added, other));
+                }
+                Set<String> found = new HashSet<String>();
+                int numFound = 0;
+                for (Bond b : bonds)
+                    if (b.contains(added)) {
+                        found.add(pairName(b.getFirstAtom(), b.getSecondAtom()));
+                        numFound++;
+                    }
+                assertEquals(expected, found);
+                assertEquals(expected.size(), numFound);
+            }
+            for (int k = 0; k < 10; k++)
+                s.removeAtom(s.getAtomArray()[r.nextInt(s.size())]);
+        }
+        assertEquals(450, s.size());
+        assertSame(bonds, s.inferBonds());
+    }
+
+    // @Test
+    /**
+     * The topology should list each atom's bonds, and chains of bonded atoms should be
+     * found by walking it.
+     */
+    public void testTopology() {
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (Atom a : randomAtoms(200, 10.0, new Random(14)))
+            s.addAtom(a);
+        List<Bond> bonds = s.inferBonds();
+        Topology t = s.getTopology();
+        int numNeighbors = 0;
+        for (int i = 0; i < t.size(); i++) {
+            Atom a = t.getAtom(i);
+            for (int k = 0; k < t.numNeighbors(i); k++) {
+                Bond b = t.getNeighborBond(i, k);
+                assertTrue(b.contains(a));
+                assertSame(b.otherAtom(a), t.getAtom(t.getNeighbor(i, k)));
+            }
+            numNeighbors += t.numNeighbors(i);
+        }
+        assertEquals(2 * bonds.size(), numNeighbors);
+        final int[] chains = new int[3];
+        s.processBondChains(new BondChainProcessor() {
+            public void process2(Atom a1, Atom a2) {
+                chains[0]++;
+            }
+            public void process3(Atom a1, Atom a2, Atom a3) {
+                assertTrue(a1 != a3);
+                chains[1]++;
+            }
+            public void process4(Atom a1, Atom a2, Atom a3, Atom a4) {
+                assertTrue(a1 != a3 && a2 != a4 && a1 != a4);
+                chains[2]++;
+            }
+        });
+        // every bond is walked in both directions
+        assertEquals(2 * bonds.size(), chains[0]);
+        int angles = 0;
+        for (int i = 0; i < t.size(); i++)
+            angles += t.numNeighbors(i) * (t.numNeighbors(i) - 1);
+        assertEquals(angles, chains[1]);
+        assertTrue(chains[2] > 0);
+    }
+
+    // @Test
+    /**
+     * Chains of four found by walking the topology should be exactly the paths of three
+     * distinct bonds found by brute force over the bond list, and atoms the processor
+     * already has should be left out.
+     */
+    public void testTopologyChains() {
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (Atom a : randomAtoms(150, 9.0, new Random(15)))
+            s.addAtom(a);
+        List<Bond> bonds = s.inferBonds();
+        int expected = 0;
+        for (Bond b1 : bonds)
+            for (Bond b2 : bonds)
+                for (Bond b3 : bonds) {
+                    if (b1 == b2 || b2 == b3 || b1 == b3)
+                        continue;
+                    // b2 must join the far ends of b1 and b3, in either order
+                    for (int d = 0; d < 2; d++) {
+                        Atom x = (d == 0) ? b2.getFirstAtom() : b2.getSecondAtom();
+                        Atom y = b2.otherAtom(x);
+                        if (b1.contains(x) && b3.contains(y)) {
+                            Atom a = b1.otherAtom(x), z = b3.otherAtom(y);
+                            if (a != y && z != x && a != z)
+                                expected++;
+                        }
+                    }
+                }
+        final int[] found = new int[1];
+        Topology t = s.getTopology();
+        t.processChains(new BondChainProcessor() {
+            public void process4(Atom a1, Atom a2, Atom a3, Atom a4) {
+                found[0]++;
+            }
+        });
+        assertTrue(expected > 0);
+        assertEquals(expected, found[0]);
+
+        final Atom skip = t.getAtom(t.numNeighbors(0) > 0 ? t.getNeighbor(0, 0) : 0);
+        final int[] seen = new int[1];
+        t.processChains(new BondChainProcessor() {
+            public boolean alreadyHave(Atom a) {
+                return a == skip;
+            }
+            public void process2(Atom a1, Atom a2) {
+                seen[0]++;
+                assertTrue(a2 != skip);
+            }
+            public void process3(Atom a1, Atom a2, Atom a3) {
+                assertTrue(a2 != skip && a3 != skip);
+            }
+            public void process4(Atom a1, Atom a2, Atom a3, Atom a4) {
+                assertTrue(a2 != skip && a3 != skip && a4 != skip);
+            }
+        });
+        // chains may still start at the skipped atom, but never lead to it
+        assertEquals(2 * bonds.size() - t.numNeighbors(t.indexOf(skip)), seen[0]);
+    }
+
+    // @Test
+    /**
+     * Adding and removing atoms one at a time should patch the structure's topology, not
+     * replace it, and the patched topology should describe the same bonds as one built
+     * afresh.
+     */
+    public void testTopologyPatching() {
+        Random r = new Random(17);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (Atom a : randomAtoms(200, 10.0, r))
+            s.addAtom(a);
+        List<Bond> bonds = s.inferBonds();
+        Topology t = s.getTopology();
+        for (int round = 0; round < 20; round++) {
+            for (Atom added : randomAtoms(10, 10.0, r))
+                s.addAtom(added);
+            for (int k = 0; k < 12; k++)
+                s.removeAtom(s.getAtomArray()[r.nextInt(s.size())]);
+            assertSame(t, s.getTopology());
+            assertEquals(s.getModificationCount(), t.getVersion());
+            Topology fresh = new Topology(s.getAtomArray(), new ArrayList<Bond>(bonds),
+                                          s.getModificationCount(), null);
+            assertEquals(fresh.size(), t.size());
+            assertTrue(t.sameBonds(fresh.getBonds()));
+            for (int i = 0; i < fresh.size(); i++) {
+                Atom a = fresh.getAtom(i);
+                int j = t.indexOf(a);
+                assertSame(a, t.getAtom(j));
+                Set<String> expected = new HashSet<String>(), found = new HashSet<String>();
+                for (int k = 0; k < fresh.numNeighbors(i); k++)
+                    expected.add(pairName(a, fresh.getAtom(fresh.getNeighbor(i, k))));
+                for (int k = 0; k < t.numNeighbors(j); k++) {
+                    Atom other = t.getAtom(t.getNeighbor(j, k));
+                    Bond b = t.getNeighborBond(j, k);
+                    assertTrue(b.contains(a) && b.contains(other));
+                    found.add(pairName(a, other));
+                }
+                assertEquals(expected, found);
+                assertEquals(expected.size(), t.numNeighbors(j));
+            }
+        }
+        assertEquals(160, s.size());
+        assertSame(bonds, s.inferBonds());
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(BondInferenceTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
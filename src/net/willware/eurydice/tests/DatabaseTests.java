@@ -70,6 +70,13 @@ public class DatabaseTests extends TestCase {
             Structure struc = (Structure) everything.get(uid);
             return struc.sublist(r);
         }
+
+        /* (non-Javadoc)
+         * @see net.willware.eurydice.db.StructureDatabase#iterateByRegion(net.willware.eurydice.core.UniqueId, net.willware.eurydice.math.Region)
+         */
+        public Iterator<Atom> iterateByRegion(UniqueId uid, Region r) {
+            return fetchByRegion(uid, r).getIterator();
+        }
     }
 
     /**
@@ -0,0 +1,282 @@
+package net.willware.eurydice.tests;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Color;
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.nanocad.DrawingEngineImpl;
+import net.willware.eurydice.serialization.XyzFile;
+import net.willware.eurydice.view.DisplayList;
+import net.willware.eurydice.view.ScreenSpace;
+
+/**
+ * JUnit tests for depth sorting and drawing display lists.
+ */
+public class DisplayListTests extends TestCase {
+
+    /**
+     * A drawing engine that remembers what it was asked to draw.
+     */
+    private static class RecordingEngine extends DrawingEngineImpl {
+
+        /** The color. */
+        private Color color = Color.getColor("black");
+
+        /** The x, y and diameter of each filled circle, in the order drawn. */
+        List<double[]> circles = new ArrayList<double[]>();
+
+        /** The x, y and diameter of each unfilled circle, in the order drawn. */
+        List<double[]> outlines = new ArrayList<double[]>();
+
+        /** The number of lines drawn. */
+        int lines = 0;
+
+        public void setCurrentColor(Color c) {
+            color = c;
+        }
+
+        public Color getCurrentColor() {
+            return color;
+        }
+
+        public void drawLine(double x1, double y1, double x2, double y2) {
+            lines++;
+        }
+
+        public void drawCircle(double x, double y, double r) {
+            outlines.add(new double[] { x, y, r });
+        }
+
+        public void fillCircle(double x, double y, double r) {
+            circles.add(new double[] { x, y, r });
+        }
+    }
+
+    // @Test
+    /**
+     * Entries come out back to front, entries at the same depth keep the order they were
+     * added in, and a cleared list can be filled again.
+     */
+    public void testZsort() {
+        DisplayList dl = new DisplayList(4);
+        Random r = new Random(21);
+        for (int round = 0; round < 2; round++) {
+            dl.clear();
+            int n = 50000;
+            for (int i = 0; i < n; i++) {
+                if (i % 10 == 0)
+                    dl.add(1, i, 0.0, 0.0, 0.5, 1.0);
+                else
+                    dl.add(2, i, 0.0, 0.0, 100 * r.nextDouble() - 50, 1.0,
+                           1.0, 1.0, 100 * r.nextDouble() - 50, 1.0);
+            }
+            dl.zsort();
+            assertEquals(n, dl.size());
+            boolean[] seen = new boolean[n];
+            double resolution = 200.0 / (1 << DisplayList.KEY_BITS);
+            int lastFixed = -1;
+            for (int k = 0; k < n; k++) {
+                int e = dl.sorted(k);
+                assertFalse(seen[e]);
+                seen[e] = true;
+                if (k > 0)
+                    assertTrue(dl.getDepth(dl.sorted(k - 1)) <= dl.getDepth(e) + resolution);
+                if (dl.getKind(e) == 1) {
+                    assertTrue(dl.getItem(e) > lastFixed);
+                    lastFixed = dl.getItem(e);
+                }
+            }
+        }
+    }
+
+    // @Test
+    /**
+     * Atoms are painted back to front, so the nearest ones end up on top.
+     */
+    public void testDrawOrder() throws Exception {
+        String xyz = "5\nline\nC 0 0 0.4\nC 1.5 0 -0.3\nO 3 0 0.2\nC 4.5 0 -0.1\nH 5.6 0 0\n";
+        Structure s = new XyzFile().loads(xyz);
+        RecordingEngine e = new RecordingEngine();
+        ScreenSpace ss = new ScreenSpace();
+        ss.getPerspective().setDistance(100.0);
+        e.setScreenSpace(ss);
+        e.draw(s);
+        assertEquals(5, e.circles.size());
+        assertEquals(4, e.lines / 2);
+        double[] xs = new double[5];
+        for (int i = 0; i < 5; i++) {
+            double[] c = e.circles.get(i);
+            xs[i] = (c[0] + c[2] / 2) / ss.getZoomFactor();
+        }
+        // from the back: z = -0.3, -0.1, 0, 0.2, 0.4
+        double[] expected = { 1.5, 4.5, 5.6, 3.0, 0.0 };
+        for (int i = 0; i < 5; i++)
+            assertEquals(expected[i], xs[i], 0.1);
+    }
+
+    // @Test
+    /**
+     * Every bond is drawn exactly once, including ones at right angles to the x axis, both
+     * in full and as a wireframe.
+     */
+    public void testBondsDrawnOnce() throws Exception {
+        String xyz = "4\ncolumn\nC 0 0 0\nC 0 1.5 0\nC 0 1.5 1.5\nC 1.5 1.5 1.5\n";
+        Structure s = new XyzFile().loads(xyz);
+        RecordingEngine e = new RecordingEngine();
+        e.setScreenSpace(new ScreenSpace());
+        e.draw(s);
+        assertEquals(4, e.circles.size());
+        assertEquals(3, e.lines / 2);
+        e.lines = 0;
+        e.quickDraw(s);
+        assertEquals(3, e.lines / 2);
+        e.draw(s);
+        assertEquals(6, e.lines / 2);
+    }
+
+    /**
+     * Make a cubic lattice of carbon atoms, too far apart to bond.
+     *
+     * @param side the number of atoms along each edge
+     * @return the lattice
+     */
+    private StructureMutableImpl lattice(int side) {
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < side * side * side; i++) {
+            Atom a = ElementFactory.getInstance().get("C");
+            a.setPosition(new Vector(3.0 * (i % side), 3.0 * (i / side % side),
+                                     3.0 * (i / side / side)));
+            s.addAtom(a);
+        }
+        return s;
+    }
+
+    /**
+     * Make a screenspace that looks at a structure from a little way off.
+     *
+     * @param zoom the zoom factor
+     * @return the screenspace
+     */
+    private ScreenSpace view(double zoom) {
+        ScreenSpace ss = new ScreenSpace();
+        ss.getOrientation().rotateX(0.4);
+        ss.getOrientation().rotateY(0.3);
+        ss.getOrientation().translate(new Vector(-30.0, -30.0, -100.0));
+        ss.getPerspective().setDistance(150.0);
+        ss.setZoomFactor(zoom);
+        return ss;
+    }
+
+    // @Test
+    /**
+     * With a viewport, exactly the atoms that reach into it are drawn.
+     */
+    public void testCulling() {
+        StructureMutableImpl s = lattice(30);
+        RecordingEngine all = new RecordingEngine();
+        all.setScreenSpace(view(25.0));
+        all.setDotPixels(0.0);
+        all.bubbleDraw(s);
+        assertEquals(27000, all.outlines.size());
+        int expected = 0;
+        for (double[] c : all.outlines)
+            if (c[0] + c[2] >= 100 && c[1] + c[2] >= -50 && c[0] <= 300 && c[1] <= 150)
+                expected++;
+        assertTrue(expected > 0 && expected < 27000 / 2);
+        RecordingEngine culled = new RecordingEngine();
+        culled.setScreenSpace(view(25.0));
+        culled.setDotPixels(0.0);
+        culled.setViewport(100, -50, 300, 150);
+        culled.bubbleDraw(s);
+        assertEquals(expected, culled.outlines.size());
+        culled.draw(s);
+        assertEquals(expected, culled.circles.size());
+    }
+
+    // @Test
+    /**
+     * Zoomed far out, groups of atoms are drawn as dots, in the colors of their atoms, and
+     * moving the atoms is noticed.
+     */
+    public void testDots() {
+        StructureMutableImpl s = lattice(30);
+        RecordingEngine e = new RecordingEngine();
+        e.setScreenSpace(view(0.05));
+        e.bubbleDraw(s);
+        assertTrue(e.circles.size() > 0);
+        assertTrue(e.circles.size() + e.outlines.size() < 27000 / 8);
+        for (double[] c : e.circles)
+            assertTrue(c[2] >= 1.0 && c[2] < 2.0);
+        e.circles.clear();
+        e.outlines.clear();
+        e.setDotPixels(0.0);
+        e.bubbleDraw(s);
+        assertEquals(0, e.circles.size());
+        assertEquals(27000, e.outlines.size());
+        // gather the atoms into a cluster too small to see
+        Atom[] atoms = s.getAtomArray();
+        for (int i = 0; i < atoms.length; i++)
+            atoms[i].setPosition(atoms[i].getPosition().scale(0.001));
+        e.outlines.clear();
+        e.setDotPixels(1.0);
+        e.bubbleDraw(s);
+        assertEquals(1, e.circles.size());
+        assertEquals(0, e.outlines.size());
+    }
+
+    // @Test
+    /**
+     * A snapshot draws just as the structure does, and drawing the structure again
+     * afterwards still finds its bonds.
+     */
+    public void testDrawSnapshot() throws Exception {
+        String xyz = "5\nline\nC 0 0 0.4\nC 1.5 0 -0.3\nO 3 0 0.2\nC 4.5 0 -0.1\nH 5.6 0 0\n";
+        Structure s = new XyzFile().loads(xyz);
+        s.inferBonds();
+        s.publishSnapshot();
+        ScreenSpace ss = new ScreenSpace();
+        ss.getPerspective().setDistance(100.0);
+        RecordingEngine fromStructure = new RecordingEngine();
+        fromStructure.setScreenSpace(ss);
+        fromStructure.draw(s);
+        RecordingEngine fromSnapshot = new RecordingEngine();
+        fromSnapshot.setScreenSpace(ss);
+        fromSnapshot.draw(s.getSnapshot());
+        assertEquals(fromStructure.lines, fromSnapshot.lines);
+        assertEquals(fromStructure.circles.size(), fromSnapshot.circles.size());
+        for (int i = 0; i < fromStructure.circles.size(); i++)
+            for (int k = 0; k < 3; k++)
+                assertEquals(fromStructure.circles.get(i)[k], fromSnapshot.circles.get(i)[k]);
+        fromSnapshot.lines = 0;
+        fromSnapshot.draw(s);
+        assertEquals(fromStructure.lines, fromSnapshot.lines);
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(DisplayListTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -6,8 +6,11 @@ import junit.framework.TestSuite;
 
 import java.util.Random;
 
+import net.willware.eurydice.core.Orientation;
 import net.willware.eurydice.math.Matrix;
+import net.willware.eurydice.math.Quaternion;
 import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.view.ScreenSpace;
 
 /**
  * CLASSPATH=eurydice.jar:/usr/share/java/junit.jar java net.willware.eurydice.tests.LinearAlgebraTests
@@ -53,6 +56,50 @@ public class LinearAlgebraTests extends TestCase {
         assertTrue(r.times(v).approximatelyEqual(new Vector(2.12132, 0.7071068, 3)));
     }
 
+    // @Test
+    /**
+     * A quaternion's matrix rotates vectors the same as the quaternion does, even if the
+     * quaternion isn't unit length.
+     */
+    public void testQuaternionMatrix() {
+        Random r = new Random(23);
+        for (int i = 0; i < 20; i++) {
+            Vector axis = new Vector(r.nextGaussian(), r.nextGaussian(), r.nextGaussian());
+            Quaternion q = Quaternion.makeRotator(6 * r.nextDouble(), axis).scale(1 + i / 10.0);
+            Vector v = new Vector(r.nextGaussian(), r.nextGaussian(), r.nextGaussian());
+            assertTrue(q.rotate(v).approximatelyEqual(q.toMatrix().times(v)));
+        }
+    }
+
+    // @Test
+    /**
+     * Projecting a batch of positions gives the same screen coordinates as projecting them
+     * one at a time.
+     */
+    public void testBatchProjection() {
+        Random r = new Random(24);
+        ScreenSpace ss = new ScreenSpace();
+        Orientation o = ss.getOrientation();
+        o.rotateX(0.7);
+        o.rotateY(-1.3);
+        o.rotateZ(2.1);
+        o.translate(new Vector(1.0, -2.0, 0.5));
+        ss.getPerspective().setDistance(40.0);
+        ss.setZoomFactor(13.0);
+        int n = 100;
+        double[] xyz = new double[3 * n];
+        for (int j = 0; j < xyz.length; j++)
+            xyz[j] = 10 * r.nextGaussian();
+        double[] sx = new double[n], sy = new double[n], sz = new double[n];
+        ss.xyzToScreen(xyz, n, sx, sy, sz);
+        for (int i = 0; i < n; i++) {
+            Vector p = ss.xyzToScreen(new Vector(xyz[3 * i], xyz[3 * i + 1], xyz[3 * i + 2]));
+            assertEquals(p.getX(), sx[i], 1.0e-9 * Math.abs(p.getX()) + 1.0e-9);
+            assertEquals(p.getY(), sy[i], 1.0e-9 * Math.abs(p.getY()) + 1.0e-9);
+            assertEquals(p.getZ(), sz[i], 1.0e-9 * Math.abs(p.getZ()) + 1.0e-9);
+        }
+    }
+
     /**
      * Suite.
      *
@@ -0,0 +1,239 @@
+package net.willware.eurydice.tests;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.StructureArrayImpl;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.forcefields.mm2.AtomType;
+import net.willware.eurydice.forcefields.mm2.MM2;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * JUnit tests for the MM2 force field.
+ */
+public class MM2Tests extends TestCase {
+
+    /**
+     * A cubic lattice of carbon atoms a bond length apart, jiggled a little so that no
+     * force comes out exactly zero. Each atom bonds to its six nearest neighbors, which
+     * gives plenty of length, angle and torsion terms.
+     */
+    private StructureMutableImpl lattice(int n) {
+        Random r = new Random(8);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < n; i++)
+            for (int j = 0; j < n; j++)
+                for (int k = 0; k < n; k++) {
+                    Atom a = ElementFactory.getInstance().get("C");
+                    a.setPosition(new Vector(1.54 * i + 0.05 * r.nextGaussian(),
+                                             1.54 * j + 0.05 * r.nextGaussian(),
+                                             1.54 * k + 0.05 * r.nextGaussian()));
+                    s.addAtom(a);
+                }
+        return s;
+    }
+
+    private double[] forces(StructureMutableImpl s, int threads, boolean deterministic) {
+        MM2 mm2 = new MM2();
+        mm2.setStructure(s);
+        mm2.setThreads(threads);
+        mm2.setDeterministic(deterministic);
+        s.setForceField(mm2);
+        mm2.computeForces();
+        return forces(s);
+    }
+
+    private double[] forces(StructureMutableImpl s) {
+        Atom[] atoms = s.getAtomArray();
+        double[] f = new double[3 * atoms.length];
+        for (int i = 0; i < atoms.length; i++) {
+            Vector v = atoms[i].getForce();
+            f[3 * i] = v.getX();
+            f[3 * i + 1] = v.getY();
+            f[3 * i + 2] = v.getZ();
+        }
+        return f;
+    }
+
+    // @Test
+    /**
+     * Computing forces with several threads should give the same forces as computing them
+     * serially, up to roundoff.
+     */
+    public void testParallelMatchesSerial() {
+        StructureMutableImpl s = lattice(7);
+        double[] serial = forces(s, 1, false);
+        double[] parallel = forces(s, 4, false);
+        double largest = 0.0;
+        for (double x : serial)
+            largest = Math.max(largest, Math.abs(x));
+        assertTrue(largest > 0.0);
+        for (int i = 0; i < serial.length; i++)
+            assertEquals(serial[i], parallel[i], 1.0e-9 * largest);
+    }
+
+    // @Test
+    /**
+     * In deterministic mode, the same number of threads should always give exactly the
+     * same forces.
+     */
+    public void testDeterministic() {
+        StructureMutableImpl s = lattice(6);
+        double[] first = forces(s, 3, true);
+        for (int run = 0; run < 3; run++) {
+            double[] again = forces(s, 3, true);
+            for (int i = 0; i < first.length; i++)
+                assertEquals(first[i], again[i], 0.0);
+        }
+    }
+
+    // @Test
+    /**
+     * Adding and removing atoms after forces have been computed should update the energy
+     * terms and exclusions to give the same forces as starting over, whether atoms are
+     * kept as objects or in arrays.
+     */
+    public void testIncrementalMatchesRebuild() {
+        for (int storage = 0; storage < 2; storage++) {
+            StructureMutableImpl s = lattice(5);
+            if (storage == 1) {
+                StructureArrayImpl arrays = new StructureArrayImpl();
+                for (Atom a : s.getAtomArray())
+                    arrays.addAtom(a);
+                s = arrays;
+            }
+            MM2 mm2 = new MM2();
+            mm2.setStructure(s);
+            mm2.setThreads(2);
+            s.setForceField(mm2);
+            mm2.computeForces();
+            Atom[] atoms = s.getAtomArray();
+            // a hydrogen bonded into the middle of the lattice, and a carbon taken out
+            Atom h = ElementFactory.getInstance().get("H");
+            h.setPosition(atoms[62].getPosition().add(new Vector(0.5, 0.4, 0.3)));
+            s.addAtom(h);
+            s.removeAtom(atoms[37]);
+            s.removeAtom(atoms[63]);
+            assertEquals(124, s.size());
+            mm2.computeForces();
+            double[] incremental = forces(s);
+
+            StructureMutableImpl rebuilt = (storage == 0) ?
+                                           new StructureMutableImpl() : new StructureArrayImpl();
+            for (Atom a : s.getAtomArray())
+                rebuilt.addAtom(a);
+            double[] expected = forces(rebuilt, 1, false);
+            double largest = 0.0;
+            for (double x : expected)
+                largest = Math.max(largest, Math.abs(x));
+            assertTrue(largest > 0.0);
+            for (int i = 0; i < expected.length; i++)
+                assertEquals(expected[i], incremental[i], 1.0e-9 * largest);
+        }
+    }
+
+    private int liveWorkers() {
+        int n = 0;
+        for (Thread t : Thread.getAllStackTraces().keySet())
+            if (t.isAlive() && "MM2 forces".equals(t.getName()))
+                n++;
+        return n;
+    }
+
+    // @Test
+    /**
+     * Replacing a force field closes it, which stops its worker threads, and a closed
+     * force field still computes the same forces.
+     */
+    public void testClose() throws Exception {
+        StructureMutableImpl s = lattice(5);
+        int before = liveWorkers();
+        double[] expected = forces(s, 3, true);
+        MM2 mm2 = (MM2) s.getForceField();
+        assertEquals(before + 3, liveWorkers());
+        s.setForceField(new MM2());
+        for (int wait = 0; wait < 100 && liveWorkers() > before; wait++)
+            Thread.sleep(50);
+        assertEquals(before, liveWorkers());
+        s.setForceField(mm2);
+        mm2.computeForces();
+        double[] again = forces(s);
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], again[i], 0.0);
+        mm2.close();
+        mm2.close();
+    }
+
+    // @Test
+    /**
+     * Looking up a chain of atoms in an indexed parameter table should find the same row
+     * as searching the table from the top, forwards and backwards.
+     */
+    public void testParameterIndex() {
+        String[] symbols = { "H", "C", "N", "O" };
+        int[] hybridizations = { Atom.NONE, Atom.SP, Atom.SP2, Atom.SP3 };
+        int[] atomicNumbers = { 1, 6, 7, 8 };
+        Random r = new Random(9);
+        double[][] table = new double[60][];
+        for (int i = 0; i < table.length; i++) {
+            table[i] = new double[6];
+            for (int k = 0; k < 3; k++) {
+                int z, h;
+                do {
+                    z = atomicNumbers[r.nextInt(4)];
+                    h = hybridizations[r.nextInt(4)];
+                } while (AtomType.code(z, h) < 0);
+                table[i][2 * k] = z;
+                table[i][2 * k + 1] = h;
+            }
+        }
+        int[] index = AtomType.buildIndex(table, 3);
+        Atom[] atoms = new Atom[16];
+        for (int i = 0; i < 16; i++) {
+            atoms[i] = ElementFactory.getInstance().get(symbols[i / 4]);
+            atoms[i].setHybridization(hybridizations[i % 4]);
+        }
+        for (Atom a1 : atoms)
+            for (Atom a2 : atoms)
+                for (Atom a3 : atoms) {
+                    int expected = -1;
+                    for (int i = 0; i < table.length && expected < 0; i++) {
+                        if (matches(table[i], a1, a2, a3))
+                            expected = 2 * i;
+                        else if (matches(table[i], a3, a2, a1))
+                            expected = 2 * i + 1;
+                    }
+                    assertEquals(expected, AtomType.lookup(index, a1, a2, a3));
+                }
+    }
+
+    private boolean matches(double[] row, Atom a1, Atom a2, Atom a3) {
+        return a1.getAtomicNumber() == row[0] && a1.getHybridization() == row[1] &&
+               a2.getAtomicNumber() == row[2] && a2.getHybridization() == row[3] &&
+               a3.getAtomicNumber() == row[4] && a3.getHybridization() == row[5];
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(MM2Tests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,228 @@
+package net.willware.eurydice.tests;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.db.BlockingAtomIterator;
+import net.willware.eurydice.db.MysqlInterface;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.forcefields.mm2.MM2;
+import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * JUnit tests for the SQL database interface, run against an in-memory H2 database
+ * standing in for MySQL.
+ */
+public class MysqlInterfaceTests extends TestCase {
+
+    /** The tables from mysql_schema.sql, in a dialect H2 understands. */
+    private static final String[] schema = {
+        "CREATE TABLE structures (id INT AUTO_INCREMENT, uid VARCHAR(40) NOT NULL, " +
+        "parentId VARCHAR(40), metadata VARCHAR(5000), UNIQUE(id), UNIQUE(uid))",
+        "CREATE TABLE atoms (id INT NOT NULL, structureId INT NOT NULL, " +
+        "element VARCHAR(2) NOT NULL, hybridization VARCHAR(4) NOT NULL, " +
+        "x DOUBLE NOT NULL, y DOUBLE NOT NULL, z DOUBLE NOT NULL, tile BIGINT NOT NULL, " +
+        "UNIQUE(id, structureId))",
+        "CREATE INDEX atoms_tile ON atoms (structureId, tile)",
+        "CREATE TABLE jigs (id INT NOT NULL, structureId INT NOT NULL, " +
+        "jigtype VARCHAR(60) NOT NULL, properties VARCHAR(1000), UNIQUE(id, structureId))"
+    };
+
+    private static int databaseCount = 0;
+
+    private String url;
+
+    private Connection conn;
+
+    /* (non-Javadoc)
+     * @see junit.framework.TestCase#setUp()
+     */
+    protected void setUp() throws Exception {
+        Class.forName("org.h2.Driver");
+        url = "jdbc:h2:mem:eurydice" + (databaseCount++) + ";DB_CLOSE_DELAY=-1";
+        conn = DriverManager.getConnection(url);
+        Statement stmt = conn.createStatement();
+        for (String sql : schema)
+            stmt.execute(sql);
+        stmt.close();
+    }
+
+    /* (non-Javadoc)
+     * @see junit.framework.TestCase#tearDown()
+     */
+    protected void tearDown() throws Exception {
+        conn.createStatement().execute("SHUTDOWN");
+    }
+
+    private long count(String query) throws SQLException {
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery(query);
+        rs.next();
+        long n = rs.getLong(1);
+        stmt.close();
+        return n;
+    }
+
+    private StructureMutableImpl randomStructure(int n) {
+        Random r = new Random(10);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < n; i++) {
+            Atom a = ElementFactory.getInstance().get((i % 3 == 0) ? "O" : "H");
+            a.setPosition(new Vector(r.nextDouble(), r.nextDouble(), r.nextDouble()));
+            s.addAtom(a);
+        }
+        return s;
+    }
+
+    // @Test
+    /**
+     * Storing a structure twice should leave one copy of each atom, with the latest
+     * positions.
+     */
+    public void testStoreReplacesAtoms() throws SQLException {
+        MysqlInterface db = new MysqlInterface(url);
+        StructureMutableImpl s = randomStructure(2500);
+        assertTrue(db.store(s));
+        final Vector delta = new Vector(10.0, 0.0, 0.0);
+        s.process(new StructureMutableImpl.AtomProcessor() {
+            public void process(Atom a) {
+                a.move(delta);
+            }
+        });
+        assertTrue(db.store(s));
+        db.close();
+        assertEquals(1, count("SELECT COUNT(*) FROM structures"));
+        assertEquals(2500, count("SELECT COUNT(*) FROM atoms"));
+        assertEquals(0, count("SELECT COUNT(*) FROM atoms WHERE x < 10.0"));
+        assertEquals(834, count("SELECT COUNT(*) FROM atoms WHERE element='O'"));
+    }
+
+    // @Test
+    /**
+     * If storing fails partway through, nothing should be stored.
+     */
+    public void testStoreIsOneTransaction() throws SQLException {
+        MysqlInterface db = new MysqlInterface(url);
+        StructureMutableImpl s = randomStructure(100);
+        s.addJig(new MM2());
+        conn.createStatement().execute("DROP TABLE jigs");
+        assertFalse(db.store(s));
+        db.close();
+        assertEquals(0, count("SELECT COUNT(*) FROM structures"));
+        assertEquals(0, count("SELECT COUNT(*) FROM atoms"));
+    }
+
+    // @Test
+    /**
+     * Iterating over a region should give every atom in the region, more atoms than fit
+     * in the FIFO at once.
+     */
+    public void testIterateByRegion() throws SQLException {
+        MysqlInterface db = new MysqlInterface(url);
+        StructureMutableImpl s = randomStructure(20000);
+        assertTrue(db.store(s));
+        Region r = new Region(0.0, 0.0, 0.0, 0.5, 1.0, 1.0);
+        int n = 0;
+        Iterator<Atom> atoms = db.iterateByRegion(s.getUniqueId(), r);
+        while (atoms.hasNext()) {
+            Atom a = atoms.next();
+            assertTrue(a.getPosition().getX() < 0.5);
+            n++;
+        }
+        assertEquals(count("SELECT COUNT(*) FROM atoms WHERE x < 0.5"), n);
+        assertEquals(n, db.fetchByRegion(s.getUniqueId(), r).size());
+        db.close();
+    }
+
+    // @Test
+    /**
+     * Regions spanning many tiles, on both sides of the origin, should find the same atoms
+     * as checking every atom's position.
+     */
+    public void testRegionsAcrossTiles() throws SQLException {
+        MysqlInterface db = new MysqlInterface(url);
+        Random r = new Random(11);
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < 5000; i++) {
+            Atom a = ElementFactory.getInstance().get("C");
+            a.setPosition(new Vector(200.0 * r.nextDouble() - 100.0,
+                                     200.0 * r.nextDouble() - 100.0,
+                                     200.0 * r.nextDouble() - 100.0));
+            s.addAtom(a);
+        }
+        assertTrue(db.store(s));
+        for (int trial = 0; trial < 10; trial++) {
+            Region region = new Region(240.0 * r.nextDouble() - 120.0,
+                                       240.0 * r.nextDouble() - 120.0,
+                                       240.0 * r.nextDouble() - 120.0,
+                                       240.0 * r.nextDouble() - 120.0,
+                                       240.0 * r.nextDouble() - 120.0,
+                                       240.0 * r.nextDouble() - 120.0);
+            Vector vmin = region.getMinCorner(), vmax = region.getMaxCorner();
+            int expected = 0;
+            for (Atom a : s.getAtomArray()) {
+                Vector p = a.getPosition();
+                if (p.getX() >= vmin.getX() && p.getX() < vmax.getX() &&
+                        p.getY() >= vmin.getY() && p.getY() < vmax.getY() &&
+                        p.getZ() >= vmin.getZ() && p.getZ() < vmax.getZ())
+                    expected++;
+            }
+            int n = 0;
+            Iterator<Atom> atoms = db.iterateByRegion(s.getUniqueId(), region);
+            while (atoms.hasNext()) {
+                atoms.next();
+                n++;
+            }
+            assertEquals(expected, n);
+        }
+        db.close();
+    }
+
+    // @Test
+    /**
+     * A consumer that stops early should be able to close the iterator without waiting
+     * for the rest of the atoms.
+     */
+    public void testCloseEarly() throws SQLException {
+        MysqlInterface db = new MysqlInterface(url);
+        StructureMutableImpl s = randomStructure(20000);
+        assertTrue(db.store(s));
+        Region r = new Region(0.0, 0.0, 0.0, 1.0, 1.0, 1.0);
+        BlockingAtomIterator atoms = db.iterateByRegion(s.getUniqueId(), r);
+        for (int i = 0; i < 10; i++)
+            atoms.next();
+        atoms.close();
+        assertFalse(atoms.hasNext());
+        db.close();
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(MysqlInterfaceTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
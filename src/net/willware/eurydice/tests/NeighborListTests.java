@@ -0,0 +1,122 @@
+package net.willware.eurydice.tests;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.forcefields.mm2.NeighborList;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * JUnit tests for the neighbor list used by the non-bonded forces.
+ */
+public class NeighborListTests extends TestCase {
+
+    private static final double CUTOFF = 4.0;
+    private static final double SKIN = 1.0;
+
+    /**
+     * Scatter some carbon atoms around a box.
+     */
+    private Atom[] randomAtoms(int n, double boxSize, Random r) {
+        Atom[] atoms = new Atom[n];
+        for (int i = 0; i < n; i++) {
+            atoms[i] = ElementFactory.getInstance().get("C");
+            atoms[i].setPosition(new Vector(boxSize * r.nextDouble(),
+                                            boxSize * r.nextDouble(),
+                                            boxSize * r.nextDouble()));
+        }
+        return atoms;
+    }
+
+    /**
+     * The pairs within some distance, the slow way.
+     */
+    private Set<String> bruteForcePairs(Atom[] atoms, double range) {
+        Set<String> pairs = new HashSet<String>();
+        for (int i = 0; i < atoms.length; i++)
+            for (int j = i + 1; j < atoms.length; j++)
+                if (atoms[i].getPosition().subtract(atoms[j].getPosition()).length() < range)
+                    pairs.add(i + "," + j);
+        return pairs;
+    }
+
+    private Set<String> listedPairs(NeighborList nl) {
+        Set<String> pairs = new HashSet<String>();
+        for (int k = 0; k < nl.size(); k++)
+            pairs.add(nl.getFirst(k) + "," + nl.getSecond(k));
+        return pairs;
+    }
+
+    // @Test
+    /**
+     * The list should hold exactly the pairs within the cutoff plus the skin.
+     */
+    public void testMatchesBruteForce() {
+        Atom[] atoms = randomAtoms(500, 20.0, new Random(1));
+        NeighborList nl = new NeighborList(CUTOFF, SKIN);
+        assertTrue(nl.update(atoms, null));
+        assertEquals(bruteForcePairs(atoms, CUTOFF + SKIN), listedPairs(nl));
+    }
+
+    // @Test
+    /**
+     * Small motions should not trigger a rebuild, and the list should still cover every
+     * pair within the cutoff. Big motions should trigger a rebuild.
+     */
+    public void testRebuildsOnlyWhenNeeded() {
+        Random r = new Random(2);
+        Atom[] atoms = randomAtoms(300, 15.0, r);
+        NeighborList nl = new NeighborList(CUTOFF, SKIN);
+        nl.update(atoms, null);
+        for (Atom a : atoms)
+            a.move(new Vector(0.2 * SKIN * r.nextGaussian() / 3, 0.0, 0.0));
+        assertFalse(nl.update(atoms, null));
+        assertTrue(listedPairs(nl).containsAll(bruteForcePairs(atoms, CUTOFF)));
+        atoms[7].move(new Vector(0.6 * SKIN, 0.0, 0.0));
+        assertTrue(nl.update(atoms, null));
+        assertEquals(2, nl.getNumBuilds());
+    }
+
+    // @Test
+    /**
+     * Pairs rejected by the filter should not appear in the list.
+     */
+    public void testFilter() {
+        final Atom[] atoms = randomAtoms(200, 10.0, new Random(3));
+        NeighborList nl = new NeighborList(CUTOFF, SKIN);
+        nl.update(atoms, new NeighborList.PairFilter() {
+            public boolean accept(Atom a1, Atom a2) {
+                return a1 != atoms[0] && a2 != atoms[0];
+            }
+        });
+        for (int k = 0; k < nl.size(); k++) {
+            assertTrue(nl.getFirst(k) != 0);
+            assertTrue(nl.getSecond(k) != 0);
+        }
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(NeighborListTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
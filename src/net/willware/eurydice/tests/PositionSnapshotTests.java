@@ -0,0 +1,127 @@
+package net.willware.eurydice.tests;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.StructureArrayImpl;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * JUnit tests for position snapshots read by one thread while another integrates.
+ */
+public class PositionSnapshotTests extends TestCase {
+
+    /** How far every atom moves along x in one step; a power of two, so sums are exact. */
+    private static final double STEP = 0.0625;
+
+    private static final int NUM_STEPS = 20000;
+
+    /**
+     * Fill a structure with atoms on integer coordinates, all drifting along x at the
+     * same speed with no forces on them.
+     */
+    private void fill(StructureMutableImpl s, int n) {
+        for (int i = 0; i < n; i++) {
+            Atom a = ElementFactory.getInstance().get((i % 2 == 0) ? "C" : "H");
+            a.setPosition(new Vector(i % 7, i / 7, 3 * i));
+            s.addAtom(a);
+        }
+        s.verletPrep();
+        // an array structure copies atoms as they are added, so go through its own atoms
+        Atom[] atoms = s.getAtomArray();
+        for (int i = 0; i < n; i++)
+            atoms[i].setPreviousPosition(new Vector((i % 7) - STEP, i / 7, 3 * i));
+    }
+
+    /**
+     * Integrate in one thread while reading snapshots in this one. Frame numbers should
+     * only go up, and every atom in a snapshot should be exactly as far along as the frame
+     * number says, which would not be true of a frame copied while the integrator was
+     * halfway through a step.
+     */
+    private void integrateWhileReading(final StructureMutableImpl s) throws Exception {
+        fill(s, 200);
+        // asking for a snapshot is what makes every step publish one
+        assertNull(s.getSnapshot());
+        final Throwable[] failure = new Throwable[1];
+        Thread integrator = new Thread() {
+            public void run() {
+                try {
+                    for (int step = 0; step < NUM_STEPS; step++)
+                        s.verletStep(0.1);
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        integrator.start();
+        long lastFrame = 0;
+        int framesSeen = 0;
+        while (true) {
+            // once the integrator has finished, read whatever it published last, then stop
+            boolean finished = !integrator.isAlive();
+            PositionSnapshot snap = s.getSnapshot();
+            if (snap == null || snap.getFrame() == lastFrame) {
+                if (finished)
+                    break;
+                Thread.yield();
+                continue;
+            }
+            assertTrue(snap.getFrame() > lastFrame);
+            lastFrame = snap.getFrame();
+            framesSeen++;
+            assertEquals(200, snap.size());
+            for (int i = 0; i < snap.size(); i++) {
+                int k = (int) Math.round(snap.getZ(i)) / 3;
+                assertEquals((k % 7) + snap.getFrame() * STEP, snap.getX(i), 0.0);
+                assertEquals(k / 7, snap.getY(i), 0.0);
+            }
+        }
+        integrator.join();
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+        if (failure[0] != null)
+            throw (RuntimeException) failure[0];
+        assertTrue(framesSeen > 0);
+        assertEquals(NUM_STEPS, lastFrame);
+    }
+
+    // @Test
+    /**
+     * Snapshots of a structure of atom objects.
+     */
+    public void testObjectStructure() throws Exception {
+        integrateWhileReading(new StructureMutableImpl());
+    }
+
+    // @Test
+    /**
+     * Snapshots of a structure of arrays.
+     */
+    public void testArrayStructure() throws Exception {
+        integrateWhileReading(new StructureArrayImpl());
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(PositionSnapshotTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
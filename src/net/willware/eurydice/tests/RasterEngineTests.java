@@ -0,0 +1,248 @@
+package net.willware.eurydice.tests;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.util.Arrays;
+
+import javax.imageio.ImageIO;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Color;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.nanocad.RasterEngine;
+import net.willware.eurydice.serialization.XyzFile;
+import net.willware.eurydice.view.ScreenSpace;
+
+/**
+ * JUnit tests for the headless rasterizer.
+ */
+public class RasterEngineTests extends TestCase {
+
+    /** A few atoms, bonded, some in front of others. */
+    private static final String molecule =
+        "6\nmolecule\nC 0 0 0\nC 1.5 0 0.3\nO 2.2 1.2 -0.2\nC -1.5 0.2 0.1\n"
+        + "H -2.0 -0.8 0.4\nN 0.2 -1.4 -0.5\n";
+
+    /**
+     * Make a screenspace that looks at a structure from a little way off.
+     *
+     * @return the screenspace
+     */
+    private ScreenSpace view() {
+        ScreenSpace ss = new ScreenSpace();
+        ss.getOrientation().rotateX(0.5);
+        ss.getOrientation().rotateY(0.2);
+        ss.getPerspective().setDistance(50.0);
+        ss.setZoomFactor(30.0);
+        return ss;
+    }
+
+    // @Test
+    /**
+     * The nearest atom hides the ones behind it, whichever order they come in.
+     */
+    public void testDepth() throws Exception {
+        String[] orders = {
+            "2\nfront last\nO 0 0 -2\nN 0 0 2\n",
+            "2\nfront first\nN 0 0 2\nO 0 0 -2\n"
+        };
+        for (String xyz : orders) {
+            Structure s = new XyzFile().loads(xyz);
+            RasterEngine e = new RasterEngine(64, 48, 1);
+            ScreenSpace ss = new ScreenSpace();
+            ss.getPerspective().setDistance(50.0);
+            e.setScreenSpace(ss);
+            e.quickDraw(s);
+            Atom nitrogen = s.getAtomArray()[xyz.indexOf("N 0") < xyz.indexOf("O 0") ? 0 : 1];
+            Color c = nitrogen.getColor();
+            int rgb = (c.getRed() << 16) | (c.getGreen() << 8) | c.getBlue();
+            assertEquals(rgb, e.getPixels()[24 * 64 + 32]);
+            // the corners are background
+            assertEquals(0xffffff, e.getPixels()[0]);
+            assertEquals(0xffffff, e.getPixels()[64 * 48 - 1]);
+        }
+    }
+
+    // @Test
+    /**
+     * The image is the same whatever the tiles and however many threads draw them, and
+     * drawing it again gives the same image.
+     */
+    public void testTilesAndThreads() throws Exception {
+        Structure s = new XyzFile().loads(molecule);
+        RasterEngine reference = new RasterEngine(200, 150, 1);
+        reference.setScreenSpace(view());
+        reference.setTileSize(1024);
+        reference.draw(s);
+        int[] expected = reference.getPixels().clone();
+        int background = 0;
+        for (int p : expected)
+            background += (p == 0xffffff) ? 1 : 0;
+        assertTrue(background > 200 * 150 / 2 && background < 200 * 150 - 1000);
+        int[][] settings = { { 7, 1 }, { 16, 3 }, { 32, 4 }, { 150, 2 } };
+        for (int[] setting : settings) {
+            RasterEngine e = new RasterEngine(200, 150, setting[1]);
+            e.setScreenSpace(view());
+            e.setTileSize(setting[0]);
+            e.quickDraw(s);
+            e.draw(s);
+            assertTrue(Arrays.equals(expected, e.getPixels()));
+        }
+    }
+
+    // @Test
+    /**
+     * A frame written as a PNG reads back as the same pixels.
+     */
+    public void testPng() throws Exception {
+        Structure s = new XyzFile().loads(molecule);
+        RasterEngine e = new RasterEngine(80, 60, 2);
+        e.setScreenSpace(view());
+        e.draw(s);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        e.writePng(out);
+        BufferedImage image = ImageIO.read(new ByteArrayInputStream(out.toByteArray()));
+        assertEquals(80, image.getWidth());
+        assertEquals(60, image.getHeight());
+        for (int y = 0; y < 60; y++)
+            for (int x = 0; x < 80; x++)
+                assertEquals(e.getPixels()[y * 80 + x], image.getRGB(x, y) & 0xffffff);
+    }
+
+    // @Test
+    /**
+     * Drawing with given positions, and with the first frame's bonds held, gives the same
+     * image as moving the atoms there and drawing them, without moving them; and an engine
+     * that has been closed still draws.
+     */
+    public void testGivenPositions() throws Exception {
+        Structure s = new XyzFile().loads(molecule);
+        Atom[] atoms = s.getAtomArray();
+        double[] frame = new double[3 * atoms.length];
+        for (int i = 0; i < atoms.length; i++) {
+            frame[3 * i] = atoms[i].getX() + 0.05 * i;
+            frame[3 * i + 1] = atoms[i].getY() - 0.03 * i;
+            frame[3 * i + 2] = atoms[i].getZ();
+        }
+        RasterEngine e = new RasterEngine(120, 90, 2);
+        e.setScreenSpace(view());
+        e.setBonds(s.inferBonds());
+        e.draw(s);
+        e.draw(s, frame);
+        int[] given = e.getPixels().clone();
+        assertEquals(0.0, atoms[0].getX());
+
+        Structure moved = new XyzFile().loads(molecule);
+        Atom[] movedAtoms = moved.getAtomArray();
+        for (int i = 0; i < movedAtoms.length; i++)
+            movedAtoms[i].setPosition(new Vector(frame[3 * i], frame[3 * i + 1],
+                                                 frame[3 * i + 2]));
+        RasterEngine reference = new RasterEngine(120, 90, 1);
+        reference.setScreenSpace(view());
+        reference.setBonds(moved.inferBonds());
+        reference.draw(moved);
+        assertTrue(Arrays.equals(reference.getPixels(), given));
+
+        e.close();
+        e.close();
+        e.draw(s, frame);
+        assertTrue(Arrays.equals(given, e.getPixels()));
+        e.close();
+    }
+
+    // @Test
+    /**
+     * A thread can draw snapshots while another integrates. Each frame drawn should match
+     * a drawing of a still copy of the molecule at the snapshot's positions, which it
+     * wouldn't if the atoms moved while it was being drawn.
+     */
+    public void testDrawWhileIntegrating() throws Exception {
+        final Structure s = new XyzFile().loads(molecule);
+        s.inferBonds();
+        s.verletPrep();
+        Atom[] atoms = s.getAtomArray();
+        for (int i = 0; i < atoms.length; i++)
+            atoms[i].setPreviousPosition(new Vector(atoms[i].getX() - 0.001 * i,
+                                                    atoms[i].getY() + 0.0005 * i,
+                                                    atoms[i].getZ()));
+        Structure still = new XyzFile().loads(molecule);
+        RasterEngine reference = new RasterEngine(60, 45, 1);
+        reference.setScreenSpace(view());
+        reference.setBonds(still.inferBonds());
+        RasterEngine e = new RasterEngine(60, 45, 2);
+        e.setScreenSpace(view());
+
+        assertNull(s.getSnapshot());
+        final boolean[] done = new boolean[1];
+        final Throwable[] failure = new Throwable[1];
+        Thread integrator = new Thread() {
+            public void run() {
+                try {
+                    for (int step = 0; step < 1000000 && !done[0]; step++)
+                        s.verletStep(0.1);
+                } catch (Throwable t) {
+                    failure[0] = t;
+                }
+            }
+        };
+        integrator.start();
+        long lastFrame = 0;
+        int framesDrawn = 0;
+        double[] frame = new double[3 * atoms.length];
+        try {
+            while (framesDrawn < 20 && integrator.isAlive()) {
+                PositionSnapshot snap = s.getSnapshot();
+                if (snap == null || snap.getFrame() == lastFrame) {
+                    Thread.yield();
+                    continue;
+                }
+                lastFrame = snap.getFrame();
+                for (int i = 0; i < snap.size(); i++) {
+                    frame[3 * i] = snap.getX(i);
+                    frame[3 * i + 1] = snap.getY(i);
+                    frame[3 * i + 2] = snap.getZ(i);
+                }
+                assertEquals(5, snap.numBonds());
+                e.draw(snap);
+                reference.draw(still, frame);
+                assertTrue(Arrays.equals(reference.getPixels(), e.getPixels()));
+                framesDrawn++;
+            }
+        } finally {
+            done[0] = true;
+            integrator.join();
+            e.close();
+            reference.close();
+        }
+        if (failure[0] instanceof Error)
+            throw (Error) failure[0];
+        if (failure[0] != null)
+            throw (RuntimeException) failure[0];
+        assertEquals(20, framesDrawn);
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(RasterEngineTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,289 @@
+package net.willware.eurydice.tests;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.core.StructureMutable;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.serialization.ByteScanner;
+import net.willware.eurydice.serialization.JsonStream;
+import net.willware.eurydice.serialization.PdbFile;
+import net.willware.eurydice.serialization.XyzFile;
+
+/**
+ * JUnit tests for scanning and loading text molecule files.
+ */
+public class SerializationTests extends TestCase {
+
+    private static double parse(String s) {
+        byte[] b = s.getBytes();
+        return ByteScanner.parseDouble(b, 0, b.length);
+    }
+
+    // @Test
+    /**
+     * Numbers parsed from bytes should be exactly what {@link Double#parseDouble} gives,
+     * and things that aren't numbers should be zero.
+     */
+    public void testParseDouble() {
+        String[] cases = {
+            "0", "-0.0", "1", "+2.5", "-12.345", "0.000123", "6.02e23", "1.5E-7", "1e22",
+            "123456789012345678901234567890", "0.1234567890123456789", "4.9e-324", ".5",
+            "7.", "-3.14159265358979", "1e400"
+        };
+        for (String c : cases)
+            assertEquals(c, Double.parseDouble(c), parse(c), 0.0);
+        Random r = new Random(18);
+        for (int i = 0; i < 10000; i++) {
+            String c = String.format("%.5f", 2000 * (r.nextDouble() - 0.5));
+            assertEquals(c, Double.parseDouble(c), parse(c), 0.0);
+            c = Double.toString(Math.pow(10, 20 * r.nextDouble() - 10) * r.nextGaussian());
+            assertEquals(c, Double.parseDouble(c), parse(c), 0.0);
+        }
+        assertEquals(0.0, parse("abc"), 0.0);
+        assertEquals(0.0, parse(""), 0.0);
+        assertEquals(0.0, parse("1.2.3"), 0.0);
+    }
+
+    // @Test
+    /**
+     * Words, numbers and lines come out right even when they straddle the edges of the
+     * scanner's buffer.
+     */
+    public void testScannerAcrossBuffers() throws Exception {
+        StringBuilder sb = new StringBuilder();
+        int n = 150000;
+        for (int i = 0; i < n; i++)
+            sb.append((i % 3 == 0) ? "Si" : "C").append("  ").append(i).append(".25\t-")
+              .append(i % 1000).append("\r\n");
+        ByteScanner s = new ByteScanner(new ByteArrayInputStream(sb.toString().getBytes()));
+        for (int i = 0; i < n; i++) {
+            assertEquals((i % 3 == 0) ? "Si" : "C", s.nextWord());
+            assertEquals(i + 0.25, s.nextDouble(), 0.0);
+            assertEquals(-(i % 1000), s.nextInt());
+        }
+        assertNull(s.nextWord());
+
+        sb = new StringBuilder();
+        for (int i = 0; i < n; i++)
+            sb.append(String.format("%-4s%12.3f%8d\n", (i % 3 == 0) ? "Si" : "C", i + 0.25, i));
+        s = new ByteScanner(new ByteArrayInputStream(sb.toString().getBytes()));
+        for (int i = 0; i < n; i++) {
+            assertEquals(24, s.nextLine());
+            assertEquals((i % 3 == 0) ? "Si" : "C", s.lineWord(0, 4));
+            assertEquals(i + 0.25, s.lineDouble(4, 16), 0.0);
+            assertEquals(i, (int) s.lineDouble(16, 24));
+            assertEquals("", s.lineWord(30, 40));
+        }
+        assertEquals(-1, s.nextLine());
+    }
+
+    // @Test
+    /**
+     * Load an XYZ file.
+     */
+    public void testXyz() throws Exception {
+        String xyz = "3\nwater\n  O  0.0 0.0 0.117\nH 0.0   0.757 -0.469\nH 0.0 -0.757 -0.469\n";
+        Structure s = new XyzFile().loads(xyz);
+        assertEquals(3, s.size());
+        Atom[] atoms = s.getAtomArray();
+        assertEquals("O", atoms[0].getSymbol());
+        assertEquals(0.117, atoms[0].getPosition().getZ(), 0.0);
+        assertEquals("H", atoms[2].getSymbol());
+        assertEquals(-0.757, atoms[2].getPosition().getY(), 0.0);
+        assertEquals(2, s.inferBonds().size());
+    }
+
+    // @Test
+    /**
+     * Load a PDB file, working out elements from the element columns or the atom names,
+     * and stopping at the end of the first model.
+     */
+    public void testPdb() throws Exception {
+        String pdb =
+            "HEADER    TEST\n" +
+            "REMARK Icky sticky goo\n" +
+            "ATOM      1  N   GLY A   1      -0.966   0.493   1.500  1.00  0.00           N\n" +
+            "ATOM      2  CA  GLY A   1       0.257   0.418   0.692  1.00  0.00           C\n" +
+            "ATOM      3 1HA  GLY A   1       0.500   1.400   0.300  1.00  0.00\n" +
+            "HETATM    4  O   HOH     2       5.000   5.000   5.000  1.00  0.00\n" +
+            "ATOM      5  Si  UNK     1      10.000  -2.500   3.250  1.00  0.00 \n" +
+            "ATOM      6 FE   HEM     3       1.000   1.000   1.000  1.00  0.00\n" +
+            "CONECT    1    2\n" +
+            "ENDMDL\n" +
+            "ATOM      7  C   GLY A   1       9.000   9.000   9.000  1.00  0.00           C\n" +
+            "END\n";
+        Structure s = new PdbFile().loads(pdb);
+        // iron isn't a known element, and the second model is ignored
+        assertEquals(5, s.size());
+        Atom[] atoms = s.getAtomArray();
+        String[] symbols = { "N", "C", "H", "O", "Si" };
+        for (int i = 0; i < symbols.length; i++)
+            assertEquals(symbols[i], atoms[i].getSymbol());
+        assertEquals(-0.966, atoms[0].getPosition().getX(), 0.0);
+        assertEquals(0.418, atoms[1].getPosition().getY(), 0.0);
+        assertEquals(3.25, atoms[4].getPosition().getZ(), 0.0);
+    }
+
+    /**
+     * Write some text to a temporary file.
+     */
+    private static File tempFile(String suffix, CharSequence text) throws Exception {
+        File f = File.createTempFile("serialization", suffix);
+        f.deleteOnExit();
+        Writer w = new OutputStreamWriter(new FileOutputStream(f), "ISO-8859-1");
+        w.append(text);
+        w.close();
+        return f;
+    }
+
+    /**
+     * Do two structures have the same atoms in the same order?
+     */
+    private static void assertSameAtoms(Structure expected, Structure actual) {
+        assertEquals(expected.size(), actual.size());
+        Atom[] a1 = expected.getAtomArray(), a2 = actual.getAtomArray();
+        for (int i = 0; i < a1.length; i++) {
+            assertEquals(a1[i].getSymbol(), a2[i].getSymbol());
+            assertEquals(0.0, a1[i].getPosition().subtract(a2[i].getPosition()).length(), 0.0);
+        }
+    }
+
+    // @Test
+    /**
+     * Files big enough to be mapped and parsed in several pieces load the same as they do
+     * from a stream, including XYZ files of several frames and PDB files of several models.
+     */
+    public void testMappedLoad() throws Exception {
+        String[] symbols = { "C", "H", "O", "N", "Si" };
+        int n = 200000;
+        Random r = new Random(18);
+        StringBuilder frame = new StringBuilder();
+        frame.append(n).append("\nbig\n");
+        for (int i = 0; i < n; i++)
+            frame.append(String.format("%s %.5f %.5f %.5f\n", symbols[i % symbols.length],
+                                       100 * r.nextDouble(), 100 * r.nextDouble(),
+                                       100 * r.nextDouble()));
+        XyzFile xyz = new XyzFile();
+        File f = tempFile(".xyz", frame.toString() + frame + frame);
+        Structure s = xyz.load(f.getPath());
+        assertEquals(n, s.size());
+        assertSameAtoms(xyz.loads(frame.toString()), s);
+
+        StringBuilder model = new StringBuilder("HEADER    TEST\n");
+        for (int i = 0; i < n; i++)
+            model.append(String.format("ATOM  %5d %-4s UNK     1    %8.3f%8.3f%8.3f  1.00  0.00\n",
+                                       i % 100000, symbols[i % symbols.length],
+                                       100 * r.nextDouble(), 100 * r.nextDouble(),
+                                       100 * r.nextDouble()));
+        model.append("ENDMDL\n");
+        PdbFile pdb = new PdbFile();
+        f = tempFile(".pdb", model.toString() + model.toString());
+        s = pdb.load(f.getPath());
+        assertEquals(n, s.size());
+        assertSameAtoms(pdb.loads(model.toString()), s);
+    }
+
+    // @Test
+    /**
+     * JSON frames come out compact, and delta frames give just the atoms that have moved
+     * far enough since they were last sent, even if they got there a little at a time.
+     */
+    public void testJsonStream() throws Exception {
+        String xyz = "3\nwater\nO 0.0 0.0 0.117\nH 0.0 0.757 -0.469\nH 0.0 -0.757 -0.469\n";
+        Structure s = new XyzFile().loads(xyz);
+        Atom[] atoms = s.getAtomArray();
+        assertTrue(s.toJson().startsWith("{\"numAtoms\":3,\"atom0\":{\"symbol\":\"O\""));
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonStream json = new JsonStream(bytes);
+        json.writeFrame(s);
+        // 0.05 from where it was sent, well under the threshold
+        atoms[2].move(new Vector(0.0, -0.04, 0.03));
+        assertEquals(0, json.writeDelta(s, 0.1));
+        // now 0.15 from where it was sent, well over
+        atoms[1].move(new Vector(0.0, 0.5, 0.0));
+        atoms[2].move(new Vector(0.0, -0.08, 0.06));
+        assertEquals(2, json.writeDelta(s, 0.1));
+        json.setDecimals(1);
+        json.writeFrame(s);
+        json.flush();
+        String ids = atoms[0].getUniqueId() + "," + atoms[1].getUniqueId() + ","
+            + atoms[2].getUniqueId();
+        String[] lines = bytes.toString("US-ASCII").split("\n");
+        assertEquals(4, lines.length);
+        assertEquals("{\"frame\":0,\"numAtoms\":3,\"symbols\":[\"O\",\"H\",\"H\"],\"ids\":["
+                     + ids + "],\"xyz\":[0,0,0.117,0,0.757,-0.469,0,-0.757,-0.469]}", lines[0]);
+        assertEquals("{\"frame\":1,\"numAtoms\":3,\"delta\":true,\"indices\":[],\"xyz\":[]}",
+                     lines[1]);
+        assertEquals("{\"frame\":2,\"numAtoms\":3,\"delta\":true,\"indices\":[1,2],"
+                     + "\"xyz\":[0,1.257,-0.469,0,-0.877,-0.379]}", lines[2]);
+        assertTrue(lines[3].endsWith("\"xyz\":[0,0,0.1,0,1.3,-0.5,0,-0.9,-0.4]}"));
+    }
+
+    // @Test
+    /**
+     * Once an atom has been swapped for another, so the count is the same but the indices
+     * are not, a full frame is sent rather than a delta, whether from the structure or a
+     * snapshot of it.
+     */
+    public void testJsonStreamAfterSwap() throws Exception {
+        String xyz = "3\nwater\nO 0.0 0.0 0.117\nH 0.0 0.757 -0.469\nH 0.0 -0.757 -0.469\n";
+        StructureMutable s = (StructureMutable) new XyzFile().loads(xyz);
+        Atom[] atoms = s.getAtomArray();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        JsonStream json = new JsonStream(bytes);
+        json.writeFrame(s);
+        s.removeAtom(atoms[1]);
+        Atom c = ElementFactory.getInstance().get("C");
+        c.setPosition(atoms[1].getPosition());
+        s.addAtom(c);
+        assertEquals(3, json.writeDelta(s, 0.1));
+        assertEquals(0, json.writeDelta(s, 0.1));
+
+        s.publishSnapshot();
+        json.writeFrame(s.getSnapshot());
+        s.removeAtom(atoms[2]);
+        Atom n = ElementFactory.getInstance().get("N");
+        n.setPosition(atoms[2].getPosition());
+        s.addAtom(n);
+        s.publishSnapshot();
+        assertEquals(3, json.writeDelta(s.getSnapshot(), 0.1));
+        json.flush();
+        String[] lines = bytes.toString("US-ASCII").split("\n");
+        assertEquals(5, lines.length);
+        assertTrue(lines[1].contains("\"C\"") && !lines[1].contains("\"delta\""));
+        assertTrue(lines[2].contains("\"delta\":true"));
+        assertTrue(lines[4].contains("\"N\"") && !lines[4].contains("\"delta\""));
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(SerializationTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
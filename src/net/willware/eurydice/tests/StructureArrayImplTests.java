@@ -0,0 +1,39 @@
+package net.willware.eurydice.tests;
+
+import junit.framework.Test;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.StructureArrayImpl;
+import net.willware.eurydice.core.StructureMutableImpl;
+
+/**
+ * JUnit tests for the structure-of-arrays structure.
+ */
+public class StructureArrayImplTests extends StructureImplTestCase {
+
+    /* (non-Javadoc)
+     * @see net.willware.eurydice.tests.StructureImplTestCase#newStructure()
+     */
+    protected StructureMutableImpl newStructure() {
+        // small, so that the arrays grow
+        return new StructureArrayImpl(4);
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(StructureArrayImplTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
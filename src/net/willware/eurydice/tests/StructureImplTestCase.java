@@ -0,0 +1,288 @@
+package net.willware.eurydice.tests;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * Tests shared by the structures that keep their atoms in storage of their own and hand
+ * out views of them, checked against the same atoms in a plain {@link StructureMutableImpl}.
+ */
+public abstract class StructureImplTestCase extends TestCase {
+
+    private static final String[] elements = { "C", "H", "O", "N" };
+
+    /**
+     * Make an empty structure of the kind being tested.
+     *
+     * @return the structure
+     * @throws Exception if it can't be made
+     */
+    protected abstract StructureMutableImpl newStructure() throws Exception;
+
+    /**
+     * Fill two structures with the same random atoms.
+     *
+     * @param s1 the structure being tested
+     * @param s2 a plain structure
+     * @param n the number of atoms
+     * @param r the source of randomness
+     */
+    protected void fill(StructureMutableImpl s1, StructureMutableImpl s2, int n, Random r) {
+        for (int i = 0; i < n; i++) {
+            Atom a = ElementFactory.getInstance().get(elements[r.nextInt(elements.length)]);
+            a.setPosition(new Vector(10 * r.nextDouble(), 10 * r.nextDouble(),
+                                     10 * r.nextDouble()));
+            s1.addAtom(a);
+            s2.addAtom(a, a.getUniqueId());
+        }
+    }
+
+    protected void assertSamePosition(Atom a1, Atom a2) {
+        assertTrue(a1.getPosition().approximatelyEqual(a2.getPosition()));
+    }
+
+    /**
+     * Integrating a structure should give the same trajectory as integrating the atom
+     * objects, and bond inference should find the same bonds.
+     *
+     * @param s1 an empty structure of the kind being tested
+     */
+    protected void checkMatchesObjectStructure(StructureMutableImpl s1) {
+        StructureMutableImpl s2 = new StructureMutableImpl();
+        Random r = new Random(6);
+        fill(s1, s2, 200, r);
+        assertEquals(200, s1.size());
+        assertEquals(s2.inferBonds().size(), s1.inferBonds().size());
+        s1.verletPrep();
+        s2.verletPrep();
+        for (int step = 0; step < 5; step++) {
+            for (int i = 0; i < s1.size(); i++) {
+                Atom a1 = s1.get(i);
+                Vector f = new Vector(r.nextGaussian(), r.nextGaussian(), r.nextGaussian());
+                a1.addForce(f);
+                s2.get(a1.getUniqueId()).addForce(f);
+            }
+            s1.verletStep(0.1);
+            s2.verletStep(0.1);
+        }
+        for (int i = 0; i < s1.size(); i++) {
+            Atom a1 = s1.get(i);
+            Atom a2 = s2.get(a1.getUniqueId());
+            assertSamePosition(a1, a2);
+            assertTrue(a1.getPreviousPosition().approximatelyEqual(a2.getPreviousPosition()));
+            assertEquals(a2.getSymbol(), a1.getSymbol());
+            assertEquals(a2.getMass(), a1.getMass());
+            assertEquals(a2.getHybridization(), a1.getHybridization());
+        }
+    }
+
+    /**
+     * Removing atoms keeps indices dense and lookups by ID working, views follow their
+     * atoms when they move to a new index, and the views of removed atoms are detached.
+     *
+     * @param s1 an empty structure of the kind being tested
+     * @param n the number of atoms to fill it with, at least 100
+     */
+    protected void checkRemove(StructureMutableImpl s1, int n) {
+        StructureMutableImpl s2 = new StructureMutableImpl();
+        fill(s1, s2, n, new Random(7));
+        Atom[] originals = s2.getAtomArray();
+        Atom moved = s1.get(n - 2);
+        Vector movedPosition = moved.getPosition();
+        Atom removed = s1.get(originals[0].getUniqueId());
+        for (int i = 0; i < 100; i += 3)
+            s1.removeAtom(originals[i]);
+        assertEquals(n - 34, s1.size());
+        for (int i = 0; i < s1.size(); i++) {
+            Atom a = s1.get(i);
+            assertEquals(i, s1.indexOf(a));
+            assertSame(a, s1.get(a.getUniqueId()));
+            assertSamePosition(a, s2.get(a.getUniqueId()));
+            assertEquals(s2.get(a.getUniqueId()).getSymbol(), a.getSymbol());
+        }
+        assertTrue(s1.indexOf(moved) < 100);
+        assertTrue(movedPosition.approximatelyEqual(moved.getPosition()));
+        assertNull(s1.get(originals[0].getUniqueId()));
+        assertEquals(-1, s1.indexOf(removed));
+        assertEquals(originals[0].getUniqueId().toInteger(), removed.getUniqueId().toInteger());
+        try {
+            removed.getPosition();
+            fail("a removed atom's view still reads the structure");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Iterating over atoms that haven't been asked for makes views that aren't kept, but
+     * still follow their atoms, equal the kept views, and are detached with them.
+     *
+     * @param s1 an empty structure of the kind being tested
+     */
+    protected void checkIteratedViews(StructureMutableImpl s1) {
+        StructureMutableImpl s2 = new StructureMutableImpl();
+        fill(s1, s2, 20, new Random(12));
+        Iterator<Atom> iter = s1.getIterator();
+        Atom first = iter.next(), last = null;
+        while (iter.hasNext())
+            last = iter.next();
+        Atom again = null;
+        for (iter = s1.getIterator(); iter.hasNext(); )
+            again = iter.next();
+        assertNotSame(last, again);
+        assertEquals(last, again);
+        assertEquals(last.hashCode(), again.hashCode());
+        // the last atom moves into the first one's place
+        s1.removeAtom(first);
+        assertEquals(0, s1.indexOf(last));
+        assertSamePosition(s2.get(last.getUniqueId()), last);
+        Atom kept = s1.get(0);
+        assertEquals(kept, last);
+        assertSame(kept, s1.getIterator().next());
+        s1.removeAtom(kept);
+        assertEquals(-1, s1.indexOf(last));
+        try {
+            last.getX();
+            fail("a removed atom's view still reads the structure");
+        } catch (IllegalStateException e) {
+            // expected
+        }
+    }
+
+    /**
+     * Snapshots give the IDs, elements and positions of the atoms, and the atoms
+     * themselves when asked.
+     *
+     * @param s1 an empty structure of the kind being tested
+     */
+    protected void checkSnapshot(StructureMutableImpl s1) {
+        StructureMutableImpl s2 = new StructureMutableImpl();
+        fill(s1, s2, 20, new Random(13));
+        s1.publishSnapshot();
+        PositionSnapshot snap = s1.getSnapshot();
+        assertEquals(20, snap.size());
+        for (int i = 0; i < snap.size(); i++) {
+            Atom a2 = s2.get(snap.getUniqueId(i));
+            assertEquals(a2.getSymbol(), snap.getElement(i).getSymbol());
+            assertTrue(a2.getPosition().approximatelyEqual(snap.getPosition(i)));
+            assertSame(s1.get(snap.getUniqueId(i)), snap.getAtom(i));
+        }
+        Atom a = snap.getAtom(3);
+        s1.removeAtom(a);
+        assertNull(snap.getAtom(3));
+    }
+
+    /**
+     * Integrating never changes a vector that was handed to an atom's setters.
+     *
+     * @param s an empty structure
+     */
+    protected void checkSettersCopy(StructureMutableImpl s) {
+        fill(s, new StructureMutableImpl(), 10, new Random(10));
+        Atom a = s.getAtomArray()[3];
+        Vector p = new Vector(1.0, 2.0, 3.0);
+        Vector previous = new Vector(1.1, 2.0, 3.0);
+        Vector f = new Vector(0.0, 0.5, 0.0);
+        a.setPosition(p);
+        a.setPreviousPosition(previous);
+        a.setForce(f);
+        for (int step = 0; step < 4; step++) {
+            a.addForce(0.0, 0.0, 0.25);
+            s.verletStep(0.1);
+        }
+        assertTrue(p.approximatelyEqual(new Vector(1.0, 2.0, 3.0)));
+        assertTrue(previous.approximatelyEqual(new Vector(1.1, 2.0, 3.0)));
+        assertTrue(f.approximatelyEqual(new Vector(0.0, 0.5, 0.0)));
+        assertTrue(a.getX() < 0.9);
+    }
+
+    /**
+     * Integrating a structure takes no memory once it has started. This is measured with
+     * the per-thread allocation counter of HotSpot's {@link ThreadMXBean}, and passes
+     * without checking anything on JVMs that don't have one.
+     *
+     * @param s an empty structure
+     */
+    protected void checkVerletStepAllocatesNothing(StructureMutableImpl s) {
+        ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (!(bean instanceof com.sun.management.ThreadMXBean))
+            return;
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        if (!threads.isThreadAllocatedMemorySupported()
+                || !threads.isThreadAllocatedMemoryEnabled())
+            return;
+        fill(s, new StructureMutableImpl(), 1000, new Random(11));
+        s.verletPrep();
+        long id = Thread.currentThread().getId();
+        // warm up, so the steps measured run compiled code
+        for (int step = 0; step < 2000; step++)
+            s.verletStep(1.0e-3);
+        long before = threads.getThreadAllocatedBytes(id);
+        for (int step = 0; step < 1000; step++)
+            s.verletStep(1.0e-3);
+        long allocated = threads.getThreadAllocatedBytes(id) - before;
+        // a single vector per atom per step would be tens of megabytes
+        assertTrue(allocated + " bytes allocated in 1000 steps", allocated < 10000);
+    }
+
+    // @Test
+    /**
+     * Atoms in the structure behave like atom objects.
+     */
+    public void testMatchesObjectStructure() throws Exception {
+        checkMatchesObjectStructure(newStructure());
+    }
+
+    // @Test
+    /**
+     * Removing atoms keeps the structure consistent.
+     */
+    public void testRemove() throws Exception {
+        checkRemove(newStructure(), 100);
+    }
+
+    // @Test
+    /**
+     * Views made while iterating behave like the views the structure keeps.
+     */
+    public void testIteratedViews() throws Exception {
+        checkIteratedViews(newStructure());
+    }
+
+    // @Test
+    /**
+     * Snapshots describe the atoms without holding them.
+     */
+    public void testSnapshot() throws Exception {
+        checkSnapshot(newStructure());
+        checkSnapshot(new StructureMutableImpl());
+    }
+
+    // @Test
+    /**
+     * Vectors handed to atoms are copied, in this structure and in a plain one.
+     */
+    public void testSettersCopy() throws Exception {
+        checkSettersCopy(newStructure());
+        checkSettersCopy(new StructureMutableImpl());
+    }
+
+    // @Test
+    /**
+     * Steps of integration allocate nothing, in this structure and in a plain one.
+     */
+    public void testVerletStepAllocatesNothing() throws Exception {
+        checkVerletStepAllocatesNothing(newStructure());
+        checkVerletStepAllocatesNothing(new StructureMutableImpl());
+    }
+}
@@ -0,0 +1,80 @@
+package net.willware.eurydice.tests;
+
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.db.TileKey;
+import net.willware.eurydice.math.Region;
+import net.willware.eurydice.math.Vector;
+
+/**
+ * JUnit tests for tile keys.
+ */
+public class TileKeyTests extends TestCase {
+
+    private boolean covered(long[] ranges, long key) {
+        for (int i = 0; i < ranges.length; i += 2)
+            if (ranges[i] <= key && key <= ranges[i + 1])
+                return true;
+        return false;
+    }
+
+    // @Test
+    /**
+     * Every tile overlapping a region should be covered by the region's key ranges, which
+     * should be in increasing order and no more than asked for.
+     */
+    public void testRangesCoverRegion() {
+        Random r = new Random(12);
+        for (int trial = 0; trial < 50; trial++) {
+            Region region = new Region(100.0 * r.nextGaussian(), 100.0 * r.nextGaussian(),
+                                       100.0 * r.nextGaussian(), 100.0 * r.nextGaussian(),
+                                       100.0 * r.nextGaussian(), 100.0 * r.nextGaussian());
+            int maxRanges = 1 + r.nextInt(40);
+            long[] ranges = TileKey.ranges(region, maxRanges);
+            assertTrue(ranges.length <= 2 * maxRanges);
+            for (int i = 1; i < ranges.length; i++)
+                assertTrue(ranges[i - 1] <= ranges[i]);
+            Vector vmin = region.getMinCorner(), vmax = region.getMaxCorner();
+            for (int i = TileKey.coordinate(vmin.getX()); i <= TileKey.coordinate(vmax.getX()); i++)
+                for (int j = TileKey.coordinate(vmin.getY()); j <= TileKey.coordinate(vmax.getY()); j++)
+                    for (int k = TileKey.coordinate(vmin.getZ()); k <= TileKey.coordinate(vmax.getZ()); k++)
+                        assertTrue(covered(ranges, TileKey.key(i, j, k)));
+        }
+    }
+
+    // @Test
+    /**
+     * A region inside one aligned block of tiles should need only one range, covering just
+     * that block.
+     */
+    public void testAlignedBlock() {
+        double t = TileKey.TILE_SIZE;
+        Region region = new Region(0.5 * t, 0.5 * t, 0.5 * t, 3.5 * t, 3.5 * t, 3.5 * t);
+        long[] ranges = TileKey.ranges(region, 64);
+        assertEquals(2, ranges.length);
+        assertEquals(63, ranges[1] - ranges[0]);
+        assertEquals(TileKey.key(new Vector(0.0, 0.0, 0.0)), ranges[0]);
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(TileKeyTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
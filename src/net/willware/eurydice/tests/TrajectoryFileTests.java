@@ -0,0 +1,221 @@
+package net.willware.eurydice.tests;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.util.Iterator;
+import java.util.Random;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+import net.willware.eurydice.core.Atom;
+import net.willware.eurydice.core.PositionSnapshot;
+import net.willware.eurydice.core.Structure;
+import net.willware.eurydice.core.StructureMutableImpl;
+import net.willware.eurydice.elements.ElementFactory;
+import net.willware.eurydice.math.Vector;
+import net.willware.eurydice.serialization.TrajectoryFile;
+
+/**
+ * JUnit tests for binary trajectory files.
+ */
+public class TrajectoryFileTests extends TestCase {
+
+    private static final String[] elements = { "C", "H", "O", "Si" };
+
+    private static final int NUM_ATOMS = 300;
+
+    private static final int NUM_FRAMES = 400;
+
+    /**
+     * A structure of random atoms.
+     */
+    private StructureMutableImpl randomStructure(Random r) {
+        StructureMutableImpl s = new StructureMutableImpl();
+        for (int i = 0; i < NUM_ATOMS; i++) {
+            Atom a = ElementFactory.getInstance().get(elements[r.nextInt(elements.length)]);
+            a.setPosition(new Vector(20 * r.nextDouble(), 20 * r.nextDouble(),
+                                     20 * r.nextDouble()));
+            s.addAtom(a);
+        }
+        return s;
+    }
+
+    /**
+     * Jiggle every atom a little, and record where they all are.
+     */
+    private double[] jiggle(Structure s, Random r) {
+        double[] xyz = new double[3 * s.size()];
+        Iterator<Atom> iter = s.getIterator();
+        for (int i = 0; i < s.size(); i++) {
+            Atom a = iter.next();
+            a.move(new Vector(0.1 * r.nextGaussian(), 0.1 * r.nextGaussian(),
+                              0.1 * r.nextGaussian()));
+            Vector p = a.getPosition();
+            xyz[3 * i] = p.getX();
+            xyz[3 * i + 1] = p.getY();
+            xyz[3 * i + 2] = p.getZ();
+        }
+        return xyz;
+    }
+
+    /**
+     * Write a trajectory, then read its frames back out of order.
+     */
+    private void roundTrip(int encoding, double tolerance) throws Exception {
+        File f = File.createTempFile("trajectory", ".traj");
+        f.deleteOnExit();
+        Random r = new Random(16);
+        StructureMutableImpl s = randomStructure(r);
+        TrajectoryFile tf = new TrajectoryFile(encoding);
+        TrajectoryFile.Writer w = tf.openWriter(f.getPath(), s);
+        double[][] expected = new double[NUM_FRAMES][];
+        for (int k = 0; k < NUM_FRAMES; k++) {
+            expected[k] = jiggle(s, r);
+            w.writeFrame(s);
+        }
+        w.close();
+        assertEquals(NUM_FRAMES, w.numFrames());
+
+        TrajectoryFile.Reader rd = tf.openReader(f.getPath());
+        assertEquals(NUM_FRAMES, rd.numFrames());
+        assertEquals(NUM_ATOMS, rd.numAtoms());
+        Iterator<Atom> iter = s.getIterator();
+        for (int i = 0; i < NUM_ATOMS; i++)
+            assertEquals(iter.next().getSymbol(), rd.getSymbol(i));
+        double[] xyz = null;
+        for (int n = 0; n < 100; n++) {
+            int k = r.nextInt(NUM_FRAMES);
+            assertEquals(k, rd.getStep(k));
+            xyz = rd.readFrame(k, xyz);
+            for (int j = 0; j < 3 * NUM_ATOMS; j++)
+                assertEquals(expected[k][j], xyz[j], tolerance);
+        }
+        rd.close();
+
+        // the last frame comes back as a structure, whether read from a file or a stream
+        Structure last = tf.load(f.getPath());
+        assertEquals(NUM_ATOMS, last.size());
+        Structure fromStream = tf.loads(tf.dumps(s));
+        assertEquals(NUM_ATOMS, fromStream.size());
+        Atom[] a1 = last.getAtomArray(), a2 = fromStream.getAtomArray();
+        for (int i = 0; i < NUM_ATOMS; i++) {
+            assertEquals(a1[i].getSymbol(), a2[i].getSymbol());
+            assertTrue(a1[i].getPosition().approximatelyEqual(a2[i].getPosition()));
+        }
+    }
+
+    // @Test
+    /**
+     * Float coordinates are good to float precision.
+     */
+    public void testFloat32() throws Exception {
+        roundTrip(TrajectoryFile.FLOAT32, 1.0e-5);
+    }
+
+    // @Test
+    /**
+     * Quantized coordinates are good to half a quantum. The atoms wander around a box
+     * under 30 angstroms wide, which cut into 65535 quanta gives quanta under half a
+     * milliangstrom.
+     */
+    public void testQuantized() throws Exception {
+        roundTrip(TrajectoryFile.QUANTIZED, 2.5e-4);
+    }
+
+    // @Test
+    /**
+     * A file cut off partway through a frame is readable up to its last whole frame, and
+     * frames written from snapshots keep the snapshots' frame numbers.
+     */
+    public void testTruncatedSnapshots() throws Exception {
+        File f = File.createTempFile("trajectory", ".traj");
+        f.deleteOnExit();
+        Random r = new Random(17);
+        StructureMutableImpl s = randomStructure(r);
+        TrajectoryFile tf = new TrajectoryFile();
+        TrajectoryFile.Writer w = tf.openWriter(f.getPath(), s);
+        s.verletPrep();
+        assertNull(s.getSnapshot());
+        for (int k = 0; k < 10; k++) {
+            jiggle(s, r);
+            s.verletStep(0.1);
+            PositionSnapshot snap = s.getSnapshot();
+            w.writeFrame(snap);
+        }
+        w.close();
+        RandomAccessFile raf = new RandomAccessFile(f, "rw");
+        raf.setLength(raf.length() - 5);
+        raf.close();
+        TrajectoryFile.Reader rd = tf.openReader(f.getPath());
+        assertEquals(9, rd.numFrames());
+        for (int k = 0; k < 9; k++)
+            assertEquals(k + 1, rd.getStep(k));
+        rd.close();
+    }
+
+    // @Test
+    /**
+     * A file holding only a header, or a header and part of a frame, has no frames, and
+     * loading it says so rather than failing some other way.
+     */
+    public void testNoFrames() throws Exception {
+        File f = File.createTempFile("trajectory", ".traj");
+        f.deleteOnExit();
+        StructureMutableImpl s = randomStructure(new Random(18));
+        TrajectoryFile tf = new TrajectoryFile();
+        TrajectoryFile.Writer w = tf.openWriter(f.getPath(), s);
+        w.close();
+        long headerLength = f.length();
+        for (int pass = 0; pass < 2; pass++) {
+            if (pass == 1) {
+                w = tf.openWriter(f.getPath(), s);
+                w.writeFrame(s);
+                w.close();
+                RandomAccessFile raf = new RandomAccessFile(f, "rw");
+                raf.setLength(headerLength + 10);
+                raf.close();
+            }
+            TrajectoryFile.Reader rd = tf.openReader(f.getPath());
+            assertEquals(0, rd.numFrames());
+            rd.close();
+            try {
+                tf.load(f.getPath());
+                fail("loaded a trajectory with no frames");
+            } catch (IOException e) {
+                assertEquals("trajectory has no frames", e.getMessage());
+            }
+            InputStream ins = new FileInputStream(f);
+            try {
+                tf.load(ins);
+                fail("loaded a trajectory with no frames");
+            } catch (IOException e) {
+                assertEquals("trajectory has no frames", e.getMessage());
+            } finally {
+                ins.close();
+            }
+        }
+    }
+
+    /**
+     * Suite.
+     *
+     * @return the test
+     */
+    public static Test suite() {
+        return new TestSuite(TrajectoryFileTests.class);
+    }
+
+    /**
+     * The main method.
+     *
+     * @param args command line arguments
+     */
+    public static void main(String args[]) {
+        junit.textui.TestRunner.run(suite());
+    }
+}
@@ -0,0 +1,328 @@
+package net.willware.eurydice.view;
+
+import java.util.Arrays;
+
+/**
+ * A display list for the <a href="http://en.wikipedia.org/wiki/Painter's_algorithm">Painter's
+ * algorithm</a> that keeps its entries in parallel primitive arrays rather than as one
+ * {@link DisplayListEntry} object each, and is cleared and refilled frame after frame, so
+ * drawing a frame allocates nothing once the arrays are big enough.
+ * <p>
+ * An entry has a kind and an item, whose meanings are up to whoever fills the list, such
+ * as "atom" and an index into an array of atoms, and one or two ends, each a position in
+ * screen coordinates and a radius in pixels. An entry with one end, such as an atom, is
+ * at the depth of that end, and one with two, such as a bond, at the depth of its middle.
+ * <p>
+ * {@link #zsort()} sorts the entries back to front with a least-significant-digit radix
+ * sort of their depths quantized to {@link #KEY_BITS} bits, which takes time in proportion
+ * to the number of entries, and compares no depths at all. Entries whose depths quantize
+ * alike are left in the order they were added, which for painting is as good as sorted.
+ */
+public class DisplayList {
+
+    /** The number of bits depths are quantized to for sorting. */
+    public static final int KEY_BITS = 22;
+
+    /** The number of bits sorted on by each pass of the radix sort. */
+    private static final int DIGIT_BITS = KEY_BITS / 2;
+
+    /** Masks a key down to one digit. */
+    private static final int DIGIT_MASK = (1 << DIGIT_BITS) - 1;
+
+    /** The number of entries. */
+    private int size = 0;
+
+    /** The kind of each entry. */
+    private int[] kind;
+
+    /** The item each entry draws. */
+    private int[] item;
+
+    /** The first end of each entry, in screen coordinates, and its radius. */
+    private double[] x1, y1, z1, r1;
+
+    /** The second end of each entry, the same as the first for entries with one. */
+    private double[] x2, y2, z2, r2;
+
+    /** The entries' quantized depths. */
+    private int[] keys;
+
+    /** The entries in depth order, once sorted. */
+    private int[] order;
+
+    /** Where each pass of the radix sort puts the entries. */
+    private int[] scratch;
+
+    /** The bucket counts for one pass of the radix sort. */
+    private final int[] counts = new int[(1 << DIGIT_BITS) + 1];
+
+    /**
+     * Constructor.
+     */
+    public DisplayList() {
+        this(256);
+    }
+
+    /**
+     * Constructor.
+     *
+     * @param capacity the number of entries to make room for initially
+     */
+    public DisplayList(int capacity) {
+        capacity = (capacity < 1) ? 1 : capacity;
+        kind = new int[capacity];
+        item = new int[capacity];
+        x1 = new double[capacity];
+        y1 = new double[capacity];
+        z1 = new double[capacity];
+        r1 = new double[capacity];
+        x2 = new double[capacity];
+        y2 = new double[capacity];
+        z2 = new double[capacity];
+        r2 = new double[capacity];
+        keys = new int[capacity];
+        order = new int[capacity];
+        scratch = new int[capacity];
+    }
+
+    private void ensureCapacity(int capacity) {
+        if (capacity <= kind.length)
+            return;
+        capacity = Math.max(capacity, 2 * kind.length);
+        kind = Arrays.copyOf(kind, capacity);
+        item = Arrays.copyOf(item, capacity);
+        x1 = Arrays.copyOf(x1, capacity);
+        y1 = Arrays.copyOf(y1, capacity);
+        z1 = Arrays.copyOf(z1, capacity);
+        r1 = Arrays.copyOf(r1, capacity);
+        x2 = Arrays.copyOf(x2, capacity);
+        y2 = Arrays.copyOf(y2, capacity);
+        z2 = Arrays.copyOf(z2, capacity);
+        r2 = Arrays.copyOf(r2, capacity);
+        keys = new int[capacity];
+        order = new int[capacity];
+        scratch = new int[capacity];
+    }
+
+    /**
+     * Remove all the entries, keeping the room they took for the next frame's.
+     */
+    public void clear() {
+        size = 0;
+    }
+
+    /**
+     * Gets the number of entries.
+     *
+     * @return the number of entries
+     */
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Add an entry with one end, such as an atom.
+     *
+     * @param k the kind of entry
+     * @param i the item it draws
+     * @param x the x screen coordinate
+     * @param y the y screen coordinate
+     * @param z the z screen coordinate, its depth
+     * @param r the radius in pixels
+     */
+    public void add(int k, int i, double x, double y, double z, double r) {
+        add(k, i, x, y, z, r, x, y, z, r);
+    }
+
+    /**
+     * Add an entry with two ends, such as a bond.
+     *
+     * @param k the kind of entry
+     * @param i the item it draws
+     * @param xa the x screen coordinate of the first end
+     * @param ya the y screen coordinate of the first end
+     * @param za the z screen coordinate of the first end
+     * @param ra the radius of the first end in pixels
+     * @param xb the x screen coordinate of the second end
+     * @param yb the y screen coordinate of the second end
+     * @param zb the z screen coordinate of the second end
+     * @param rb the radius of the second end in pixels
+     */
+    public void add(int k, int i, double xa, double ya, double za, double ra,
+                    double xb, double yb, double zb, double rb) {
+        ensureCapacity(size + 1);
+        int e = size++;
+        kind[e] = k;
+        item[e] = i;
+        x1[e] = xa;
+        y1[e] = ya;
+        z1[e] = za;
+        r1[e] = ra;
+        x2[e] = xb;
+        y2[e] = yb;
+        z2[e] = zb;
+        r2[e] = rb;
+    }
+
+    /**
+     * Gets the kind of an entry.
+     *
+     * @param e the entry, in the order added
+     * @return the kind
+     */
+    public int getKind(int e) {
+        return kind[e];
+    }
+
+    /**
+     * Gets the item an entry draws.
+     *
+     * @param e the entry, in the order added
+     * @return the item
+     */
+    public int getItem(int e) {
+        return item[e];
+    }
+
+    /**
+     * Gets the x screen coordinate of an entry's first end.
+     *
+     * @param e the entry, in the order added
+     * @return the x coordinate
+     */
+    public double getX1(int e) {
+        return x1[e];
+    }
+
+    /**
+     * Gets the y screen coordinate of an entry's first end.
+     *
+     * @param e the entry, in the order added
+     * @return the y coordinate
+     */
+    public double getY1(int e) {
+        return y1[e];
+    }
+
+    /**
+     * Gets the z screen coordinate of an entry's first end.
+     *
+     * @param e the entry, in the order added
+     * @return the z coordinate
+     */
+    public double getZ1(int e) {
+        return z1[e];
+    }
+
+    /**
+     * Gets the radius of an entry's first end.
+     *
+     * @param e the entry, in the order added
+     * @return the radius in pixels
+     */
+    public double getRadius1(int e) {
+        return r1[e];
+    }
+
+    /**
+     * Gets the x screen coordinate of an entry's second end.
+     *
+     * @param e the entry, in the order added
+     * @return the x coordinate
+     */
+    public double getX2(int e) {
+        return x2[e];
+    }
+
+    /**
+     * Gets the y screen coordinate of an entry's second end.
+     *
+     * @param e the entry, in the order added
+     * @return the y coordinate
+     */
+    public double getY2(int e) {
+        return y2[e];
+    }
+
+    /**
+     * Gets the z screen coordinate of an entry's second end.
+     *
+     * @param e the entry, in the order added
+     * @return the z coordinate
+     */
+    public double getZ2(int e) {
+        return z2[e];
+    }
+
+    /**
+     * Gets the radius of an entry's second end.
+     *
+     * @param e the entry, in the order added
+     * @return the radius in pixels
+     */
+    public double getRadius2(int e) {
+        return r2[e];
+    }
+
+    /**
+     * Gets the depth of an entry, the z of its middle.
+     *
+     * @param e the entry, in the order added
+     * @return the depth
+     */
+    public double getDepth(int e) {
+        return 0.5 * (z1[e] + z2[e]);
+    }
+
+    /**
+     * Gets an entry in depth order, as sorted by the last {@link #zsort()}.
+     *
+     * @param k the place in depth order, from 0, the back, to size() - 1, the front
+     * @return the entry, in the order added
+     */
+    public int sorted(int k) {
+        return order[k];
+    }
+
+    /**
+     * Sort the entries back to front, that is, by increasing depth, for
+     * {@link #sorted(int)}. The entries themselves stay where they are.
+     */
+    public void zsort() {
+        if (size == 0)
+            return;
+        double lo = Double.MAX_VALUE, hi = -Double.MAX_VALUE;
+        for (int e = 0; e < size; e++) {
+            double d = z1[e] + z2[e];
+            lo = (d < lo) ? d : lo;
+            hi = (d > hi) ? d : hi;
+        }
+        double scale = (hi > lo) ? ((1 << KEY_BITS) - 1) / (hi - lo) : 0.0;
+        for (int e = 0; e < size; e++) {
+            keys[e] = (int) ((z1[e] + z2[e] - lo) * scale);
+            order[e] = e;
+        }
+        radixPass(order, scratch, 0);
+        radixPass(scratch, order, DIGIT_BITS);
+    }
+
+    /**
+     * Sort entries by one digit of their keys, keeping entries with the same digit in the
+     * order they were in.
+     *
+     * @param from the entries to sort
+     * @param to where to put them sorted
+     * @param shift where the digit is in the keys
+     */
+    private void radixPass(int[] from, int[] to, int shift) {
+        Arrays.fill(counts, 0);
+        for (int k = 0; k < size; k++)
+            counts[((keys[from[k]] >>> shift) & DIGIT_MASK) + 1]++;
+        for (int b = 1; b < counts.length; b++)
+            counts[b] += counts[b - 1];
+        for (int k = 0; k < size; k++) {
+            int e = from[k];
+            to[counts[(keys[e] >>> shift) & DIGIT_MASK]++] = e;
+        }
+    }
+}
@@ -1,6 +1,7 @@
 package net.willware.eurydice.view;
 
 import net.willware.eurydice.core.Orientation;
+import net.willware.eurydice.math.Matrix;
 import net.willware.eurydice.math.Vector;
 
 /**
@@ -82,6 +83,54 @@ public class ScreenSpace {
         return xyz.scale(zoomFactor);
     }
 
+    /**
+     * Convert many atom positions to screen coordinates at once. This does what
+     * {@link #xyzToScreen(Vector)} does to each position, but rotates them all with one matrix
+     * made from the orientation's quaternion, and allocates nothing per position.
+     *
+     * @param xyz the atom positions, packed as x, y and z for each
+     * @param n the number of positions
+     * @param sx where to put the x screen coordinates, n of them
+     * @param sy where to put the y screen coordinates, n of them
+     * @param sz where to put the z screen coordinates, n of them
+     */
+    public void xyzToScreen(double[] xyz, int n, double[] sx, double[] sy, double[] sz) {
+        xyzToScreen(xyz, n, sx, sy, sz, null);
+    }
+
+    /**
+     * Convert many atom positions to screen coordinates at once, and find the scaling factor
+     * from angstroms to pixels near each, as {@link #scaleNear(Vector)} does.
+     *
+     * @param xyz the atom positions, packed as x, y and z for each
+     * @param n the number of positions
+     * @param sx where to put the x screen coordinates, n of them
+     * @param sy where to put the y screen coordinates, n of them
+     * @param sz where to put the z screen coordinates, n of them
+     * @param scale where to put the scaling factors, n of them, or null if not wanted
+     */
+    public void xyzToScreen(double[] xyz, int n, double[] sx, double[] sy, double[] sz,
+                            double[] scale) {
+        Matrix m = orientation.getRotation().toMatrix();
+        double m11 = m.getElement(0), m12 = m.getElement(1), m13 = m.getElement(2);
+        double m21 = m.getElement(3), m22 = m.getElement(4), m23 = m.getElement(5);
+        double m31 = m.getElement(6), m32 = m.getElement(7), m33 = m.getElement(8);
+        Vector t = orientation.getTranslation();
+        double tx = t.getX(), ty = t.getY(), tz = t.getZ();
+        double distance = perspective.getDistance();
+        double zoom = zoomFactor;
+        for (int i = 0, j = 0; i < n; i++, j += 3) {
+            double x = xyz[j], y = xyz[j + 1], z = xyz[j + 2];
+            double rz = m31 * x + m32 * y + m33 * z + tz;
+            double f = zoom * distance / (distance - rz);
+            sx[i] = (m11 * x + m12 * y + m13 * z + tx) * f;
+            sy[i] = (m21 * x + m22 * y + m23 * z + ty) * f;
+            sz[i] = rz * zoom;
+            if (scale != null)
+                scale[i] = f;
+        }
+    }
+
     /**
      * Convert a vector in screen coordinates (pixels) to a position in 3-space
      * where the atoms live.